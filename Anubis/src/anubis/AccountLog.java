@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2017 The Anubis Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anubis;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+
+/**
+ * A file of user account records in the binary snapshot format (see
+ *   SnapshotCodec.writeUserAccount), each one appended after the ones it
+ *   replaces: (user ID, record length, record)*. Where the latest record
+ *   of each account is goes in a map that belongs to the table using it
+ *   (DiskAccountTable, or the cold accounts of an AccountTable).
+ * Once the file is at least MIN_COMPACT_BYTES and more than half of it is
+ *   replaced records, it is rewritten with only the latest ones.
+ * Not thread-safe; the tables synchronize.
+ */
+class AccountLog {
+
+    static final int WRITE_BUFFER_SIZE = 1 << 18;
+
+    // Don't bother compacting files smaller than this.
+    static final long MIN_COMPACT_BYTES = 1L << 24;
+
+    final File file;
+    FileChannel channel;
+
+    // Offset of the latest record of each account (-1: none yet).
+    final Map<Integer, Long> offsets;
+
+    // Appended records not written to the file yet start at "fileSize".
+    final ByteBuffer writeBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+    long fileSize;
+    long liveBytes;
+
+    // Statistics
+    long writes;
+    long compactions;
+
+    //===================================================================
+
+    // Creates (or truncates) the file.
+    AccountLog(File file, Map<Integer, Long> offsets) throws IOException {
+        this.file = file;
+        this.offsets = offsets;
+        File dir = file.getAbsoluteFile().getParentFile();
+        if ((! dir.isDirectory()) && (! dir.mkdirs()))
+            throw new IOException("Unable to create directory " + dir);
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, 
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    long size() {
+        return fileSize + writeBuffer.position();
+    }
+
+    @Override
+    public String toString() {
+        return (size() / 1024 / 1024) + " MB file (" + (liveBytes / 1024 / 1024) + " MB live), " 
+                + writes + " writes, " + compactions + " compactions";
+    }
+
+    // Append the latest record of an account.
+    void write(int userId, ByteBuffer record) throws IOException {
+        discard(offsets.get(userId));
+        int len = record.remaining();
+        if (writeBuffer.remaining() < 8 + len)
+            flushWrites();
+        long offset = size() + 4;
+        if (writeBuffer.remaining() < 8 + len) {
+            ByteBuffer header = ByteBuffer.allocate(8).putInt(userId).putInt(len);
+            header.flip();
+            writeFully(header, fileSize);
+            writeFully(record.duplicate(), fileSize + 8);
+            fileSize += 8 + len;
+        } else {
+            writeBuffer.putInt(userId).putInt(len).put(record.duplicate());
+        }
+        offsets.put(userId, offset);
+        liveBytes += 8 + len;
+        ++writes;
+        if ((size() >= MIN_COMPACT_BYTES) && (size() > liveBytes * 2))
+            compact();
+    }
+
+    // The latest record of an account, or null if it has none.
+    ByteBuffer read(int userId) throws IOException {
+        Long offset = offsets.get(userId);
+        return ((offset == null) || (offset < 0)) ? null : read(offset);
+    }
+
+    // A record (by the offset of its length) is no longer the latest one
+    //   of its account: the caller removed it from the offsets, or is 
+    //   about to replace it.
+    void discard(Long offset) throws IOException {
+        if ((offset != null) && (offset >= 0))
+            liveBytes -= 8 + recordLength(offset);
+    }
+
+    void clear() throws IOException {
+        offsets.clear();
+        writeBuffer.clear();
+        channel.truncate(0);
+        fileSize = 0;
+        liveBytes = 0;
+    }
+
+    ByteBuffer read(long offset) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(recordLength(offset));
+        readFully(record, offset + 4);
+        record.flip();
+        return record;
+    }
+
+    int recordLength(long offset) throws IOException {
+        if (offset >= fileSize)
+            flushWrites();
+        ByteBuffer header = ByteBuffer.allocate(4);
+        readFully(header, offset);
+        return header.getInt(0);
+    }
+
+    void flushWrites() throws IOException {
+        writeBuffer.flip();
+        int n = writeBuffer.remaining();
+        writeFully(writeBuffer, fileSize);
+        fileSize += n;
+        writeBuffer.clear();
+    }
+
+    void writeFully(ByteBuffer b, long position) throws IOException {
+        while (b.hasRemaining())
+            position += channel.write(b, position);
+    }
+
+    void readFully(ByteBuffer b, long position) throws IOException {
+        while (b.hasRemaining()) {
+            int n = channel.read(b, position);
+            if (n < 0)
+                throw new IOException("Account file " + file + " is truncated.");
+            position += n;
+        }
+    }
+
+    // Rewrite the file with only the latest record of each account.
+    void compact() throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        flushWrites();
+        // new offsets in iteration order, set once the new file is in place
+        long[] newOffsets = new long[offsets.size()];
+        long pos = 0;
+        try (FileChannel out = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE, 
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) 
+        {
+            int i = 0;
+            for (Map.Entry<Integer, Long> e : offsets.entrySet()) {
+                newOffsets[i++] = (e.getValue() >= 0) ? pos + 4 : -1;
+                if (e.getValue() < 0)
+                    continue;
+                ByteBuffer record = read(e.getValue());
+                ByteBuffer header = ByteBuffer.allocate(8).putInt(e.getKey()).putInt(record.remaining());
+                header.flip();
+                while (header.hasRemaining())
+                    pos += out.write(header, pos);
+                while (record.hasRemaining())
+                    pos += out.write(record, pos);
+            }
+        }
+        channel.close();
+        if (! tempFile.renameTo(file))
+            throw new IOException("Unable to rename " + tempFile + " to " + file);
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        int i = 0;
+        for (Map.Entry<Integer, Long> e : offsets.entrySet())
+            e.setValue(newOffsets[i++]);
+        fileSize = pos;
+        liveBytes = pos;
+        ++compactions;
+    }
+}
@@ -0,0 +1,668 @@
+/*
+ * Copyright (C) 2017 The Anubis Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anubis;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.IntConsumer;
+
+/**
+ * The DataModel's user accounts by user ID.
+ *
+ * User IDs are handed out sequentially (DataModel.getNewUserId()), so the
+ *   accounts are in an array indexed by user ID, with a bitmap of the 
+ *   slots that have an account (deleted accounts leave holes). get(int)
+ *   is an array load, without boxing the key or going through a hash 
+ *   bucket (see benchmark()).
+ * The table can also be loaded lazily from a memory-mapped binary 
+ *   snapshot (SnapshotCodec): all the user IDs go in the table right
+ *   away, but an account's record is only decoded the first time someone
+ *   gets it. Until then its slot is null and its record offset in the 
+ *   file is kept in a pair of sorted arrays.
+ * Accounts nobody logged into for a while can also be paged out to an
+ *   AccountLog on local disk (--cold_account_days, see enableColdTier()):
+ *   their slot goes back to null, and the next get() decodes
+ *   them again, same as a mapped record. They are paged out as the 
+ *   entries are iterated (DataModel's daily update goes through every 
+ *   account), once the iterator moves on to the next one, so the daily
+ *   update still charges them and then lets go of them. Accounts got 
+ *   during the same transaction (GroupCommitJournal.currentTransaction()) 
+ *   stay, since the transaction may still be holding them.
+ * Like the DiskAccountTable's file, the cold file is only a place to keep
+ *   things out of the heap: it starts over empty at every startup, and 
+ *   snapshots copy the records from it as they are.
+ * Iteration is in ascending user ID order (DataModel.requestTrust() picks
+ *   voters by iterating the user IDs, so that order must not change 
+ *   between a live server and a replay). Unlike the HashMap order this 
+ *   used to have, it doesn't depend on how the table grew, so a model
+ *   reloaded from a snapshot iterates the same as the one that wrote it.
+ *   The journal entries written in the old order are refused on replay 
+ *   (see JournalCodec).
+ * Java serialization still writes a HashMap (as the "accounts" field), 
+ *   so older Java snapshots and the Prevayler deep copies read the same.
+ *   An "ascending" field tells those older snapshots apart (see oldOrder).
+ */
+public class AccountTable extends AbstractMap<Integer, UserAccount> implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    // FileChannel.map() can't do more than 2GB at once, so big files are
+    //   mapped in regions. Regions overlap by more than the size of any
+    //   record, so every record lies entirely inside one region.
+    static final long REGION_SIZE = 1L << 30;
+    static final long REGION_OVERLAP = 1L << 26;
+
+    // Name of the cold account file, in the DataModel's prevalence directory.
+    public static final String COLD_FILE_NAME = "accounts.cold";
+
+    // What Java serialization writes (see writeObject()).
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("accounts", HashMap.class),
+        new ObjectStreamField("ascending", boolean.class)
+    };
+
+    // All accounts, by user ID, and which slots have one. A null slot with
+    //   its bit set is an account not decoded yet, or paged out to the 
+    //   cold file.
+    transient UserAccount[] slots = new UserAccount[16];
+    transient BitSet present = new BitSet();
+    transient int count;
+
+    // Accounts not decoded yet: user IDs (sorted), and the offsets of
+    //   their (length, record) in the file.
+    transient int[] lazyIds;
+    transient long[] lazyOffsets;
+    transient ByteBuffer[] regions;
+
+    // Schema version of the mapped file.
+    transient short schemaVersion;
+
+    // Read from a snapshot written before the accounts were iterated in 
+    //   ascending user ID order (the Server replaces it with a new one).
+    transient boolean oldOrder;
+
+    // Number of accounts not decoded yet. When this gets to zero we let
+    //   go of the file.
+    transient int lazyCount;
+
+    // Cold tier, if enabled: where the records of the accounts paged out 
+    //   are in the cold file, and how long since their last login makes 
+    //   an account cold.
+    transient HashMap<Integer, Long> coldOffsets;
+    transient AccountLog cold;
+    transient int coldMinutes;
+
+    // Accounts got during the "pinnedIn" transaction.
+    transient HashSet<Integer> pinned;
+    transient long pinnedIn;
+    transient SnapshotCodec.RecordWriter rec;
+
+    // Told the user ID of every account got, put or removed (see 
+    //   MerkleTree), if set.
+    transient IntConsumer touched;
+
+    // Statistics
+    transient long pageOuts;
+    transient long faults;
+
+    //===================================================================
+
+    public AccountTable() {
+    }
+
+    // Index the account records of a binary snapshot file without decoding
+    //   any of them. The ids/offsets arrays are in file order, and become
+    //   owned by the table.
+    AccountTable(FileChannel channel, int[] ids, long[] offsets, short schemaVersion) throws IOException {
+        this.schemaVersion = schemaVersion;
+        int n = ids.length;
+        for (int i = 0; i < n; i++)
+            add(ids[i]);
+
+        // Sort the ids along with their offsets for the binary search
+        long[] keys = new long[n];
+        for (int i = 0; i < n; i++)
+            keys[i] = ((long)ids[i] << 32) | i;
+        Arrays.sort(keys);
+        lazyIds = new int[n];
+        lazyOffsets = new long[n];
+        for (int i = 0; i < n; i++) {
+            int idx = (int)keys[i];
+            lazyIds[i] = ids[idx];
+            lazyOffsets[i] = offsets[idx];
+        }
+
+        long size = channel.size();
+        int regionCount = (int)((size + REGION_SIZE - 1) / REGION_SIZE);
+        regions = new ByteBuffer[regionCount];
+        for (int i = 0; i < regionCount; i++) {
+            long start = i * REGION_SIZE;
+            long len = Math.min(size - start, REGION_SIZE + REGION_OVERLAP);
+            regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, len);
+        }
+        lazyCount = n;
+        if (lazyCount == 0)
+            release();
+    }
+
+    // Number of accounts that haven't been decoded yet.
+    public synchronized int getLazyCount() {
+        return lazyCount;
+    }
+
+    // Number of accounts paged out to the cold file.
+    public synchronized int getColdCount() {
+        return (coldOffsets != null) ? coldOffsets.size() : 0;
+    }
+
+    public synchronized String getColdTierStats() {
+        if (cold == null)
+            return "cold tier disabled";
+        return coldOffsets.size() + " cold accounts, " + pageOuts + " paged out, " + faults + " faulted in, " + cold;
+    }
+
+    // Start paging out accounts that nobody logged into for "coldMinutes"
+    //   to "file" (created or truncated), beginning with the decoded ones
+    //   that are cold already. The ones still in a mapped snapshot stay 
+    //   there until they are decoded.
+    public synchronized void enableColdTier(File file, int coldMinutes) throws IOException {
+        if (cold != null)
+            throw new IllegalStateException("The cold tier is already enabled.");
+        coldOffsets = new HashMap();
+        cold = new AccountLog(file, coldOffsets);
+        this.coldMinutes = coldMinutes;
+        pinned = new HashSet();
+        pinnedIn = Long.MIN_VALUE;
+        rec = new SnapshotCodec.RecordWriter();
+        int now = Timestamp.now();
+        for (int userId = present.nextSetBit(0); userId >= 0; userId = present.nextSetBit(userId + 1))
+            if (isCold(slots[userId], now))
+                pageOut(userId);
+    }
+
+    //===================================================================
+
+    // Queries run concurrently (see ReadWriteGuard), and may decode or fault
+    //   in accounts, so those have to be published to the other readers 
+    //   with the lock.
+    public UserAccount get(int userId) {
+        if (touched != null)
+            touched.accept(userId);
+        if ((lazyCount == 0) && (cold == null))
+            return slot(userId);
+        synchronized (this) {
+            UserAccount acc = slot(userId);
+            if (acc == null)
+                acc = decode(userId);
+            if ((acc != null) && (cold != null))
+                pin(userId);
+            return acc;
+        }
+    }
+
+    @Override
+    public UserAccount get(Object key) {
+        return (key instanceof Integer) ? get((int)(Integer)key) : null;
+    }
+
+    public boolean contains(int userId) {
+        return (userId >= 0) && present.get(userId);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return (key instanceof Integer) && contains((Integer)key);
+    }
+
+    @Override
+    public UserAccount put(Integer key, UserAccount value) {
+        if (value == null)
+            throw new NullPointerException("AccountTable doesn't take null accounts.");
+        UserAccount prev = get((int)key);
+        add(key);
+        slots[key] = value;
+        return prev;
+    }
+
+    @Override
+    public UserAccount remove(Object key) {
+        if (! containsKey(key))
+            return null;
+        UserAccount prev = get(key);
+        delete((Integer)key);
+        return prev;
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    @Override
+    public void clear() {
+        slots = new UserAccount[16];
+        present = new BitSet();
+        count = 0;
+        synchronized (this) {
+            release();
+            if (cold != null) {
+                try {
+                    cold.clear();
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Cannot clear the cold account file " + cold.file + ".", e);
+                }
+                pinned.clear();
+            }
+        }
+    }
+
+    @Override
+    public Set<Map.Entry<Integer, UserAccount>> entrySet() {
+        return new AbstractSet<Map.Entry<Integer, UserAccount>>() {
+            @Override
+            public Iterator<Map.Entry<Integer, UserAccount>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return count;
+            }
+        };
+    }
+
+    // Entries decode their account when asked for their value. With the 
+    //   cold tier, the ones that were asked are paged out when the 
+    //   iterator moves on, if they are cold.
+    class EntryIterator implements Iterator<Map.Entry<Integer, UserAccount>> {
+        int next = present.nextSetBit(0);
+        int current = -1;
+        int visited = -1;
+
+        @Override
+        public boolean hasNext() {
+            boolean hasNext = (next >= 0);
+            if (! hasNext)
+                leave();
+            return hasNext;
+        }
+
+        @Override
+        public Map.Entry<Integer, UserAccount> next() {
+            leave();
+            if (next < 0)
+                throw new NoSuchElementException();
+            final int userId = next;
+            current = userId;
+            next = present.nextSetBit(userId + 1);
+            return new Map.Entry<Integer, UserAccount>() {
+                @Override
+                public Integer getKey() {
+                    return userId;
+                }
+
+                @Override
+                public UserAccount getValue() {
+                    if (touched != null)
+                        touched.accept(userId);
+                    UserAccount acc = slots[userId];
+                    if (acc == null)
+                        acc = decode(userId);
+                    if (cold != null)
+                        visited = userId;
+                    return acc;
+                }
+
+                @Override
+                public UserAccount setValue(UserAccount value) {
+                    if (value == null)
+                        throw new NullPointerException("AccountTable doesn't take null accounts.");
+                    UserAccount prev = getValue();
+                    slots[userId] = value;
+                    return prev;
+                }
+            };
+        }
+
+        void leave() {
+            if (visited < 0)
+                return;
+            synchronized (AccountTable.this) {
+                if (isCold(slots[visited], Timestamp.now()) && (! pinned.contains(visited)))
+                    pageOut(visited);
+            }
+            visited = -1;
+        }
+
+        @Override
+        public void remove() {
+            if (current < 0)
+                throw new IllegalStateException();
+            if (slots[current] == null)
+                forget(current);
+            if (visited == current)
+                visited = -1;
+            delete(current);
+            current = -1;
+        }
+    }
+
+    //===================================================================
+
+    // The account in a slot (null if there's none, or it isn't decoded).
+    UserAccount slot(int userId) {
+        UserAccount[] slots = this.slots;
+        return ((userId >= 0) && (userId < slots.length)) ? slots[userId] : null;
+    }
+
+    // Make room for a user ID and mark it present (with whatever its slot 
+    //   has).
+    void add(int userId) {
+        if (userId < 0)
+            throw new IllegalArgumentException("Invalid user ID " + userId + ".");
+        if (userId >= slots.length) {
+            int length = (int)Math.min(Integer.MAX_VALUE - 8, Math.max(userId + 1L, slots.length * 2L));
+            slots = Arrays.copyOf(slots, length);
+        }
+        if (! present.get(userId)) {
+            present.set(userId);
+            ++count;
+        }
+    }
+
+    void delete(int userId) {
+        if (present.get(userId)) {
+            present.clear(userId);
+            slots[userId] = null;
+            --count;
+        }
+    }
+
+    // Replace or remove (null) an account without decoding the one it 
+    //   replaces, for applying a delta snapshot on top of a mapped one.
+    synchronized void overlay(int userId, UserAccount acc) {
+        if ((slot(userId) == null) && contains(userId))
+            forget(userId);
+        if (acc != null) {
+            add(userId);
+            slots[userId] = acc;
+        } else if (contains(userId)) {
+            delete(userId);
+        }
+    }
+
+    // The (still encoded) record of an account that hasn't been decoded
+    //   yet, or was paged out, so SnapshotCodec can copy it to a new 
+    //   snapshot as-is. Returns null if the account isn't in the table, is
+    //   decoded, or is in a mapped file with older records.
+    synchronized ByteBuffer undecodedRecord(int userId) {
+        if ((slot(userId) != null) || (! contains(userId)))
+            return null;
+        if ((cold != null) && coldOffsets.containsKey(userId)) {
+            try {
+                return cold.read(userId);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot read user account " + userId + " from " + cold.file + ".", e);
+            }
+        }
+        if ((lazyCount == 0) || (schemaVersion < SnapshotCodec.SAME_RECORDS_SINCE))
+            return null;
+        int i = Arrays.binarySearch(lazyIds, userId);
+        if (i < 0)
+            return null;
+        return record(lazyOffsets[i]);
+    }
+
+    synchronized UserAccount decode(int userId) {
+        UserAccount acc = slot(userId);
+        if ((acc != null) || (! contains(userId)))
+            return acc;
+        if ((cold != null) && coldOffsets.containsKey(userId))
+            return faultIn(userId);
+        if (lazyCount == 0)
+            return null;
+        int i = Arrays.binarySearch(lazyIds, userId);
+        if (i < 0)
+            return null;
+        try {
+            acc = readRecord(record(lazyOffsets[i]));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot decode user account " + userId + " from the snapshot.", e);
+        }
+        slots[userId] = acc;
+        if (--lazyCount == 0)
+            release();
+        return acc;
+    }
+
+    // An account, decoded without keeping it decoded if it wasn't, for a 
+    //   reader that goes through every account once (see AuditExport and
+    //   MerkleTree).
+    UserAccount peek(int userId) {
+        if ((lazyCount == 0) && (cold == null))
+            return slot(userId);
+        synchronized (this) {
+            UserAccount acc = slot(userId);
+            if ((acc != null) || (! contains(userId)))
+                return acc;
+            try {
+                if ((cold != null) && coldOffsets.containsKey(userId))
+                    return readRecord(cold.read(userId));
+                int i = (lazyCount == 0) ? -1 : Arrays.binarySearch(lazyIds, userId);
+                return (i < 0) ? null : readRecord(record(lazyOffsets[i]));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot decode user account " + userId + ".", e);
+            }
+        }
+    }
+
+    // An undecoded (or paged out) account went away without being decoded.
+    synchronized void forget(int userId) {
+        if ((cold != null) && coldOffsets.containsKey(userId)) {
+            try {
+                cold.discard(coldOffsets.remove(userId));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot read the cold account file " + cold.file + ".", e);
+            }
+            return;
+        }
+        if ((lazyCount > 0) && (--lazyCount == 0))
+            release();
+    }
+
+    static UserAccount readRecord(ByteBuffer record) throws IOException {
+        byte[] b = new byte[record.remaining()];
+        record.get(b);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(b));
+        UserAccount acc = SnapshotCodec.readUserAccount(in);
+        if (in.available() != 0)
+            throw new IOException("Account record is corrupted (record length mismatch).");
+        return acc;
+    }
+
+    //===================================================================
+
+    // An account is cold if nobody logged into it for "coldMinutes".
+    boolean isCold(UserAccount acc, int now) {
+        return (acc != null) && (now - acc.lastLoginTimestamp >= coldMinutes);
+    }
+
+    // Accounts got by one transaction stay decoded until the next one 
+    //   gets something.
+    synchronized void pin(int userId) {
+        long tx = GroupCommitJournal.currentTransaction();
+        if (tx != pinnedIn) {
+            pinned.clear();
+            pinnedIn = tx;
+        }
+        pinned.add(userId);
+    }
+
+    // Write a decoded account to the cold file and drop it from the heap.
+    void pageOut(int userId) {
+        try {
+            SnapshotCodec.writeUserAccount(rec.begin(), slots[userId]);
+            cold.write(userId, rec.record());
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Cannot write user account " + userId + " to " + cold.file + ".", ex);
+        }
+        slots[userId] = null;
+        ++pageOuts;
+    }
+
+    // Bring a paged out account back to the heap. Its record leaves the 
+    //   cold file, since the account may change from now on.
+    UserAccount faultIn(int userId) {
+        UserAccount acc;
+        try {
+            acc = readRecord(cold.read(userId));
+            cold.discard(coldOffsets.remove(userId));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read user account " + userId + " from " + cold.file + ".", e);
+        }
+        slots[userId] = acc;
+        ++faults;
+        return acc;
+    }
+
+    ByteBuffer record(long offset) {
+        ByteBuffer region = regions[(int)(offset / REGION_SIZE)].duplicate();
+        int pos = (int)(offset % REGION_SIZE);
+        int len = region.getInt(pos);
+        region.position(pos + 4);
+        region.limit(pos + 4 + len);
+        return region.slice();
+    }
+
+    // Drop the index and the mappings (the OS unmaps the file when the
+    //   buffers are collected).
+    void release() {
+        lazyCount = 0;
+        lazyIds = null;
+        lazyOffsets = null;
+        regions = null;
+    }
+
+    // Java serialization writes everything decoded, in a HashMap.
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        HashMap<Integer, UserAccount> accounts = new HashMap(Math.max(16, (int)(count / 0.75f) + 1));
+        synchronized (this) {
+            for (int userId = present.nextSetBit(0); userId >= 0; userId = present.nextSetBit(userId + 1))
+                accounts.put(userId, decode(userId));
+        }
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("accounts", accounts);
+        fields.put("ascending", true);
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        HashMap<Integer, UserAccount> accounts = (HashMap)fields.get("accounts", null);
+        oldOrder = ! fields.get("ascending", false);
+        slots = new UserAccount[16];
+        present = new BitSet();
+        if (accounts != null) {
+            for (Map.Entry<Integer, UserAccount> e : accounts.entrySet()) {
+                add(e.getKey());
+                slots[e.getKey()] = e.getValue();
+            }
+        }
+    }
+
+    //===================================================================
+    // Tools
+    //===================================================================
+
+    static volatile long benchmarkSink;
+
+    // Compare a HashMap and this table holding the same "n" accounts, with
+    //   every tenth user ID deleted: best-of-N times of n random lookups 
+    //   (through the Map interface and by int) and of a full iteration 
+    //   (what DataModel.tick() does).
+    public static void benchmark(int n, int runs) {
+        HashMap<Integer, UserAccount> map = new HashMap();
+        AccountTable table = new AccountTable();
+        for (int userId = 0; userId < n; userId++) {
+            UserAccount acc = new UserAccount();
+            acc.balance = userId;
+            map.put(userId, acc);
+            table.put(userId, acc);
+        }
+        for (int userId = 9; userId < n; userId += 10) {
+            map.remove(userId);
+            table.remove(userId);
+        }
+        Random rnd = new Random(0);
+        int[] keys = new int[n];
+        for (int i = 0; i < n; i++)
+            keys[i] = (rnd.nextInt(n / 10) * 10) + rnd.nextInt(9);
+
+        // hashmap, table by key object, table by int, then the iterations
+        long[] best = new long[5];
+        Arrays.fill(best, Long.MAX_VALUE);
+        Map<Integer, UserAccount> tableMap = table;
+        for (int run = 0; run < runs; run++) {
+            long sum = 0;
+            long t0 = System.nanoTime();
+            for (int userId : keys)
+                sum += map.get(userId).balance;
+            long t1 = System.nanoTime();
+            for (int userId : keys)
+                sum += tableMap.get(userId).balance;
+            long t2 = System.nanoTime();
+            for (int userId : keys)
+                sum += table.get(userId).balance;
+            long t3 = System.nanoTime();
+            for (Map.Entry<Integer, UserAccount> e : map.entrySet())
+                sum += e.getKey() + e.getValue().balance;
+            long t4 = System.nanoTime();
+            for (Map.Entry<Integer, UserAccount> e : table.entrySet())
+                sum += e.getKey() + e.getValue().balance;
+            long t5 = System.nanoTime();
+            best[0] = Math.min(best[0], t1 - t0);
+            best[1] = Math.min(best[1], t2 - t1);
+            best[2] = Math.min(best[2], t3 - t2);
+            best[3] = Math.min(best[3], t4 - t3);
+            best[4] = Math.min(best[4], t5 - t4);
+            benchmarkSink += sum;
+        }
+        Main.log("Account table benchmark: " + table.size() + " accounts, " + n + " lookups (best of " + runs + " runs)");
+        Main.log("  lookup: HashMap " + (best[0] / n) + " ns, table " + (best[1] / n) + " ns, table by int " 
+                + (best[2] / n) + " ns");
+        Main.log("  iteration: HashMap " + (best[3] / 1000000) + " ms, table " + (best[4] / 1000000) + " ms");
+    }
+}
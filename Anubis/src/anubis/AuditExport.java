@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2017 The Anubis Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anubis;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Columnar export of a DataModel snapshot, for public auditing.
+ *
+ * The snapshot files can only be read with the server's own classes, and
+ *   (except for a lazily loaded binary one) only by loading the whole model.
+ *   This writes the model as plain arrays of numbers that any tool can map
+ *   and scan or filter one column at a time, without a JVM.
+ * It reads a snapshot file, so it runs off the hot path: from the command 
+ *   line, or after the daily tick's snapshot (Server.publishSnapshot()). The
+ *   accounts of a binary snapshot are decoded one at a time and dropped
+ *   (see AccountTable.peek), and every column is streamed to a temporary
+ *   file of its own, so memory doesn't grow with the model.
+ *
+ * File layout. Everything is big-endian, as written by DataOutputStream:
+ *
+ *   int    magic "ANBA"
+ *   short  format version (1)
+ *   long   dm transaction version of the snapshot exported
+ *   int    epochDay
+ *   int    totalDays
+ *   long   totalMoney
+ *   int    totalTrusted
+ *   int    number of columns, then for each column:
+ *            short+bytes  name (length, then UTF-8)
+ *            byte         value type: 's' int16, 'i' int32, 'l' int64
+ *            long         number of values
+ *            long         file offset of the column block
+ *            int          CRC32 of the column block
+ *   the column blocks: each one is just its values, one after the other
+ *
+ * Columns, by table (all the columns of a table have the same length):
+ *   account.*  user accounts, by ascending id: id, balance, min_balance,
+ *              flags (UserAccount.USER_FLAG_*), creation_time, 
+ *              last_login_time, last_verification_time, auth_self_user_id,
+ *              auth_other_user_id
+ *   link.*     validations ("from" validates "to"), by from then to: 
+ *              from, to
+ *   log.*      account log entries, by account id, oldest first: user_id,
+ *              time, code (LogEntry constants), amount, other_user_id
+ *   internal.* internal accounts, by ascending id: id, balance
+ * Times are minutes since the epoch (see Timestamp), and -1 is "no user".
+ * E.g. with numpy, a column is numpy.fromfile(f, dtype='>i8', count=n, 
+ *   offset=off) and the users with a balance over 1000 points are
+ *   id[balance > 10000000].
+ */
+public class AuditExport {
+
+    // "ANBA"
+    public static final int MAGIC = 0x414E4241;
+    public static final short FORMAT_VERSION = 1;
+
+    public static final String FILE_SUFFIX = "audit";
+
+    // What an export did.
+    public static class Report {
+        public File file;
+        public long version;
+        public long accounts;
+        public long links;
+        public long logEntries;
+        public long bytes;
+        public long durationMillis;
+
+        @Override
+        public String toString() {
+            return file + ": version " + version + ", " + accounts + " accounts, " + links + " links, " 
+                    + logEntries + " log entries, " + bytes + " bytes, " + durationMillis + " ms";
+        }
+    }
+
+    // A column being written to its temporary file.
+    static class Column {
+        final String name;
+        final byte type;
+        final File file;
+        final CRC32 crc = new CRC32();
+        final DataOutputStream out;
+        long count;
+
+        Column(String name, char type, File dir) throws IOException {
+            this.name = name;
+            this.type = (byte)type;
+            this.file = new File(dir, name);
+            this.out = new DataOutputStream(new BufferedOutputStream(
+                    new CheckedOutputStream(new FileOutputStream(file), crc)));
+        }
+
+        void add(long value) throws IOException {
+            switch (type) {
+                case 's': out.writeShort((short)value); break;
+                case 'i': out.writeInt((int)value); break;
+                default: out.writeLong(value);
+            }
+            ++count;
+        }
+    }
+
+    final File dir;
+    final ArrayList<Column> columns = new ArrayList();
+
+    //===================================================================
+
+    // Export the latest DataModel snapshot of "prevalenceBase" (or of its
+    //   archive). If "output" is a directory, the file is written in it, 
+    //   named after the snapshot's version.
+    public static Report exportLatest(String prevalenceBase, File output) throws Exception {
+        Map.Entry<Long, ArrayList<File>> latest = PointInTimeRestore.listSnapshots(prevalenceBase).lastEntry();
+        if (latest == null)
+            throw new IOException("No snapshot found in " + prevalenceBase);
+        DataModel dm = (DataModel)PointInTimeRestore.readSnapshot(latest.getValue(), prevalenceBase, true);
+        if (output.isDirectory())
+            output = new File(output, String.format("%019d.%s", latest.getKey(), FILE_SUFFIX));
+        return export(dm, latest.getKey(), output);
+    }
+
+    public static Report export(DataModel dm, long version, File file) throws IOException {
+        long startMillis = System.currentTimeMillis();
+        File dir = Files.createTempDirectory(file.getAbsoluteFile().getParentFile().toPath(), 
+                file.getName() + ".").toFile();
+        try {
+            Report report = new AuditExport(dir).write(dm, version, file);
+            report.durationMillis = System.currentTimeMillis() - startMillis;
+            return report;
+        } finally {
+            File[] files = dir.listFiles();
+            if (files != null)
+                for (File f : files)
+                    f.delete();
+            dir.delete();
+        }
+    }
+
+    //===================================================================
+
+    AuditExport(File dir) {
+        this.dir = dir;
+    }
+
+    Column column(String name, char type) throws IOException {
+        Column column = new Column(name, type, dir);
+        columns.add(column);
+        return column;
+    }
+
+    Report write(DataModel dm, long version, File file) throws IOException {
+        try {
+            writeColumns(dm);
+        } finally {
+            for (Column column : columns)
+                column.out.close();
+        }
+
+        // the header's size doesn't depend on the offsets in it
+        int headerSize = header(dm, version, 0).length;
+        byte[] header = header(dm, version, headerSize);
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        try {
+            try (FileOutputStream fos = new FileOutputStream(tempFile)) {
+                fos.write(header);
+                FileChannel out = fos.getChannel();
+                for (Column column : columns) {
+                    try (FileChannel in = new FileInputStream(column.file).getChannel()) {
+                        long size = in.size();
+                        for (long pos = 0; pos < size; )
+                            pos += in.transferTo(pos, size - pos, out);
+                    }
+                }
+                fos.getFD().sync();
+            }
+            if (! tempFile.renameTo(file))
+                throw new IOException("Unable to rename " + tempFile + " to " + file);
+        } finally {
+            tempFile.delete(); // no-op if renamed
+        }
+
+        Report report = new Report();
+        report.file = file;
+        report.version = version;
+        report.accounts = columns.get(0).count;
+        report.links = column("link.from").count;
+        report.logEntries = column("log.user_id").count;
+        report.bytes = file.length();
+        return report;
+    }
+
+    Column column(String name) {
+        for (Column column : columns)
+            if (column.name.equals(name))
+                return column;
+        throw new IllegalArgumentException(name);
+    }
+
+    void writeColumns(DataModel dm) throws IOException {
+        Column id = column("account.id", 'i');
+        Column balance = column("account.balance", 'l');
+        Column minBalance = column("account.min_balance", 'i');
+        Column flags = column("account.flags", 's');
+        Column creationTime = column("account.creation_time", 'i');
+        Column lastLoginTime = column("account.last_login_time", 'i');
+        Column lastVerificationTime = column("account.last_verification_time", 'i');
+        Column authSelfUserId = column("account.auth_self_user_id", 'i');
+        Column authOtherUserId = column("account.auth_other_user_id", 'i');
+        Column linkFrom = column("link.from", 'i');
+        Column linkTo = column("link.to", 'i');
+        Column logUserId = column("log.user_id", 'i');
+        Column logTime = column("log.time", 'i');
+        Column logCode = column("log.code", 's');
+        Column logAmount = column("log.amount", 'l');
+        Column logOtherUserId = column("log.other_user_id", 'i');
+        Column internalId = column("internal.id", 'i');
+        Column internalBalance = column("internal.balance", 'l');
+
+        // The keys only: this doesn't decode anything
+        int[] userIds = new int[dm.accounts.size()];
+        int n = 0;
+        for (Integer userId : dm.accounts.keySet())
+            userIds[n++] = userId;
+        Arrays.sort(userIds, 0, n);
+
+        AccountTable table = (dm.accounts instanceof AccountTable) ? (AccountTable)dm.accounts : null;
+        for (int i = 0; i < n; i++) {
+            int userId = userIds[i];
+            UserAccount acc = (table != null) ? table.peek(userId) : dm.accounts.get(userId);
+            id.add(userId);
+            balance.add(acc.balance);
+            minBalance.add(acc.minBalance);
+            flags.add(acc.flags);
+            creationTime.add(acc.creationTimestamp);
+            lastLoginTime.add(acc.lastLoginTimestamp);
+            lastVerificationTime.add(acc.lastVerificationTimestamp);
+            authSelfUserId.add(acc.authSelfUserId);
+            authOtherUserId.add(acc.authOtherUserId);
+
+            for (int j = 0; j < acc.validationOut.size(); j++) {
+                linkFrom.add(userId);
+                linkTo.add(acc.validationOut.get(j));
+            }
+
+            for (LogEntry entry : acc.log) {
+                logUserId.add(userId);
+                logTime.add(entry.getTimestamp());
+                logCode.add(entry.getCode());
+                logAmount.add(entry.getAmount());
+                logOtherUserId.add(entry.getUserId());
+            }
+        }
+
+        for (Map.Entry<Integer, Balance> e : new TreeMap<>(dm.internalAccounts).entrySet()) {
+            internalId.add(e.getKey());
+            internalBalance.add(e.getValue().get());
+        }
+    }
+
+    byte[] header(DataModel dm, long version, long offset) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeShort(FORMAT_VERSION);
+        out.writeLong(version);
+        out.writeInt(dm.epochDay);
+        out.writeInt(dm.totalDays);
+        out.writeLong(dm.totalMoney);
+        out.writeInt(dm.totalTrusted);
+        out.writeInt(columns.size());
+        for (Column column : columns) {
+            out.writeUTF(column.name);
+            out.writeByte(column.type);
+            out.writeLong(column.count);
+            out.writeLong(offset);
+            out.writeInt((int)column.crc.getValue());
+            offset += column.file.length();
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2017 The Anubis Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anubis;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+import org.prevayler.foundation.Chunk;
+import org.prevayler.foundation.Chunking;
+import org.prevayler.foundation.serialization.Serializer;
+import org.prevayler.implementation.PrevaylerDirectory;
+import org.prevayler.implementation.TransactionTimestamp;
+
+/**
+ * Writes snapshots of a prevalent system without blocking the live one.
+ *
+ * Prevayler.takeSnapshot() serializes the live object graph while holding
+ *   the prevalent system lock, so every RMI thread waits for as long as the
+ *   whole model takes to write. Instead, we rebuild a private copy of the
+ *   system from the latest snapshot file plus the journal files (exactly
+ *   what a restart would do) in a background thread, and serialize THAT.
+ * Transactions are journaled before they are executed, so the copy is a
+ *   consistent image of the system as of the last complete journal entry
+ *   found during the replay.
+ * The price is heap: while it exists, the copy is as big as the live model.
+ * If there is a DeltaSnapshotCodec among the snapshot formats, DataModel
+ *   snapshots are written as deltas on the latest full one when few enough 
+ *   accounts changed, up to Main.MAX_DELTA_SNAPSHOTS deltas per full one.
+ * After each one, the files it supersedes are archived or deleted by the
+ *   SnapshotRetention, if there is one.
+ */
+public class BackgroundSnapshotter<P> {
+
+    // Same suffixes the default PrevaylerFactory setup uses.
+    public static final String SNAPSHOT_SUFFIX = "snapshot";
+    public static final String JOURNAL_SUFFIX = "journal";
+
+    // What a finished background snapshot did.
+    public static class Report {
+        public File file;
+        public long version;        // last journaled transaction covered
+        public long baseVersion;    // snapshot the replay started from
+        public long replayed;       // transactions replayed on top of it
+        public long bytes;          // size of the snapshot file written
+        public long durationMillis; // total time, replay included
+        public DeltaSnapshotCodec.Delta delta; // if a delta was written
+
+        @Override
+        public String toString() {
+            return "version " + version + " (base " + baseVersion + " + "
+                    + replayed + " replayed), " + bytes + " bytes, "
+                    + durationMillis + " ms" + ((delta != null) ? ", " + delta : "");
+        }
+    }
+
+    // A name for the logs ("dm", "secdm").
+    final String name;
+
+    final String prevalenceBase;
+    final PrevaylerDirectory directory;
+
+    // Snapshot formats by file suffix; the first one is the one we write.
+    final Map<String, Serializer> snapshotSerializers;
+    final String primarySnapshotSuffix;
+    final DeltaSnapshotCodec deltaCodec;
+
+    final Serializer journalSerializer = new JournalCodec();
+
+    // What to do with the files that newer snapshots supersede (or null).
+    final SnapshotRetention retention;
+
+    // Currently running snapshot thread, if any.
+    Thread thread;
+
+    // Result of the last snapshot that completed successfully.
+    volatile Report lastReport;
+
+    //===================================================================
+
+    public BackgroundSnapshotter(String name, String prevalenceBase, Map<String, Serializer> snapshotSerializers, 
+            SnapshotRetention retention) 
+    {
+        this.name = name;
+        this.prevalenceBase = prevalenceBase;
+        this.directory = new PrevaylerDirectory(prevalenceBase);
+        this.snapshotSerializers = snapshotSerializers;
+        this.primarySnapshotSuffix = snapshotSerializers.keySet().iterator().next();
+        this.deltaCodec = (DeltaSnapshotCodec)snapshotSerializers.get(DeltaSnapshotCodec.SNAPSHOT_SUFFIX);
+        this.retention = retention;
+    }
+
+    // We need an image on disk to start from. Before the first snapshot
+    //   ever, the caller has to take a regular, blocking one (the model is
+    //   usually tiny at that point anyway).
+    public boolean hasBaseSnapshot() throws IOException {
+        return directory.latestSnapshot() != null;
+    }
+
+    public synchronized boolean isRunning() {
+        return (thread != null) && thread.isAlive();
+    }
+
+    public Report getLastReport() {
+        return lastReport;
+    }
+
+    // Start a background snapshot. Returns false if one is already running.
+    public boolean start() {
+        return start(Long.MAX_VALUE);
+    }
+
+    // Same, but the snapshot covers no transaction after "maxVersion".
+    public synchronized boolean start(long maxVersion) {
+        if (isRunning())
+            return false;
+        thread = new Thread(() -> {
+            try {
+                Report report = takeSnapshot(maxVersion);
+                Main.log("Background snapshot (" + name + ") done: " + report);
+                applyRetention();
+            } catch (Exception e) {
+                Main.logError("Background snapshot (" + name + ") failed.", e);
+            }
+        }, "snapshot-" + name);
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    // Block until the running background snapshot (if any) is finished.
+    public void waitUntilDone() throws InterruptedException {
+        Thread t;
+        synchronized (this) { t = thread; }
+        if (t != null)
+            t.join();
+    }
+
+    // Archive or delete the files the latest snapshots made unnecessary.
+    public void applyRetention() {
+        if (retention == null)
+            return;
+        try {
+            List<File> files = retention.apply();
+            if (! files.isEmpty())
+                Main.log("Snapshot retention (" + name + "): " + files.size() + " superseded files " 
+                        + (retention.isPruning() ? "deleted." : "archived."));
+        } catch (IOException e) {
+            Main.logError("Snapshot retention (" + name + ") failed.", e);
+        }
+    }
+
+    // The actual work. Runs on the snapshot thread, but can be called
+    //   directly as well.
+    public Report takeSnapshot() throws Exception {
+        return takeSnapshot(Long.MAX_VALUE);
+    }
+
+    public Report takeSnapshot(long maxVersion) throws Exception {
+        long startMillis = System.currentTimeMillis();
+        Report report = new Report();
+
+        // Load the latest image on disk
+        File baseFile = directory.latestSnapshot();
+        if (baseFile == null)
+            throw new IOException("No base snapshot found in " + prevalenceBase);
+        P system = readSnapshot(baseFile);
+        report.baseVersion = PrevaylerDirectory.snapshotVersion(baseFile);
+
+        // Bring it up to date with everything journaled since
+        report.version = replayJournal(system, report.baseVersion, maxVersion);
+        report.replayed = report.version - report.baseVersion;
+
+        // Nothing new since the last snapshot: don't write the same thing
+        File file = directory.snapshotFile(report.version, primarySnapshotSuffix);
+        File deltaFile = directory.snapshotFile(report.version, DeltaSnapshotCodec.SNAPSHOT_SUFFIX);
+        if (deltaFile.exists()) {
+            file = deltaFile;
+        } else if (! file.exists()) {
+            DeltaSnapshotCodec.Delta delta = diff(system);
+            if (delta != null) {
+                file = deltaFile;
+                report.delta = delta;
+                writeSnapshot(out -> deltaCodec.writeDelta(out, delta), report.version, file);
+            } else {
+                Serializer serializer = snapshotSerializers.get(primarySnapshotSuffix);
+                writeSnapshot(out -> serializer.writeObject(out, system), report.version, file);
+            }
+        }
+
+        report.file = file;
+        report.bytes = file.length();
+        report.durationMillis = System.currentTimeMillis() - startMillis;
+        lastReport = report;
+        return report;
+    }
+
+    //===================================================================
+
+    @SuppressWarnings("unchecked")
+    P readSnapshot(File file) throws Exception {
+        String fileName = file.getName();
+        String suffix = fileName.substring(fileName.lastIndexOf('.') + 1);
+        Serializer serializer = snapshotSerializers.get(suffix);
+        if (serializer == null)
+            throw new IOException("Don't know how to read snapshot " + file);
+        // The binary formats buffer on their own, and need the file stream
+        //   itself to map the file and check its checksums
+        try (InputStream in = suffix.equals(SNAPSHOT_SUFFIX) 
+                ? new BufferedInputStream(new FileInputStream(file)) : new FileInputStream(file)) 
+        {
+            return (P)serializer.readObject(in);
+        }
+    }
+
+    // Replay the journal entries after "version", up to "maxVersion", on
+    //   the system.
+    // Returns the version of the last transaction applied.
+    long replayJournal(P system, long version, long maxVersion) throws Exception {
+        File journal = directory.findInitialJournalFile(version + 1);
+        while ((journal != null) && journal.exists()) {
+            try (InputStream in = new BufferedInputStream(new FileInputStream(journal))) {
+                while (true) {
+                    // The live server may be in the middle of appending the
+                    //   last entry. A broken tail just means we're done.
+                    Chunk chunk;
+                    try {
+                        chunk = Chunking.readChunk(in);
+                    } catch (IOException e) {
+                        chunk = null;
+                    }
+                    if (chunk == null)
+                        break;
+
+                    TransactionTimestamp ts = TransactionTimestamp.fromChunk(chunk);
+                    if (ts.systemVersion() <= version)
+                        continue; // before our base snapshot
+                    if (ts.systemVersion() > maxVersion)
+                        return version;
+                    if (ts.systemVersion() != version + 1)
+                        throw new IOException("Journal " + journal + ": expected transaction "
+                                + (version + 1) + " but found " + ts.systemVersion());
+                    try {
+                        ts.capsule().executeOn(system, ts.executionTime(), journalSerializer);
+                    } catch (RuntimeException e) {
+                        // Prevayler ignores these while recovering, and so do we.
+                    }
+                    version = ts.systemVersion();
+                }
+            }
+            File next = directory.journalFile(version + 1, JOURNAL_SUFFIX);
+            if (next.equals(journal))
+                break; // nothing new in this file (yet)
+            journal = next;
+        }
+        return version;
+    }
+
+    // What changed since the latest full snapshot, if a delta should be 
+    //   written instead of a full one.
+    DeltaSnapshotCodec.Delta diff(P system) throws IOException {
+        if ((deltaCodec == null) || (! (system instanceof DataModel)) || (Main.MAX_DELTA_SNAPSHOTS <= 0))
+            return null;
+        // deltas are written on binary snapshots only (see CompressedSnapshotCodec)
+        if (! primarySnapshotSuffix.equals(SnapshotCodec.SNAPSHOT_SUFFIX))
+            return null;
+        File base = deltaCodec.latestBase();
+        if ((base == null) || (deltaCodec.countDeltas(base) >= Main.MAX_DELTA_SNAPSHOTS))
+            return null;
+        return deltaCodec.diff((DataModel)system);
+    }
+
+    interface SnapshotWriter {
+        void write(OutputStream out) throws Exception;
+    }
+
+    void writeSnapshot(SnapshotWriter writer, long version, File file) throws Exception {
+        File tempFile = directory.createTempFile("snapshot" + version + "temp", "generatingSnapshot");
+        try {
+            try (FileOutputStream fos = new FileOutputStream(tempFile)) {
+                // The serializer closes the stream it is given, but we still
+                //   need the file open to sync it to disk.
+                OutputStream out = new BufferedOutputStream(new FilterOutputStream(fos) {
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        fos.write(b, off, len);
+                    }
+                    @Override
+                    public void close() throws IOException {
+                        flush();
+                    }
+                });
+                writer.write(out);
+                out.flush();
+                fos.getFD().sync();
+            }
+            if (! tempFile.renameTo(file))
+                throw new IOException("Unable to rename " + tempFile + " to " + file);
+        } finally {
+            tempFile.delete(); // no-op if renamed
+        }
+    }
+}
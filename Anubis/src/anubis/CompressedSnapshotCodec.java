@@ -0,0 +1,369 @@
+/*
+ * Copyright (C) 2017 The Anubis Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anubis;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.prevayler.foundation.serialization.Serializer;
+
+/**
+ * Compressed snapshot format: the stream another snapshot format writes
+ *   (normally SnapshotCodec), cut into blocks that are compressed and 
+ *   decompressed independently of each other, on several threads.
+ *
+ * A file is a header (magic, format version, block size) followed by the
+ *   blocks, each one (raw length, method, stored length, CRC-32 of the raw
+ *   bytes, stored bytes), and an end block (raw length 0, total raw bytes,
+ *   block count). A block is stored as-is if deflating doesn't shrink it.
+ * Decompressed snapshots can't be memory-mapped, so the accounts of these
+ *   are always loaded eagerly, and delta snapshots are only written on 
+ *   (uncompressed) binary snapshots.
+ */
+public class CompressedSnapshotCodec implements Serializer {
+
+    // File suffix for compressed snapshots.
+    public static final String SNAPSHOT_SUFFIX = "zsnapshot";
+
+    // "ANBZ"
+    public static final int MAGIC = 0x414E425A;
+
+    // 1: first version
+    public static final short FORMAT_VERSION = 1;
+
+    public static final int BLOCK_SIZE = 1 << 20;
+
+    // Deflate level: the snapshot has to be written daily, so favour speed
+    static final int LEVEL = Deflater.BEST_SPEED;
+
+    // Block methods
+    static final byte STORED = 0;
+    static final byte DEFLATED = 1;
+
+    // The format of the decompressed stream.
+    final Serializer serializer;
+    final int threads;
+
+    //===================================================================
+
+    public CompressedSnapshotCodec(Serializer serializer, int threads) {
+        this.serializer = serializer;
+        this.threads = Math.max(1, threads);
+    }
+
+    @Override
+    public void writeObject(OutputStream stream, Object object) throws Exception {
+        ExecutorService pool = createPool("snapshot-compress");
+        try {
+            BlockOutputStream out = new BlockOutputStream(stream, pool);
+            serializer.writeObject(out, object);
+            out.finish();
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Override
+    public Object readObject(InputStream stream) throws Exception {
+        ExecutorService pool = createPool("snapshot-decompress");
+        try {
+            BlockInputStream in = new BlockInputStream(stream, pool);
+            Object object = serializer.readObject(in);
+            in.finish();
+            return object;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    ExecutorService createPool(String name) {
+        return Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    // Blocks being compressed or decompressed ahead of the stream.
+    int maxPending() {
+        return threads * 2;
+    }
+
+    static <T> T get(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException)e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    //===================================================================
+    // Writing
+    //===================================================================
+
+    class BlockOutputStream extends OutputStream {
+        final DataOutputStream out;
+        final ExecutorService pool;
+        final ArrayDeque<Future<byte[]>> pending = new ArrayDeque();
+        byte[] block = new byte[BLOCK_SIZE];
+        int count;
+        long totalBytes;
+        int blockCount;
+        boolean finished;
+
+        BlockOutputStream(OutputStream stream, ExecutorService pool) throws IOException {
+            this.out = new DataOutputStream(stream);
+            this.pool = pool;
+            out.writeInt(MAGIC);
+            out.writeShort(FORMAT_VERSION);
+            out.writeInt(BLOCK_SIZE);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == block.length)
+                submitBlock();
+            block[count++] = (byte)b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == block.length)
+                    submitBlock();
+                int n = Math.min(len, block.length - count);
+                System.arraycopy(b, off, block, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        // Hand the current block to the pool, and write the oldest ones
+        //   out if there are too many.
+        void submitBlock() throws IOException {
+            if (count == 0)
+                return;
+            final byte[] raw = block;
+            final int length = count;
+            pending.add(pool.submit(() -> compress(raw, length)));
+            totalBytes += length;
+            ++blockCount;
+            block = new byte[BLOCK_SIZE];
+            count = 0;
+            while (pending.size() > maxPending())
+                out.write(get(pending.poll()));
+        }
+
+        // Writes what's left and the end block. The stream we were given 
+        //   is flushed, but not closed.
+        void finish() throws IOException {
+            if (finished)
+                return;
+            finished = true;
+            submitBlock();
+            while (! pending.isEmpty())
+                out.write(get(pending.poll()));
+            out.writeInt(0);
+            out.writeLong(totalBytes);
+            out.writeInt(blockCount);
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            finish();
+        }
+    }
+
+    // A whole block as written to the file.
+    static byte[] compress(byte[] raw, int length) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(raw, 0, length);
+        byte[] deflated = new byte[length];
+        Deflater deflater = new Deflater(LEVEL, true);
+        int stored;
+        try {
+            deflater.setInput(raw, 0, length);
+            deflater.finish();
+            stored = deflater.deflate(deflated);
+            if (! deflater.finished())
+                stored = -1; // doesn't fit in less than the raw length
+        } finally {
+            deflater.end();
+        }
+        byte method = (stored >= 0) ? DEFLATED : STORED;
+        if (stored < 0)
+            stored = length;
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(13 + stored);
+        DataOutputStream out = new DataOutputStream(buf);
+        out.writeInt(length);
+        out.writeByte(method);
+        out.writeInt(stored);
+        out.writeInt((int)crc.getValue());
+        out.write((method == DEFLATED) ? deflated : raw, 0, stored);
+        return buf.toByteArray();
+    }
+
+    //===================================================================
+    // Reading
+    //===================================================================
+
+    class BlockInputStream extends InputStream {
+        final DataInputStream in;
+        final ExecutorService pool;
+        final ArrayDeque<Future<byte[]>> pending = new ArrayDeque();
+        final int blockSize;
+        byte[] block = new byte[0];
+        int pos;
+        long totalBytes;
+        int blockCount;
+        boolean ended;
+
+        BlockInputStream(InputStream stream, ExecutorService pool) throws IOException {
+            this.in = new DataInputStream(stream);
+            this.pool = pool;
+            if (in.readInt() != MAGIC)
+                throw new IOException("Not a compressed snapshot (bad magic number).");
+            short version = in.readShort();
+            if ((version < 1) || (version > FORMAT_VERSION))
+                throw new IOException("Unsupported compressed snapshot format version " + version + ".");
+            blockSize = in.readInt();
+            if (blockSize <= 0)
+                throw new IOException("Compressed snapshot is corrupted (bad block size).");
+        }
+
+        @Override
+        public int read() throws IOException {
+            if ((pos == block.length) && (! nextBlock()))
+                return -1;
+            return block[pos++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if ((pos == block.length) && (! nextBlock()))
+                return -1;
+            int n = Math.min(len, block.length - pos);
+            System.arraycopy(block, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        boolean nextBlock() throws IOException {
+            // Keep the pool busy with the blocks that come next
+            try {
+                while ((! ended) && (pending.size() < maxPending()))
+                    readBlock();
+            } catch (EOFException e) {
+                throw new IOException("Compressed snapshot is truncated.", e);
+            }
+            if (pending.isEmpty())
+                return false;
+            block = get(pending.poll());
+            pos = 0;
+            return true;
+        }
+
+        void readBlock() throws IOException {
+            int length = in.readInt();
+            if (length == 0) {
+                ended = true;
+                if ((in.readLong() != totalBytes) || (in.readInt() != blockCount))
+                    throw new IOException("Compressed snapshot is corrupted (bad block count).");
+                return;
+            }
+            byte method = in.readByte();
+            int stored = in.readInt();
+            int checksum = in.readInt();
+            if ((length < 0) || (length > blockSize) || (stored < 0) || (stored > length) 
+                    || ((method != STORED) && (method != DEFLATED)))
+                throw new IOException("Compressed snapshot is corrupted (bad block " + blockCount + " header).");
+            byte[] data = new byte[stored];
+            in.readFully(data);
+            final int n = blockCount;
+            pending.add(pool.submit(() -> decompress(n, method, data, length, checksum)));
+            totalBytes += length;
+            ++blockCount;
+        }
+
+        // Everything was read: check that nothing is left in the current
+        //   block or after it, and that nothing is missing.
+        void finish() throws IOException {
+            if ((pos != block.length) || nextBlock())
+                throw new IOException("Compressed snapshot has data after the snapshot.");
+            if (! ended)
+                throw new IOException("Compressed snapshot is truncated.");
+        }
+    }
+
+    static byte[] decompress(int n, byte method, byte[] data, int length, int checksum) throws IOException {
+        byte[] raw;
+        if (method == STORED) {
+            raw = data;
+        } else {
+            raw = new byte[length];
+            Inflater inflater = new Inflater(true);
+            try {
+                inflater.setInput(data);
+                int inflated = 0;
+                while ((inflated < length) && (! inflater.finished())) {
+                    int r = inflater.inflate(raw, inflated, length - inflated);
+                    if ((r == 0) && (inflater.needsInput() || inflater.needsDictionary()))
+                        break;
+                    inflated += r;
+                }
+                if (inflated != length)
+                    throw new IOException("Compressed snapshot block " + n + " is corrupted (bad length).");
+                // The deflated data must end right there, with nothing after it
+                if ((! inflater.finished()) && (inflater.inflate(new byte[1]) != 0))
+                    throw new IOException("Compressed snapshot block " + n + " is corrupted (bad length).");
+                if ((! inflater.finished()) || (inflater.getRemaining() != 0))
+                    throw new IOException("Compressed snapshot block " + n + " is corrupted (bad end).");
+            } catch (DataFormatException e) {
+                throw new IOException("Compressed snapshot block " + n + " is corrupted.", e);
+            } finally {
+                inflater.end();
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(raw, 0, length);
+        if ((int)crc.getValue() != checksum)
+            throw new IOException("Compressed snapshot block " + n + " is corrupted (bad checksum).");
+        return raw;
+    }
+}
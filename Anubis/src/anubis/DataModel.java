@@ -16,8 +16,9 @@
  */
 package anubis;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
-import java.time.Instant;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -36,7 +37,8 @@ public class DataModel implements Serializable {
     
     // Configuration option: maximum number of valid accounts.
     // Plan: start with 1M max, eventually try to allow for 0.1% of 
-    //   humanity (7.5M). 1M should be around 16GB of RAM for UserAccounts.
+    //   humanity (7.5M). 1M should be around 16GB of RAM for UserAccounts,
+    //   unless they are kept on disk (see DiskAccountTable).
     public static final int MAX_USER_ACCOUNTS = 1000000;
     
     // reserved internal account numbers: [0..MIN-1)
@@ -65,7 +67,10 @@ public class DataModel implements Serializable {
     
     // All user records by user ID.
     // IDs are used in the verify/verifiedby graph!
-    HashMap<Integer, UserAccount> accounts = new HashMap();
+    // (Snapshots from before AccountTable have a plain HashMap in here, 
+    //   which readObject() puts in an AccountTable, and the live model has
+    //   a DiskAccountTable with --account_store disk.)
+    Map<Integer, UserAccount> accounts = new AccountTable();
 
     // Internal accounts. These are accounts created by the server to handle 
     //   temporary deposits that may be then moved to different locations.
@@ -83,48 +88,49 @@ public class DataModel implements Serializable {
     int internalAccountIDGenerator = MIN_INTERNAL_ACCOUNT_ID;
 
     // Cache for some global statistics
+    // (the request counters are in the Server, see RequestMetrics)
     long totalMoney; // FIXME/TODO: update it upon money burn
-    long totalTx;
     int totalTrusted; // users
     int totalDays; // tick counter
-    // Transaction counter last 24 hours
-    // FIXME: this is persisted and thus doesn't really work when there are 
-    //   jumps in the execution time (server shutdown and restore multiple 
-    //   hours later.
-    //   you can't make these transient as java doesn't initialize transient
-    //   fields on deserialization. that could only be fixed by overriding
-    //   readObject/writeObject. I may do that but I don't want to right now.
-    HashMap<Integer, Long> txCount = new HashMap();
-    int txCountLastHour = -1;
+    
+    // Where composite transactions (anubis.tx.CompositeTx) send their 
+    //   SecurityDataModel part. Set by the Server on its own DataModel only;
+    //   copies of the model (e.g. the BackgroundSnapshotter's) have none.
+    transient SecurityModelLink securityLink;
+    
+    public interface SecurityModelLink {
+        ArrayList<Object> execute(ArrayList<Object> transactions);
+    }
+
+    // The journal entries written from a model are replayed in ascending 
+    //   user ID order (see JournalCodec), so the accounts of an old Java 
+    //   snapshot have to be iterated in that order too.
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (accounts.getClass() == HashMap.class) {
+            AccountTable table = new AccountTable();
+            table.putAll(accounts);
+            table.oldOrder = true;
+            accounts = table;
+        }
+    }
 
     //==================================================================
     
-    void countTx() {
-        ++totalTx;
-        
-        int currentHour = (int)(Instant.now().getEpochSecond() / 3600) % 24;
-        if (currentHour != txCountLastHour) {
-            txCountLastHour = currentHour;
-            txCount.put(currentHour, 1L);
-        } else {
-            Long prevCount = txCount.get(currentHour);
-            if (prevCount == null)
-                prevCount = 0L; // whatever. never happens.
-            txCount.put(currentHour,  prevCount + 1);
-        }
+    // Execute secdm transactions as the SecurityDataModel part of the
+    //   composite transaction being executed. Returns their results, or
+    //   null if there is no SecurityDataModel to execute them on (yet).
+    public ArrayList<Object> executeOnSecurityModel(ArrayList<Object> transactions) {
+        SecurityModelLink link = securityLink;
+        return (link != null) ? link.execute(transactions) : null;
     }
 
     // Charge an useraccount with a server fee
     long chargeFee(UserAccount acc, int internalAccountId, short logTxCode, 
             long amount, int userId, int nowTimestamp, boolean exact, boolean ignoreLocked) 
     {
-        long sourceBalance;
-        if (ignoreLocked)
-            sourceBalance = acc.balance;
-        else
-            sourceBalance = acc.getUnlockedBalance();
-        long charge = Math.min(sourceBalance, amount);
-        if ((charge <= 0) || (exact && (charge < amount)))
+        long charge = feeCharge(acc, amount, exact, ignoreLocked);
+        if (charge <= 0)
             return 0;
         acc.balance -= charge;
         sendMoneyToInternalAccount(internalAccountId, charge);
@@ -138,6 +144,19 @@ public class DataModel implements Serializable {
         return chargeFee(acc, internalAccountId, logTxCode, amount, -1, nowTimestamp, exact, ignoreLocked);
     }
     
+    // What chargeFee() would charge, without charging it.
+    static long feeCharge(UserAccount acc, long amount, boolean exact, boolean ignoreLocked) {
+        long sourceBalance;
+        if (ignoreLocked)
+            sourceBalance = acc.balance;
+        else
+            sourceBalance = acc.getUnlockedBalance();
+        long charge = Math.min(sourceBalance, amount);
+        if ((charge <= 0) || (exact && (charge < amount)))
+            return 0;
+        return charge;
+    }
+    
     
     long payUserFromInternalAccount(int internalAccountId, UserAccount acc, long amount, short logCode, int userId, int nowTimestamp) {
         Balance bal = getInternalAccount(internalAccountId);
@@ -153,6 +172,40 @@ public class DataModel implements Serializable {
         return payUserFromInternalAccount(internalAccountId, acc, amount, logCode, -1, nowTimestamp);
     }
 
+    // The errors doRequestTrust() returns before it picks the voters, which
+    //   don't depend on the time. Changes nothing.
+    public int checkTrustRequest(int sourceUserId, int targetUserId) {
+        UserAccount srcAcc = account(sourceUserId);
+        if (srcAcc == null)
+            return Error.INVALID_SOURCE;
+        
+        UserAccount targAcc = account(targetUserId);
+        if (targAcc == null)
+            return Error.INVALID_DESTINATION;
+        
+        // Target already is having a vote run for its trusted status
+        //   initiated by someone else.
+        if (targAcc.authSelfUserId >= 0)
+            return Error.ALREADY_EXISTS;
+        
+        boolean targetTrusted = (targAcc.isAuthentic() || targAcc.isAnchor());
+        
+        if (sourceUserId == targetUserId) {
+            // Self request, and target already trusted
+            if (targetTrusted)
+                return Error.NOTHING_TO_DO;
+        } else {
+            // Others' challenge, and target already untrusted
+            if (! targetTrusted)
+                return Error.NOTHING_TO_DO;
+            
+            // Can't challenge anchors
+            if (targAcc.isAnchor())
+                return Error.FORBIDDEN;
+        }
+        return Error.OK;
+    }
+    
     // used to implement both self trust request and trust challenge by others
     // source is user requesting the trust election
     // target is user that should be set to trusted/untrusted
@@ -181,34 +234,11 @@ public class DataModel implements Serializable {
             logTxCode = LogEntry.ACCOUNT_AUTH_CHALLENGE_FEE;
         }
                 
-        UserAccount srcAcc = accounts.get(sourceUserId);
-        if (srcAcc == null)
-            return Error.INVALID_SOURCE;
-        
-        UserAccount targAcc = accounts.get(targetUserId);
-        if (targAcc == null)
-            return Error.INVALID_DESTINATION;
-        
-        // Target already is having a vote run for its trusted status
-        //   initiated by someone else.
-        if (targAcc.authSelfUserId >= 0)
-            return Error.ALREADY_EXISTS;
-        
-        boolean targetTrusted = (targAcc.isAuthentic() || targAcc.isAnchor());
-        
-        if (sourceUserId == targetUserId) {
-            // Self request, and target already trusted
-            if (targetTrusted)
-                return Error.NOTHING_TO_DO;
-        } else {
-            // Others' challenge, and target already untrusted
-            if (! targetTrusted)
-                return Error.NOTHING_TO_DO;
-            
-            // Can't challenge anchors
-            if (targAcc.isAnchor())
-                return Error.FORBIDDEN;
-        }
+        int err = checkTrustRequest(sourceUserId, targetUserId);
+        if (err != Error.OK)
+            return err;
+        UserAccount srcAcc = account(sourceUserId);
+        UserAccount targAcc = account(targetUserId);
         
         // Choose the people who will be doing the voting.
         // If there are not enough people available, return an error.
@@ -229,7 +259,7 @@ public class DataModel implements Serializable {
                 voterId = (int)it.next();
             
             // if voter is trusted and isn't busy, add them.
-            UserAccount voterAcc = accounts.get(voterId);
+            UserAccount voterAcc = account(voterId);
             if (
                     (voterAcc.isAnchor() || voterAcc.isAuthentic()) && // trusted
                     (voterAcc.authOtherUserId < 0) && // not busy voting already
@@ -268,7 +298,7 @@ public class DataModel implements Serializable {
         // Mark all the voter accounts with "you're voting for this dude"
         //   so they can display them to their users when they log in.
         for (int voterId : authenticatorUserIds) {
-            UserAccount voterAcc = accounts.get(voterId);
+            UserAccount voterAcc = account(voterId);
             voterAcc.authOtherUserId = targetUserId;
         }
         
@@ -290,7 +320,7 @@ public class DataModel implements Serializable {
     void finishElection(int targetUserId, int nowTimestamp) {
         
         // Fetch the user being judged.
-        UserAccount targAcc = accounts.get(targetUserId);
+        UserAccount targAcc = account(targetUserId);
         if (targAcc == null)
             return;
         
@@ -327,7 +357,7 @@ public class DataModel implements Serializable {
         int refundVotes = 0;
         Set<Integer> voters = pendingAuth.getVoters();
         for (int voterId : voters) {
-            UserAccount voterAcc = accounts.get(voterId);
+            UserAccount voterAcc = account(voterId);
             if ((voterAcc != null) && (voterAcc.authOtherUserId == targetUserId)) {
                 voterAcc.authOtherUserId = -1;
                 ++refundVotes;
@@ -337,7 +367,7 @@ public class DataModel implements Serializable {
         // refund user that triggered the election for votes not cast.
         // if the internal account runs out of funds (posssible due to 
         //   demurrage) then pay the user whatever is left if anything.
-        UserAccount srcAcc = accounts.get(sourceUserId);
+        UserAccount srcAcc = account(sourceUserId);
         long perVoteFee;
         short logCode;
         if (sourceUserId == targetUserId) {
@@ -396,12 +426,12 @@ public class DataModel implements Serializable {
         // remove all validation link pointers in other accounts that are
         //   pointing to this account being deleted
         for (int vin : acc.validationIn) {
-            UserAccount peerAcc = accounts.get(vin);
+            UserAccount peerAcc = account(vin);
             if (peerAcc != null)
                 peerAcc.validationOut.remove(userId);
         }
         for (int vout : acc.validationOut) {
-            UserAccount peerAcc = accounts.get(vout);
+            UserAccount peerAcc = account(vout);
             if (peerAcc != null)
                 peerAcc.validationIn.remove(userId);
         }
@@ -417,11 +447,9 @@ public class DataModel implements Serializable {
     //==================================================================
     
     public HashMap<Integer, String> getUserNames(HashSet<Integer> userIds) {
-        countTx();
-        
         HashMap<Integer, String> idsToNames = new HashMap();
         for (int userId : userIds) {
-            UserAccount acc = accounts.get(userId);
+            UserAccount acc = account(userId);
             if (acc != null)
                 idsToNames.put(userId, acc.name);
         }
@@ -429,19 +457,12 @@ public class DataModel implements Serializable {
     }
 
     public ServerStats getServerStats() {
-        countTx();
-        
         ServerStats stats = new ServerStats();
         stats.totalDays = totalDays;
         stats.epochDay = epochDay;
         stats.userCount = accounts.size();
         stats.totalTrusted = totalTrusted;
         stats.totalMoney = totalMoney;
-        stats.totalTx = totalTx;
-        stats.recentTx = 0;
-        Iterator it = txCount.values().iterator();
-        while (it.hasNext())
-            stats.recentTx += (Long)it.next();
         Balance balance = internalAccounts.get(SERVER_ACCOUNT_ID);
         if (balance != null)
             stats.serverBalance = balance.get();
@@ -451,7 +472,7 @@ public class DataModel implements Serializable {
     }
     
     public SessionInfo getUserInfo(int userId) {
-        UserAccount acc = accounts.get(userId);
+        UserAccount acc = account(userId);
         if (acc == null)
             return null;
         
@@ -463,13 +484,20 @@ public class DataModel implements Serializable {
     }
     
     public UserAccount getUserAccount(int userId) {
-        countTx();
-        
+        return account(userId);
+    }
+    
+    // An account by user ID, without boxing the ID when the accounts are in
+    //   an AccountTable.
+    UserAccount account(int userId) {
+        Map<Integer, UserAccount> accounts = this.accounts;
+        if (accounts instanceof AccountTable)
+            return ((AccountTable)accounts).get(userId);
         return accounts.get(userId);
     }
     
     public int setAnchorStatus(int userId, boolean set) {
-        UserAccount acc = accounts.get(userId);
+        UserAccount acc = account(userId);
         if (acc == null)
             return Error.NOT_FOUND;
         if (acc.isAnchor() == set)
@@ -506,7 +534,7 @@ public class DataModel implements Serializable {
         
     public void releaseMinBalances(ArrayList<PendingInvite> deletedPendingInvites, int nowTimestamp) {
         for (PendingInvite pendingInvite : deletedPendingInvites) {
-            UserAccount account = accounts.get(pendingInvite.getSponsorId());
+            UserAccount account = account(pendingInvite.getSponsorId());
             if (account != null) {
                 account.minBalance -= pendingInvite.getAmount();
                 if (account.minBalance < 0)
@@ -518,7 +546,7 @@ public class DataModel implements Serializable {
     }
     
     public void touchLoginTimestamp(int userId, int nowTimestamp) {
-        UserAccount acc = accounts.get(userId);
+        UserAccount acc = account(userId);
         if (acc != null) {
             acc.lastLoginTimestamp = nowTimestamp;
         }        
@@ -526,9 +554,7 @@ public class DataModel implements Serializable {
     
     // Edit an user's name and profile
     public int editPersonalInfo(int userId, String name, ArrayList<String> profile, int nowTimestamp) {
-        countTx();
-        
-        UserAccount acc = accounts.get(userId);
+        UserAccount acc = account(userId);
         if (acc == null)
             return Error.INVALID_SOURCE;
         acc.name = name;
@@ -547,9 +573,25 @@ public class DataModel implements Serializable {
     //   cover the gift amount to the new user.
     // ALSO returns error if we're past the validation links limit!
     public int createInvite(int sponsorId, long amount, int nowTimestamp) {
-        countTx();
+        int err = checkCreateInvite(sponsorId, amount);
+        if (err != Error.OK)
+            return err;
+        UserAccount sponsor = account(sponsorId);
         
-        UserAccount sponsor = accounts.get(sponsorId);
+        // Otherwise we're good: lock the balance for the invite...
+        sponsor.minBalance += amount;
+        sponsor.log(new LogEntry(nowTimestamp, LogEntry.INVITE_CREATE_FUNDS_LOCKED, -amount));
+        
+        // ...and charge a fee to help prevent spam
+        chargeFee(sponsor, SERVER_ACCOUNT_ID, LogEntry.TXFEE_CREATE_INVITE, 
+                Main.TRANSACTION_FEE, nowTimestamp, true, false);
+                
+        return Error.OK;                
+    }
+    
+    // The error createInvite() would return, or Error.OK. Changes nothing.
+    public int checkCreateInvite(int sponsorId, long amount) {
+        UserAccount sponsor = account(sponsorId);
         if (sponsor == null)
             return Error.INVALID_SOURCE;
         
@@ -573,23 +615,13 @@ public class DataModel implements Serializable {
         
         // Check if the user is already at their maximum number of unique 
         //  user IDs present in all their in/out validation links.
-        if (sponsor.getAllValidationLinkUserIds().size() >= Main.MAX_UNIQUE_VALIDATION_IDS)
+        if (sponsor.getValidationLinkCount() >= Main.MAX_UNIQUE_VALIDATION_IDS)
             return Error.SOURCE_LIMIT_REACHED;
         
-        // Otherwise we're good: lock the balance for the invite...
-        sponsor.minBalance += amount;
-        sponsor.log(new LogEntry(nowTimestamp, LogEntry.INVITE_CREATE_FUNDS_LOCKED, -amount));
-        
-        // ...and charge a fee to help prevent spam
-        chargeFee(sponsor, SERVER_ACCOUNT_ID, LogEntry.TXFEE_CREATE_INVITE, 
-                Main.TRANSACTION_FEE, nowTimestamp, true, false);
-                
-        return Error.OK;                
+        return Error.OK;
     }
     
     public int createUser(UserAccount newUserAccount, int sponsorId, int timestampNow) {
-        countTx();
-        
 	Integer newUserId = getNewUserId();
         if (newUserId >= 0) {
             accounts.put(newUserId, newUserAccount);
@@ -607,7 +639,7 @@ public class DataModel implements Serializable {
             
             // hard-code the first reciprocal validation link
             if (sponsorId >= 0) {
-                UserAccount sponsorAccount = accounts.get(sponsorId);
+                UserAccount sponsorAccount = account(sponsorId);
                 if (sponsorAccount != null) {
                     // sponsor ----trust----> newuser
                     sponsorAccount.validationOut.add(newUserId);
@@ -626,7 +658,7 @@ public class DataModel implements Serializable {
     }
     
     public int deleteUser(int userId, int nowTimestamp) {
-        UserAccount acc = accounts.get(userId);
+        UserAccount acc = account(userId);
         if (acc == null)
             return Error.NOT_FOUND; // should never happen
         
@@ -639,7 +671,7 @@ public class DataModel implements Serializable {
     }
     
     public void log(int userId, LogEntry entry) {
-        UserAccount acc = accounts.get(userId);
+        UserAccount acc = account(userId);
         if (acc != null)
             acc.log(entry);
     }
@@ -791,33 +823,12 @@ public class DataModel implements Serializable {
     }
     
     public long sendMoney(int fromUserId, int toUserId, long amount, boolean exact, boolean locked, int nowTimestamp) {
-        countTx();
-        
-        UserAccount from = accounts.get(fromUserId);
-        if (from == null)
-            return Error.INVALID_SOURCE;
-        UserAccount to = accounts.get(toUserId);
-        if (to == null)
-            return Error.INVALID_DESTINATION;
-
-        if (amount <= 0)
-            return Error.INVALID_AMOUNT;
-        
-        // If locked==true then this is an internal server call that is 
-        //    sending locked funds themselves and unlocking them, so the
-        //    balance available is the entire thing.
-        long balance;
-        if (locked)
-            balance = from.balance;
-        else
-            // minBalance are committed (locked) funds that can't be sent
-            //   until the commitment is released (e.g. pending invites)
-            balance = from.getUnlockedBalance(); // don't count the locked part
-        
-        long totalCharge = amount + Main.TRANSACTION_FEE;
-        long availableToCharge = Math.min(balance, totalCharge);
-        if ((availableToCharge <= 0) || (exact && (availableToCharge != totalCharge)))
-            return Error.INSUFFICIENT_FUNDS;
+        int err = checkSendMoney(fromUserId, toUserId, amount, exact, locked);
+        if (err != Error.OK)
+            return err;
+        UserAccount from = account(fromUserId);
+        UserAccount to = account(toUserId);
+        long balance = sendableBalance(from, locked);
         
         chargeFee(from, SERVER_ACCOUNT_ID, LogEntry.TXFEE_SEND_MONEY, 
                   Main.TRANSACTION_FEE, nowTimestamp, true, false);
@@ -843,54 +854,99 @@ public class DataModel implements Serializable {
         return amountToSend;
     }
 
+    // The error sendMoney() would return, or Error.OK if it would send 
+    //   something. Changes nothing.
+    public int checkSendMoney(int fromUserId, int toUserId, long amount, boolean exact, boolean locked) {
+        UserAccount from = account(fromUserId);
+        if (from == null)
+            return Error.INVALID_SOURCE;
+        UserAccount to = account(toUserId);
+        if (to == null)
+            return Error.INVALID_DESTINATION;
+
+        if (amount <= 0)
+            return Error.INVALID_AMOUNT;
+        
+        long balance = sendableBalance(from, locked);
+        long totalCharge = amount + Main.TRANSACTION_FEE;
+        long availableToCharge = Math.min(balance, totalCharge);
+        if ((availableToCharge <= 0) || (exact && (availableToCharge != totalCharge)))
+            return Error.INSUFFICIENT_FUNDS;
+        
+        return Error.OK;
+    }
+    
+    static long sendableBalance(UserAccount from, boolean locked) {
+        // If locked==true then this is an internal server call that is 
+        //    sending locked funds themselves and unlocking them, so the
+        //    balance available is the entire thing.
+        if (locked)
+            return from.balance;
+        else
+            // minBalance are committed (locked) funds that can't be sent
+            //   until the commitment is released (e.g. pending invites)
+            return from.getUnlockedBalance(); // don't count the locked part
+    }
+
     // return Error.OK(0) if everything OK, or negative error code on error.
     public int addValidation(int thisUserId, int otherUserId, int nowTimestamp) {
-        countTx();
-        
-        UserAccount thisAcc = accounts.get(thisUserId);
+        int err = checkAddValidation(thisUserId, otherUserId);
+        if (err != Error.OK)
+            return err;
+        UserAccount thisAcc = account(thisUserId);
+        UserAccount otherAcc = account(otherUserId);
+        
+        // If this outbound validation is not reciprocated yet, then
+        //   charge a small fee to avoid spam.
+        if (! otherAcc.validationOut.contains(thisUserId)) {
+            long charge = 
+                    chargeFee(thisAcc, SERVER_ACCOUNT_ID,
+                              LogEntry.TXFEE_VALIDATION_INITIATION, 
+                              Main.NONRECIPROCAL_OUTBOUND_VALIDATION_FEE,
+                              nowTimestamp, true, false);
+            if (charge <= 0)
+                return Error.INSUFFICIENT_AMOUNT;
+        }
+        thisAcc.validationOut.add(otherUserId);
+        otherAcc.validationIn.add(thisUserId);
+
+        return Error.OK;
+    }
+
+    // The error addValidation() would return, or Error.OK. Changes nothing.
+    public int checkAddValidation(int thisUserId, int otherUserId) {
+        UserAccount thisAcc = account(thisUserId);
         if (thisAcc == null)
             return Error.INVALID_SOURCE;
         
-        UserAccount otherAcc = accounts.get(otherUserId);
+        UserAccount otherAcc = account(otherUserId);
         if (otherAcc == null)
             return Error.INVALID_DESTINATION;
         
         // Check hard cap met
-        if (thisAcc.getAllValidationLinkUserIds().size() >= Main.MAX_UNIQUE_VALIDATION_IDS)
+        if (thisAcc.getValidationLinkCount() >= Main.MAX_UNIQUE_VALIDATION_IDS)
             return Error.SOURCE_LIMIT_REACHED;
-        if (otherAcc.getAllValidationLinkUserIds().size() >= Main.MAX_UNIQUE_VALIDATION_IDS)
+        if (otherAcc.getValidationLinkCount() >= Main.MAX_UNIQUE_VALIDATION_IDS)
             return Error.DESTINATION_LIMIT_REACHED;
 
-        if (! thisAcc.validationOut.contains(otherUserId)) {
-            // If this outbound validation is not reciprocated yet, then
-            //   charge a small fee to avoid spam.
-            if (! otherAcc.validationOut.contains(thisUserId)) {
-                long charge = 
-                        chargeFee(thisAcc, SERVER_ACCOUNT_ID,
-                                  LogEntry.TXFEE_VALIDATION_INITIATION, 
-                                  Main.NONRECIPROCAL_OUTBOUND_VALIDATION_FEE,
-                                  nowTimestamp, true, false);
-                if (charge <= 0)
-                    return Error.INSUFFICIENT_AMOUNT;
-            }
-            thisAcc.validationOut.add(otherUserId);
-            otherAcc.validationIn.add(thisUserId);
-        } else
+        if (thisAcc.validationOut.contains(otherUserId))
             return Error.ALREADY_EXISTS;
+        
+        // The fee for a validation that is not reciprocated yet
+        if ((! otherAcc.validationOut.contains(thisUserId)) && (feeCharge(thisAcc, 
+                Main.NONRECIPROCAL_OUTBOUND_VALIDATION_FEE, true, false) <= 0))
+            return Error.INSUFFICIENT_AMOUNT;
 
         return Error.OK;
     }
 
     // return Error.OK(0) if everything OK, or negative error code on error.
     public int removeValidation(int thisUserId, int otherUserId, boolean inbound, boolean outbound) {
-        countTx();
-        
-        UserAccount thisAcc = accounts.get(thisUserId);
-        if (thisAcc == null)
-            return Error.INVALID_SOURCE;
-        UserAccount otherAcc = accounts.get(otherUserId);
-        if (otherAcc == null)
-            return Error.INVALID_DESTINATION;
+        int err = checkRemoveValidation(thisUserId, otherUserId);
+        if (err != Error.OK)
+            return err;
+        UserAccount thisAcc = account(thisUserId);
+        UserAccount otherAcc = account(otherUserId);
         
         if (inbound) {
             if (thisAcc.validationIn.contains(otherUserId)) {
@@ -909,6 +965,16 @@ public class DataModel implements Serializable {
         return Error.OK;
     }
     
+    // The error removeValidation() would return, or Error.OK. Changes 
+    //   nothing.
+    public int checkRemoveValidation(int thisUserId, int otherUserId) {
+        if (! accounts.containsKey(thisUserId))
+            return Error.INVALID_SOURCE;
+        if (! accounts.containsKey(otherUserId))
+            return Error.INVALID_DESTINATION;
+        return Error.OK;
+    }
+    
     // return null on error or a response object if all OK.
     public ValidationCheck checkValidation(int thisUserId, int otherUserId) {
         // can't add validation links to yourself
@@ -916,7 +982,7 @@ public class DataModel implements Serializable {
             return null; 
         
         // you don't exist
-        UserAccount thisAcc = accounts.get(thisUserId);
+        UserAccount thisAcc = account(thisUserId);
         if (thisAcc == null)
             return null; // FIXME log/err reporting back
 
@@ -935,15 +1001,10 @@ public class DataModel implements Serializable {
     }
     
     public int voteTrust(int userId, boolean vote, int nowTimestamp) {
-        UserAccount acc = accounts.get(userId);
-        if (acc == null)
-            return Error.NOT_FOUND;
-        
-        // See if you're actually selected to vote for someone.
-        // Whether I'm trusted or not to vote was resolved prior to this 
-        //   field being set, and we don't resolve it again here.
-        if (acc.authOtherUserId < 0)
-            return Error.NOTHING_TO_DO;
+        int err = checkVoteTrust(userId);
+        if (err != Error.OK)
+            return err;
+        UserAccount acc = account(userId);
         
         // Fetch the election object.
         PendingAuthentication pendingAuth 
@@ -968,7 +1029,7 @@ public class DataModel implements Serializable {
         //    smaller fee and let the excess rot in the server's internal
         //    account used to pay for all this. simpler.)
         long perVoteFee = Main.AUTH_PER_VOTE_FEE;
-        UserAccount targAcc = accounts.get(targetUserId);
+        UserAccount targAcc = account(targetUserId);
         if (targAcc != null && targAcc.authSelfUserId != targetUserId)
             perVoteFee = Main.AUTH_CHALLENGE_PER_VOTE_FEE; // it's a challenge
         
@@ -993,32 +1054,65 @@ public class DataModel implements Serializable {
         return Error.OK;
     }
     
+    // The errors voteTrust() returns without changing anything, or 
+    //   Error.OK. (An election that is over is only noticed by voteTrust(),
+    //   as it also clears the voter's ballot.)
+    public int checkVoteTrust(int userId) {
+        UserAccount acc = account(userId);
+        if (acc == null)
+            return Error.NOT_FOUND;
+        
+        // See if you're actually selected to vote for someone.
+        // Whether I'm trusted or not to vote was resolved prior to this 
+        //   field being set, and we don't resolve it again here.
+        if (acc.authOtherUserId < 0)
+            return Error.NOTHING_TO_DO;
+        
+        return Error.OK;
+    }
+    
     public int challengeTrust(int sourceUserId, int targetUserId, int nowTimestamp) {
         if (sourceUserId == targetUserId)
             return Error.FORBIDDEN;
         return doRequestTrust(sourceUserId, targetUserId, nowTimestamp);        
     }
     
+    // Same as checkTrustRequest(), for challengeTrust().
+    public int checkTrustChallenge(int sourceUserId, int targetUserId) {
+        if (sourceUserId == targetUserId)
+            return Error.FORBIDDEN;
+        return checkTrustRequest(sourceUserId, targetUserId);
+    }
+    
     public int burnMoney(int userId, long amount, int nowTimestamp) {
-        UserAccount acc = accounts.get(userId);
+        int err = checkBurnMoney(userId, amount);
+        if (err != Error.OK)
+            return err;
+        UserAccount acc = account(userId);
+        acc.balance -= amount;
+        totalMoney -= amount;
+        acc.log(new LogEntry(nowTimestamp, LogEntry.BURN_MONEY, -amount));
+        chargeFee(acc, SERVER_ACCOUNT_ID, LogEntry.TXFEE_BURN_MONEY, 
+                  Main.TRANSACTION_FEE, nowTimestamp, true, false);
+        return Error.OK;
+    }
+    
+    // The error burnMoney() would return, or Error.OK. Changes nothing.
+    public int checkBurnMoney(int userId, long amount) {
+        UserAccount acc = account(userId);
         if (acc == null)
             return Error.NOT_FOUND;
         if (amount <= 0)
             return Error.INVALID_AMOUNT;
         if (acc.getUnlockedBalance() < amount + Main.TRANSACTION_FEE)
             return Error.INSUFFICIENT_FUNDS;
-        acc.balance -= amount;
-        totalMoney -= amount;
-        acc.log(new LogEntry(nowTimestamp, LogEntry.BURN_MONEY, -amount));
-        chargeFee(acc, SERVER_ACCOUNT_ID, LogEntry.TXFEE_BURN_MONEY, 
-                  Main.TRANSACTION_FEE, nowTimestamp, true, false);
         return Error.OK;
     }
     
     // Only in case of an error after burnMoney when trying to sign the
     //  burn money receipt.
     public int unburnMoney(int userId, long amount, int nowTimestamp) {
-        UserAccount acc = accounts.get(userId);
+        UserAccount acc = account(userId);
         if (acc == null)
             return Error.NOT_FOUND;
         acc.balance += amount;
@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2017 The Anubis Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anubis;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Map;
+import org.prevayler.foundation.serialization.Serializer;
+import org.prevayler.implementation.PrevaylerDirectory;
+
+/**
+ * Delta snapshots of the DataModel.
+ *
+ * A delta snapshot holds only what changed since a full binary snapshot
+ *   (its "base", a SnapshotCodec file in the same directory): the user
+ *   accounts, internal accounts and pending authentications that were
+ *   added, changed or removed, plus the DataModel's counters.
+ * Deltas are cumulative: each one is relative to the base itself, not to
+ *   the previous delta, so restoring takes the base and the latest delta.
+ * Prevayler sees delta files as ordinary snapshots with their own suffix
+ *   and hands them to readObject(), which loads the base and applies the
+ *   delta on it.
+ * What changed is found by comparing account records: an account is
+ *   unchanged if it encodes to the same bytes as its record in the base.
+ *   If the DataModel was itself loaded lazily from the base, accounts that
+ *   were never decoded don't even have to be encoded.
+ */
+public class DeltaSnapshotCodec implements Serializer {
+
+    // File suffix for delta snapshots.
+    public static final String SNAPSHOT_SUFFIX = "deltasnapshot";
+
+    // A delta is not worth it past this fraction of changed accounts (e.g.
+    //   right after a TickTx, which touches every account).
+    static final double MAX_CHANGED_FRACTION = 0.5;
+
+    // What changed in a DataModel since a base snapshot.
+    public static class Delta {
+        public File baseFile;
+        public long baseVersion;
+        DataModel base;
+        DataModel dm;
+        ArrayList<Integer> changedAccounts = new ArrayList();
+        ArrayList<Integer> removedAccounts = new ArrayList();
+        public int accountCount;
+
+        public int getChangedCount() {
+            return changedAccounts.size() + removedAccounts.size();
+        }
+
+        @Override
+        public String toString() {
+            return "delta on base " + baseVersion + ": " + changedAccounts.size() + " changed and "
+                    + removedAccounts.size() + " removed of " + accountCount + " accounts";
+        }
+    }
+
+    final File dir;
+    final PrevaylerDirectory directory;
+
+    // Load the base snapshot's accounts lazily.
+    final boolean lazyAccounts;
+
+    //===================================================================
+
+    public DeltaSnapshotCodec(String prevalenceBase, boolean lazyAccounts) {
+        this.dir = new File(prevalenceBase);
+        this.directory = new PrevaylerDirectory(dir);
+        this.lazyAccounts = lazyAccounts;
+    }
+
+    // The latest full binary snapshot, which is what new deltas are
+    //   relative to, or null if there is none.
+    public File latestBase() throws IOException {
+        File latest = null;
+        for (File f : listSnapshots(SnapshotCodec.SNAPSHOT_SUFFIX))
+            if ((latest == null) || (PrevaylerDirectory.snapshotVersion(f) > PrevaylerDirectory.snapshotVersion(latest)))
+                latest = f;
+        return latest;
+    }
+
+    // How many deltas were written on top of a base.
+    public int countDeltas(File baseFile) throws IOException {
+        long baseVersion = PrevaylerDirectory.snapshotVersion(baseFile);
+        int count = 0;
+        for (File f : listSnapshots(SNAPSHOT_SUFFIX))
+            if (PrevaylerDirectory.snapshotVersion(f) > baseVersion)
+                ++count;
+        return count;
+    }
+
+    // The version of the base a delta snapshot file was written on.
+    public static long baseVersion(File deltaFile) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(deltaFile), 64))) {
+            if (in.readInt() != SnapshotCodec.MAGIC)
+                throw new IOException("Not a binary snapshot (bad magic number): " + deltaFile);
+            in.readShort(); // schema version
+            if (in.readByte() != SnapshotCodec.KIND_DATA_MODEL_DELTA)
+                throw new IOException("Not a delta snapshot: " + deltaFile);
+            return in.readLong();
+        }
+    }
+
+    ArrayList<File> listSnapshots(String suffix) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null)
+            throw new IOException("Error reading file list from directory " + dir);
+        ArrayList<File> snapshots = new ArrayList();
+        for (File f : files)
+            if (f.getName().endsWith("." + suffix) && (PrevaylerDirectory.snapshotVersion(f) >= 0))
+                snapshots.add(f);
+        return snapshots;
+    }
+
+    //===================================================================
+    // Writing
+    //===================================================================
+
+    // Find what changed in "dm" since the latest base. Returns null if there
+    //   is no base to make a delta on, or if the delta would be too big to
+    //   be worth it; a full snapshot should be written instead.
+    public Delta diff(DataModel dm) throws IOException {
+        File baseFile = latestBase();
+        if (baseFile == null)
+            return null;
+
+        Delta d = new Delta();
+        d.baseFile = baseFile;
+        d.baseVersion = PrevaylerDirectory.snapshotVersion(baseFile);
+        d.base = readBase(baseFile, true);
+        d.dm = dm;
+        d.accountCount = dm.accounts.size();
+        AccountTable baseAccounts = (AccountTable)d.base.accounts;
+
+        AccountTable table = (dm.accounts instanceof AccountTable) ? (AccountTable)dm.accounts : null;
+        int maxChanged = (int)(d.accountCount * MAX_CHANGED_FRACTION);
+        SnapshotCodec.RecordWriter rec = new SnapshotCodec.RecordWriter();
+        for (int userId : dm.accounts.keySet()) {
+            ByteBuffer baseRecord = baseAccounts.undecodedRecord(userId);
+            boolean same = false;
+            if (baseRecord != null) {
+                ByteBuffer raw = (table != null) ? table.undecodedRecord(userId) : null;
+                if (raw != null) {
+                    same = raw.equals(baseRecord);
+                } else {
+                    SnapshotCodec.writeUserAccount(rec.begin(), dm.accounts.get(userId));
+                    same = rec.record().equals(baseRecord);
+                }
+            }
+            if (! same) {
+                d.changedAccounts.add(userId);
+                if (d.changedAccounts.size() > maxChanged)
+                    return null;
+            }
+        }
+        for (int userId : baseAccounts.keySet())
+            if (! dm.accounts.containsKey(userId))
+                d.removedAccounts.add(userId);
+        if (d.getChangedCount() > maxChanged)
+            return null;
+        return d;
+    }
+
+    // Writes a delta of the DataModel on the latest base.
+    @Override
+    public void writeObject(OutputStream stream, Object object) throws IOException {
+        if (! (object instanceof DataModel))
+            throw new IOException("DeltaSnapshotCodec cannot write " + object.getClass().getName());
+        Delta d = diff((DataModel)object);
+        if (d == null)
+            throw new IOException("No base snapshot to write a delta snapshot on.");
+        writeDelta(stream, d);
+    }
+
+    public void writeDelta(OutputStream stream, Delta d) throws IOException {
+        SnapshotChecksums.Writer sums = new SnapshotChecksums.Writer(stream);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(sums, 65536));
+        out.writeInt(SnapshotCodec.MAGIC);
+        out.writeShort(SnapshotCodec.SCHEMA_VERSION);
+        out.writeByte(SnapshotCodec.KIND_DATA_MODEL_DELTA);
+        out.writeLong(d.baseVersion);
+
+        DataModel dm = d.dm;
+        SnapshotCodec.writeDataModelCounters(out, dm);
+
+        // Internal accounts: (id, balance) added or changed, then ids removed
+        ArrayList<Integer> removed = new ArrayList();
+        ArrayList<Map.Entry<Integer, Balance>> changedBalances = new ArrayList();
+        for (Map.Entry<Integer, Balance> e : dm.internalAccounts.entrySet()) {
+            Balance b = d.base.internalAccounts.get(e.getKey());
+            if ((b == null) || (b.get() != e.getValue().get()))
+                changedBalances.add(e);
+        }
+        for (int id : d.base.internalAccounts.keySet())
+            if (! dm.internalAccounts.containsKey(id))
+                removed.add(id);
+        out.writeInt(changedBalances.size());
+        for (Map.Entry<Integer, Balance> e : changedBalances) {
+            out.writeInt(e.getKey());
+            out.writeLong(e.getValue().get());
+        }
+        writeIds(out, removed);
+
+        // Pending authentications: same
+        removed.clear();
+        SnapshotCodec.RecordWriter rec = new SnapshotCodec.RecordWriter();
+        SnapshotCodec.RecordWriter baseRec = new SnapshotCodec.RecordWriter();
+        ArrayList<Integer> changedAuths = new ArrayList();
+        for (Map.Entry<Integer, PendingAuthentication> e : dm.pendingAuthentications.entrySet()) {
+            PendingAuthentication baseAuth = d.base.pendingAuthentications.get(e.getKey());
+            if (baseAuth != null) {
+                SnapshotCodec.writePendingAuthentication(rec.begin(), e.getValue());
+                SnapshotCodec.writePendingAuthentication(baseRec.begin(), baseAuth);
+                if (rec.record().equals(baseRec.record()))
+                    continue;
+            }
+            changedAuths.add(e.getKey());
+        }
+        for (int userId : d.base.pendingAuthentications.keySet())
+            if (! dm.pendingAuthentications.containsKey(userId))
+                removed.add(userId);
+        out.writeInt(changedAuths.size());
+        for (int userId : changedAuths) {
+            out.writeInt(userId);
+            SnapshotCodec.writePendingAuthentication(out, dm.pendingAuthentications.get(userId));
+        }
+        writeIds(out, removed);
+
+        // User accounts: (id, length, record) added or changed, then ids removed
+        out.writeInt(d.changedAccounts.size());
+        for (int userId : d.changedAccounts) {
+            out.writeInt(userId);
+            SnapshotCodec.writeUserAccount(rec.begin(), dm.accounts.get(userId));
+            rec.writeTo(out);
+        }
+        writeIds(out, d.removedAccounts);
+
+        out.writeInt(SnapshotCodec.END_MARKER);
+        out.flush();
+        sums.finish();
+    }
+
+    static void writeIds(DataOutputStream out, ArrayList<Integer> ids) throws IOException {
+        out.writeInt(ids.size());
+        for (int id : ids)
+            out.writeInt(id);
+    }
+
+    //===================================================================
+    // Reading
+    //===================================================================
+
+    // Loads the delta's base and applies the delta on it.
+    @Override
+    public Object readObject(InputStream stream) throws IOException, ClassNotFoundException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(stream, 65536));
+        if (in.readInt() != SnapshotCodec.MAGIC)
+            throw new IOException("Not a binary snapshot (bad magic number).");
+        short version = in.readShort();
+        if ((version < 2) || (version > SnapshotCodec.SCHEMA_VERSION))
+            throw new IOException("Unsupported delta snapshot schema version " + version + ".");
+        SnapshotChecksums.Verification verification = SnapshotChecksums.verify(stream, version);
+        try {
+            DataModel dm = readDelta(in, version);
+            if (verification != null)
+                verification.finish();
+            return dm;
+        } catch (IOException | RuntimeException e) {
+            if (verification != null)
+                verification.failed(e);
+            throw e;
+        }
+    }
+
+    DataModel readDelta(DataInputStream in, short version) throws IOException {
+        byte kind = in.readByte();
+        if (kind != SnapshotCodec.KIND_DATA_MODEL_DELTA)
+            throw new IOException("Not a delta snapshot (model kind " + kind + ").");
+        long baseVersion = in.readLong();
+        File baseFile = directory.snapshotFile(baseVersion, SnapshotCodec.SNAPSHOT_SUFFIX);
+        if (! baseFile.exists())
+            throw new IOException("Base snapshot " + baseFile + " of delta snapshot is missing.");
+
+        DataModel dm = readBase(baseFile, lazyAccounts);
+        // (the model the delta was written from is the one that counts)
+        ((AccountTable)dm.accounts).oldOrder = (version < SnapshotCodec.ASCENDING_ORDER_SINCE);
+        SnapshotCodec.readDataModelCounters(in, dm, version);
+
+        int n = SnapshotCodec.readCount(in);
+        for (int i = 0; i < n; i++) {
+            int id = in.readInt();
+            dm.internalAccounts.put(id, new Balance(in.readLong()));
+        }
+        n = SnapshotCodec.readCount(in);
+        for (int i = 0; i < n; i++)
+            dm.internalAccounts.remove(in.readInt());
+
+        n = SnapshotCodec.readCount(in);
+        for (int i = 0; i < n; i++) {
+            int userId = in.readInt();
+            dm.pendingAuthentications.put(userId, SnapshotCodec.readPendingAuthentication(in));
+        }
+        n = SnapshotCodec.readCount(in);
+        for (int i = 0; i < n; i++)
+            dm.pendingAuthentications.remove(in.readInt());
+
+        AccountTable table = (dm.accounts instanceof AccountTable) ? (AccountTable)dm.accounts : null;
+        SnapshotCodec.RecordReader rec = new SnapshotCodec.RecordReader();
+        n = SnapshotCodec.readCount(in);
+        for (int i = 0; i < n; i++) {
+            int userId = in.readInt();
+            UserAccount acc = SnapshotCodec.readUserAccount(rec.begin(in));
+            rec.end();
+            if (table != null)
+                table.overlay(userId, acc);
+            else
+                dm.accounts.put(userId, acc);
+        }
+        n = SnapshotCodec.readCount(in);
+        for (int i = 0; i < n; i++) {
+            int userId = in.readInt();
+            if (table != null)
+                table.overlay(userId, null);
+            else
+                dm.accounts.remove(userId);
+        }
+
+        SnapshotCodec.readEnd(in, version);
+        return dm;
+    }
+
+    static DataModel readBase(File baseFile, boolean lazyAccounts) throws IOException {
+        try (InputStream in = new FileInputStream(baseFile)) {
+            Object base = new SnapshotCodec(lazyAccounts).readObject(in);
+            if (! (base instanceof DataModel))
+                throw new IOException("Base snapshot " + baseFile + " is not a DataModel.");
+            return (DataModel)base;
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -0,0 +1,431 @@
+/*
+ * Copyright (C) 2017 The Anubis Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anubis;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * The DataModel's user accounts by user ID, kept in a file on local disk
+ *   instead of the heap (--account_store disk), with at most about 
+ *   Main.ACCOUNT_CACHE_SIZE of them decoded in memory at any time.
+ *
+ * The file is an AccountLog: an account evicted from the cache is 
+ *   appended to it if it changed, and the heap keeps only the offset of 
+ *   the latest record of each user ID.
+ * The file is not what makes the DataModel durable; the snapshots and the
+ *   journal still are. It is rebuilt from the snapshot at every startup
+ *   (see migrate()), and snapshots copy the records from it as they are.
+ *
+ * Transactions change the accounts they get in place, so an account can't
+ *   be written out while a transaction may still hold it: accounts got 
+ *   during a transaction (GroupCommitJournal.currentTransaction()) stay in
+ *   the cache until another transaction gets something. The exception is 
+ *   iterating over the entries, which lets go of each account when it 
+ *   moves on to the next one (DataModel's daily update goes through every
+ *   account in a single transaction). Accounts an iteration loads leave
+ *   the cache right away then, so the daily update doesn't push the 
+ *   active accounts out of it.
+ * Iteration is in ascending user ID order, same as the AccountTable's
+ *   (see AccountTable).
+ */
+public class DiskAccountTable extends AbstractMap<Integer, UserAccount> implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    // Name of the file, in the DataModel's prevalence directory.
+    public static final String FILE_NAME = "accounts.store";
+
+    // An account in the cache, and the checksum of its record in the file
+    //   (to tell if it changed), if it has one.
+    static class Cached {
+        UserAccount acc;
+        long crc = -1;
+    }
+
+    final int cacheSize;
+
+    // Offset of the latest record of every account (-1: none yet), and
+    //   their user IDs, for iterating in order.
+    final HashMap<Integer, Long> offsets;
+    final BitSet ids = new BitSet();
+    final AccountLog log;
+
+    // Decoded accounts, least recently used first.
+    final LinkedHashMap<Integer, Cached> cache = new LinkedHashMap(16, 0.75f, true);
+
+    // Accounts got during the "pinnedIn" transaction, and the ones entry
+    //   iterators are on.
+    final HashSet<Integer> pinned = new HashSet();
+    long pinnedIn = Long.MIN_VALUE;
+    final HashSet<Integer> held = new HashSet();
+
+    final SnapshotCodec.RecordWriter rec = new SnapshotCodec.RecordWriter();
+    final CRC32 crc32 = new CRC32();
+
+    long loads;
+
+    //===================================================================
+
+    // An empty table on a new (or truncated) file, sized for about 
+    //   "expectedSize" accounts.
+    public DiskAccountTable(File file, int cacheSize, int expectedSize) throws IOException {
+        this.cacheSize = Math.max(1, cacheSize);
+        this.offsets = (expectedSize > 0) ? new HashMap(Math.max(16, (int)(expectedSize / 0.75f) + 1)) : new HashMap();
+        this.log = new AccountLog(file, offsets);
+    }
+
+    // Move the accounts of a table loaded from a snapshot to a new disk 
+    //   table, copying the records an AccountTable hasn't decoded without
+    //   decoding them. Leaves "accounts" empty.
+    public static DiskAccountTable migrate(Map<Integer, UserAccount> accounts, File file, int cacheSize) 
+            throws IOException 
+    {
+        AccountTable table = (accounts instanceof AccountTable) ? (AccountTable)accounts : null;
+        DiskAccountTable disk = new DiskAccountTable(file, cacheSize, accounts.size());
+        synchronized (disk) {
+            for (Integer userId : accounts.keySet()) {
+                ByteBuffer raw = (table != null) ? table.undecodedRecord(userId) : null;
+                disk.ids.set(userId);
+                if (raw != null) {
+                    disk.log.write(userId, raw);
+                } else {
+                    disk.offsets.put(userId, -1L);
+                    disk.store(userId, accounts.get(userId));
+                }
+            }
+        }
+        accounts.clear();
+        return disk;
+    }
+
+    public synchronized int getCachedCount() {
+        return cache.size();
+    }
+
+    public synchronized long getFileSize() {
+        return log.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return offsets.size() + " accounts, " + cache.size() + " cached, " + loads + " loads, " + log;
+    }
+
+    //===================================================================
+
+    @Override
+    public synchronized UserAccount get(Object key) {
+        if (! (key instanceof Integer))
+            return null;
+        Integer userId = (Integer)key;
+        UserAccount acc = load(userId);
+        if (acc != null)
+            pin(userId);
+        return acc;
+    }
+
+    @Override
+    public synchronized boolean containsKey(Object key) {
+        return offsets.containsKey(key);
+    }
+
+    @Override
+    public synchronized UserAccount put(Integer key, UserAccount value) {
+        if (value == null)
+            throw new NullPointerException("DiskAccountTable doesn't take null accounts.");
+        UserAccount prev = load(key);
+        Cached c = cache.get(key);
+        if (c == null) {
+            c = new Cached();
+            cache.put(key, c);
+        }
+        c.acc = value;
+        if (! offsets.containsKey(key)) {
+            offsets.put(key, -1L);
+            ids.set(key);
+        }
+        pin(key);
+        return prev;
+    }
+
+    @Override
+    public synchronized UserAccount remove(Object key) {
+        if (! offsets.containsKey(key))
+            return null;
+        UserAccount prev = load((Integer)key);
+        forget((Integer)key, offsets.remove(key));
+        ids.clear((Integer)key);
+        return prev;
+    }
+
+    @Override
+    public synchronized int size() {
+        return offsets.size();
+    }
+
+    @Override
+    public synchronized void clear() {
+        try {
+            log.clear();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot clear account store " + log.file + ".", e);
+        }
+        ids.clear();
+        cache.clear();
+        pinned.clear();
+        held.clear();
+    }
+
+    @Override
+    public Set<Map.Entry<Integer, UserAccount>> entrySet() {
+        return new AbstractSet<Map.Entry<Integer, UserAccount>>() {
+            @Override
+            public Iterator<Map.Entry<Integer, UserAccount>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return DiskAccountTable.this.size();
+            }
+        };
+    }
+
+    // Entries load their account when asked for their value, which stays
+    //   in the cache until the iterator moves on; if it wasn't in the 
+    //   cache before, it leaves then (unless something got it meanwhile).
+    class EntryIterator implements Iterator<Map.Entry<Integer, UserAccount>> {
+        int next = nextId(0);
+        Integer current;
+        Integer holding;
+        boolean loaded;
+
+        @Override
+        public boolean hasNext() {
+            boolean hasNext = (next >= 0);
+            if (! hasNext)
+                release();
+            return hasNext;
+        }
+
+        @Override
+        public Map.Entry<Integer, UserAccount> next() {
+            release();
+            if (next < 0)
+                throw new NoSuchElementException();
+            final Integer userId = next;
+            current = userId;
+            next = nextId(next + 1);
+            return new Map.Entry<Integer, UserAccount>() {
+                @Override
+                public Integer getKey() {
+                    return userId;
+                }
+
+                @Override
+                public UserAccount getValue() {
+                    synchronized (DiskAccountTable.this) {
+                        boolean cached = cache.containsKey(userId);
+                        UserAccount acc = load(userId);
+                        if ((acc != null) && (holding == null)) {
+                            held.add(userId);
+                            holding = userId;
+                            loaded = (! cached) && (! pinned.contains(userId));
+                        }
+                        trim();
+                        return acc;
+                    }
+                }
+
+                @Override
+                public UserAccount setValue(UserAccount value) {
+                    return put(userId, value);
+                }
+            };
+        }
+
+        void release() {
+            if (holding == null)
+                return;
+            synchronized (DiskAccountTable.this) {
+                held.remove(holding);
+                Cached c = cache.get(holding);
+                if (loaded && (c != null) && (! pinned.contains(holding)))
+                    evict(holding, c);
+            }
+            holding = null;
+        }
+
+        @Override
+        public void remove() {
+            if (current == null)
+                throw new IllegalStateException();
+            synchronized (DiskAccountTable.this) {
+                forget(current, offsets.remove(current));
+                ids.clear(current);
+            }
+            current = null;
+        }
+    }
+
+    synchronized int nextId(int from) {
+        return ids.nextSetBit(from);
+    }
+
+    //===================================================================
+
+    // The stored record of an account that isn't in the cache, so 
+    //   SnapshotCodec can copy it to a snapshot as-is. Returns null if the
+    //   account is in the cache (it may have changed) or isn't in the table.
+    synchronized ByteBuffer storedRecord(int userId) {
+        if (cache.containsKey(userId))
+            return null;
+        try {
+            return log.read(userId);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read user account " + userId + " from " + log.file + ".", e);
+        }
+    }
+
+    // Get an account into the cache (without pinning it).
+    UserAccount load(Integer userId) {
+        Cached c = cache.get(userId);
+        if (c != null)
+            return c.acc;
+        try {
+            ByteBuffer record = log.read(userId);
+            if (record == null)
+                return null;
+            c = new Cached();
+            c.crc = checksum(record);
+            byte[] b = new byte[record.remaining()];
+            record.get(b);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(b));
+            c.acc = SnapshotCodec.readUserAccount(in);
+            if (in.available() != 0)
+                throw new IOException("Account store is corrupted (record length mismatch).");
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read user account " + userId + " from " + log.file + ".", e);
+        }
+        cache.put(userId, c);
+        ++loads;
+        return c.acc;
+    }
+
+    // Accounts got by one transaction stay in the cache until the next 
+    //   one gets something.
+    void pin(Integer userId) {
+        long tx = GroupCommitJournal.currentTransaction();
+        if (tx != pinnedIn) {
+            pinned.clear();
+            pinnedIn = tx;
+        }
+        pinned.add(userId);
+        trim();
+    }
+
+    // Evict the least recently used accounts that aren't pinned until the
+    //   cache is back to its size.
+    void trim() {
+        if (cache.size() <= cacheSize)
+            return;
+        Iterator<Map.Entry<Integer, Cached>> it = cache.entrySet().iterator();
+        while ((cache.size() > cacheSize) && it.hasNext()) {
+            Map.Entry<Integer, Cached> e = it.next();
+            if (pinned.contains(e.getKey()) || held.contains(e.getKey()))
+                continue;
+            store(e.getKey(), e.getValue());
+            it.remove();
+        }
+    }
+
+    void evict(Integer userId, Cached c) {
+        store(userId, c);
+        cache.remove(userId);
+    }
+
+    // Write an account to the file if it changed since it was read.
+    void store(Integer userId, Cached c) {
+        rec.begin();
+        try {
+            SnapshotCodec.writeUserAccount(rec.out, c.acc);
+            ByteBuffer record = rec.record();
+            long crc = checksum(record);
+            if (crc == c.crc)
+                return;
+            log.write(userId, record);
+            c.crc = crc;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot write user account " + userId + " to " + log.file + ".", e);
+        }
+    }
+
+    void store(Integer userId, UserAccount acc) {
+        Cached c = new Cached();
+        c.acc = acc;
+        store(userId, c);
+    }
+
+    // An account left the table ("offset" was its latest record).
+    void forget(Integer userId, Long offset) {
+        try {
+            log.discard(offset);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read account store " + log.file + ".", e);
+        }
+        cache.remove(userId);
+        pinned.remove(userId);
+        held.remove(userId);
+    }
+
+    long checksum(ByteBuffer record) {
+        crc32.reset();
+        crc32.update(record.duplicate());
+        return crc32.getValue();
+    }
+
+    // Java serialization (and the Prevayler deep copy) get a plain map with
+    //   everything decoded, which is what old snapshots have anyway.
+    private Object writeReplace() throws ObjectStreamException {
+        synchronized (this) {
+            HashMap<Integer, UserAccount> map = new HashMap(Math.max(16, (int)(offsets.size() / 0.75f) + 1));
+            for (int userId = ids.nextSetBit(0); userId >= 0; userId = ids.nextSetBit(userId + 1)) {
+                Cached c = cache.get(userId);
+                map.put(userId, (c != null) ? c.acc : load(userId));
+                trim();
+            }
+            return map;
+        }
+    }
+}
@@ -46,6 +46,11 @@ public class EncodedKeyPair implements Serializable {
         this(prk.getEncoded());
     }
     
+    // For the binary snapshot format (SnapshotCodec).
+    byte[] getEncoded() {
+        return prkEncoded.clone();
+    }
+
     public KeyPair getKeypair() throws InvalidKeySpecException {
         PKCS8EncodedKeySpec prkEncSpec = new PKCS8EncodedKeySpec( prkEncoded );
         EdDSAPrivateKey prk = new EdDSAPrivateKey(prkEncSpec);
@@ -0,0 +1,467 @@
+/*
+ * Copyright (C) 2017 The Anubis Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anubis;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.Callable;
+import org.prevayler.foundation.monitor.SimpleMonitor;
+import org.prevayler.foundation.serialization.Serializer;
+import org.prevayler.implementation.PrevaylerDirectory;
+import org.prevayler.implementation.TransactionGuide;
+import org.prevayler.implementation.journal.Journal;
+import org.prevayler.implementation.journal.PersistentJournal;
+import org.prevayler.implementation.publishing.TransactionSubscriber;
+
+/**
+ * A Prevayler journal that commits transactions to disk in groups.
+ *
+ * Every RMI thread that executes a transaction appends it to the journal
+ *   and waits until it is on disk before the transaction is executed.
+ *   Prevayler's own journal syncs as soon as the first writer shows up,
+ *   so under load the disk sync rate is the transaction rate ceiling.
+ * Here, appended transactions go to a buffer and a commit thread writes
+ *   the buffer to the journal file with a single sync once the first
+ *   transaction in it has waited for "window" milliseconds or the buffer
+ *   holds "batchSize" transactions, whichever comes first. Only then are
+ *   the waiting threads released, so durability is the same as before.
+ * The journal files are exactly the ones PersistentJournal writes, and
+ *   recovery is done by a PersistentJournal, with the entries it reads
+ *   deserialized ahead of their execution (JournalReplay).
+ * A new journal file is started whenever startNewFile() is called (when
+ *   a snapshot is taken), so that older files can be archived once no
+ *   snapshot we keep needs them (see SnapshotRetention).
+ */
+public class GroupCommitJournal implements Journal {
+
+    // Commit and latency counters, since startup.
+    public static class Stats {
+        public long transactions;
+        public long commits;
+        public long bytes;
+        public int maxBatch;
+        public long commitNanos;     // total time spent writing and syncing
+        public long maxCommitNanos;
+        public long waitNanos;       // total time transactions waited for their commit
+        public long maxWaitNanos;
+
+        Stats copy() {
+            Stats s = new Stats();
+            s.transactions = transactions;
+            s.commits = commits;
+            s.bytes = bytes;
+            s.maxBatch = maxBatch;
+            s.commitNanos = commitNanos;
+            s.maxCommitNanos = maxCommitNanos;
+            s.waitNanos = waitNanos;
+            s.maxWaitNanos = maxWaitNanos;
+            return s;
+        }
+
+        @Override
+        public String toString() {
+            if (commits == 0)
+                return "no commits";
+            return transactions + " tx in " + commits + " commits (batch avg "
+                    + String.format("%.1f", (double)transactions / commits) + ", max " + maxBatch
+                    + "), commit avg " + millis(commitNanos / commits)
+                    + " max " + millis(maxCommitNanos)
+                    + ", tx wait avg " + millis(waitNanos / transactions)
+                    + " max " + millis(maxWaitNanos);
+        }
+
+        static String millis(long nanos) {
+            return String.format("%.2f ms", nanos / 1000000.0);
+        }
+    }
+
+    //===================================================================
+
+    final String name;
+    final PrevaylerDirectory directory;
+    final String journalSuffix;
+    
+    // How journal entries are serialized.
+    final Serializer journalSerializer = new JournalCodec();
+
+    // Grouping: how long the first transaction of a group may wait for
+    //   others to join it, and the most transactions in a group.
+    final long windowNanos;
+    final int batchSize;
+
+    // Everything below is guarded by "lock"
+    final Object lock = new Object();
+
+    boolean initialized;
+    long nextTransaction;
+
+    File file;
+    FileOutputStream out;
+
+    // Set to have the next group committed to a new journal file.
+    boolean newFileRequested;
+
+    // Transactions waiting for the commit thread, and the ones it is
+    //   currently writing.
+    ByteArrayOutputStream active = new ByteArrayOutputStream();
+    ByteArrayOutputStream inactive = new ByteArrayOutputStream();
+
+    // Sequence numbers of transactions appended and committed.
+    long appended;
+    long committed;
+
+    // When the oldest transaction in "active" was appended
+    long activeSinceNanos;
+
+    // Set when a write fails. Nothing gets committed after that.
+    IOException failure;
+
+    boolean closed;
+
+    Thread committer;
+
+    final Stats stats = new Stats();
+
+    // Version of the transaction the current thread is appending, and then
+    //   executing (or executing during a JournalReplay).
+    static final ThreadLocal<Long> executingVersion = new ThreadLocal();
+
+    // Execution time of the journal entry the current thread is replaying
+    //   (JournalReplay, Standby, PointInTimeRestore).
+    static final ThreadLocal<Date> executingTime = new ThreadLocal();
+
+    // Set while the current thread appends without waiting for the commit.
+    static final ThreadLocal<Boolean> noWait = new ThreadLocal();
+
+    //===================================================================
+
+    public GroupCommitJournal(String name, PrevaylerDirectory directory, String journalSuffix,
+            long windowMillis, int batchSize)
+    {
+        PrevaylerDirectory.checkValidJournalSuffix(journalSuffix);
+        this.name = name;
+        this.directory = directory;
+        this.journalSuffix = journalSuffix;
+        this.windowNanos = windowMillis * 1000000;
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    // The version of the transaction this thread is executing, or -1.
+    public static long currentTransaction() {
+        Long version = executingVersion.get();
+        return (version != null) ? version : -1;
+    }
+
+    // The execution time of the journal entry this thread is replaying, or
+    //   null.
+    public static Date currentTransactionTime() {
+        return executingTime.get();
+    }
+
+    // Execute something that appends to a GroupCommitJournal without waiting
+    //   for the entry to be on disk. The entry still gets committed with the
+    //   next group, in order, so anything appended (and waited for) after it
+    //   is only on disk once it is as well.
+    // The thread's currentTransaction() is left as it was.
+    public static <T> T withoutWaiting(Callable<T> task) throws Exception {
+        Long version = executingVersion.get();
+        noWait.set(Boolean.TRUE);
+        try {
+            return task.call();
+        } finally {
+            noWait.remove();
+            executingVersion.set(version);
+        }
+    }
+
+    // Wait until everything appended so far is on disk.
+    public void flush() throws IOException {
+        boolean interrupted = false;
+        synchronized (lock) {
+            long target = appended;
+            while ((committed < target) && (failure == null)) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+            if (committed < target)
+                throw failure;
+        }
+    }
+
+    // Have the transactions from the next group on written to a new journal
+    //   file, named after the first of them.
+    public void startNewFile() {
+        synchronized (lock) {
+            newFileRequested = true;
+        }
+    }
+
+    public Stats getStats() {
+        synchronized (lock) {
+            return stats.copy();
+        }
+    }
+
+    //===================================================================
+    // Journal
+    //===================================================================
+
+    @Override
+    public void update(TransactionSubscriber subscriber, long initialTransaction)
+            throws IOException, ClassNotFoundException
+    {
+        // Recovery reads the same files PersistentJournal would, so let it.
+        PersistentJournal recovery = new PersistentJournal(directory, 0, 0, true,
+                journalSuffix, new SimpleMonitor(System.err));
+        JournalReplay replay = new JournalReplay(name, subscriber, journalSerializer,
+                journalBytes(initialTransaction), Main.REPLAY_DECODER_THREADS);
+        try {
+            recovery.update(replay, initialTransaction);
+        } finally {
+            try {
+                replay.finish();
+            } catch (IOException | ClassNotFoundException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException("Journal replay (" + name + ") failed.", e);
+            }
+        }
+        synchronized (lock) {
+            if (! initialized) {
+                nextTransaction = recovery.nextTransaction();
+                initialized = true;
+            }
+        }
+        recovery.close();
+    }
+
+    @Override
+    public void append(TransactionGuide guide) {
+        long seq;
+        long startNanos = System.nanoTime();
+
+        // Turns keep the appends in transaction order.
+        guide.startTurn();
+        try {
+            synchronized (lock) {
+                if (! initialized)
+                    throw new IllegalStateException("Journal.update() has to be called at least once before Journal.append().");
+                guide.checkSystemVersion(nextTransaction);
+                executingVersion.set(nextTransaction);
+                try {
+                    if (failure != null)
+                        throw failure;
+                    if (closed)
+                        throw new IOException("already closed");
+                    if (out == null)
+                        openFile();
+                    if (active.size() == 0)
+                        activeSinceNanos = startNanos;
+                    guide.writeTo(active);
+                } catch (IOException e) {
+                    if (failure == null)
+                        failure = e;
+                    abort(guide, e);
+                    return;
+                }
+                ++nextTransaction;
+                seq = ++appended;
+                lock.notifyAll();
+            }
+        } finally {
+            guide.endTurn();
+        }
+        if (noWait.get() != null)
+            return;
+
+        boolean interrupted = false;
+        synchronized (lock) {
+            while ((committed < seq) && (failure == null)) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    // Can't give up: the transaction is in the journal
+                    //   buffer already, so it has to be executed.
+                    interrupted = true;
+                }
+            }
+            if (committed < seq) {
+                abort(guide, failure);
+            } else {
+                long waited = System.nanoTime() - startNanos;
+                stats.waitNanos += waited;
+                stats.maxWaitNanos = Math.max(stats.maxWaitNanos, waited);
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    @Override
+    public void close() throws IOException {
+        Thread t;
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+            t = committer;
+        }
+        // The commit thread writes whatever is left before it quits
+        if (t != null) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+            }
+        }
+        synchronized (lock) {
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+            if (failure != null)
+                throw failure;
+        }
+    }
+
+    @Override
+    public long nextTransaction() {
+        synchronized (lock) {
+            if (! initialized)
+                throw new IllegalStateException("The next transaction number is unknown before Journal.update() is called.");
+            return nextTransaction;
+        }
+    }
+
+    //===================================================================
+
+    // Size of the journal files that have transactions from "version" on.
+    long journalBytes(long version) {
+        File initial = directory.findInitialJournalFile(version);
+        if (initial == null)
+            return 0;
+        long initialVersion = PrevaylerDirectory.journalVersion(initial);
+        long total = 0;
+        File[] files = initial.getParentFile().listFiles();
+        if (files != null)
+            for (File f : files)
+                if (f.getName().endsWith("." + journalSuffix)
+                        && (PrevaylerDirectory.journalVersion(f) >= initialVersion))
+                    total += f.length();
+        return total;
+    }
+
+    // Same as PersistentJournal: aborting the turn makes every following
+    //   transaction fail as well.
+    void abort(TransactionGuide guide, IOException e) {
+        Main.logError("Journal (" + name + ") failed writing to " + file + ".", e);
+        guide.abortTurn("All transaction processing is now aborted. An IOException was thrown while writing to a .journal file.", e);
+    }
+
+    // The journal file is named after the first transaction in it.
+    void openFile() throws IOException {
+        file = directory.journalFile(nextTransaction, journalSuffix);
+        out = new FileOutputStream(file);
+        newFileRequested = false;
+        committer = new Thread(this::commitLoop, "journal-" + name);
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    void commitLoop() {
+        while (true) {
+            long target;
+            int batch;
+            synchronized (lock) {
+                // Wait for the first transaction of a group
+                while ((appended == committed) && (! closed))
+                    waitOnLock(0);
+                if (appended == committed)
+                    return; // closed, and all committed
+
+                // Let others join it, unless we're closing
+                while ((! closed) && (appended - committed < batchSize)) {
+                    long left = activeSinceNanos + windowNanos - System.nanoTime();
+                    if (left <= 0)
+                        break;
+                    waitOnLock(left);
+                }
+
+                ByteArrayOutputStream swap = active;
+                active = inactive;
+                inactive = swap;
+                target = appended;
+                batch = (int)(target - committed);
+
+                if (newFileRequested) {
+                    // "out" only ever has whole groups, all of them synced
+                    newFileRequested = false;
+                    try {
+                        out.close();
+                        file = directory.journalFile(nextTransaction - batch, journalSuffix);
+                        out = new FileOutputStream(file);
+                    } catch (IOException e) {
+                        failure = e;
+                        lock.notifyAll();
+                        return;
+                    }
+                }
+            }
+
+            long t0 = System.nanoTime();
+            try {
+                inactive.writeTo(out);
+                out.getFD().sync();
+            } catch (IOException e) {
+                synchronized (lock) {
+                    failure = e;
+                    lock.notifyAll();
+                }
+                return;
+            }
+            long commitNanos = System.nanoTime() - t0;
+
+            synchronized (lock) {
+                stats.transactions += batch;
+                stats.commits++;
+                stats.bytes += inactive.size();
+                stats.maxBatch = Math.max(stats.maxBatch, batch);
+                stats.commitNanos += commitNanos;
+                stats.maxCommitNanos = Math.max(stats.maxCommitNanos, commitNanos);
+                inactive.reset();
+                committed = target;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    void waitOnLock(long nanos) {
+        try {
+            if (nanos <= 0)
+                lock.wait();
+            else
+                lock.wait(nanos / 1000000, (int)(nanos % 1000000));
+        } catch (InterruptedException e) {
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2017 The Anubis Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anubis;
+
+import java.io.Serializable;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A set of ints kept as a sorted array, for the validation links of a 
+ *   UserAccount: a few dozen IDs at most per account, so a binary search
+ *   beats a HashSet of boxed Integers, at 4 bytes per ID instead of a
+ *   hash node and an Integer each.
+ * contains(int), add(int), remove(int), get(int) and unionSize() don't 
+ *   allocate. It is also a Set<Integer> (iterated in ascending order), so
+ *   code written for the HashSets it replaced still works.
+ */
+public class IntSet extends AbstractSet<Integer> implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    static final int[] EMPTY = new int[0];
+
+    int[] ids;
+    int size;
+
+    // Bumped by every change, for the iterators.
+    transient int modCount;
+
+    //===================================================================
+
+    public IntSet() {
+        ids = EMPTY;
+    }
+
+    public IntSet(int capacity) {
+        ids = (capacity > 0) ? new int[capacity] : EMPTY;
+    }
+
+    public IntSet(Collection<Integer> c) {
+        this(c.size());
+        for (int id : c)
+            add(id);
+    }
+
+    // The "index"th smallest ID.
+    public int get(int index) {
+        if ((index < 0) || (index >= size))
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+        return ids[index];
+    }
+
+    public boolean contains(int id) {
+        return Arrays.binarySearch(ids, 0, size, id) >= 0;
+    }
+
+    public boolean add(int id) {
+        int i = Arrays.binarySearch(ids, 0, size, id);
+        if (i >= 0)
+            return false;
+        i = -(i + 1);
+        if (size == ids.length)
+            ids = Arrays.copyOf(ids, Math.max(4, size + (size >> 1)));
+        System.arraycopy(ids, i, ids, i + 1, size - i);
+        ids[i] = id;
+        ++size;
+        ++modCount;
+        return true;
+    }
+
+    public boolean remove(int id) {
+        int i = Arrays.binarySearch(ids, 0, size, id);
+        if (i < 0)
+            return false;
+        removeAt(i);
+        return true;
+    }
+
+    // Number of IDs in this set, the other, or both.
+    public int unionSize(IntSet other) {
+        int i = 0, j = 0, n = 0;
+        while ((i < size) && (j < other.size)) {
+            int a = ids[i], b = other.ids[j];
+            if (a <= b)
+                ++i;
+            if (b <= a)
+                ++j;
+            ++n;
+        }
+        return n + (size - i) + (other.size - j);
+    }
+
+    void removeAt(int i) {
+        System.arraycopy(ids, i + 1, ids, i, size - i - 1);
+        --size;
+        ++modCount;
+    }
+
+    //===================================================================
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return (o instanceof Integer) && contains((int)(Integer)o);
+    }
+
+    @Override
+    public boolean add(Integer id) {
+        return add((int)id);
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        return (o instanceof Integer) && remove((int)(Integer)o);
+    }
+
+    @Override
+    public void clear() {
+        size = 0;
+        ++modCount;
+    }
+
+    @Override
+    public Iterator<Integer> iterator() {
+        return new Iterator<Integer>() {
+            int next;
+            int expectedModCount = modCount;
+            boolean canRemove;
+
+            @Override
+            public boolean hasNext() {
+                return next < size;
+            }
+
+            @Override
+            public Integer next() {
+                if (expectedModCount != modCount)
+                    throw new ConcurrentModificationException();
+                if (next >= size)
+                    throw new NoSuchElementException();
+                canRemove = true;
+                return ids[next++];
+            }
+
+            @Override
+            public void remove() {
+                if (! canRemove)
+                    throw new IllegalStateException();
+                if (expectedModCount != modCount)
+                    throw new ConcurrentModificationException();
+                removeAt(--next);
+                expectedModCount = modCount;
+                canRemove = false;
+            }
+        };
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2017 The Anubis Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anubis;
+
+import anubis.sectx.SecTxCodec;
+import anubis.tx.TxCodec;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.Map;
+import java.util.TreeMap;
+import org.prevayler.foundation.Chunk;
+import org.prevayler.foundation.Chunking;
+import org.prevayler.foundation.serialization.JavaSerializer;
+import org.prevayler.foundation.serialization.Serializer;
+import org.prevayler.implementation.TransactionTimestamp;
+
+/**
+ * Journal encoding of the dm and secdm transactions.
+ *
+ * Java serialization writes a transaction's class descriptor (and those of
+ *   every object it holds, like the StoredPassword and UserSession in a
+ *   LoginTx) into every journal entry. Here an entry is a marker byte, a
+ *   format version, a numeric tag for the transaction class and then the
+ *   transaction's fields as fixed-width primitives. The tags and fields
+ *   are in TxCodec (anubis.tx) and SecTxCodec (anubis.sectx), next to the
+ *   classes whose fields they read.
+ * Transactions without a tag are still written with Java serialization,
+ *   after the marker, version and JAVA_TAG. Entries written with Java 
+ *   serialization alone (old journals) are still read: those start with 
+ *   the Java stream magic number, never with ours.
+ * Entries of version 1 and older were written while the DataModel's 
+ *   accounts were iterated in HashMap order (see AccountTable), which 
+ *   DataModel.requestTrust() depends on. DataModel transactions from then 
+ *   are refused, unless the codec is only looking at them (see benchmark()).
+ */
+public class JournalCodec implements Serializer {
+
+    // First byte of an entry in this format. Java serialization streams
+    //   start with 0xAC.
+    public static final int MARKER = 0xA7;
+
+    // 1: first version
+    // 2: accounts iterated in ascending user ID order; JAVA_TAG
+    public static final int VERSION = 2;
+
+    // Entries of an older version can't be replayed on the DataModel.
+    static final int ASCENDING_ORDER_SINCE = 2;
+
+    // Tag of a transaction written with Java serialization.
+    static final int JAVA_TAG = 255;
+
+    // Tags below this are DataModel transactions (TxCodec), the others are
+    //   SecurityDataModel transactions (SecTxCodec).
+    public static final int FIRST_SECTX_TAG = 64;
+
+    final JavaSerializer javaSerializer = new JavaSerializer();
+
+    // Read DataModel transactions written in the old account order.
+    final boolean acceptOldOrder;
+
+    //===================================================================
+
+    public JournalCodec() {
+        this(false);
+    }
+
+    public JournalCodec(boolean acceptOldOrder) {
+        this.acceptOldOrder = acceptOldOrder;
+    }
+
+    @Override
+    public void writeObject(OutputStream stream, Object object) throws Exception {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(buf);
+        out.writeByte(MARKER);
+        out.writeByte(VERSION);
+        boolean written;
+        try {
+            written = TxCodec.write(out, object) || SecTxCodec.write(out, object);
+        } catch (RuntimeException e) {
+            // Something the encoding doesn't expect (e.g. a null where
+            //   there never is one); Java serialization takes anything.
+            written = false;
+        }
+        if (! written) {
+            buf.reset();
+            out.writeByte(MARKER);
+            out.writeByte(VERSION);
+            out.writeByte(JAVA_TAG);
+            out.flush();
+            javaSerializer.writeObject(buf, object);
+        }
+        out.flush();
+        buf.writeTo(stream);
+        stream.close(); // as JavaSerializer does
+    }
+
+    @Override
+    public Object readObject(InputStream stream) throws Exception {
+        PushbackInputStream pin = new PushbackInputStream(stream, 1);
+        int first = pin.read();
+        if (first != MARKER) {
+            if (first >= 0)
+                pin.unread(first);
+            return checkOrder(javaSerializer.readObject(pin), 0);
+        }
+        DataInputStream in = new DataInputStream(pin);
+        int version = in.readUnsignedByte();
+        if ((version < 1) || (version > VERSION))
+            throw new IOException("Unsupported journal entry format version " + version + ".");
+        int tag = in.readUnsignedByte();
+        if ((tag == JAVA_TAG) && (version >= 2))
+            return checkOrder(javaSerializer.readObject(pin), version);
+        Object tx = (tag < FIRST_SECTX_TAG) ? TxCodec.read(tag, in) : SecTxCodec.read(tag, in);
+        if (in.read() >= 0)
+            throw new IOException("Journal entry is corrupted (trailing bytes after tag " + tag + ").");
+        return checkOrder(tx, version);
+    }
+
+    // Refuse a DataModel transaction of an entry written in the old account
+    //   order: replaying it in the new one could give a different result.
+    Object checkOrder(Object tx, int version) throws IOException {
+        if ((version < ASCENDING_ORDER_SINCE) && (! acceptOldOrder) 
+                && (tx.getClass().getPackage() == TxCodec.class.getPackage()))
+            throw new IOException("Journal entry " + tx.getClass().getSimpleName() + " was written before the "
+                    + "DataModel's accounts were iterated in ascending user ID order, and can't be replayed "
+                    + "in that order. Take a snapshot with the previous version first.");
+        return tx;
+    }
+
+    //===================================================================
+    // Field encodings shared by TxCodec and SecTxCodec
+    //===================================================================
+
+    public static void writeString(DataOutput out, String s) throws IOException {
+        SnapshotCodec.writeString(out, s);
+    }
+
+    public static String readString(DataInput in) throws IOException {
+        return SnapshotCodec.readString(in);
+    }
+
+    public static void writeBytes(DataOutput out, byte[] b) throws IOException {
+        SnapshotCodec.writeBytes(out, b);
+    }
+
+    public static byte[] readBytes(DataInput in) throws IOException {
+        return SnapshotCodec.readBytes(in);
+    }
+
+    // Counts of things that may be null are written as -1.
+    public static int readNullableCount(DataInput in) throws IOException {
+        int n = in.readInt();
+        if (n < -1)
+            throw new IOException("Journal entry is corrupted (bad count).");
+        return n;
+    }
+
+    public static void writeUserAccount(DataOutput out, UserAccount acc) throws IOException {
+        out.writeBoolean(acc != null);
+        if (acc != null)
+            SnapshotCodec.writeUserAccount(out, acc);
+    }
+
+    public static UserAccount readUserAccount(DataInput in) throws IOException {
+        return in.readBoolean() ? SnapshotCodec.readUserAccount(in) : null;
+    }
+
+    public static void writePrivateUserAccount(DataOutput out, PrivateUserAccount acc) throws IOException {
+        out.writeBoolean(acc != null);
+        if (acc != null)
+            SnapshotCodec.writePrivateUserAccount(out, acc);
+    }
+
+    public static PrivateUserAccount readPrivateUserAccount(DataInput in) throws IOException {
+        return in.readBoolean() ? SnapshotCodec.readPrivateUserAccount(in) : null;
+    }
+
+    public static void writePendingInvite(DataOutput out, PendingInvite invite) throws IOException {
+        out.writeBoolean(invite != null);
+        if (invite != null) {
+            out.writeInt(invite.sponsorId);
+            out.writeLong(invite.amount);
+            out.writeInt(invite.expirationTimestamp);
+        }
+    }
+
+    public static PendingInvite readPendingInvite(DataInput in) throws IOException {
+        if (! in.readBoolean())
+            return null;
+        int sponsorId = in.readInt();
+        long amount = in.readLong();
+        PendingInvite invite = new PendingInvite(sponsorId, amount, 0);
+        invite.expirationTimestamp = in.readInt();
+        return invite;
+    }
+
+    public static void writeStoredPassword(DataOutput out, StoredPassword password) throws IOException {
+        out.writeBoolean(password != null);
+        if (password != null) {
+            writeString(out, password.hashedPassword);
+            writeString(out, password.salt);
+        }
+    }
+
+    public static StoredPassword readStoredPassword(DataInput in) throws IOException {
+        if (! in.readBoolean())
+            return null;
+        String hashedPassword = readString(in);
+        return new StoredPassword(hashedPassword, readString(in));
+    }
+
+    public static void writeUserSession(DataOutput out, UserSession session) throws IOException {
+        out.writeBoolean(session != null);
+        if (session != null) {
+            out.writeInt(session.userId);
+            out.writeInt(session.lastHitTimestamp);
+            out.writeInt(session.timeoutMinutes);
+        }
+    }
+
+    public static UserSession readUserSession(DataInput in) throws IOException {
+        if (! in.readBoolean())
+            return null;
+        UserSession session = new UserSession(in.readInt());
+        session.lastHitTimestamp = in.readInt();
+        session.timeoutMinutes = in.readInt();
+        return session;
+    }
+
+    public static void writeKeyPair(DataOutput out, EncodedKeyPair keyPair) throws IOException {
+        writeBytes(out, (keyPair == null) ? null : keyPair.getEncoded());
+    }
+
+    public static EncodedKeyPair readKeyPair(DataInput in) throws IOException {
+        byte[] encoded = readBytes(in);
+        return (encoded == null) ? null : new EncodedKeyPair(encoded);
+    }
+
+    //===================================================================
+    // Tools
+    //===================================================================
+
+    // Re-encode every entry of the journals in a prevalence base directory
+    //   and log, per transaction class, the average bytes per entry as
+    //   they are on disk and in both encodings.
+    public static void benchmark(String prevalenceBase) throws Exception {
+        File[] files = new File(prevalenceBase).listFiles();
+        if (files == null)
+            return;
+        JournalCodec codec = new JournalCodec(true);
+        JavaSerializer java = new JavaSerializer();
+        Map<String, long[]> stats = new TreeMap(); // count, java, compact, on disk
+        for (File file : files) {
+            if (! file.getName().endsWith("." + BackgroundSnapshotter.JOURNAL_SUFFIX))
+                continue;
+            try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+                while (true) {
+                    Chunk chunk;
+                    try {
+                        chunk = Chunking.readChunk(in);
+                    } catch (IOException e) {
+                        chunk = null; // torn last entry
+                    }
+                    if (chunk == null)
+                        break;
+                    TransactionTimestamp ts = TransactionTimestamp.fromChunk(chunk);
+                    byte[] serialized = ts.capsule().serialized();
+                    Object tx = codec.readObject(new ByteArrayInputStream(serialized));
+                    long[] s = stats.computeIfAbsent(tx.getClass().getSimpleName(), k -> new long[4]);
+                    s[0]++;
+                    s[1] += encode(java, tx).length;
+                    s[2] += encode(codec, tx).length;
+                    s[3] += serialized.length;
+                }
+            }
+        }
+        long[] total = new long[4];
+        Main.log("Journal benchmark: " + prevalenceBase + " (avg bytes per transaction: java / compact / on disk)");
+        for (Map.Entry<String, long[]> e : stats.entrySet()) {
+            long[] s = e.getValue();
+            Main.log("  " + e.getKey() + ": " + s[0] + " tx, " + (s[1] / s[0]) + " / "
+                    + (s[2] / s[0]) + " / " + (s[3] / s[0]));
+            for (int i = 0; i < 4; i++)
+                total[i] += s[i];
+        }
+        if (total[0] > 0)
+            Main.log("  all: " + total[0] + " tx, " + (total[1] / total[0]) + " / "
+                    + (total[2] / total[0]) + " / " + (total[3] / total[0]));
+    }
+
+    static byte[] encode(Serializer serializer, Object tx) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serializer.writeObject(out, tx);
+        return out.toByteArray();
+    }
+}
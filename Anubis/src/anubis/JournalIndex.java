@@ -0,0 +1,393 @@
+/*
+ * Copyright (C) 2017 The Anubis Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anubis;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.prevayler.foundation.Chunk;
+import org.prevayler.foundation.Chunking;
+import org.prevayler.implementation.PrevaylerDirectory;
+import org.prevayler.implementation.TransactionTimestamp;
+
+/**
+ * An index of the journal files of a prevalence directory and of its 
+ *   archive (see SnapshotRetention): which file, and where in it, has a
+ *   given transaction, or the transactions of a given minute.
+ *
+ * For each journal file, the index has the offset, version and Timestamp
+ *   of every EVERY-th transaction, and of every transaction that is the 
+ *   first of its minute. Finding a transaction then takes reading at most
+ *   EVERY entries' worth of the file, and nothing is deserialized.
+ * A journal file never changes once the journal moved on to a new one, so
+ *   the index of each file is saved to the INDEX_DIRECTORY subdirectory
+ *   and read from there, unless the file has grown since.
+ * Only the last journal file may end in a broken entry (where the live 
+ *   server is writing, or was when it crashed), and its index isn't saved
+ *   then. A broken entry in any other file is an error.
+ */
+public class JournalIndex {
+
+    public static final String INDEX_DIRECTORY = "index";
+    static final String INDEX_SUFFIX = ".index";
+
+    // "ANJI"
+    static final int MAGIC = 0x414E4A49;
+    // 1: first version
+    // 2: no indexes of files cut short by a broken entry
+    static final short FORMAT_VERSION = 2;
+
+    static final int EVERY = 1024;
+
+    public static class Entry {
+        public final File journal;
+        public final long offset;
+        public final long version;
+        public final int timestamp;
+
+        Entry(File journal, long offset, long version, int timestamp) {
+            this.journal = journal;
+            this.offset = offset;
+            this.version = version;
+            this.timestamp = timestamp;
+        }
+    }
+
+    public interface Visitor {
+        // Returns false to stop.
+        boolean visit(TransactionTimestamp ts) throws Exception;
+    }
+
+    final File dir;
+    final File indexDir;
+
+    // Journal files by the version of their first transaction
+    final TreeMap<Long, File> journals = new TreeMap();
+
+    // Entries of all the files, by version, and the first one of each 
+    //   minute (Timestamp), by minute.
+    final TreeMap<Long, Entry> entries = new TreeMap();
+    final TreeMap<Integer, Entry> minutes = new TreeMap();
+
+    long lastVersion;
+    int lastTimestamp;
+    int filesScanned;
+
+    //===================================================================
+
+    public JournalIndex(String prevalenceBase) {
+        this.dir = new File(prevalenceBase);
+        this.indexDir = new File(dir, INDEX_DIRECTORY);
+    }
+
+    // Index the journal files, reading the saved indexes of the ones that
+    //   didn't change.
+    public static JournalIndex build(String prevalenceBase) throws IOException {
+        JournalIndex index = new JournalIndex(prevalenceBase);
+        index.build();
+        return index;
+    }
+
+    void build() throws IOException {
+        for (File d : new File[] { new File(dir, SnapshotRetention.ARCHIVE_DIRECTORY), dir }) {
+            File[] files = d.listFiles();
+            if (files != null)
+                for (File f : files)
+                    if (PrevaylerDirectory.journalVersion(f) >= 0)
+                        journals.put(PrevaylerDirectory.journalVersion(f), f);
+        }
+        if ((! journals.isEmpty()) && (! indexDir.isDirectory()) && (! indexDir.mkdirs()))
+            throw new IOException("Unable to create directory " + indexDir);
+        for (File journal : journals.values()) {
+            FileIndex fileIndex = readFileIndex(journal);
+            if (fileIndex == null) {
+                fileIndex = scan(journal, journal == journals.lastEntry().getValue());
+                if (! fileIndex.broken)
+                    writeFileIndex(fileIndex);
+                ++filesScanned;
+            }
+            for (Entry e : fileIndex.entries)
+                entries.put(e.version, e);
+            if (fileIndex.lastVersion > lastVersion) {
+                lastVersion = fileIndex.lastVersion;
+                lastTimestamp = fileIndex.lastTimestamp;
+            }
+        }
+        int minute = Integer.MIN_VALUE;
+        for (Entry e : entries.values()) {
+            if (e.timestamp > minute) {
+                minutes.put(e.timestamp, e);
+                minute = e.timestamp;
+            }
+        }
+        removeStaleIndexes();
+    }
+
+    // The version of the first transaction journaled, or 0 if none.
+    public long getFirstVersion() {
+        return entries.isEmpty() ? 0 : entries.firstKey();
+    }
+
+    public long getLastVersion() {
+        return lastVersion;
+    }
+
+    public int getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    // Journal files that had to be read (the rest had a saved index)
+    public int getFilesScanned() {
+        return filesScanned;
+    }
+
+    @Override
+    public String toString() {
+        if (entries.isEmpty())
+            return "no transactions";
+        return "transactions " + getFirstVersion() + " to " + lastVersion + " ("
+                + Timestamp.toUTCLocalDateTime(entries.firstEntry().getValue().timestamp) + " to "
+                + Timestamp.toUTCLocalDateTime(lastTimestamp) + " UTC) in " + journals.size() 
+                + " journal files, " + entries.size() + " index entries";
+    }
+
+    //===================================================================
+    // Lookups
+    //===================================================================
+
+    // Visit the journaled transactions in order, from "version" on.
+    public void read(long version, Visitor visitor) throws Exception {
+        Map.Entry<Long, Entry> start = entries.floorEntry(version);
+        if (start == null)
+            start = entries.firstEntry();
+        if (start == null)
+            return;
+        Map.Entry<Long, File> journal = journals.floorEntry(start.getValue().version);
+        long offset = start.getValue().offset;
+        while (journal != null) {
+            try (FileInputStream fis = new FileInputStream(journal.getValue())) {
+                fis.getChannel().position(offset);
+                InputStream in = new BufferedInputStream(fis);
+                while (true) {
+                    // a broken tail is where the live server is writing
+                    Chunk chunk;
+                    try {
+                        chunk = Chunking.readChunk(in);
+                    } catch (IOException e) {
+                        if (journals.higherEntry(journal.getKey()) != null)
+                            throw brokenEntry(journal.getValue(), e);
+                        chunk = null;
+                    }
+                    if (chunk == null)
+                        break;
+                    TransactionTimestamp ts = TransactionTimestamp.fromChunk(chunk);
+                    if ((ts.systemVersion() >= version) && (! visitor.visit(ts)))
+                        return;
+                }
+            }
+            journal = journals.higherEntry(journal.getKey());
+            offset = 0;
+        }
+    }
+
+    // The last transaction executed before "timeMillis", or the one before
+    //   the first journaled transaction if they were all executed after it.
+    public long lastVersionBefore(long timeMillis) throws Exception {
+        Map.Entry<Integer, Entry> minute = minutes.floorEntry((int)Math.floorDiv(timeMillis, 60000L));
+        if (minute == null)
+            return entries.isEmpty() ? lastVersion : getFirstVersion() - 1;
+        long[] last = { minute.getValue().version - 1 };
+        read(minute.getValue().version, ts -> {
+            if (ts.executionTime().getTime() >= timeMillis)
+                return false;
+            last[0] = ts.systemVersion();
+            return true;
+        });
+        return last[0];
+    }
+
+    // When a transaction was executed, or null if it isn't journaled.
+    public Date executionTime(long version) throws Exception {
+        Date[] time = { null };
+        read(version, ts -> {
+            if (ts.systemVersion() == version)
+                time[0] = ts.executionTime();
+            return false;
+        });
+        return time[0];
+    }
+
+    //===================================================================
+    // Index files
+    //===================================================================
+
+    static class FileIndex {
+        File journal;
+        long journalLength;
+        long lastVersion;
+        int lastTimestamp;
+        List<Entry> entries = new ArrayList();
+        boolean broken; // ends in a broken entry
+    }
+
+    // Counts the bytes Chunking reads, which is where the next chunk is.
+    static class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0)
+                ++count;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0)
+                count += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+    // Index a journal file. Only the last one ("last") may end in a broken
+    //   entry.
+    FileIndex scan(File journal, boolean last) throws IOException {
+        FileIndex index = new FileIndex();
+        index.journal = journal;
+        index.journalLength = journal.length();
+        try (CountingInputStream in = new CountingInputStream(new BufferedInputStream(new FileInputStream(journal)))) {
+            int count = 0;
+            int minute = Integer.MIN_VALUE;
+            while (true) {
+                long offset = in.count;
+                Chunk chunk;
+                try {
+                    chunk = Chunking.readChunk(in);
+                } catch (IOException e) {
+                    if (! last)
+                        throw brokenEntry(journal, e);
+                    index.broken = true;
+                    chunk = null;
+                }
+                if (chunk == null)
+                    break;
+                TransactionTimestamp ts = TransactionTimestamp.fromChunk(chunk);
+                if ((count > 0) && (ts.systemVersion() != index.lastVersion + 1))
+                    throw new IOException("Journal " + journal + " has transaction " + ts.systemVersion() 
+                            + " after " + index.lastVersion + ".");
+                int timestamp = Timestamp.fromDate(ts.executionTime());
+                if ((count++ % EVERY == 0) || (timestamp != minute))
+                    index.entries.add(new Entry(journal, offset, ts.systemVersion(), timestamp));
+                minute = timestamp;
+                index.lastVersion = ts.systemVersion();
+                index.lastTimestamp = timestamp;
+            }
+        }
+        return index;
+    }
+
+    static IOException brokenEntry(File journal, IOException e) {
+        return new IOException("Journal " + journal + " has a broken entry, and isn't the last one.", e);
+    }
+
+    File indexFile(File journal) {
+        return new File(indexDir, journal.getName() + INDEX_SUFFIX);
+    }
+
+    // The saved index of a journal file, or null if there is none or the
+    //   file changed since.
+    FileIndex readFileIndex(File journal) {
+        File file = indexFile(journal);
+        if (! file.exists())
+            return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if ((in.readInt() != MAGIC) || (in.readShort() != FORMAT_VERSION))
+                return null;
+            FileIndex index = new FileIndex();
+            index.journal = journal;
+            index.journalLength = in.readLong();
+            if (index.journalLength != journal.length())
+                return null;
+            index.lastVersion = in.readLong();
+            index.lastTimestamp = in.readInt();
+            int n = in.readInt();
+            for (int i = 0; i < n; i++)
+                index.entries.add(new Entry(journal, in.readLong(), in.readLong(), in.readInt()));
+            return index;
+        } catch (IOException e) {
+            return null; // rebuild it
+        }
+    }
+
+    void writeFileIndex(FileIndex index) throws IOException {
+        File file = indexFile(index.journal);
+        File tempFile = new File(indexDir, file.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            out.writeInt(MAGIC);
+            out.writeShort(FORMAT_VERSION);
+            out.writeLong(index.journalLength);
+            out.writeLong(index.lastVersion);
+            out.writeInt(index.lastTimestamp);
+            out.writeInt(index.entries.size());
+            for (Entry e : index.entries) {
+                out.writeLong(e.offset);
+                out.writeLong(e.version);
+                out.writeInt(e.timestamp);
+            }
+        }
+        if ((! tempFile.renameTo(file)) && ((! file.delete()) || (! tempFile.renameTo(file))))
+            throw new IOException("Unable to rename " + tempFile + " to " + file);
+    }
+
+    // Indexes of journal files that were deleted
+    void removeStaleIndexes() {
+        File[] files = indexDir.listFiles();
+        if (files == null)
+            return;
+        ArrayList<String> names = new ArrayList();
+        for (File journal : journals.values())
+            names.add(indexFile(journal).getName());
+        for (File f : files)
+            if (f.getName().endsWith(INDEX_SUFFIX) && (! names.contains(f.getName())))
+                f.delete();
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2017 The Anubis Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anubis;
+
+import java.io.ByteArrayInputStream;
+import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.prevayler.SureTransactionWithQuery;
+import org.prevayler.Transaction;
+import org.prevayler.TransactionWithQuery;
+import org.prevayler.foundation.serialization.Serializer;
+import org.prevayler.implementation.Capsule;
+import org.prevayler.implementation.TransactionTimestamp;
+import org.prevayler.implementation.publishing.TransactionSubscriber;
+
+/**
+ * Replays journal entries with their deserialization done ahead of time.
+ *
+ * During recovery Prevayler reads a journal entry, deserializes it and
+ *   executes it, one entry at a time, all on one thread. This sits between
+ *   the journal reader and the prevalent system: entries handed to it are
+ *   deserialized by a pool of threads while earlier ones are still being
+ *   executed, in journal order, by an executor thread.
+ * It also logs the replay's progress every few seconds.
+ */
+public class JournalReplay implements TransactionSubscriber {
+
+    // How many entries can be read ahead of the one being executed.
+    static final int READ_AHEAD = 4096;
+
+    // How often progress is logged.
+    static final long PROGRESS_INTERVAL_MILLIS = 5000;
+
+    // Rough size of a journal entry's chunk header, for the progress ETA.
+    static final int CHUNK_OVERHEAD = 72;
+
+    final String name;
+    final TransactionSubscriber subscriber;
+    final Serializer journalSerializer;
+
+    // Size of the journal files being replayed, for the progress ETA.
+    final long totalBytes;
+
+    final ExecutorService decoders;
+    final BlockingQueue<Entry> queue = new ArrayBlockingQueue(READ_AHEAD);
+    final Thread executor;
+
+    // Set if executing an entry failed; the replay stops there.
+    volatile Throwable failure;
+
+    // Progress, written by the executor thread only.
+    volatile long executed;
+    volatile long executedBytes;
+    volatile long lastVersion;
+    long startMillis;
+
+    // An entry read from the journal and its transaction, when decoded.
+    static class Entry {
+        final TransactionTimestamp ts;
+        final Future<Object> transaction;
+
+        Entry(TransactionTimestamp ts, Future<Object> transaction) {
+            this.ts = ts;
+            this.transaction = transaction;
+        }
+    }
+
+    // The executor thread stops when it gets this.
+    static final Entry END = new Entry(null, null);
+
+    //===================================================================
+
+    public JournalReplay(String name, TransactionSubscriber subscriber, Serializer journalSerializer,
+            long totalBytes, int threads)
+    {
+        this.name = name;
+        this.subscriber = subscriber;
+        this.journalSerializer = journalSerializer;
+        this.totalBytes = totalBytes;
+        this.decoders = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread t = new Thread(r, "replay-decoder-" + name);
+            t.setDaemon(true);
+            return t;
+        });
+        this.executor = new Thread(this::executeLoop, "replay-" + name);
+        this.executor.setDaemon(true);
+        this.startMillis = System.currentTimeMillis();
+        this.executor.start();
+    }
+
+    // Called by the journal reader, in journal order.
+    @Override
+    public void receive(TransactionTimestamp ts) {
+        if (failure != null)
+            return; // the executor is gone; finish() reports why
+        byte[] serialized = ts.capsule().serialized();
+        Future<Object> transaction = decoders.submit(
+                () -> journalSerializer.readObject(new ByteArrayInputStream(serialized)));
+        put(new Entry(ts, transaction));
+    }
+
+    // Wait until every entry received so far was executed. Throws what
+    //   executing an entry threw, if anything did.
+    public void finish() throws Exception {
+        put(END);
+        executor.join();
+        decoders.shutdownNow();
+        Throwable t = failure;
+        if (t instanceof Exception)
+            throw (Exception)t;
+        if (t instanceof java.lang.Error)
+            throw (java.lang.Error)t;
+        if (executed > 0) {
+            long millis = Math.max(1, System.currentTimeMillis() - startMillis);
+            Main.log("Journal replay (" + name + "): " + executed + " entries in " + millis + " ms ("
+                    + (executed * 1000 / millis) + " entries/s), at transaction " + lastVersion + ".");
+        }
+    }
+
+    void put(Entry e) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(e);
+                break;
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    //===================================================================
+
+    void executeLoop() {
+        long lastLogMillis = startMillis;
+        while (true) {
+            Entry e;
+            try {
+                e = queue.take();
+            } catch (InterruptedException ex) {
+                continue;
+            }
+            if (e == END)
+                return;
+            if (failure != null)
+                continue; // drain what's left without executing it
+            try {
+                Object transaction = e.transaction.get();
+                TransactionTimestamp ts = e.ts;
+                GroupCommitJournal.executingVersion.set(ts.systemVersion());
+                GroupCommitJournal.executingTime.set(ts.executionTime());
+                subscriber.receive(new TransactionTimestamp(new DecodedCapsule(ts.capsule().serialized(), transaction),
+                        ts.systemVersion(), ts.executionTime()));
+                executedBytes += ts.capsule().serialized().length + CHUNK_OVERHEAD;
+                lastVersion = ts.systemVersion();
+                ++executed;
+            } catch (Throwable t) {
+                failure = (t instanceof ExecutionException) ? t.getCause() : t;
+                continue;
+            }
+            long now = System.currentTimeMillis();
+            if (now - lastLogMillis >= PROGRESS_INTERVAL_MILLIS) {
+                lastLogMillis = now;
+                logProgress(now);
+            }
+        }
+    }
+
+    void logProgress(long now) {
+        long millis = Math.max(1, now - startMillis);
+        long rate = executed * 1000 / millis;
+        String msg = "Journal replay (" + name + "): " + executed + " entries, " + rate
+                + " entries/s, at transaction " + lastVersion;
+        if ((totalBytes > 0) && (executedBytes > 0)) {
+            long percent = Math.min(100, executedBytes * 100 / totalBytes);
+            long etaSeconds = Math.max(0, (totalBytes - executedBytes)) * millis / executedBytes / 1000;
+            msg = msg + ", ~" + percent + "% of " + totalBytes + " journal bytes, ETA ~" + etaSeconds + " s";
+        }
+        Main.log(msg + ".");
+    }
+
+    //===================================================================
+
+    // A capsule holding an already deserialized transaction. Executes it
+    //   the way Prevayler's own capsules do.
+    static class DecodedCapsule extends Capsule {
+        private static final long serialVersionUID = 1L;
+
+        final transient Object transaction;
+
+        DecodedCapsule(byte[] serialized, Object transaction) {
+            super(serialized);
+            this.transaction = transaction;
+        }
+
+        @Override
+        public void executeOn(Object prevalentSystem, Date executionTime, Serializer journalSerializer) {
+            synchronized (prevalentSystem) {
+                justExecute(transaction, prevalentSystem, executionTime);
+            }
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected void justExecute(Object transaction, Object prevalentSystem, Date executionTime) {
+            if (transaction instanceof Transaction) {
+                ((Transaction)transaction).executeOn(prevalentSystem, executionTime);
+            } else if (transaction instanceof SureTransactionWithQuery) {
+                ((SureTransactionWithQuery)transaction).executeAndQuery(prevalentSystem, executionTime);
+            } else {
+                // Only RuntimeExceptions get out of a TransactionWithQuery's
+                //   capsule; the others go back to the caller, and there is
+                //   none during a replay.
+                try {
+                    ((TransactionWithQuery)transaction).executeAndQuery(prevalentSystem, executionTime);
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                }
+            }
+        }
+
+        @Override
+        public Capsule cleanCopy() {
+            return new DecodedCapsule(serialized(), transaction);
+        }
+    }
+}
@@ -18,6 +18,8 @@ import java.rmi.server.UnicastRemoteObject;
 import java.security.KeyPair;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -121,6 +123,82 @@ public class Main {
     public static int RMI_SERVER_PORT = 11099;
     public static String RMI_SERVER_NAME = "ANUBIS";
     
+    // Map the DataModel snapshot at startup and decode user accounts only 
+    //   as they are used (--lazy_load).
+    public static boolean LAZY_LOAD_ACCOUNTS = false;
+    
+    // Keep the user accounts in a file on disk instead of the heap, with
+    //   at most about this many of them in memory (--account_store disk).
+    public static boolean DISK_ACCOUNT_STORE = false;
+    public static int ACCOUNT_CACHE_SIZE = 100000;
+    
+    // Page the user accounts nobody logged into for this many days out of
+    //   the heap to a file on disk, until they are used again (0: never).
+    //   Only for the in-memory account store (--cold_account_days).
+    public static int COLD_ACCOUNT_DAYS = 0;
+    
+    // Journal group commit: a transaction waits at most this long for 
+    //   others to share its disk sync, and at most this many share one.
+    public static long GROUP_COMMIT_WINDOW_MILLIS = 1;
+    public static int GROUP_COMMIT_BATCH_SIZE = 256;
+    
+    // Take a background snapshot this often between ticks (0: only at 
+    //   ticks), and write up to this many DataModel delta snapshots on a 
+    //   full one before writing a full one again (0: never write deltas).
+    public static int SNAPSHOT_INTERVAL_MINUTES = 60;
+    public static int MAX_DELTA_SNAPSHOTS = 23;
+    
+    // Also take one as soon as either journal has this many transactions
+    //   or megabytes since the last one (0: no limit), which bounds the
+    //   time a restart takes to replay it.
+    public static long SNAPSHOT_TRANSACTIONS = 1000000;
+    public static long SNAPSHOT_JOURNAL_MB = 64;
+    
+    // Keep this many snapshots (and the journal files since the oldest of
+    //   them) in the data directory, moving older files to its archive 
+    //   subdirectory (0: keep everything), or deleting them if pruning.
+    public static int KEEP_SNAPSHOTS = 3;
+    public static boolean PRUNE_SUPERSEDED = false;
+    
+    // Write full snapshots in the compressed format (--compress_snapshots),
+    //   with this many threads compressing and decompressing blocks.
+    public static boolean COMPRESS_SNAPSHOTS = false;
+    public static int SNAPSHOT_COMPRESSION_THREADS = Runtime.getRuntime().availableProcessors();
+    
+    // Threads that check the section checksums of a snapshot while it is
+    //   read (--verify_threads).
+    public static int SNAPSHOT_VERIFY_THREADS = Runtime.getRuntime().availableProcessors();
+    
+    // Write a columnar export of the DataModel (see AuditExport) to this 
+    //   directory after each tick's snapshot (--audit_export_dir).
+    public static String AUDIT_EXPORT_DIR = null;
+    
+    // Write the .torrent of the DataModel snapshot (see SnapshotTorrent) to
+    //   this directory after each tick's snapshot (--torrent_dir), with this
+    //   tracker URL, hashing the pieces on this many threads.
+    public static String TORRENT_DIR = null;
+    public static String TORRENT_ANNOUNCE = null;
+    public static int TORRENT_HASH_THREADS = Runtime.getRuntime().availableProcessors();
+    
+    // How often a standby (--standby) reads the primary's journals 
+    //   (--standby_poll_millis), and the file that promotes it when it 
+    //   shows up (--promote_file, by default "promote" in the data dir).
+    public static long STANDBY_POLL_MILLIS = 200;
+    public static String STANDBY_PROMOTE_FILE = null;
+    
+    // Chunk the DataModel snapshot into this chunk store (see 
+    //   SnapshotChunks) after each tick's snapshot (--chunk_store_dir).
+    public static String CHUNK_STORE_DIR = null;
+    
+    // Keep a Merkle tree of the DataModel accounts, publish its root after
+    //   each tick and serve proofs of single accounts (see MerkleTree) 
+    //   (--merkle_tree).
+    public static boolean MERKLE_TREE = false;
+    
+    // Threads that deserialize journal entries ahead of their execution 
+    //   when replaying a journal at startup, per journal.
+    public static int REPLAY_DECODER_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    
     // Global vars -------------------------------------------------------
     
     // singleton static server supported
@@ -311,6 +389,24 @@ public class Main {
         boolean inviteAnchor = false;
         boolean fabby = false;
         boolean snapshot = false;
+        boolean convertSnapshots = false;
+        boolean benchmarkSnapshots = false;
+        boolean benchmarkJournal = false;
+        boolean benchmarkReads = false;
+        boolean benchmarkAccounts = false;
+        boolean indexJournals = false;
+        Path verifySnapshot = null;
+        Path exportAudit = null;
+        Path makeTorrent = null;
+        Path makeChunks = null;
+        boolean standby = false;
+        Path chunkDiffOld = null;
+        Path chunkDiffNew = null;
+        Path chunkRestore = null;
+        Path chunkRestoreDir = null;
+        Path restoreDir = null;
+        long restoreVersion = -1;
+        String restoreTime = null;
         boolean quit = false;
         long inviteAnchorAmount = 0;
         HashSet<Integer> setAnchor = new HashSet();
@@ -381,6 +477,280 @@ public class Main {
                     case "snapshot":
                         snapshot = true;
                         break;
+                    case "group_commit_window":
+                        if (it.hasNext())
+                            GROUP_COMMIT_WINDOW_MILLIS = Long.parseLong((String)it.next());
+                        else {
+                            logError("Missing argument milliseconds for --group_commit_window.");
+                            System.exit(1);
+                        }
+                        break;
+                    case "group_commit_batch":
+                        if (it.hasNext())
+                            GROUP_COMMIT_BATCH_SIZE = Integer.parseInt((String)it.next());
+                        else {
+                            logError("Missing argument transaction count for --group_commit_batch.");
+                            System.exit(1);
+                        }
+                        break;
+                    case "snapshot_interval":
+                        if (it.hasNext())
+                            SNAPSHOT_INTERVAL_MINUTES = Integer.parseInt((String)it.next());
+                        else {
+                            logError("Missing argument minutes for --snapshot_interval.");
+                            System.exit(1);
+                        }
+                        break;
+                    case "max_delta_snapshots":
+                        if (it.hasNext())
+                            MAX_DELTA_SNAPSHOTS = Integer.parseInt((String)it.next());
+                        else {
+                            logError("Missing argument snapshot count for --max_delta_snapshots.");
+                            System.exit(1);
+                        }
+                        break;
+                    case "snapshot_transactions":
+                        if (it.hasNext())
+                            SNAPSHOT_TRANSACTIONS = Long.parseLong((String)it.next());
+                        else {
+                            logError("Missing argument transaction count for --snapshot_transactions.");
+                            System.exit(1);
+                        }
+                        break;
+                    case "snapshot_journal_mb":
+                        if (it.hasNext())
+                            SNAPSHOT_JOURNAL_MB = Long.parseLong((String)it.next());
+                        else {
+                            logError("Missing argument megabytes for --snapshot_journal_mb.");
+                            System.exit(1);
+                        }
+                        break;
+                    case "keep_snapshots":
+                        if (it.hasNext())
+                            KEEP_SNAPSHOTS = Integer.parseInt((String)it.next());
+                        else {
+                            logError("Missing argument snapshot count for --keep_snapshots.");
+                            System.exit(1);
+                        }
+                        break;
+                    case "prune_superseded":
+                        PRUNE_SUPERSEDED = true;
+                        break;
+                    case "replay_threads":
+                        if (it.hasNext())
+                            REPLAY_DECODER_THREADS = Integer.parseInt((String)it.next());
+                        else {
+                            logError("Missing argument thread count for --replay_threads.");
+                            System.exit(1);
+                        }
+                        break;
+                    case "compress_snapshots":
+                        COMPRESS_SNAPSHOTS = true;
+                        break;
+                    case "compression_threads":
+                        if (it.hasNext())
+                            SNAPSHOT_COMPRESSION_THREADS = Integer.parseInt((String)it.next());
+                        else {
+                            logError("Missing argument thread count for --compression_threads.");
+                            System.exit(1);
+                        }
+                        break;
+                    case "lazy_load":
+                        LAZY_LOAD_ACCOUNTS = true;
+                        break;
+                    case "account_store":
+                        if (it.hasNext()) {
+                            String store = (String)it.next();
+                            if ((! store.equals("memory")) && (! store.equals("disk"))) {
+                                logError("Unknown account store " + store + " (must be 'memory' or 'disk').");
+                                System.exit(1);
+                            }
+                            DISK_ACCOUNT_STORE = store.equals("disk");
+                        } else {
+                            logError("Missing argument 'memory' or 'disk' for --account_store.");
+                            System.exit(1);
+                        }
+                        break;
+                    case "account_cache":
+                        if (it.hasNext())
+                            ACCOUNT_CACHE_SIZE = Integer.parseInt((String)it.next());
+                        else {
+                            logError("Missing argument account count for --account_cache.");
+                            System.exit(1);
+                        }
+                        break;
+                    case "cold_account_days":
+                        if (it.hasNext())
+                            COLD_ACCOUNT_DAYS = Integer.parseInt((String)it.next());
+                        else {
+                            logError("Missing argument day count for --cold_account_days.");
+                            System.exit(1);
+                        }
+                        break;
+                    case "convert_snapshots":
+                        convertSnapshots = true;
+                        break;
+                    case "benchmark_snapshots":
+                        benchmarkSnapshots = true;
+                        break;
+                    case "benchmark_journal":
+                        benchmarkJournal = true;
+                        break;
+                    case "benchmark_reads":
+                        benchmarkReads = true;
+                        break;
+                    case "benchmark_accounts":
+                        benchmarkAccounts = true;
+                        break;
+                    case "verify_threads":
+                        if (it.hasNext())
+                            SNAPSHOT_VERIFY_THREADS = Integer.parseInt((String)it.next());
+                        else {
+                            logError("Missing argument thread count for --verify_threads.");
+                            System.exit(1);
+                        }
+                        break;
+                    case "verify_snapshot":
+                        if (it.hasNext())
+                            verifySnapshot = Paths.get((String)it.next());
+                        else {
+                            logError("Must specify the snapshot file or directory to verify.");
+                            System.exit(1);
+                        }
+                        break;
+                    case "export_audit":
+                        if (it.hasNext())
+                            exportAudit = Paths.get((String)it.next());
+                        else {
+                            logError("Must specify the audit file or directory to write.");
+                            System.exit(1);
+                        }
+                        break;
+                    case "merkle_tree":
+                        MERKLE_TREE = true;
+                        break;
+                    case "audit_export_dir":
+                        if (it.hasNext())
+                            AUDIT_EXPORT_DIR = (String)it.next();
+                        else {
+                            logError("Missing argument directory for --audit_export_dir.");
+                            System.exit(1);
+                        }
+                        break;
+                    case "make_torrent":
+                        if (it.hasNext())
+                            makeTorrent = Paths.get((String)it.next());
+                        else {
+                            logError("Must specify the directory to write the .torrent file to.");
+                            System.exit(1);
+                        }
+                        break;
+                    case "torrent_dir":
+                        if (it.hasNext())
+                            TORRENT_DIR = (String)it.next();
+                        else {
+                            logError("Missing argument directory for --torrent_dir.");
+                            System.exit(1);
+                        }
+                        break;
+                    case "torrent_announce":
+                        if (it.hasNext())
+                            TORRENT_ANNOUNCE = (String)it.next();
+                        else {
+                            logError("Missing argument tracker URL for --torrent_announce.");
+                            System.exit(1);
+                        }
+                        break;
+                    case "torrent_threads":
+                        if (it.hasNext())
+                            TORRENT_HASH_THREADS = Integer.parseInt((String)it.next());
+                        else {
+                            logError("Missing argument thread count for --torrent_threads.");
+                            System.exit(1);
+                        }
+                        break;
+                    case "standby":
+                        standby = true;
+                        break;
+                    case "standby_poll_millis":
+                        if (it.hasNext())
+                            STANDBY_POLL_MILLIS = Long.parseLong((String)it.next());
+                        else {
+                            logError("Missing argument milliseconds for --standby_poll_millis.");
+                            System.exit(1);
+                        }
+                        break;
+                    case "promote_file":
+                        if (it.hasNext())
+                            STANDBY_PROMOTE_FILE = (String)it.next();
+                        else {
+                            logError("Missing argument file for --promote_file.");
+                            System.exit(1);
+                        }
+                        break;
+                    case "chunk_store_dir":
+                        if (it.hasNext())
+                            CHUNK_STORE_DIR = (String)it.next();
+                        else {
+                            logError("Missing argument directory for --chunk_store_dir.");
+                            System.exit(1);
+                        }
+                        break;
+                    case "make_chunks":
+                        if (it.hasNext())
+                            makeChunks = Paths.get((String)it.next());
+                        else {
+                            logError("Must specify the chunk store directory.");
+                            System.exit(1);
+                        }
+                        break;
+                    case "chunk_diff":
+                        if (it.hasNext())
+                            chunkDiffOld = Paths.get((String)it.next());
+                        if (it.hasNext())
+                            chunkDiffNew = Paths.get((String)it.next());
+                        else {
+                            logError("Must specify the older and the newer chunk manifests.");
+                            System.exit(1);
+                        }
+                        break;
+                    case "chunk_restore":
+                        if (it.hasNext())
+                            chunkRestore = Paths.get((String)it.next());
+                        if (it.hasNext())
+                            chunkRestoreDir = Paths.get((String)it.next());
+                        else {
+                            logError("Must specify the chunk manifest and the directory to restore to.");
+                            System.exit(1);
+                        }
+                        break;
+                    case "index_journals":
+                        indexJournals = true;
+                        break;
+                    case "restore":
+                        if (it.hasNext())
+                            restoreDir = Paths.get((String)it.next());
+                        else {
+                            logError("Must specify the data directory to restore to.");
+                            System.exit(1);
+                        }
+                        break;
+                    case "restore_version":
+                        if (it.hasNext())
+                            restoreVersion = Long.parseLong((String)it.next());
+                        else {
+                            logError("Missing argument dm transaction number for --restore_version.");
+                            System.exit(1);
+                        }
+                        break;
+                    case "restore_time":
+                        if (it.hasNext())
+                            restoreTime = (String)it.next();
+                        else {
+                            logError("Missing argument UTC date and time (e.g. 2017-06-01T12:00) for --restore_time.");
+                            System.exit(1);
+                        }
+                        break;
                     case "fabby":
                         fabby = true;
                         break;
@@ -443,8 +813,122 @@ public class Main {
             log("Previous data has been destroyed (--reset_data).");
         }
         
-        // Create a server that continues whatever was on the data dir
-        createServer(dataDir);
+        // ==================== Snapshot and journal file tools =============
+        
+        // These work on the snapshot and journal files only, so run them 
+        //   before the server loads (and possibly rewrites) them.
+        
+        if (convertSnapshots) {
+            log("Converting Java-serialized snapshots to the binary format.");
+            int converted = SnapshotCodec.convertSnapshots(Paths.get(dataDir, "dm").toString());
+            converted += SnapshotCodec.convertSnapshots(Paths.get(dataDir, "secdm").toString());
+            log("Converted " + converted + " snapshot files.");
+        }
+        
+        if (benchmarkSnapshots) {
+            SnapshotCodec.benchmark(Paths.get(dataDir, "dm").toString(), 5);
+            SnapshotCodec.benchmark(Paths.get(dataDir, "secdm").toString(), 5);
+        }
+        
+        if (benchmarkJournal) {
+            JournalCodec.benchmark(Paths.get(dataDir, "dm").toString());
+            JournalCodec.benchmark(Paths.get(dataDir, "secdm").toString());
+        }
+        
+        if (benchmarkAccounts)
+            AccountTable.benchmark(DataModel.MAX_USER_ACCOUNTS, 5);
+        
+        if (indexJournals) {
+            for (String name : new String[] { "dm", "secdm" }) {
+                JournalIndex index = JournalIndex.build(Paths.get(dataDir, name).toString());
+                log("Journal index (" + name + "): " + index + "; " + index.getFilesScanned() + " files read.");
+            }
+        }
+        
+        if (exportAudit != null) {
+            AuditExport.Report report = AuditExport.exportLatest(Paths.get(dataDir, "dm").toString(), exportAudit.toFile());
+            log("Audit export: " + report + ".");
+        }
+        
+        if (makeTorrent != null) {
+            SnapshotTorrent.Report report = SnapshotTorrent.writeLatest(Paths.get(dataDir, "dm").toString(), 
+                    makeTorrent.toFile(), TORRENT_ANNOUNCE, TORRENT_HASH_THREADS);
+            log("Torrent: " + report + ".");
+        }
+        
+        if (makeChunks != null) {
+            makeChunks.toFile().mkdirs();
+            SnapshotChunks.Report report = SnapshotChunks.writeLatest(Paths.get(dataDir, "dm").toString(), 
+                    makeChunks.toFile());
+            log("Snapshot chunks: " + report + ".");
+        }
+        
+        // What a mirror with the chunks of one manifest has to fetch for 
+        //   another: their hashes go to the standard output, and quit.
+        if (chunkDiffNew != null) {
+            SnapshotChunks.Diff diff = SnapshotChunks.diff(SnapshotChunks.Manifest.read(chunkDiffOld.toFile()), 
+                    SnapshotChunks.Manifest.read(chunkDiffNew.toFile()));
+            for (String hash : diff.missing.keySet())
+                System.out.println(hash);
+            log("Chunk diff: " + diff + ".");
+            System.exit(0);
+        }
+        
+        // Put a snapshot back together from a chunk store and check it, 
+        //   and quit: 1 if it can't be.
+        if (chunkRestoreDir != null) {
+            try {
+                SnapshotChunks.Manifest manifest = SnapshotChunks.restore(chunkRestore.toFile(), chunkRestoreDir.toFile());
+                log("Restored snapshot " + manifest.version + " (" + manifest.files.size() + " files) to " 
+                        + chunkRestoreDir + ".");
+                System.exit(0);
+            } catch (IOException e) {
+                logError("Chunk restore failed: " + e.getMessage());
+                System.exit(1);
+            }
+        }
+        
+        // Check a snapshot file, or the ones in a directory (and its 
+        //   archive), and quit: 1 if any is damaged.
+        if (verifySnapshot != null) {
+            int damaged = SnapshotChecksums.verifySnapshots(verifySnapshot.toFile());
+            log((damaged == 0) ? "All snapshots verified." : damaged + " damaged snapshots.");
+            System.exit((damaged == 0) ? 0 : 1);
+        }
+        
+        // Restore the models as of a past dm transaction or minute to 
+        //   another data directory, and quit.
+        if (restoreDir != null) {
+            if ((restoreVersion < 0) == (restoreTime == null)) {
+                logError("--restore needs either --restore_version or --restore_time.");
+                System.exit(1);
+            }
+            PointInTimeRestore restore = new PointInTimeRestore(dataDir);
+            PointInTimeRestore.Report report;
+            if (restoreTime != null) {
+                LocalDateTime time = LocalDateTime.parse(restoreTime);
+                log("Restoring to " + restoreDir + " as of " + time + " UTC.");
+                report = restore.restoreToTime(Timestamp.fromEpoch(time.toEpochSecond(ZoneOffset.UTC)), 
+                        restoreDir.toString());
+            } else {
+                log("Restoring to " + restoreDir + " as of dm transaction " + restoreVersion + ".");
+                report = restore.restoreToVersion(restoreVersion, restoreDir.toString());
+            }
+            log("Restored " + report + ".");
+            System.exit(0);
+        }
+        
+        // Create a server that continues whatever was on the data dir. A 
+        //   standby follows the journals of the primary writing there, and 
+        //   only does so once promoted (see Standby).
+        if (standby) {
+            Standby follower = new Standby(dataDir);
+            follower.follow((STANDBY_PROMOTE_FILE != null) ? new File(STANDBY_PROMOTE_FILE) 
+                    : Paths.get(dataDir, "promote").toFile());
+            server = follower.promote();
+        } else {
+            createServer(dataDir);
+        }
         
         // ==================== Create a keypair, overwrite private key ======
         
@@ -612,6 +1096,11 @@ public class Main {
         if (snapshot)
             server.takeSnapshot();
 
+        // ==================== Command: read benchmark =====================
+        
+        if (benchmarkReads)
+            ReadWriteGuard.benchmark(server, 2 * Runtime.getRuntime().availableProcessors(), 3);
+
         // ==================== Quit if we're not going to listen ===========
         
         if (quit) {
@@ -628,6 +1117,9 @@ public class Main {
         log("Server API port: " + RMI_SERVER_PORT);
         log("RMI Registry port: " + RMI_REGISTRY_PORT);
         
+        // Snapshots between ticks
+        server.startSnapshotScheduler();
+        
         // ==================== Main server loop ============================
 
         // This is where the main thread goes to die: it is used to run the 
@@ -664,6 +1156,7 @@ public class Main {
         // Take a snapshot.
         log("Taking a snapshot...");
         server.takeSnapshot();
+        server.logJournalStats();
 
         log("All done. Quitting.");
     }
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2017 The Anubis Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anubis;
+
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Proof that a user account is (or isn't) in the DataModel as of a Merkle
+ *   root the server published (see MerkleTree for the hashes).
+ * It holds the leaf hashes of the account's bucket and the hashes from 
+ *   there to the root, so checking it is a few dozen SHA-256 blocks.
+ */
+public class MerkleProof implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public int epochDay;
+    public long version;            // dm transaction the root is of
+    public byte[] root;
+    public int userId;
+
+    public int[] bucketIds;         // the accounts in the bucket, by id
+    public byte[] bucketHashes;     // and their hashes, 32 bytes each
+    public byte[] path;             // siblings from the bucket up
+    public byte[] internalRoot;     // root of the internal accounts' tree
+
+    // Whether "acc" is the account the user had as of the root (or, if 
+    //   null, that there was no such user).
+    public boolean verify(UserAccount acc) {
+        int bits = path.length / MerkleTree.HASH_SIZE;
+        int mask = (1 << bits) - 1;
+        if ((bits != MerkleTree.USER_BUCKET_BITS) || (bucketHashes.length != bucketIds.length * MerkleTree.HASH_SIZE))
+            return false;
+        for (int i = 0; i < bucketIds.length; i++)
+            if (((bucketIds[i] & mask) != (userId & mask)) || ((i > 0) && (bucketIds[i] <= bucketIds[i - 1])))
+                return false;
+
+        int i = Arrays.binarySearch(bucketIds, userId);
+        if (acc == null) {
+            if (i >= 0)
+                return false;
+        } else {
+            if (i < 0)
+                return false;
+            byte[] hash = Arrays.copyOfRange(bucketHashes, i * MerkleTree.HASH_SIZE, (i + 1) * MerkleTree.HASH_SIZE);
+            if (! Arrays.equals(hash, MerkleTree.accountHash(userId, acc)))
+                return false;
+        }
+
+        MessageDigest sha = Utils.sha256();
+        byte[] hash = MerkleTree.bucketHash(sha, bucketIds, bucketHashes);
+        int node = (1 << bits) + (userId & mask);
+        for (int level = 0; level < bits; level++, node >>= 1) {
+            byte[] sibling = Arrays.copyOfRange(path, level * MerkleTree.HASH_SIZE, (level + 1) * MerkleTree.HASH_SIZE);
+            hash = ((node & 1) == 0) ? MerkleTree.nodeHash(sha, hash, sibling) : MerkleTree.nodeHash(sha, sibling, hash);
+        }
+        return Arrays.equals(MerkleTree.rootHash(sha, epochDay, hash, internalRoot), root);
+    }
+}
@@ -0,0 +1,563 @@
+/*
+ * Copyright (C) 2017 The Anubis Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anubis;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A Merkle tree over the accounts of a DataModel, so anyone can check one
+ *   account against the root published for a day, without the snapshot.
+ *
+ * There are two trees of the same shape, one for the user accounts and one
+ *   for the internal accounts, and the root is the hash of both roots. A 
+ *   tree has a fixed number of buckets, and an account goes to the bucket
+ *   picked by the low bits of its id, so where an account is doesn't depend
+ *   on the others and nothing moves when one is added. A proof is the (id,
+ *   hash) list of one bucket (about 16 accounts at a million users) and the
+ *   16 hashes from there up to the root: about 1KB.
+ * The Server keeps a live tree: its AccountTable tells the tree which 
+ *   accounts transactions get (so may have changed), and only those are 
+ *   rehashed, all at once, when the tree is updated. The tick gets every 
+ *   account and they are all hashed once, on all cores, afterwards. The 
+ *   internal accounts are few, and just compared with the balances hashed 
+ *   last time.
+ * A root is published after each tick, with the dm version it is the root
+ *   of (the version of the tick's snapshot), and proofs are made against 
+ *   the latest one, from a copy of the trees as they were then.
+ *
+ * Hashes are SHA-256. Integers are big-endian, a string is an int length 
+ *   (-1 for null) and UTF-8 bytes, and sets are sorted:
+ *   user account:     0x00, id, name, profile (int count, strings), balance
+ *                     (long), minBalance, flags (short), creationTimestamp,
+ *                     lastLoginTimestamp, lastVerificationTimestamp, 
+ *                     authSelfUserId, authOtherUserId, validationOut and 
+ *                     validationIn (int count, ids), log (int count, then 
+ *                     timestamp, code (short), amount (long) and userId of
+ *                     each entry)
+ *   internal account: 0x00, id, balance (long)
+ *   bucket:           0x01, then the id and hash of its accounts, by id
+ *   node:             0x02, left, right
+ *   root:             0x03, epochDay, user accounts root, internal root
+ * User accounts go to bucket (id & 0xFFFF) and internal accounts to bucket
+ *   (id & 0xFF). Bucket b is node (number of buckets + b) of its tree, node
+ *   i has children 2i and 2i+1, and node 1 is the tree's root.
+ */
+public class MerkleTree {
+
+    public static final int USER_BUCKET_BITS = 16;
+    public static final int INTERNAL_BUCKET_BITS = 8;
+
+    public static final int HASH_SIZE = 32;
+
+    // Published roots, in the DataModel's prevalence directory.
+    public static final String ROOTS_FILE_NAME = "merkle.roots";
+
+    // Fewer accounts to hash than this aren't worth the threads.
+    static final int PARALLEL_HASHING_MIN = 4096;
+
+    // A published root.
+    public static class Root {
+        public final int epochDay;
+        public final long version;   // dm transaction it is the root of
+        public final byte[] hash;
+
+        Root(int epochDay, long version, byte[] hash) {
+            this.epochDay = epochDay;
+            this.version = version;
+            this.hash = hash;
+        }
+
+        @Override
+        public String toString() {
+            return "day " + epochDay + ", version " + version + ", " + Utils.hex(hash);
+        }
+    }
+
+    // The hashes of the accounts of a bucket, by id. Never changed: an 
+    //   update makes a new one, so copies of a tree can share them.
+    static class Bucket {
+        static final Bucket EMPTY = new Bucket(new int[0], new byte[0]);
+
+        final int[] ids;
+        final byte[] hashes;
+
+        Bucket(int[] ids, byte[] hashes) {
+            this.ids = ids;
+            this.hashes = hashes;
+        }
+
+        Bucket with(int id, byte[] hash) {
+            int i = Arrays.binarySearch(ids, id);
+            if (i >= 0) {
+                byte[] newHashes = hashes.clone();
+                System.arraycopy(hash, 0, newHashes, i * HASH_SIZE, HASH_SIZE);
+                return new Bucket(ids, newHashes);
+            }
+            i = -i - 1;
+            int n = ids.length;
+            int[] newIds = new int[n + 1];
+            byte[] newHashes = new byte[(n + 1) * HASH_SIZE];
+            System.arraycopy(ids, 0, newIds, 0, i);
+            System.arraycopy(ids, i, newIds, i + 1, n - i);
+            newIds[i] = id;
+            System.arraycopy(hashes, 0, newHashes, 0, i * HASH_SIZE);
+            System.arraycopy(hashes, i * HASH_SIZE, newHashes, (i + 1) * HASH_SIZE, (n - i) * HASH_SIZE);
+            System.arraycopy(hash, 0, newHashes, i * HASH_SIZE, HASH_SIZE);
+            return new Bucket(newIds, newHashes);
+        }
+
+        Bucket without(int id) {
+            int i = Arrays.binarySearch(ids, id);
+            if (i < 0)
+                return this;
+            int n = ids.length;
+            int[] newIds = new int[n - 1];
+            byte[] newHashes = new byte[(n - 1) * HASH_SIZE];
+            System.arraycopy(ids, 0, newIds, 0, i);
+            System.arraycopy(ids, i + 1, newIds, i, n - i - 1);
+            System.arraycopy(hashes, 0, newHashes, 0, i * HASH_SIZE);
+            System.arraycopy(hashes, (i + 1) * HASH_SIZE, newHashes, i * HASH_SIZE, (n - i - 1) * HASH_SIZE);
+            return new Bucket(newIds, newHashes);
+        }
+    }
+
+    // One tree: its buckets, and the hashes of all of its nodes.
+    static class Tree {
+        final int bits;
+        final Bucket[] buckets;
+        final byte[] nodes;
+        final BitSet dirty = new BitSet();  // buckets to rehash
+
+        Tree(int bits) {
+            this.bits = bits;
+            buckets = new Bucket[1 << bits];
+            Arrays.fill(buckets, Bucket.EMPTY);
+            nodes = new byte[(2 << bits) * HASH_SIZE];
+            dirty.set(0, 1 << bits);
+        }
+
+        // A copy (of a tree with nothing to rehash).
+        Tree(Tree tree) {
+            bits = tree.bits;
+            buckets = tree.buckets.clone();
+            nodes = tree.nodes.clone();
+        }
+
+        int bucket(int id) {
+            return id & ((1 << bits) - 1);
+        }
+
+        void put(int id, byte[] hash) {
+            int b = bucket(id);
+            buckets[b] = buckets[b].with(id, hash);
+            dirty.set(b);
+        }
+
+        void remove(int id) {
+            int b = bucket(id);
+            Bucket bucket = buckets[b].without(id);
+            if (bucket != buckets[b]) {
+                buckets[b] = bucket;
+                dirty.set(b);
+            }
+        }
+
+        // Rehash the dirty buckets, and then their parents, one level at a
+        //   time.
+        void rehash(MessageDigest sha) {
+            int first = 1 << bits;
+            BitSet parents = new BitSet();
+            for (int b = dirty.nextSetBit(0); b >= 0; b = dirty.nextSetBit(b + 1)) {
+                Bucket bucket = buckets[b];
+                setNode(first + b, bucketHash(sha, bucket.ids, bucket.hashes));
+                parents.set((first + b) >> 1);
+            }
+            dirty.clear();
+            while (! parents.isEmpty()) {
+                BitSet next = new BitSet();
+                for (int i = parents.nextSetBit(0); i >= 0; i = parents.nextSetBit(i + 1)) {
+                    setNode(i, nodeHash(sha, node(2 * i), node(2 * i + 1)));
+                    if (i > 1)
+                        next.set(i >> 1);
+                }
+                parents = next;
+            }
+        }
+
+        byte[] node(int i) {
+            return Arrays.copyOfRange(nodes, i * HASH_SIZE, (i + 1) * HASH_SIZE);
+        }
+
+        void setNode(int i, byte[] hash) {
+            System.arraycopy(hash, 0, nodes, i * HASH_SIZE, HASH_SIZE);
+        }
+
+        byte[] root() {
+            return node(1);
+        }
+
+        // The siblings of the nodes from the bucket of "id" up to the root.
+        byte[] path(int id) {
+            byte[] path = new byte[bits * HASH_SIZE];
+            int i = (1 << bits) + bucket(id);
+            for (int level = 0; level < bits; level++, i >>= 1)
+                System.arraycopy(nodes, (i ^ 1) * HASH_SIZE, path, level * HASH_SIZE, HASH_SIZE);
+            return path;
+        }
+    }
+
+    final DataModel dm;
+    final int threads;
+
+    final Tree users = new Tree(USER_BUCKET_BITS);
+    final Tree internals = new Tree(INTERNAL_BUCKET_BITS);
+
+    // Internal account balances as last hashed.
+    final HashMap<Integer, Long> internalBalances = new HashMap();
+
+    // User IDs of the accounts transactions got since the last update.
+    final BitSet touched = new BitSet();
+
+    // Roots published so far, by epochDay, and the file they are kept in.
+    final TreeMap<Integer, Root> roots = new TreeMap();
+    File rootsFile;
+
+    // Latest published root, and the trees as they were then (null until
+    //   there is one).
+    Root published;
+    Tree publishedUsers;
+    Tree publishedInternals;
+
+    //===================================================================
+
+    public MerkleTree(DataModel dm, int threads) {
+        this.dm = dm;
+        this.threads = Math.max(1, threads);
+    }
+
+    // An account of the model may have changed. Called for the accounts
+    //   transactions get (see AccountTable.touched).
+    public synchronized void touch(int userId) {
+        if (userId >= 0)
+            touched.set(userId);
+    }
+
+    // All of them, to build the tree.
+    public synchronized void touchAll() {
+        for (int userId : dm.accounts.keySet())
+            touch(userId);
+    }
+
+    // Rehash what changed. The model must not change while this runs: 
+    //   call it from a query, or with transactions excluded.
+    public synchronized void update() {
+        int[] ids = touched.stream().toArray();
+        touched.clear();
+        byte[][] hashes = hashAccounts(ids);
+        for (int i = 0; i < ids.length; i++) {
+            if (hashes[i] == null)
+                users.remove(ids[i]);
+            else
+                users.put(ids[i], hashes[i]);
+        }
+
+        MessageDigest sha = Utils.sha256();
+        for (Map.Entry<Integer, Balance> e : dm.internalAccounts.entrySet()) {
+            long balance = e.getValue().get();
+            Long prev = internalBalances.put(e.getKey(), balance);
+            if ((prev == null) || (prev != balance))
+                internals.put(e.getKey(), internalHash(sha, e.getKey(), balance));
+        }
+        if (internalBalances.size() != dm.internalAccounts.size()) {
+            Iterator<Integer> it = internalBalances.keySet().iterator();
+            while (it.hasNext()) {
+                int id = it.next();
+                if (! dm.internalAccounts.containsKey(id)) {
+                    internals.remove(id);
+                    it.remove();
+                }
+            }
+        }
+
+        users.rehash(sha);
+        internals.rehash(sha);
+    }
+
+    // The current root (after an update()).
+    public synchronized byte[] root() {
+        return rootHash(Utils.sha256(), dm.epochDay, users.root(), internals.root());
+    }
+
+    // Update, and publish the root as the one of dm version "version" (the 
+    //   current one: transactions must be excluded).
+    public synchronized Root publish(long version) throws IOException {
+        update();
+        Root root = new Root(dm.epochDay, version, root());
+        published = root;
+        publishedUsers = new Tree(users);
+        publishedInternals = new Tree(internals);
+        roots.put(root.epochDay, root);
+        if (rootsFile != null) {
+            try (Writer out = new FileWriter(rootsFile, true)) {
+                out.write(root.epochDay + " " + root.version + " " + Utils.hex(root.hash) + "\n");
+            }
+        }
+        return root;
+    }
+
+    public synchronized Root getPublished() {
+        return published;
+    }
+
+    // The root published for a day, or null.
+    public synchronized byte[] getRoot(int epochDay) {
+        Root root = roots.get(epochDay);
+        return (root != null) ? root.hash : null;
+    }
+
+    // Proof that the user account is (or isn't) in the latest published 
+    //   root, or null if none was published yet.
+    public synchronized MerkleProof proof(int userId) {
+        if (publishedUsers == null)
+            return null;
+        MerkleProof proof = new MerkleProof();
+        proof.epochDay = published.epochDay;
+        proof.version = published.version;
+        proof.root = published.hash;
+        proof.userId = userId;
+        Bucket bucket = publishedUsers.buckets[publishedUsers.bucket(userId)];
+        proof.bucketIds = bucket.ids;
+        proof.bucketHashes = bucket.hashes;
+        proof.path = publishedUsers.path(userId);
+        proof.internalRoot = publishedInternals.root();
+        return proof;
+    }
+
+    //===================================================================
+
+    // Read the roots published before (the last line of a day wins), and 
+    //   publish new ones to the same file.
+    public synchronized void loadRoots(File file) throws IOException {
+        rootsFile = file;
+        if (! file.exists())
+            return;
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            String[] fields = line.trim().split(" ");
+            if (fields.length != 3)
+                continue; // a line cut short by a crash
+            Root root = new Root(Integer.parseInt(fields[0]), Long.parseLong(fields[1]), Utils.unhex(fields[2]));
+            roots.put(root.epochDay, root);
+            if ((published == null) || (root.version >= published.version))
+                published = root;
+        }
+    }
+
+    // Rebuild the trees of the latest published root from the snapshot of
+    //   its version, to make proofs against it again after a restart.
+    //   Returns false if the snapshot is gone or doesn't match the root.
+    public boolean restorePublished(String prevalenceBase) throws Exception {
+        Root root = getPublished();
+        if (root == null)
+            return false;
+        ArrayList<File> files = PointInTimeRestore.listSnapshots(prevalenceBase).get(root.version);
+        if (files == null)
+            return false;
+        DataModel snapshot = (DataModel)PointInTimeRestore.readSnapshot(files, prevalenceBase, true);
+        MerkleTree tree = new MerkleTree(snapshot, threads);
+        tree.touchAll();
+        tree.update();
+        if ((snapshot.epochDay != root.epochDay) || (! Arrays.equals(tree.root(), root.hash)))
+            return false;
+        synchronized (this) {
+            if (published == root) {
+                publishedUsers = tree.users;
+                publishedInternals = tree.internals;
+            }
+        }
+        return true;
+    }
+
+    //===================================================================
+
+    // The hashes of the user accounts, or null for the ones that are gone.
+    byte[][] hashAccounts(int[] ids) {
+        byte[][] hashes = new byte[ids.length][];
+        int n = (ids.length < PARALLEL_HASHING_MIN) ? 1 : threads;
+        if (n == 1) {
+            hashAccounts(ids, hashes, 0, ids.length);
+            return hashes;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(n, r -> {
+            Thread t = new Thread(r, "merkle-hash");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            ArrayList<Future<Void>> tasks = new ArrayList();
+            for (int i = 0; i < n; i++) {
+                final int from = (int)((long)ids.length * i / n);
+                final int to = (int)((long)ids.length * (i + 1) / n);
+                tasks.add(pool.submit(() -> {
+                    hashAccounts(ids, hashes, from, to);
+                    return null;
+                }));
+            }
+            for (Future<Void> task : tasks)
+                task.get();
+        } catch (InterruptedException e) {
+            throw new IllegalStateException("Interrupted while hashing accounts.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException)e.getCause();
+            throw new IllegalStateException("Cannot hash accounts.", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        return hashes;
+    }
+
+    void hashAccounts(int[] ids, byte[][] hashes, int from, int to) {
+        MessageDigest sha = Utils.sha256();
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        AccountTable table = (dm.accounts instanceof AccountTable) ? (AccountTable)dm.accounts : null;
+        for (int i = from; i < to; i++) {
+            // (peek: don't keep lazy or cold accounts decoded)
+            UserAccount acc = (table != null) ? table.peek(ids[i]) : dm.accounts.get(ids[i]);
+            if (acc != null)
+                hashes[i] = accountHash(sha, buf, ids[i], acc);
+        }
+    }
+
+    //===================================================================
+    // Hashing (see the class comment)
+    //===================================================================
+
+    public static byte[] accountHash(int userId, UserAccount acc) {
+        return accountHash(Utils.sha256(), new ByteArrayOutputStream(), userId, acc);
+    }
+
+    static byte[] accountHash(MessageDigest sha, ByteArrayOutputStream buf, int userId, UserAccount acc) {
+        buf.reset();
+        DataOutputStream out = new DataOutputStream(buf);
+        try {
+            out.writeByte(0);
+            out.writeInt(userId);
+            writeString(out, acc.name);
+            out.writeInt(acc.profile.size());
+            for (String item : acc.profile)
+                writeString(out, item);
+            out.writeLong(acc.balance);
+            out.writeInt(acc.minBalance);
+            out.writeShort(acc.flags);
+            out.writeInt(acc.creationTimestamp);
+            out.writeInt(acc.lastLoginTimestamp);
+            out.writeInt(acc.lastVerificationTimestamp);
+            out.writeInt(acc.authSelfUserId);
+            out.writeInt(acc.authOtherUserId);
+            for (IntSet set : Arrays.asList(acc.validationOut, acc.validationIn)) {
+                out.writeInt(set.size());
+                for (int i = 0; i < set.size(); i++)
+                    out.writeInt(set.get(i)); // sorted already
+            }
+            out.writeInt(acc.log.size());
+            for (LogEntry entry : acc.log) {
+                out.writeInt(entry.getTimestamp());
+                out.writeShort(entry.getCode());
+                out.writeLong(entry.getAmount());
+                out.writeInt(entry.getUserId());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // never happens
+        }
+        sha.reset();
+        sha.update(buf.toByteArray());
+        return sha.digest();
+    }
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    static byte[] internalHash(MessageDigest sha, int id, long balance) {
+        sha.reset();
+        sha.update((byte)0);
+        updateInt(sha, id);
+        updateInt(sha, (int)(balance >>> 32));
+        updateInt(sha, (int)balance);
+        return sha.digest();
+    }
+
+    static byte[] bucketHash(MessageDigest sha, int[] ids, byte[] hashes) {
+        sha.reset();
+        sha.update((byte)1);
+        for (int i = 0; i < ids.length; i++) {
+            updateInt(sha, ids[i]);
+            sha.update(hashes, i * HASH_SIZE, HASH_SIZE);
+        }
+        return sha.digest();
+    }
+
+    static byte[] nodeHash(MessageDigest sha, byte[] left, byte[] right) {
+        sha.reset();
+        sha.update((byte)2);
+        sha.update(left);
+        sha.update(right);
+        return sha.digest();
+    }
+
+    static byte[] rootHash(MessageDigest sha, int epochDay, byte[] usersRoot, byte[] internalsRoot) {
+        sha.reset();
+        sha.update((byte)3);
+        updateInt(sha, epochDay);
+        sha.update(usersRoot);
+        sha.update(internalsRoot);
+        return sha.digest();
+    }
+
+    static void updateInt(MessageDigest sha, int v) {
+        sha.update((byte)(v >>> 24));
+        sha.update((byte)(v >>> 16));
+        sha.update((byte)(v >>> 8));
+        sha.update((byte)v);
+    }
+}
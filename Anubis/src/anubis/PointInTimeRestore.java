@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2017 The Anubis Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anubis;
+
+import anubis.sectx.CompositePartTx;
+import anubis.tx.CompositeTx;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
+import org.prevayler.foundation.serialization.Serializer;
+import org.prevayler.implementation.PrevaylerDirectory;
+import org.prevayler.implementation.TransactionTimestamp;
+
+/**
+ * Rebuilds the models of a data directory as they were at a point in the
+ *   past, into a new data directory that a server can be started on.
+ *
+ * The point is either a DataModel transaction (the state right after it)
+ *   or a Timestamp minute (the state right before it). Each model is
+ *   loaded from the latest snapshot before that point, in the directory 
+ *   or in its archive (see SnapshotRetention), and only the journal 
+ *   entries from there to the point are replayed, found with a 
+ *   JournalIndex.
+ * The two models are cut at the same point: the secdm gets everything it
+ *   journaled before the dm transaction after the cut, except composite
+ *   parts of dm transactions after the cut (see anubis.tx.CompositeTx), 
+ *   and the composite parts it is missing are redone from the dm replay,
+ *   like the Server does after a crash.
+ */
+public class PointInTimeRestore {
+
+    public static class Report {
+        public long dmVersion;
+        public long secdmVersion;
+        public long dmSnapshotVersion;
+        public long secdmSnapshotVersion;
+        public long dmReplayed;
+        public long secdmReplayed;
+        public int partsExecuted;
+        public long durationMillis;
+
+        @Override
+        public String toString() {
+            return "dm at transaction " + dmVersion + " (snapshot " + dmSnapshotVersion + " + " + dmReplayed 
+                    + " replayed), secdm at transaction " + secdmVersion + " (snapshot " + secdmSnapshotVersion 
+                    + " + " + secdmReplayed + " replayed, " + partsExecuted + " composite parts redone), " 
+                    + durationMillis + " ms";
+        }
+    }
+
+    final String dmBase;
+    final String secdmBase;
+    final JournalIndex dmIndex;
+    final JournalIndex secdmIndex;
+
+    final Serializer journalSerializer = new JournalCodec();
+
+    //===================================================================
+
+    public PointInTimeRestore(String dataDir) throws IOException {
+        this.dmBase = new File(dataDir, "dm").toString();
+        this.secdmBase = new File(dataDir, "secdm").toString();
+        this.dmIndex = JournalIndex.build(dmBase);
+        this.secdmIndex = JournalIndex.build(secdmBase);
+    }
+
+    public JournalIndex getDmIndex() {
+        return dmIndex;
+    }
+
+    public JournalIndex getSecdmIndex() {
+        return secdmIndex;
+    }
+
+    // Restore the models as they were right after dm transaction "dmVersion".
+    public Report restoreToVersion(long dmVersion, String outputDir) throws Exception {
+        if ((dmVersion < 0) || (dmVersion > lastDmVersion()))
+            throw new IOException("There is no dm transaction " + dmVersion + " (the last one is " 
+                    + lastDmVersion() + ").");
+        Date next = dmIndex.executionTime(dmVersion + 1);
+        return restore(dmVersion, (next != null) ? next.getTime() : Long.MAX_VALUE, outputDir);
+    }
+
+    // Restore the models as they were before minute "timestamp" (UTC).
+    public Report restoreToTime(int timestamp, String outputDir) throws Exception {
+        long timeMillis = Timestamp.toEpoch(timestamp) * 1000;
+        return restore(dmIndex.lastVersionBefore(timeMillis), timeMillis, outputDir);
+    }
+
+    long lastDmVersion() {
+        long last = dmIndex.getLastVersion();
+        for (long version : listSnapshots(dmBase).keySet())
+            last = Math.max(last, version);
+        return last;
+    }
+
+    //===================================================================
+
+    // The dm up to "dmVersion", and the secdm up to whatever it executed
+    //   before "beforeMillis".
+    Report restore(long dmVersion, long beforeMillis, String outputDir) throws Exception {
+        long startMillis = System.currentTimeMillis();
+        Report report = new Report();
+        File outDm = new File(outputDir, "dm");
+        File outSecdm = new File(outputDir, "secdm");
+        for (File d : new File[] { outDm, outSecdm }) {
+            String[] existing = d.list();
+            if ((existing != null) && (existing.length > 0))
+                throw new IOException("Restore directory " + d + " is not empty.");
+            if ((! d.isDirectory()) && (! d.mkdirs()))
+                throw new IOException("Unable to create directory " + d);
+        }
+
+        // The secdm first, since it decides which composite parts are missing.
+        long secdmVersion = secdmIndex.lastVersionBefore(beforeMillis);
+        SecurityDataModel secdm = null;
+        for (Map.Entry<Long, ArrayList<File>> e : listSnapshots(secdmBase).descendingMap().entrySet()) {
+            if (e.getKey() > secdmVersion)
+                continue;
+            secdm = (SecurityDataModel)readSnapshot(e.getValue(), secdmBase);
+            if (secdm.getLastCompositeVersion() <= dmVersion) {
+                report.secdmSnapshotVersion = e.getKey();
+                break;
+            }
+            secdm = null; // has composite parts from after the cut
+        }
+        if (secdm == null) {
+            requireJournal(secdmIndex, "secdm");
+            secdm = new SecurityDataModel();
+        }
+        report.secdmVersion = replaySecdm(secdm, report.secdmSnapshotVersion, secdmVersion, dmVersion);
+        report.secdmReplayed = report.secdmVersion - report.secdmSnapshotVersion;
+
+        // The dm, from early enough to see the composite parts the secdm 
+        //   doesn't have: the ones after the last part it has.
+        TreeMap<Long, ArrayList<File>> dmSnapshots = listSnapshots(dmBase);
+        Map.Entry<Long, ArrayList<File>> dmSnapshot = dmSnapshots.floorEntry(dmVersion);
+        long lastComposite = secdm.getLastCompositeVersion();
+        if ((dmSnapshot != null) && (dmSnapshot.getKey() > lastComposite)) {
+            long firstMissing = firstComposite(lastComposite, dmSnapshot.getKey());
+            if (firstMissing > 0)
+                dmSnapshot = dmSnapshots.floorEntry(firstMissing - 1);
+        }
+        DataModel dm;
+        if (dmSnapshot != null) {
+            dm = (DataModel)readSnapshot(dmSnapshot.getValue(), dmBase);
+            report.dmSnapshotVersion = dmSnapshot.getKey();
+        } else {
+            requireJournal(dmIndex, "dm");
+            dm = new DataModel();
+        }
+        ArrayList<CompositePartTx> parts = new ArrayList();
+        dm.securityLink = transactions -> {
+            parts.add(new CompositePartTx(GroupCommitJournal.currentTransaction(), transactions, 
+                    GroupCommitJournal.currentTransactionTime()));
+            return null;
+        };
+        report.dmVersion = replay(dm, dmIndex, report.dmSnapshotVersion, dmVersion, "dm");
+        report.dmReplayed = report.dmVersion - report.dmSnapshotVersion;
+        dm.securityLink = null;
+        if (report.dmVersion != dmVersion)
+            throw new IOException("The dm journal ends at transaction " + report.dmVersion 
+                    + ", before transaction " + dmVersion + ".");
+
+        for (CompositePartTx part : parts) {
+            if (part.getDmVersion() > secdm.getLastCompositeVersion()) {
+                part.executeAndQuery(secdm, part.getDmDate());
+                ++report.partsExecuted;
+            }
+        }
+        
+        writeSnapshot(dm, new PrevaylerDirectory(outDm).snapshotFile(report.dmVersion, SnapshotCodec.SNAPSHOT_SUFFIX));
+        writeSnapshot(secdm, new PrevaylerDirectory(outSecdm).snapshotFile(report.secdmVersion, SnapshotCodec.SNAPSHOT_SUFFIX));
+        report.durationMillis = System.currentTimeMillis() - startMillis;
+        return report;
+    }
+
+    // The first composite transaction after "version", up to "maxVersion",
+    //   or 0 if there is none. Only decodes the journal entries.
+    long firstComposite(long version, long maxVersion) throws Exception {
+        if (dmIndex.getFirstVersion() > version + 1)
+            throw new IOException("The dm journal starts at transaction " + dmIndex.getFirstVersion() 
+                    + ", after the last composite transaction the secdm has (" + version + ").");
+        long[] first = { 0 };
+        long[] last = { version };
+        dmIndex.read(version + 1, ts -> {
+            if (ts.systemVersion() > maxVersion)
+                return false;
+            checkNext(ts, last[0], "dm");
+            last[0] = ts.systemVersion();
+            if (ts.capsule().deserialize(journalSerializer) instanceof CompositeTx)
+                first[0] = ts.systemVersion();
+            return first[0] == 0;
+        });
+        return first[0];
+    }
+
+    // Without a snapshot, the journal has to start from the beginning.
+    static void requireJournal(JournalIndex index, String name) throws IOException {
+        if (index.getFirstVersion() > 1)
+            throw new IOException("No " + name + " snapshot old enough, and the " + name 
+                    + " journal starts at transaction " + index.getFirstVersion() + ".");
+    }
+
+    // Replay the journal entries after "version", up to "maxVersion".
+    //   Returns the version of the last one.
+    long replay(Object system, JournalIndex index, long version, long maxVersion, String name) throws Exception {
+        long[] last = { version };
+        try {
+            index.read(version + 1, ts -> {
+                if (ts.systemVersion() > maxVersion)
+                    return false;
+                checkNext(ts, last[0], name);
+                GroupCommitJournal.executingVersion.set(ts.systemVersion());
+                GroupCommitJournal.executingTime.set(ts.executionTime());
+                execute(system, ts);
+                last[0] = ts.systemVersion();
+                return true;
+            });
+        } finally {
+            GroupCommitJournal.executingVersion.remove();
+            GroupCommitJournal.executingTime.remove();
+        }
+        return last[0];
+    }
+
+    // Same for the secdm, which also stops at the first composite part of 
+    //   a dm transaction after "dmVersion".
+    long replaySecdm(SecurityDataModel secdm, long version, long maxVersion, long dmVersion) throws Exception {
+        long[] last = { version };
+        secdmIndex.read(version + 1, ts -> {
+            if (ts.systemVersion() > maxVersion)
+                return false;
+            checkNext(ts, last[0], "secdm");
+            Object tx = ts.capsule().deserialize(journalSerializer);
+            if ((tx instanceof CompositePartTx) && (((CompositePartTx)tx).getDmVersion() > dmVersion))
+                return false;
+            execute(secdm, ts);
+            last[0] = ts.systemVersion();
+            return true;
+        });
+        return last[0];
+    }
+
+    static void checkNext(TransactionTimestamp ts, long version, String name) throws IOException {
+        if (ts.systemVersion() != version + 1)
+            throw new IOException("The " + name + " journal is missing transactions " + (version + 1) 
+                    + " to " + (ts.systemVersion() - 1) + ".");
+    }
+
+    void execute(Object system, TransactionTimestamp ts) {
+        try {
+            ts.capsule().executeOn(system, ts.executionTime(), journalSerializer);
+        } catch (RuntimeException e) {
+            // Prevayler ignores these while recovering, and so do we.
+        }
+    }
+
+    //===================================================================
+    // Snapshot files
+    //===================================================================
+
+    // The snapshot files of a directory and of its archive, by version.
+    static TreeMap<Long, ArrayList<File>> listSnapshots(String prevalenceBase) {
+        TreeMap<Long, ArrayList<File>> snapshots = new TreeMap();
+        File dir = new File(prevalenceBase);
+        for (File d : new File[] { dir, new File(dir, SnapshotRetention.ARCHIVE_DIRECTORY) }) {
+            File[] files = d.listFiles();
+            if (files != null)
+                for (File f : files)
+                    if (PrevaylerDirectory.snapshotVersion(f) >= 0)
+                        snapshots.computeIfAbsent(PrevaylerDirectory.snapshotVersion(f), k -> new ArrayList()).add(f);
+        }
+        return snapshots;
+    }
+
+    // Read one of the files of a snapshot: whichever format we can.
+    static Object readSnapshot(ArrayList<File> files, String prevalenceBase) throws Exception {
+        return readSnapshot(files, prevalenceBase, false);
+    }
+
+    static Object readSnapshot(ArrayList<File> files, String prevalenceBase, boolean lazyAccounts) throws Exception {
+        Map<String, Serializer> serializers = Server.snapshotSerializers(prevalenceBase, lazyAccounts);
+        Exception failure = null;
+        for (File file : files) {
+            String fileName = file.getName();
+            String suffix = fileName.substring(fileName.lastIndexOf('.') + 1);
+            Serializer serializer = serializers.get(suffix);
+            if (serializer == null)
+                continue;
+            // a delta's base is next to it, or in the archive when it was
+            //   the delta that got archived.
+            if (suffix.equals(DeltaSnapshotCodec.SNAPSHOT_SUFFIX))
+                serializer = new DeltaSnapshotCodec(baseDirectory(file, prevalenceBase), lazyAccounts);
+            try (InputStream in = suffix.equals(BackgroundSnapshotter.SNAPSHOT_SUFFIX) 
+                    ? new BufferedInputStream(new FileInputStream(file)) : new FileInputStream(file)) 
+            {
+                return serializer.readObject(in);
+            } catch (Exception e) {
+                failure = e;
+            }
+        }
+        if (failure != null)
+            throw failure;
+        throw new IOException("Don't know how to read snapshot " + files.get(0));
+    }
+
+    static String baseDirectory(File deltaFile, String prevalenceBase) throws IOException {
+        long baseVersion = DeltaSnapshotCodec.baseVersion(deltaFile);
+        File dir = new File(prevalenceBase);
+        for (File d : new File[] { dir, new File(dir, SnapshotRetention.ARCHIVE_DIRECTORY) })
+            if (new PrevaylerDirectory(d).snapshotFile(baseVersion, SnapshotCodec.SNAPSHOT_SUFFIX).exists())
+                return d.toString();
+        throw new IOException("Base snapshot " + baseVersion + " of delta snapshot " + deltaFile + " is missing.");
+    }
+
+    static void writeSnapshot(Object system, File file) throws IOException {
+        File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tempFile))) {
+            new SnapshotCodec().writeObject(out, system);
+        }
+        if (! tempFile.renameTo(file))
+            throw new IOException("Unable to rename " + tempFile + " to " + file);
+    }
+}
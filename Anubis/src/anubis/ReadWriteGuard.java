@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2017 The Anubis Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anubis;
+
+import anubis.sectx.GetPasswordSalt;
+import anubis.sectx.GetPendingInvite;
+import anubis.tx.GetServerStats;
+import anubis.tx.GetUserAccount;
+import anubis.tx.GetUserInfo;
+import anubis.tx.GetUserNames;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.prevayler.Clock;
+import org.prevayler.Query;
+import org.prevayler.foundation.serialization.Serializer;
+import org.prevayler.implementation.PrevalentSystemGuard;
+import org.prevayler.implementation.PrevaylerDirectory;
+import org.prevayler.implementation.TransactionTimestamp;
+import org.prevayler.implementation.snapshot.GenericSnapshotManager;
+import org.prevayler.implementation.snapshot.NullSnapshotManager;
+
+/**
+ * A PrevalentSystemGuard that lets queries run at the same time as each
+ *   other.
+ *
+ * Prevayler runs every query holding the same locks transactions execute
+ *   with, so reads wait for each other as well as for transactions, and 
+ *   only one core does useful work. Here, transactions (live or replayed,
+ *   all of them go through receive()) and snapshots hold a write lock while
+ *   they execute, and queries a read lock: a query sees no transaction 
+ *   half done, and only waits for as long as one is executing. Journaling
+ *   (and waiting for the disk) happens before receive(), without the lock.
+ * Queries must not change the prevalent system. Whatever they change 
+ *   anyway (lazily decoded accounts) is synchronized on its own.
+ */
+public class ReadWriteGuard<P> extends PrevalentSystemGuard<P> {
+
+    final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Last transaction executed (Prevayler doesn't tell).
+    volatile long version;
+
+    //===================================================================
+
+    public ReadWriteGuard(P system, long systemVersion, Serializer journalSerializer) {
+        super(system, systemVersion, journalSerializer);
+        version = systemVersion;
+    }
+
+    @Override
+    public void receive(TransactionTimestamp transactionTimestamp) {
+        lock.writeLock().lock();
+        try {
+            super.receive(transactionTimestamp);
+        } finally {
+            // the version moves on even if the transaction throws, unless 
+            //   it is the wrong one
+            if (transactionTimestamp.systemVersion() == version + 1)
+                version = transactionTimestamp.systemVersion();
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Whether the current thread is executing a transaction (or taking a
+    //   snapshot).
+    public boolean isWriting() {
+        return lock.isWriteLockedByCurrentThread();
+    }
+
+    // Run "task" with no transaction or query executing at the same time.
+    //   It can tell which transaction the system is at with getVersion().
+    public <R> R executeExclusive(Callable<R> task) throws Exception {
+        lock.writeLock().lock();
+        try {
+            return task.call();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    @Override
+    public <R> R executeQuery(Query<? super P, R> query, Clock clock) throws Exception {
+        lock.readLock().lock();
+        try {
+            return query.query(prevalentSystem(), clock.time());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // The way Prevayler runs queries: one at a time (for the benchmark).
+    <R> R executeSerialized(Query<? super P, R> query, Clock clock) throws Exception {
+        return super.executeQuery(query, clock);
+    }
+
+    @Override
+    public File takeSnapshot(GenericSnapshotManager<P> snapshotManager) throws Exception {
+        lock.writeLock().lock();
+        try {
+            return super.takeSnapshot(snapshotManager);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // A GenericSnapshotManager that recovers the system into a 
+    //   ReadWriteGuard, for PrevaylerImpl to use.
+    public static class SnapshotManager<P> extends GenericSnapshotManager<P> {
+        final ReadWriteGuard<P> guard;
+
+        public SnapshotManager(Map<String, Serializer> serializers, String primarySuffix, P newSystem, 
+                PrevaylerDirectory directory, Serializer journalSerializer) throws Exception 
+        {
+            super(serializers, primarySuffix, newSystem, directory, journalSerializer);
+            // (same version GenericSnapshotManager recovered from)
+            File latest = directory.latestSnapshot();
+            long version = (latest != null) ? PrevaylerDirectory.snapshotVersion(latest) : 0;
+            guard = new ReadWriteGuard(super.recoveredPrevalentSystem().prevalentSystem(), version, 
+                    journalSerializer);
+        }
+
+        @Override
+        public ReadWriteGuard<P> recoveredPrevalentSystem() {
+            return guard;
+        }
+    }
+
+    // One for a system that was recovered already (see Standby), which 
+    //   GenericSnapshotManager would read from its snapshot again. It 
+    //   writes snapshots in the primary format, as that one does.
+    public static class RecoveredSnapshotManager<P> extends NullSnapshotManager<P> {
+        final ReadWriteGuard<P> guard;
+        final Serializer primarySerializer;
+        final String primarySuffix;
+        final PrevaylerDirectory directory;
+
+        public RecoveredSnapshotManager(ReadWriteGuard<P> guard, Map<String, Serializer> serializers, 
+                String primarySuffix, PrevaylerDirectory directory) 
+        {
+            super(guard.prevalentSystem(), "(never thrown)");
+            this.guard = guard;
+            this.primarySerializer = serializers.get(primarySuffix);
+            this.primarySuffix = primarySuffix;
+            this.directory = directory;
+        }
+
+        @Override
+        public ReadWriteGuard<P> recoveredPrevalentSystem() {
+            return guard;
+        }
+
+        @Override
+        public Serializer primarySerializer() {
+            return primarySerializer;
+        }
+
+        @Override
+        public File writeSnapshot(P system, long version) throws IOException {
+            File tempFile = directory.createTempFile("snapshot" + version + "temp", "generatingSnapshot");
+            try {
+                try (OutputStream out = new FileOutputStream(tempFile)) {
+                    primarySerializer.writeObject(out, system);
+                } catch (IOException | RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IOException("Cannot write snapshot " + version + ".", e);
+                }
+                File file = directory.snapshotFile(version, primarySuffix);
+                if (! tempFile.renameTo(file))
+                    throw new IOException("Unable to rename " + tempFile + " to " + file);
+                return file;
+            } finally {
+                tempFile.delete(); // no-op if renamed
+            }
+        }
+    }
+
+    //===================================================================
+    // Tools
+    //===================================================================
+
+    // Page view throughput with 1 to "maxThreads" reader threads, with 
+    //   queries run one at a time (as Prevayler does) and concurrently.
+    //   Each reader runs a mix of the queries RMI page views make, on 
+    //   random users, for "seconds". Nothing is written.
+    public static void benchmark(Server server, int maxThreads, int seconds) throws Exception {
+        ReadWriteGuard<DataModel> dmGuard = server.dmGuard;
+        ReadWriteGuard<SecurityDataModel> secdmGuard = server.secdmGuard;
+        ArrayList<Integer> userIds = server.dm.execute(
+                (Query<DataModel, ArrayList<Integer>>)(dm, date) -> new ArrayList<>(dm.accounts.keySet()));
+        if (userIds.isEmpty()) {
+            Main.log("Read benchmark: no user accounts to read.");
+            return;
+        }
+        Main.log("Read benchmark: " + userIds.size() + " users, " + seconds + " s per run.");
+        ArrayList<Integer> threadCounts = new ArrayList();
+        for (int threads = 1; threads < maxThreads; threads *= 2)
+            threadCounts.add(threads);
+        threadCounts.add(maxThreads);
+        for (int threads : threadCounts) {
+            double serialized = 0;
+            for (boolean concurrent : new boolean[] { false, true }) {
+                LongAdder reads = new LongAdder();
+                long endMillis = System.currentTimeMillis() + seconds * 1000L;
+                ArrayList<Thread> readers = new ArrayList();
+                for (int i = 0; i < threads; i++) {
+                    Thread t = new Thread(() -> {
+                        try {
+                            while (System.currentTimeMillis() < endMillis) {
+                                read(dmGuard, secdmGuard, server, userIds, concurrent);
+                                reads.increment();
+                            }
+                        } catch (Exception e) {
+                            Main.logError("Read benchmark failed.", e);
+                        }
+                    }, "read-benchmark");
+                    readers.add(t);
+                    t.start();
+                }
+                for (Thread t : readers)
+                    t.join();
+                double rate = reads.sum() / (double)seconds;
+                if (! concurrent)
+                    serialized = rate;
+                Main.log(String.format("Read benchmark: %2d threads, %-10s %,12.0f reads/s%s", threads, 
+                        concurrent ? "concurrent" : "serialized", rate, 
+                        concurrent ? String.format(" (%.2fx)", rate / serialized) : ""));
+            }
+        }
+    }
+
+    // One page view worth of queries.
+    static void read(ReadWriteGuard<DataModel> dmGuard, ReadWriteGuard<SecurityDataModel> secdmGuard, 
+            Server server, ArrayList<Integer> userIds, boolean concurrent) throws Exception 
+    {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int userId = userIds.get(random.nextInt(userIds.size()));
+        HashSet<Integer> names = new HashSet();
+        for (int i = 0; i < 8; i++)
+            names.add(userIds.get(random.nextInt(userIds.size())));
+        Clock dmClock = server.dm.clock();
+        Clock secdmClock = server.secdm.clock();
+        if (concurrent) {
+            dmGuard.executeQuery(new GetUserAccount(userId), dmClock);
+            dmGuard.executeQuery(new GetUserInfo(userId), dmClock);
+            dmGuard.executeQuery(new GetUserNames(names), dmClock);
+            dmGuard.executeQuery(new GetServerStats(), dmClock);
+            secdmGuard.executeQuery(new GetPasswordSalt(userId), secdmClock);
+            secdmGuard.executeQuery(new GetPendingInvite(random.nextLong()), secdmClock);
+        } else {
+            dmGuard.executeSerialized(new GetUserAccount(userId), dmClock);
+            dmGuard.executeSerialized(new GetUserInfo(userId), dmClock);
+            dmGuard.executeSerialized(new GetUserNames(names), dmClock);
+            dmGuard.executeSerialized(new GetServerStats(), dmClock);
+            secdmGuard.executeSerialized(new GetPasswordSalt(userId), secdmClock);
+            secdmGuard.executeSerialized(new GetPendingInvite(random.nextLong()), secdmClock);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2017 The Anubis Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anubis;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Request counters for ServerStats (totalTx, recentTx).
+ *
+ * These used to be DataModel fields that queries and transactions bumped
+ *   as they ran, which made every read a write to the prevalent system,
+ *   kept queries from running in parallel, and made replay depend on the
+ *   clock. They are not state of the model, so they now live in the Server
+ *   and are transient: they count from zero at every boot.
+ * All counters are LongAdders, so concurrent requests don't contend on a
+ *   single word. The recent count is a sliding window of the last 24 hours
+ *   in 5-minute buckets; a bucket is replaced (not reset) when its slot
+ *   comes around again, so an increment can't be lost to a reset.
+ */
+public class RequestMetrics {
+
+    public static final long WINDOW_MILLIS = 24 * 3600 * 1000L;
+    public static final int BUCKETS = 288;
+    public static final long BUCKET_MILLIS = WINDOW_MILLIS / BUCKETS;
+
+    // Requests counted in one BUCKET_MILLIS period.
+    static class Bucket {
+        final long period;
+        final LongAdder count = new LongAdder();
+
+        Bucket(long period) {
+            this.period = period;
+        }
+    }
+
+    final LongAdder total = new LongAdder();
+    final AtomicReferenceArray<Bucket> buckets = new AtomicReferenceArray(BUCKETS);
+
+    //===================================================================
+
+    public void count() {
+        total.increment();
+        bucket(System.currentTimeMillis() / BUCKET_MILLIS).count.increment();
+    }
+
+    // Requests since the server started.
+    public long getTotal() {
+        return total.sum();
+    }
+
+    // Requests in the last 24 hours (give or take the current bucket).
+    public long getRecent() {
+        long period = System.currentTimeMillis() / BUCKET_MILLIS;
+        long recent = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            Bucket bucket = buckets.get(i);
+            if ((bucket != null) && (bucket.period > period - BUCKETS))
+                recent += bucket.count.sum();
+        }
+        return recent;
+    }
+
+    @Override
+    public String toString() {
+        return getTotal() + " requests, " + getRecent() + " in the last 24 hours";
+    }
+
+    //===================================================================
+
+    Bucket bucket(long period) {
+        int i = (int)(period % BUCKETS);
+        while (true) {
+            Bucket bucket = buckets.get(i);
+            // (a newer bucket means the clock went back: count it there)
+            if ((bucket != null) && (bucket.period >= period))
+                return bucket;
+            Bucket fresh = new Bucket(period);
+            if (buckets.compareAndSet(i, bucket, fresh))
+                return fresh;
+        }
+    }
+}
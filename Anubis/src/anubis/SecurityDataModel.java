@@ -66,6 +66,11 @@ public class SecurityDataModel implements Serializable {
     //   something like that).
     long burnReceiptUniqueIDGenerator = -1;
     
+    // DataModel version of the last composite transaction whose part was
+    //   executed here (see anubis.tx.CompositeTx). Parts are executed in
+    //   DataModel order, so every composite up to this one is done.
+    long lastCompositeVersion;
+    
     // ========================================================================
     
     void deleteAllUserSessions(int userId) {
@@ -78,6 +83,14 @@ public class SecurityDataModel implements Serializable {
     
     // ========================================================================
     
+    public long getLastCompositeVersion() {
+        return lastCompositeVersion;
+    }
+    
+    public void setLastCompositeVersion(long dmVersion) {
+        lastCompositeVersion = Math.max(lastCompositeVersion, dmVersion);
+    }
+    
     public void setMasterKeypair(EncodedKeyPair keyPair) {
         masterKeyPair = keyPair;
     }
@@ -354,6 +367,12 @@ public class SecurityDataModel implements Serializable {
         }
     }
     
+    // Whether setUserSession() would open this session: the password is
+    //   right and the session ID isn't taken.
+    public boolean canOpenUserSession(int userId, long sessionId, StoredPassword password) {
+        return testUserPassword(userId, password) && (! userSessions.containsKey(sessionId));
+    }
+    
     public boolean setUserSession(int userId, long sessionId, UserSession session) {
         // sessionId is a randomly-generated number
         // in the extremely unlikely case of a collision, return false
@@ -387,6 +406,30 @@ public class SecurityDataModel implements Serializable {
         return session.getUserId();
     }
     
+    // Same as touchSession(), but read-only: the last hit comes from the
+    //   Server's in-memory SessionTable (or the one saved here, whichever
+    //   is later) and an expired session is left for the caller to delete.
+    public int checkSession(long sessionId, int lastHitTimestamp, int timestampNow) {
+        UserSession session = userSessions.get(sessionId);
+        if (session == null)
+            return Error.NOT_FOUND;
+        int lastHit = Math.max(lastHitTimestamp, session.lastHitTimestamp);
+        if (timestampNow > lastHit + session.timeoutMinutes)
+            return Error.EXPIRED;
+        return session.getUserId();
+    }
+    
+    // Save the last hits kept in memory by the Server, so that the sessions
+    //   survive collectGarbage() and restarts. Sessions that are gone are
+    //   ignored.
+    public void refreshSessions(Map<Long, Integer> lastHits) {
+        for (Map.Entry<Long, Integer> e : lastHits.entrySet()) {
+            UserSession session = userSessions.get(e.getKey());
+            if ((session != null) && (e.getValue() > session.lastHitTimestamp))
+                session.touch(e.getValue());
+        }
+    }
+    
     public void deleteUser(int userId) {
         deleteAllUserSessions(userId);
         PrivateUserAccount privateAccount = privateAccounts.get(userId);
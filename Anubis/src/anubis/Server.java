@@ -21,17 +21,37 @@ import anubis.tx.RequestTrustTx;
 import anubis.tx.*;
 import anubis.sectx.*;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.rmi.RemoteException;
 import org.prevayler.Prevayler;
-import org.prevayler.PrevaylerFactory;
+import org.prevayler.Query;
+import org.prevayler.foundation.serialization.JavaSerializer;
+import org.prevayler.foundation.serialization.Serializer;
+import org.prevayler.implementation.PrevaylerDirectory;
+import org.prevayler.implementation.PrevaylerImpl;
+import org.prevayler.implementation.clock.MachineClock;
+import org.prevayler.implementation.publishing.CentralPublisher;
+import org.prevayler.implementation.publishing.TransactionPublisher;
+import org.prevayler.implementation.snapshot.GenericSnapshotManager;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
 
 /**
  * An instance of an UBI server.
@@ -42,13 +62,65 @@ public class Server implements ServerInterface {
     //   and the potentially several RMI threads competing for the server.
     
     // The core data model. All of this is public and snapshots are made 
-    //   available daily as .torrent downloads
+    //   available daily as .torrent downloads (see publishSnapshot())
     Prevayler<DataModel> dm;
         
     // The security data model. This is private stuff to the server that is 
     //   used to implement authentication and other security features.
     Prevayler<SecurityDataModel> secdm;
     
+    // Their guards, which let queries run concurrently (see ReadWriteGuard).
+    ReadWriteGuard<DataModel> dmGuard;
+    ReadWriteGuard<SecurityDataModel> secdmGuard;
+    
+    // The dm and secdm journals, which commit transactions in groups.
+    GroupCommitJournal dmJournal;
+    GroupCommitJournal secdmJournal;
+    
+    // Write the daily snapshots of dm and secdm without blocking them.
+    BackgroundSnapshotter<DataModel> dmSnapshotter;
+    BackgroundSnapshotter<SecurityDataModel> secdmSnapshotter;
+    
+    // Starts snapshots between ticks when the journals grow too much.
+    SnapshotScheduler snapshotScheduler;
+    
+    // Sessions kept alive since they were last saved to the secdm.
+    SessionTable sessions = new SessionTable();
+    
+    // Composite transactions (anubis.tx.CompositeTx) hold this (shared) 
+    //   from the moment they are journaled until their secdm part is; 
+    //   snapshots hold it to find a dm version whose composite parts are 
+    //   all in the secdm journal.
+    final ReentrantReadWriteLock compositeLock = new ReentrantReadWriteLock();
+    
+    // Logins hold this (shared) from their password check until their 
+    //   composite is executed; password changes hold it exclusively, so 
+    //   that a checked login can't fail in the secdm.
+    final ReentrantReadWriteLock loginLock = new ReentrantReadWriteLock();
+    
+    // Session IDs of the logins that hold loginLock, so that two of them
+    //   never pick the same one.
+    final Set<Long> loginSessionIds = ConcurrentHashMap.newKeySet();
+    
+    // Composite parts found while replaying the dm journal, until the secdm
+    //   is recovered as well.
+    ArrayList<CompositePartTx> recoveredParts = new ArrayList();
+    
+    // Checked transactions (anubis.tx.CheckedTx) that failed their check
+    //   and were never journaled, by transaction class.
+    final ConcurrentHashMap<String, LongAdder> notJournaled = new ConcurrentHashMap();
+    
+    // Request counters for the ServerStats (not part of any model).
+    final RequestMetrics metrics = new RequestMetrics();
+    
+    // Merkle tree of the dm accounts, whose root is published after each
+    //   tick (null unless Main.MERKLE_TREE).
+    MerkleTree merkle;
+    
+    // The dm was read from a snapshot written before the accounts were
+    //   iterated in ascending user ID order (see AccountTable.oldOrder).
+    boolean oldAccountOrder;
+    
     // Set as server is just booted up (parsing command-line args)
     Set<Integer> superUserIds = Collections.synchronizedSet(new HashSet());
     
@@ -56,17 +128,299 @@ public class Server implements ServerInterface {
     
     // Create an ANUBIS server.
     public Server(String dataDir) throws Exception {
+        this(dataDir, null);
+    }
+    
+    // Same, with the models of a standby that follows "dataDir" (see 
+    //   Standby.promote()) instead of loading them from the snapshots.
+    Server(String dataDir, Standby standby) throws Exception {
         
         // restore the data models if any
         Path prevalenceBaseDM = Paths.get(dataDir, "/dm");
         Path prevalenceBaseSecDM = Paths.get(dataDir, "/secdm");
-        dm = PrevaylerFactory.createPrevayler(new DataModel(), prevalenceBaseDM.toString());
-        secdm = PrevaylerFactory.createPrevayler(new SecurityDataModel(), prevalenceBaseSecDM.toString());
+        dmJournal = createJournal("dm", prevalenceBaseDM.toString());
+        secdmJournal = createJournal("secdm", prevalenceBaseSecDM.toString());
+        
+        // load and replay the dm and the secdm at the same time
+        if (standby != null)
+            recoveredParts.addAll(standby.compositeParts);
+        FutureTask<Prevayler<SecurityDataModel>> secdmTask = new FutureTask(() -> 
+                createPrevayler(new SecurityDataModel(), (standby != null) ? standby.secdm.guard : null, 
+                        prevalenceBaseSecDM.toString(), secdmJournal, guard -> secdmGuard = guard));
+        new Thread(secdmTask, "recovery-secdm").start();
+        dm = createPrevayler(new DataModel(), (standby != null) ? standby.dm.guard : null, 
+                prevalenceBaseDM.toString(), dmJournal, guard -> {
+                    dmGuard = guard;
+                    DataModel system = guard.prevalentSystem();
+                    system.securityLink = this::keepCompositePart;
+                    oldAccountOrder = hasOldAccountOrder(system);
+                    if (Main.DISK_ACCOUNT_STORE)
+                        moveAccountsToDisk(system, prevalenceBaseDM.toString());
+                    else if (Main.COLD_ACCOUNT_DAYS > 0)
+                        enableColdTier(system, prevalenceBaseDM.toString());
+                });
+        try {
+            secdm = secdmTask.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception)
+                throw (Exception)e.getCause();
+            throw e;
+        }
+        finishCompositeParts();
+        dm.prevalentSystem().securityLink = this::executeCompositePart;
+        
+        // the snapshotters' private copies are always loaded lazily; the 
+        //   accounts they never decode are the ones they can copy as-is.
+        dmSnapshotter = new BackgroundSnapshotter<>("dm", prevalenceBaseDM.toString(), 
+                snapshotSerializers(prevalenceBaseDM.toString(), true), 
+                new SnapshotRetention(prevalenceBaseDM.toString(), Main.KEEP_SNAPSHOTS, Main.PRUNE_SUPERSEDED));
+        secdmSnapshotter = new BackgroundSnapshotter<>("secdm", prevalenceBaseSecDM.toString(), 
+                snapshotSerializers(prevalenceBaseSecDM.toString(), true), 
+                new SnapshotRetention(prevalenceBaseSecDM.toString(), Main.KEEP_SNAPSHOTS, Main.PRUNE_SUPERSEDED));
+        snapshotScheduler = new SnapshotScheduler(this);
+        
+        // so that what gets journaled from now on is never replayed on a 
+        //   snapshot in the old order
+        if (oldAccountOrder) {
+            Main.log("The latest dm snapshot predates the ascending account order; taking a new one.");
+            takeSnapshot();
+        }
 
         // debugging
         int dmDay = dm.execute(new GetEpochDay());
         int currentDay = EpochDay.now();
         Main.log("Restored DataModel epoch day is " + dmDay + " and today's is " + currentDay);
+        Map<Integer, UserAccount> accounts = dm.prevalentSystem().accounts;
+        if (accounts instanceof AccountTable) {
+            int lazyCount = ((AccountTable)accounts).getLazyCount();
+            if (lazyCount > 0)
+                Main.log("Restored " + accounts.size() + " user accounts, " 
+                        + lazyCount + " of them still in the mapped snapshot.");
+        }
+        if ((accounts instanceof AccountTable) && (Main.COLD_ACCOUNT_DAYS > 0))
+            Main.log("Account cold tier: " + ((AccountTable)accounts).getColdTierStats() + ".");
+        if (accounts instanceof DiskAccountTable)
+            Main.log("Account store: " + accounts + ".");
+        
+        if (Main.MERKLE_TREE)
+            enableMerkleTree(prevalenceBaseDM.toString());
+    }
+    
+    // Snapshot file formats by file suffix. The first one is the format 
+    //   new snapshots are written in; the others can still be read.
+    //   (delta snapshots are written by the BackgroundSnapshotter only)
+    static Map<String, Serializer> snapshotSerializers(String prevalenceBase, boolean lazyAccounts) {
+        Map<String, Serializer> serializers = new LinkedHashMap();
+        Serializer compressed = new CompressedSnapshotCodec(new SnapshotCodec(), Main.SNAPSHOT_COMPRESSION_THREADS);
+        if (Main.COMPRESS_SNAPSHOTS)
+            serializers.put(CompressedSnapshotCodec.SNAPSHOT_SUFFIX, compressed);
+        serializers.put(SnapshotCodec.SNAPSHOT_SUFFIX, new SnapshotCodec(lazyAccounts));
+        serializers.put(DeltaSnapshotCodec.SNAPSHOT_SUFFIX, new DeltaSnapshotCodec(prevalenceBase, lazyAccounts));
+        serializers.put(CompressedSnapshotCodec.SNAPSHOT_SUFFIX, compressed);
+        serializers.put(BackgroundSnapshotter.SNAPSHOT_SUFFIX, new JavaSerializer());
+        return serializers;
+    }
+    
+    // A snapshot in the old account order can still be replayed on (it's
+    //   the journal entries written in the old order that JournalCodec 
+    //   refuses), but the Server takes a new one at startup so that this
+    //   is the last time.
+    static boolean hasOldAccountOrder(DataModel dm) {
+        return (! (dm.accounts instanceof AccountTable)) || ((AccountTable)dm.accounts).oldOrder;
+    }
+    
+    // The disk account store is rebuilt from the snapshot at every start,
+    //   before the journal is replayed on it.
+    static void moveAccountsToDisk(DataModel dm, String prevalenceBase) {
+        File file = new File(prevalenceBase, DiskAccountTable.FILE_NAME);
+        long startMillis = System.currentTimeMillis();
+        try {
+            dm.accounts = DiskAccountTable.migrate(dm.accounts, file, Main.ACCOUNT_CACHE_SIZE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot create the account store " + file + ".", e);
+        }
+        Main.log("Moved " + dm.accounts.size() + " user accounts to the disk store in " 
+                + (System.currentTimeMillis() - startMillis) + " ms.");
+    }
+    
+    // Same for the cold account file, which also starts over empty.
+    static void enableColdTier(DataModel dm, String prevalenceBase) {
+        // (a model from an old Java snapshot has a plain map, and copying
+        //   it could change its iteration order)
+        if (! (dm.accounts instanceof AccountTable)) {
+            Main.log("Cold account tier not enabled: the user accounts aren't in an AccountTable.");
+            return;
+        }
+        File file = new File(prevalenceBase, AccountTable.COLD_FILE_NAME);
+        try {
+            ((AccountTable)dm.accounts).enableColdTier(file, Main.COLD_ACCOUNT_DAYS * 24 * 60);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot create the cold account file " + file + ".", e);
+        }
+    }
+    
+    // Build the Merkle tree of the recovered dm, and keep it up to date 
+    //   from then on. Proofs need the trees of the latest published root, 
+    //   which are rebuilt from its snapshot in the background.
+    void enableMerkleTree(String prevalenceBase) throws Exception {
+        DataModel system = dm.prevalentSystem();
+        if (! (system.accounts instanceof AccountTable)) {
+            Main.log("Merkle tree not enabled: the user accounts aren't in an AccountTable.");
+            return;
+        }
+        AccountTable table = (AccountTable)system.accounts;
+        MerkleTree tree = new MerkleTree(system, Runtime.getRuntime().availableProcessors());
+        long startMillis = System.currentTimeMillis();
+        dmGuard.executeExclusive(() -> {
+            table.touched = userId -> {
+                if (dmGuard.isWriting())
+                    tree.touch(userId);
+            };
+            tree.touchAll();
+            tree.update();
+            return null;
+        });
+        tree.loadRoots(new File(prevalenceBase, MerkleTree.ROOTS_FILE_NAME));
+        merkle = tree;
+        Main.log("Merkle tree of " + table.size() + " user accounts built in " 
+                + (System.currentTimeMillis() - startMillis) + " ms.");
+        
+        MerkleTree.Root root = tree.getPublished();
+        if (root == null)
+            return;
+        Thread thread = new Thread(() -> {
+            try {
+                if (tree.restorePublished(prevalenceBase))
+                    Main.log("Merkle proofs available for the published root (" + root + ").");
+                else
+                    Main.log("Merkle proofs unavailable until the next tick: no matching snapshot for the "
+                            + "published root (" + root + ").");
+            } catch (Exception e) {
+                Main.logError("Merkle tree of the published root failed.", e);
+            }
+        }, "merkle-restore");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    // What PrevaylerFactory.create() does for our configuration, except 
+    //   for the journal and the guard. "recovered", if given, gets the guard
+    //   of the system loaded from the latest snapshot before the journal is
+    //   replayed on it.
+    static <P> Prevayler<P> createPrevayler(P system, String prevalenceBase, 
+            GroupCommitJournal journal, Consumer<ReadWriteGuard<P>> recovered) throws Exception 
+    {
+        return createPrevayler(system, null, prevalenceBase, journal, recovered);
+    }
+    
+    // Same, but if "followed" is given, its system is the one recovered, 
+    //   and only the journal entries after its version are replayed.
+    static <P> Prevayler<P> createPrevayler(P system, ReadWriteGuard<P> followed, String prevalenceBase, 
+            GroupCommitJournal journal, Consumer<ReadWriteGuard<P>> recovered) throws Exception 
+    {
+        // (the disk account store copies the accounts from the mapped file)
+        Map<String, Serializer> serializers = snapshotSerializers(prevalenceBase, 
+                Main.LAZY_LOAD_ACCOUNTS || Main.DISK_ACCOUNT_STORE);
+        String primarySuffix = serializers.keySet().iterator().next();
+        Serializer journalSerializer = journal.journalSerializer;
+        GenericSnapshotManager<P> snapshotManager = (followed != null)
+                ? new ReadWriteGuard.RecoveredSnapshotManager(followed, serializers, primarySuffix, journal.directory)
+                : new ReadWriteGuard.SnapshotManager(serializers, primarySuffix, system, journal.directory, 
+                        journalSerializer);
+        if (recovered != null)
+            recovered.accept((ReadWriteGuard<P>)snapshotManager.recoveredPrevalentSystem());
+        TransactionPublisher publisher = new CentralPublisher(new MachineClock(), journal);
+        return new PrevaylerImpl(snapshotManager, publisher, journalSerializer, true);
+    }
+    
+    static GroupCommitJournal createJournal(String name, String prevalenceBase) {
+        return new GroupCommitJournal(name, new PrevaylerDirectory(prevalenceBase), 
+                BackgroundSnapshotter.JOURNAL_SUFFIX, 
+                Main.GROUP_COMMIT_WINDOW_MILLIS, Main.GROUP_COMMIT_BATCH_SIZE);
+    }
+    
+    //===================================================================
+    // Checked transactions
+    //===================================================================
+    
+    // Check a transaction without journaling anything. Returns Error.OK if
+    //   it should be executed, or the error it would fail with.
+    int check(CheckedTx<?> tx) throws Exception {
+        int err = dm.execute(new CheckTx(tx));
+        if (err != Error.OK)
+            notJournaled.computeIfAbsent(tx.getClass().getSimpleName(), k -> new LongAdder()).increment();
+        return err;
+    }
+    
+    // Execute a transaction only if it passes its check: one that is sure 
+    //   to fail just returns its error and never makes it to the journal.
+    //   (it can still fail afterwards, if something else got in between)
+    <R> R execute(CheckedTx<R> tx) throws Exception {
+        int err = check(tx);
+        if (err != Error.OK)
+            return tx.failed(err);
+        return dm.execute(tx);
+    }
+    
+    //===================================================================
+    // Composite transactions
+    //===================================================================
+    
+    // Execute a transaction that changes both models.
+    <R> R executeComposite(CompositeTx<R> tx) throws Exception {
+        compositeLock.readLock().lock();
+        try {
+            return dm.execute(tx);
+        } finally {
+            compositeLock.readLock().unlock();
+        }
+    }
+    
+    // The live DataModel's link to the secdm. The composite's dm journal 
+    //   entry is on disk already, so its part doesn't wait for the secdm 
+    //   journal: if a crash loses it, finishCompositeParts() redoes it.
+    ArrayList<Object> executeCompositePart(ArrayList<Object> transactions) {
+        CompositePartTx part = new CompositePartTx(GroupCommitJournal.currentTransaction(), transactions);
+        try {
+            return GroupCommitJournal.withoutWaiting(() -> secdm.execute(part));
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException("Composite transaction " + part.getDmVersion() + ": secdm part failed.", e);
+        }
+    }
+    
+    // The DataModel's link to the secdm while the dm journal is replayed.
+    ArrayList<Object> keepCompositePart(ArrayList<Object> transactions) {
+        recoveredParts.add(new CompositePartTx(GroupCommitJournal.currentTransaction(), transactions, 
+                GroupCommitJournal.currentTransactionTime()));
+        return null;
+    }
+    
+    // After both models are recovered: execute the composite parts that 
+    //   the secdm doesn't have (their dm journal entries made it to disk, 
+    //   but a crash got in before the parts did), at the time of their dm
+    //   transactions.
+    void finishCompositeParts() throws Exception {
+        long lastVersion = secdm.prevalentSystem().getLastCompositeVersion();
+        int count = 0;
+        for (CompositePartTx part : recoveredParts) {
+            if (part.getDmVersion() > lastVersion) {
+                secdm.execute(part);
+                ++count;
+            }
+        }
+        recoveredParts = null;
+        if (count > 0)
+            Main.log("Executed " + count + " composite transaction parts missing from the secdm journal.");
+    }
+    
+    // Wait until the secdm part of every composite transaction journaled so
+    //   far is on disk, and return the dm version up to which that holds.
+    // Callers must hold the compositeLock exclusively.
+    long flushCompositeParts() throws Exception {
+        secdmJournal.flush();
+        return dmJournal.nextTransaction() - 1;
     }
     
     //===================================================================
@@ -109,6 +463,9 @@ public class Server implements ServerInterface {
             
             //Main.log("DeletedUserIDS = " + Arrays.toString(deletedUserIds.toArray()));
             
+            // Sessions that are alive in memory must survive the GC
+            saveSessions();
+            
             // Secdm GC
             ArrayList<PendingInvite> deletedPendingInvites = 
                     secdm.execute(new CollectGarbageTx(deletedUserIds));
@@ -125,9 +482,154 @@ public class Server implements ServerInterface {
     }
     
     // force a snapshot taken
+    // this blocks all transactions and queries while the models are written,
+    //   so it should only be used when no clients are being served.
     public void takeSnapshot() throws Exception {
-        dm.takeSnapshot();
-        secdm.takeSnapshot();
+        // don't race a background snapshot that is still being written
+        dmSnapshotter.waitUntilDone();
+        secdmSnapshotter.waitUntilDone();
+        
+        saveSessions();
+        compositeLock.writeLock().lock();
+        try {
+            flushCompositeParts();
+            snapshotScheduler.snapshotStarted();
+            dmJournal.startNewFile();
+            dm.takeSnapshot();
+            secdmJournal.startNewFile();
+            secdm.takeSnapshot();
+        } finally {
+            compositeLock.writeLock().unlock();
+        }
+        dmSnapshotter.applyRetention();
+        secdmSnapshotter.applyRetention();
+    }
+    
+    // start writing snapshots in the background, returning immediately.
+    // the snapshotters log the version, size and time taken when done.
+    public void takeBackgroundSnapshot() throws Exception {
+        takeBackgroundSnapshot(false);
+    }
+    
+    // Same, and if "publishRoot", publish the Merkle root of the dm (if 
+    //   enabled) as of the version the dm snapshot is of.
+    public synchronized void takeBackgroundSnapshot(boolean publishRoot) throws Exception {
+        snapshotScheduler.snapshotStarted();
+        MerkleTree tree = publishRoot ? merkle : null;
+        // most of the rehashing, without stopping transactions
+        if (tree != null) {
+            dm.execute((Query<DataModel, Void>)(system, executionTime) -> {
+                tree.update();
+                return null;
+            });
+        }
+        // the dm snapshot must not have composite transactions whose secdm
+        //   parts could still be lost
+        compositeLock.writeLock().lock();
+        try {
+            long maxVersion = flushCompositeParts();
+            // The very first snapshot is a blocking one, of whatever version
+            //   the dm is at when it's taken, so with a root to publish it
+            //   is taken along with it, with transactions excluded.
+            boolean first = ! dmSnapshotter.hasBaseSnapshot();
+            if (tree != null) {
+                // (composites are held off, so the transactions executed
+                //   since the flush, if any, have no secdm parts)
+                MerkleTree.Root root = dmGuard.executeExclusive(() -> {
+                    if (first)
+                        takeBackgroundSnapshot(dm, dmSnapshotter, dmJournal, Long.MAX_VALUE);
+                    return tree.publish(dmGuard.getVersion());
+                });
+                Main.log("Merkle root published: " + root + ".");
+                maxVersion = root.version;
+            }
+            if ((tree == null) || (! first))
+                takeBackgroundSnapshot(dm, dmSnapshotter, dmJournal, maxVersion);
+        } finally {
+            compositeLock.writeLock().unlock();
+        }
+        takeBackgroundSnapshot(secdm, secdmSnapshotter, secdmJournal, Long.MAX_VALUE);
+    }
+    
+    // Journals start a new file with each snapshot, so that the files before
+    //   it can be archived once the snapshot is old enough.
+    <P> void takeBackgroundSnapshot(Prevayler<P> prevayler, BackgroundSnapshotter<P> snapshotter, 
+            GroupCommitJournal journal, long maxVersion) throws Exception 
+    {
+        if (! snapshotter.hasBaseSnapshot()) {
+            // very first snapshot: nothing on disk to rebuild a copy from
+            journal.startNewFile();
+            prevayler.takeSnapshot();
+        } else if (snapshotter.start(maxVersion)) {
+            journal.startNewFile();
+        } else {
+            Main.log("Background snapshot (" + snapshotter.name + ") already running; skipped.");
+        }
+    }
+    
+    // Publish the dm snapshot being taken, once it's on disk, in a thread
+    //   of its own: its .torrent first, which only takes seconds, then its
+    //   chunks and its columnar audit export (see Main.TORRENT_DIR, 
+    //   CHUNK_STORE_DIR, AUDIT_EXPORT_DIR).
+    public void publishSnapshot() {
+        Thread thread = new Thread(() -> {
+            try {
+                dmSnapshotter.waitUntilDone();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (Main.TORRENT_DIR != null) {
+                try {
+                    File dir = new File(Main.TORRENT_DIR);
+                    dir.mkdirs();
+                    Main.log("Torrent: " + SnapshotTorrent.writeLatest(dmSnapshotter.prevalenceBase, dir,
+                            Main.TORRENT_ANNOUNCE, Main.TORRENT_HASH_THREADS) + ".");
+                } catch (Exception e) {
+                    Main.logError("Torrent failed.", e);
+                }
+            }
+            if (Main.CHUNK_STORE_DIR != null) {
+                try {
+                    File dir = new File(Main.CHUNK_STORE_DIR);
+                    dir.mkdirs();
+                    Main.log("Snapshot chunks: " + SnapshotChunks.writeLatest(dmSnapshotter.prevalenceBase, dir) + ".");
+                } catch (Exception e) {
+                    Main.logError("Snapshot chunks failed.", e);
+                }
+            }
+            if (Main.AUDIT_EXPORT_DIR != null) {
+                try {
+                    File dir = new File(Main.AUDIT_EXPORT_DIR);
+                    dir.mkdirs();
+                    Main.log("Audit export: " + AuditExport.exportLatest(dmSnapshotter.prevalenceBase, dir) + ".");
+                } catch (Exception e) {
+                    Main.logError("Audit export failed.", e);
+                }
+            }
+        }, "publish-snapshot");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    // Take background snapshots whenever the journals have grown enough.
+    public void startSnapshotScheduler() {
+        snapshotScheduler.start();
+    }
+    
+    // group commit counters since the server started
+    public void logJournalStats() {
+        Main.log("Journal (dm): " + dmJournal.getStats());
+        Main.log("Journal (secdm): " + secdmJournal.getStats());
+        long total = 0;
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, LongAdder> e : new TreeMap<>(notJournaled).entrySet()) {
+            long n = e.getValue().sum();
+            total += n;
+            sb.append((sb.length() == 0) ? " (" : ", ").append(e.getKey()).append(' ').append(n);
+        }
+        if (sb.length() > 0)
+            sb.append(')');
+        Main.log("Pre-journal checks: " + total + " not journaled" + sb);
     }
     
     // Advance the monetary simulation by one step if it is past the 
@@ -146,12 +648,13 @@ public class Server implements ServerInterface {
                 // Advance simulation time
                 tick();
                 
-                Main.log("Server tick: Data model updated. Snapshotting...");
+                Main.log("Server tick: Data model updated. Snapshotting in the background...");
                 
                 // Snapshot the Prevaylers
                 //
-                // FIXME/TODO: publish the snapshots for clients
-                //  (probably to an auxiliary bittorrent tracker/seed machine).
+                // The .torrent of the dm snapshot is written here (see 
+                //  publishSnapshot()), but seeding it is up to an auxiliary
+                //  bittorrent tracker/seed machine.
                 //  this is for limited auditing, but MAINLY for allowing the
                 //  service to be replicated elsewhere (ledger state as a 
                 //  public good).
@@ -159,12 +662,22 @@ public class Server implements ServerInterface {
                 //  simulation history, a la blockchain, then we need to also 
                 //  publish the full prevayler transaction logs for each step.
                 //
-                dm.takeSnapshot();
-                secdm.takeSnapshot();
+                takeBackgroundSnapshot(true);
+                if ((Main.TORRENT_DIR != null) || (Main.CHUNK_STORE_DIR != null) || (Main.AUDIT_EXPORT_DIR != null))
+                    publishSnapshot();
                 
                 int updatedDMDay = dm.execute(new GetEpochDay());
                 
-                Main.log("Server tick: Snapshot completed, done. dmDay: " + dmDay + " -> " + updatedDMDay + ", currentDay: " + currentDay);
+                Main.log("Server tick: Done. dmDay: " + dmDay + " -> " + updatedDMDay + ", currentDay: " + currentDay);
+                logJournalStats();
+                
+            } else {
+                
+                // Between ticks, keep the snapshots close to the end of the
+                //   journal so a restart has little to replay. Few accounts
+                //   change between ticks, so these are mostly deltas.
+                // (the SnapshotScheduler checks this more often, if started)
+                snapshotScheduler.check();
             }
         } catch (Exception e) {
             // FIXME/TODO
@@ -199,6 +712,24 @@ public class Server implements ServerInterface {
     }
     
     public int createUser(UserAccount account, PrivateUserAccount privateAccount, int sponsorId) throws Exception {
+        metrics.count();
+        
+        int err = prepareUser(account, privateAccount);
+        if (err != Error.OK)
+            return err;
+        
+        // Put user in, get the ID allocated to it
+        int userId = dm.execute(new anubis.tx.CreateUserTx(account, sponsorId));
+        
+        // Create the private part of the user account
+        secdm.execute(new anubis.sectx.CreateUserTx(privateAccount, userId));
+        
+        return userId;
+    }
+    
+    // Check and fill in the account objects of an user about to be created.
+    // Returns Error.OK or the reason it can't be created.
+    int prepareUser(UserAccount account, PrivateUserAccount privateAccount) throws Exception {
         
         // Trim the supplied e-mail address field
         privateAccount.emailAddress = privateAccount.emailAddress.trim();
@@ -230,26 +761,39 @@ public class Server implements ServerInterface {
             account.creationTimestamp = Timestamp.now();
         account.lastLoginTimestamp = account.creationTimestamp;
         
-        // Put user in, get the ID allocated to it
-        int userId = dm.execute(new anubis.tx.CreateUserTx(account, sponsorId));
-        
-        // Create the private part of the user account
-        secdm.execute(new anubis.sectx.CreateUserTx(privateAccount, userId));
-        
-        return userId;
+        return Error.OK;
     }
     
     // returns an userId for a given sessionId, or a negative value if the 
     //   session just expired or was already unexistent.
+    // keeping the session alive is done in memory, so this only writes to
+    //   the secdm journal when it has to delete an expired session.
     public int touchSession(long sessionId) {
         try {
-            return secdm.execute(new TouchSessionTx(sessionId));
+            int userId = secdm.execute(new CheckSession(sessionId, sessions.getLastHit(sessionId)));
+            if (userId >= 0) {
+                sessions.touch(sessionId, Timestamp.now());
+            } else {
+                sessions.remove(sessionId);
+                if (userId == Error.EXPIRED)
+                    secdm.execute(new LogoutTx(sessionId));
+            }
+            return userId;
         } catch (Exception e) {
             Main.logError("touchSession", e);
             return Error.EXCEPTION_NEVER_HAPPENS;
         }
     }
     
+    // save the last hits of the sessions kept alive in memory to the secdm.
+    public void saveSessions() throws Exception {
+        HashMap<Long, Integer> lastHits = sessions.copy();
+        if (lastHits.isEmpty())
+            return;
+        secdm.execute(new RefreshSessionsTx(lastHits));
+        sessions.saved(lastHits);
+    }
+    
     //===================================================================
     // ServerInterface (the server remote API) - Tests (REMOVE)
     //===================================================================
@@ -310,6 +854,7 @@ public class Server implements ServerInterface {
     
     @Override
     public UserAccount getUserPublicPage(int userId) {
+        metrics.count();
         try {
             return dm.execute(new GetUserAccount(userId));
         } catch (Exception e) {
@@ -320,6 +865,7 @@ public class Server implements ServerInterface {
     
     @Override
     public HashMap<Integer, String> getUserNames(HashSet<Integer> userIds) {
+        metrics.count();
         try {
            return dm.execute(new GetUserNames(userIds));
         } catch (Exception e) {
@@ -330,6 +876,7 @@ public class Server implements ServerInterface {
 
     @Override
     public String getUserName(int userId) {
+        metrics.count();
         try {
             HashSet<Integer> dummy = new HashSet();
             dummy.add(userId);
@@ -343,14 +890,30 @@ public class Server implements ServerInterface {
     
     @Override
     public ServerStats getServerStats() {
+        metrics.count();
         try {
-            return dm.execute(new GetServerStats());
+            ServerStats stats = dm.execute(new GetServerStats());
+            stats.totalTx = metrics.getTotal();
+            stats.recentTx = metrics.getRecent();
+            return stats;
         } catch (Exception e) {
             Main.logError("getServerStats", e);
             return null;
         }
     }
     
+    @Override
+    public byte[] getMerkleRoot(int epochDay) {
+        metrics.count();
+        return (merkle != null) ? merkle.getRoot(epochDay) : null;
+    }
+    
+    @Override
+    public MerkleProof getMerkleProof(int userId) {
+        metrics.count();
+        return (merkle != null) ? merkle.proof(userId) : null;
+    }
+    
     @Override
     public String getPublicKey() {
         try {
@@ -376,6 +939,7 @@ public class Server implements ServerInterface {
     public int acceptInvite(long invitationCode, String emailAddress, 
             StoredPassword password, String name, ArrayList<String> profile) 
     {
+        metrics.count();
         try {
             // See if the invitation code exists
             PendingInvite pendingInvite = secdm.execute(new GetPendingInvite(invitationCode));
@@ -398,25 +962,22 @@ public class Server implements ServerInterface {
             privateAccount.emailAddress = emailAddress;
             privateAccount.password = password;
 
-            // inner method that does all the dirty work
-            int newUserId = createUser(account, privateAccount, sponsorId);
-            if (newUserId < 0)
-                return newUserId; // some error (duplicate email, etc.)
-            
-            // Destroy the invitation code
-            secdm.execute(new DeletePendingInviteTx(invitationCode));
+            // Check the new account (duplicate email, etc.)
+            int err = prepareUser(account, privateAccount);
+            if (err != Error.OK)
+                return err;
             
-            // If there is an actual user sponsor, must send the locked funds 
-            //   from them to the invited user; and when doing so, must also 
-            //   reduce the minBalance of the sender by the same amount as 
+            // Create the account in both models and destroy the invitation 
+            //   code, all in one go.
+            // If there is an actual user sponsor, this also sends the locked
+            //   funds from them to the invited user; and when doing so, also
+            //   reduces the minBalance of the sender by the same amount as 
             //   the funds transferred.
-            // The transfer is of at most "amount"; if by any chance there's 
-            //   not enough funds, then send everything.
-            // If any error occurs, we don't care. The account is created, and 
-            //   we did our best to fund it.
+            // If the transfer fails, we don't care. The account is created, 
+            //   and we did our best to fund it.
             //
-            if (sponsorId >= 0)
-                dm.execute(new SendMoneyTx(sponsorId, newUserId, inviteAmount, false, true));
+            int newUserId = executeComposite(new AcceptInviteTx(account, privateAccount, 
+                    sponsorId, invitationCode, inviteAmount));
 
             // Finally, return the user ID of the created user, FWIW.
             // (user can log in by their informed email address instead)
@@ -472,7 +1033,12 @@ public class Server implements ServerInterface {
     @Override
     public int resetPassword(StoredPassword password, long resetCode) {
         try {
-            return secdm.execute(new ResetPasswordTx(password, resetCode));
+            loginLock.writeLock().lock();
+            try {
+                return secdm.execute(new ResetPasswordTx(password, resetCode));
+            } finally {
+                loginLock.writeLock().unlock();
+            }
         } catch (Exception e) {
             Main.logError("resetPassword", e);
             return Error.EXCEPTION_NEVER_HAPPENS;
@@ -515,15 +1081,30 @@ public class Server implements ServerInterface {
         try {
             UserSession session = new UserSession(userId);
             
-            // Get a random positive number to use as a session ID.
+            // Get a random positive number to use as a session ID (that no
+            //   other login is about to use).
             long sessionId;
-            do { sessionId = Main.getSecureRandom().nextLong(); } while (sessionId < 0);
+            do { sessionId = Main.getSecureRandom().nextLong(); } 
+            while ((sessionId < 0) || (! loginSessionIds.add(sessionId)));
             
-            if (secdm.execute(new LoginTx(userId, password, sessionId, session))) {
-                dm.execute(new TouchLoginTimestampTx(userId));
-                return sessionId;
-            } else {
-                return Error.FAILED;
+            // Wrong passwords don't get journaled. The dm part of the login
+            //   refreshes the login timestamp regardless of the secdm part, 
+            //   so the check and the composite are done under loginLock: 
+            //   the password can't change and the session ID can't be taken 
+            //   in between, and the secdm part opens the session.
+            loginLock.readLock().lock();
+            try {
+                if (! secdm.execute(new CanOpenUserSession(userId, sessionId, password)))
+                    return Error.FAILED;
+            
+                Boolean opened = executeComposite(new anubis.tx.LoginTx(userId, password, sessionId, session));
+                if ((opened != null) && opened)
+                    return sessionId;
+                else
+                    return Error.FAILED;
+            } finally {
+                loginLock.readLock().unlock();
+                loginSessionIds.remove(sessionId);
             }
         } catch (Exception e) {
             Main.logError("login", e);
@@ -539,6 +1120,7 @@ public class Server implements ServerInterface {
     public void logout(long sessionId) {
         try {
             secdm.execute(new LogoutTx(sessionId));
+            sessions.remove(sessionId);
         } catch (Exception e) {
             Main.logError("logout", e);
         }
@@ -551,10 +1133,7 @@ public class Server implements ServerInterface {
             return fromUserId; // Error code.
         
         try {
-            int err = dm.execute(new anubis.tx.DeleteUserTx(fromUserId));
-            if (err == Error.OK)
-                secdm.execute(new anubis.sectx.DeleteUserTx(fromUserId));
-            return err;
+            return executeComposite(new DeleteAccountTx(fromUserId));
         } catch (Exception e) {
             Main.logError("deleteAccount", e);
             return Error.EXCEPTION_NEVER_HAPPENS;
@@ -578,6 +1157,7 @@ public class Server implements ServerInterface {
     
     @Override
     public UserPrivatePage getUserPrivatePage(long sessionId) {
+        metrics.count();
         
         int userId = touchSession(sessionId);
         if (userId < 0)
@@ -601,6 +1181,7 @@ public class Server implements ServerInterface {
     public int editPersonalInfo(long sessionId, String name, String emailAddress, 
             ArrayList<String> profile) 
     {
+        metrics.count();
         int userId = touchSession(sessionId);
         if (userId < 0)
             return userId;
@@ -629,7 +1210,12 @@ public class Server implements ServerInterface {
             return userId;
         
         try {
-            return secdm.execute(new SetUserPasswordTx(userId, newPassword));
+            loginLock.writeLock().lock();
+            try {
+                return secdm.execute(new SetUserPasswordTx(userId, newPassword));
+            } finally {
+                loginLock.writeLock().unlock();
+            }
         } catch (Exception e) {
             Main.logError("changePassword", e);
             return Error.EXCEPTION_NEVER_HAPPENS;
@@ -638,6 +1224,7 @@ public class Server implements ServerInterface {
 
     @Override
     public long sendMoney(long sessionId, int toUserId, long amount, boolean exact) {
+        metrics.count();
         
         int fromUserId = touchSession(sessionId);
         if (fromUserId < 0)
@@ -647,7 +1234,7 @@ public class Server implements ServerInterface {
             return Error.INVALID_AMOUNT;
         
         try {
-            return dm.execute(new SendMoneyTx(fromUserId, toUserId, amount, exact, false));
+            return execute(new SendMoneyTx(fromUserId, toUserId, amount, exact, false));
         } catch (Exception e) {
             Main.logError("sendMoney", e);
             return Error.EXCEPTION_NEVER_HAPPENS;
@@ -662,24 +1249,19 @@ public class Server implements ServerInterface {
             return null;
         
         try {
-            // check that we have a master key configured
+            // check that we have a master key configured, and everything 
+            //   else that would keep the receipt from being signed: the 
+            //   money is burned regardless of the receipt (see CompositeTx)
             if (secdm.execute(new GetMasterKeypair()) == null)
                 return null;
-            
-            // burn money
-            int err = dm.execute(new BurnMoneyTx(userId, amount));
-            if (err != Error.OK)
+            if ((comment == null) || (comment.length > Main.MAX_BURN_MONEY_COMMENT_BYTES))
                 return null;
             
-            // generate and replace the users' saved receipt
-            byte[] receipt = secdm.execute(new CreateBurnReceiptTx(userId, amount, comment));
-            if (err != Error.OK) {
-                // if failed receipt/sign (shouldn't ever), 
-                //   unburn money tx (
-                dm.execute(new UnburnMoneyTx(userId, amount));
+            // burn money, and generate and replace the users' saved receipt
+            BurnMoneyWithReceiptTx tx = new BurnMoneyWithReceiptTx(userId, amount, comment);
+            if (check(tx) != Error.OK)
                 return null;
-            }
-            return receipt;
+            return executeComposite(tx);
         } catch (Exception e) {
             Main.logError("burnMoney", e);
             return null;
@@ -688,6 +1270,7 @@ public class Server implements ServerInterface {
     
     @Override
     public long createInvite(long sessionId) {
+        metrics.count();
 
         int fromUserId = touchSession(sessionId);
         if (fromUserId < 0)
@@ -703,7 +1286,7 @@ public class Server implements ServerInterface {
             if (pendingInviteCount >= Main.MAX_PENDING_INVITES)
                 return Error.LIMIT_REACHED;      
             
-            int errorCode = dm.execute(new CreateInviteTx(fromUserId, amount));
+            int errorCode = execute(new CreateInviteTx(fromUserId, amount));
             if (errorCode == Error.OK) {
                 PendingInvite pendingInvite = new PendingInvite(fromUserId, amount, Timestamp.now());
                 long invitationCode = createPendingInvite(pendingInvite);
@@ -726,12 +1309,13 @@ public class Server implements ServerInterface {
     
     @Override
     public int addValidation(long sessionId, int linkUserId) {
+        metrics.count();
         int fromUserId = touchSession(sessionId);
         if (fromUserId < 0)
             return fromUserId; // Error code.
         
         try {
-            return dm.execute(new AddValidationTx(fromUserId, linkUserId));
+            return execute(new AddValidationTx(fromUserId, linkUserId));
         } catch (Exception e) {
             Main.logError("addValidation", e);
             return Error.EXCEPTION_NEVER_HAPPENS;
@@ -742,12 +1326,13 @@ public class Server implements ServerInterface {
     public int removeValidation(long sessionId, int linkUserId, 
             boolean inbound, boolean outbound)
     {
+        metrics.count();
         int fromUserId = touchSession(sessionId);
         if (fromUserId < 0)
             return fromUserId; // Error code.
         
         try {
-            return dm.execute(new RemoveValidationTx(fromUserId, linkUserId, inbound, outbound));
+            return execute(new RemoveValidationTx(fromUserId, linkUserId, inbound, outbound));
         } catch (Exception e) {
             Main.logError("removeValidation", e);
             return Error.EXCEPTION_NEVER_HAPPENS;
@@ -775,7 +1360,7 @@ public class Server implements ServerInterface {
             return fromUserId; // Error code;
         
         try {
-            return dm.execute(new RequestTrustTx(fromUserId));
+            return execute(new RequestTrustTx(fromUserId));
         } catch (Exception e) {
             Main.logError("requestTrust", e);
             return Error.EXCEPTION_NEVER_HAPPENS;
@@ -789,7 +1374,7 @@ public class Server implements ServerInterface {
             return fromUserId; // Error code;
         
         try {
-            return dm.execute(new VoteTrustTx(fromUserId, vote));
+            return execute(new VoteTrustTx(fromUserId, vote));
         } catch (Exception e) {
             Main.logError("voteTrust", e);
             return Error.EXCEPTION_NEVER_HAPPENS;
@@ -803,7 +1388,7 @@ public class Server implements ServerInterface {
             return fromUserId; // Error code;
 
         try {
-            return dm.execute(new ChallengeTrustTx(fromUserId, userId));
+            return execute(new ChallengeTrustTx(fromUserId, userId));
         } catch (Exception e) {
             Main.logError("challengeTrust", e);
             return Error.EXCEPTION_NEVER_HAPPENS;
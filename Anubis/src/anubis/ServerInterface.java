@@ -57,6 +57,14 @@ public interface ServerInterface extends Remote {
     // Get generic server stats
     ServerStats getServerStats() throws RemoteException;
     
+    // The Merkle root of the accounts published for an epoch day (see 
+    //   MerkleTree), or null if there is none.
+    byte[] getMerkleRoot(int epochDay) throws RemoteException;
+    
+    // Proof that the user account is (or isn't) in the latest published 
+    //   Merkle root, or null if the server has none (see MerkleProof).
+    MerkleProof getMerkleProof(int userId) throws RemoteException;
+    
     // Return the server's Ed25519 public master key (used to sign burnMoney() 
     //   receipts) as an hex string, or null if no master keypair configured.
     String getPublicKey() throws RemoteException;
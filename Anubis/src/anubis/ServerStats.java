@@ -29,8 +29,8 @@ public class ServerStats implements Serializable {
     public int userCount;
     public int totalTrusted;
     public long totalMoney;
-    public long recentTx;
-    public long totalTx;
+    public long recentTx; // requests in the last 24 hours
+    public long totalTx;  // requests since the server started
     public long serverBalance;
     public long usedMemoryBytes;
 }
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2017 The Anubis Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anubis;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Last hit timestamps of the sessions, kept in memory only.
+ *
+ * Every authenticated request used to journal a TouchSessionTx to push
+ *   the session's expiration forward, so even a page view cost a disk
+ *   write and sync. The sessions themselves (login, logout, deletion) are 
+ *   still in the secdm, but keeping them alive is now done here.
+ * A session that isn't in here has the last hit saved in the secdm. The 
+ *   Server saves the table to the secdm (RefreshSessionsTx) before the 
+ *   daily garbage collection and before snapshots, so a restart or crash 
+ *   can at most make a session expire early.
+ */
+public class SessionTable {
+    
+    final ConcurrentHashMap<Long, Integer> lastHits = new ConcurrentHashMap();
+    
+    // Last hit of the session, or Integer.MIN_VALUE if we don't know it
+    //   (the secdm has it).
+    public int getLastHit(long sessionId) {
+        Integer lastHit = lastHits.get(sessionId);
+        return (lastHit != null) ? lastHit : Integer.MIN_VALUE;
+    }
+    
+    public void touch(long sessionId, int timestampNow) {
+        lastHits.merge(sessionId, timestampNow, Math::max);
+    }
+    
+    public void remove(long sessionId) {
+        lastHits.remove(sessionId);
+    }
+    
+    public int size() {
+        return lastHits.size();
+    }
+    
+    // What has to be saved to the secdm.
+    public HashMap<Long, Integer> copy() {
+        return new HashMap(lastHits);
+    }
+    
+    // Once saved, the entries are not needed anymore, unless they were 
+    //   touched again in the meantime.
+    public void saved(Map<Long, Integer> saved) {
+        for (Map.Entry<Long, Integer> e : saved.entrySet())
+            lastHits.remove(e.getKey(), e.getValue());
+    }
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright (C) 2017 The Anubis Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anubis;
+
+import java.io.DataInput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+/**
+ * Section checksums of binary and delta snapshots (since schema version 4).
+ *
+ * The file is cut in SECTION_SIZE sections, and the CRC-32 of each one, 
+ *   computed as the snapshot is written, goes in a trailer after the end
+ *   marker: (section size, section count, CRC-32 * count, content length,
+ *   magic). The content length is the size of the file before the trailer.
+ * When a snapshot is read from a file, its sections are verified on other
+ *   threads while it is being parsed (see Verification), so a damaged file
+ *   is reported as damaged, instead of as whatever the parser trips on, or
+ *   not at all. Read from any other stream (e.g. out of a compressed 
+ *   snapshot, which has a CRC-32 per block already), the trailer is just
+ *   skipped.
+ */
+public class SnapshotChecksums {
+
+    // "SUMS"
+    public static final int MAGIC = 0x53554D53;
+
+    public static final int SECTION_SIZE = 1 << 20;
+
+    // First schema version with the trailer.
+    public static final short SCHEMA_VERSION = 4;
+
+    //===================================================================
+
+    // Computes the checksums of what goes through it, and writes the 
+    //   trailer when finished.
+    public static class Writer extends FilterOutputStream {
+        final CRC32 crc = new CRC32();
+        int[] sums = new int[64];
+        int count;
+        long length;
+
+        public Writer(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            crc.update(b);
+            if (++length % SECTION_SIZE == 0)
+                endSection();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            while (len > 0) {
+                int n = (int)Math.min(len, SECTION_SIZE - (length % SECTION_SIZE));
+                crc.update(b, off, n);
+                off += n;
+                len -= n;
+                length += n;
+                if (length % SECTION_SIZE == 0)
+                    endSection();
+            }
+        }
+
+        void endSection() {
+            if (count == sums.length)
+                sums = Arrays.copyOf(sums, count * 2);
+            sums[count++] = (int)crc.getValue();
+            crc.reset();
+        }
+
+        // Write the trailer (everything written so far is the content).
+        public void finish() throws IOException {
+            if (length % SECTION_SIZE != 0)
+                endSection();
+            DataOutputStream dout = new DataOutputStream(out);
+            dout.writeInt(SECTION_SIZE);
+            dout.writeInt(count);
+            for (int i = 0; i < count; i++)
+                dout.writeInt(sums[i]);
+            dout.writeLong(length);
+            dout.writeInt(MAGIC);
+            dout.flush();
+        }
+
+        // The caller owns the stream.
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    // Read past the trailer, for a reader that isn't verifying.
+    static void skipTrailer(DataInput in) throws IOException {
+        in.readInt();
+        int n = SnapshotCodec.readCount(in);
+        for (int i = 0; i < n; i++)
+            in.readInt();
+        in.readLong();
+        if (in.readInt() != MAGIC)
+            throw new IOException("Binary snapshot is corrupted (bad checksum trailer).");
+    }
+
+    // Size of a snapshot file without its trailer.
+    static long contentLength(FileChannel channel, short version) throws IOException {
+        long size = channel.size();
+        if (version < SCHEMA_VERSION)
+            return size;
+        if (size < 12)
+            throw new IOException("Binary snapshot is corrupted (no checksum trailer).");
+        ByteBuffer tail = ByteBuffer.allocate(12);
+        SnapshotCodec.readFully(channel, tail, size - 12);
+        if (tail.getInt(8) != MAGIC)
+            throw new IOException("Binary snapshot is corrupted (no checksum trailer).");
+        long length = tail.getLong(0);
+        if ((length < 0) || (length > size - 12))
+            throw new IOException("Binary snapshot is corrupted (bad checksum trailer).");
+        return length;
+    }
+
+    //===================================================================
+
+    // The checking of the sections of a snapshot file, running on its own
+    //   threads.
+    public static class Verification {
+        final FileChannel channel;
+        long length;
+        int sectionSize;
+        int[] sums;
+        final ArrayList<Future<Void>> tasks = new ArrayList();
+        ExecutorService pool;
+
+        Verification(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        // Check the sections on "threads" threads.
+        void start(int threads) throws IOException {
+            long size = channel.size();
+            length = contentLength(channel, SCHEMA_VERSION);
+            ByteBuffer header = ByteBuffer.allocate(8);
+            SnapshotCodec.readFully(channel, header, length);
+            sectionSize = header.getInt(0);
+            int count = header.getInt(4);
+            if ((sectionSize <= 0) || (count != (length + sectionSize - 1) / sectionSize) 
+                    || (size != length + 8 + 4L * count + 12))
+                throw new IOException("Binary snapshot is corrupted (bad checksum trailer).");
+            ByteBuffer table = ByteBuffer.allocate(4 * count);
+            SnapshotCodec.readFully(channel, table, length + 8);
+            table.flip();
+            sums = new int[count];
+            table.asIntBuffer().get(sums);
+
+            threads = Math.max(1, Math.min(threads, count));
+            pool = Executors.newFixedThreadPool(threads, r -> {
+                Thread t = new Thread(r, "snapshot-verify");
+                t.setDaemon(true);
+                return t;
+            });
+            for (int i = 0; i < threads; i++) {
+                final int first = i;
+                final int step = threads;
+                tasks.add(pool.submit(() -> {
+                    verifySections(first, step);
+                    return null;
+                }));
+            }
+            pool.shutdown();
+        }
+
+        // Every "step"th section from "first".
+        void verifySections(int first, int step) throws IOException {
+            ByteBuffer buf = ByteBuffer.allocate(sectionSize);
+            CRC32 crc = new CRC32();
+            for (int i = first; i < sums.length; i += step) {
+                if (Thread.currentThread().isInterrupted())
+                    return;
+                long pos = (long)i * sectionSize;
+                buf.clear();
+                buf.limit((int)Math.min(sectionSize, length - pos));
+                SnapshotCodec.readFully(channel, buf, pos);
+                buf.flip();
+                crc.reset();
+                crc.update(buf);
+                if ((int)crc.getValue() != sums[i])
+                    throw new IOException("Binary snapshot is corrupted (checksum mismatch in section " 
+                            + i + ", bytes " + pos + " to " + (pos + buf.limit()) + ").");
+            }
+        }
+
+        // Wait for all the sections to be checked.
+        public void finish() throws IOException {
+            try {
+                for (Future<Void> task : tasks)
+                    task.get();
+            } catch (InterruptedException e) {
+                pool.shutdownNow();
+                throw new IOException("Interrupted while verifying snapshot checksums.", e);
+            } catch (ExecutionException e) {
+                pool.shutdownNow();
+                if (e.getCause() instanceof IOException)
+                    throw (IOException)e.getCause();
+                throw new IOException(e.getCause());
+            }
+        }
+
+        // Reading the snapshot failed with "e": if the file is damaged, 
+        //   that is the error to report instead.
+        public void failed(Exception e) throws IOException {
+            try {
+                finish();
+            } catch (IOException damaged) {
+                damaged.addSuppressed(e);
+                throw damaged;
+            }
+        }
+
+        public int getSectionCount() {
+            return sums.length;
+        }
+
+        public long getContentLength() {
+            return length;
+        }
+    }
+
+    // Start verifying a snapshot file (from the header of which the reader
+    //   got "version"), or return null if it doesn't have checksums.
+    static Verification verify(InputStream stream, short version) throws IOException {
+        if ((version < SCHEMA_VERSION) || (! (stream instanceof FileInputStream)))
+            return null;
+        Verification verification = new Verification(((FileInputStream)stream).getChannel());
+        verification.start(Main.SNAPSHOT_VERIFY_THREADS);
+        return verification;
+    }
+
+    //===================================================================
+    // Tools
+    //===================================================================
+
+    // Verify a snapshot file, or all the snapshots in a directory and its
+    //   archive (see SnapshotRetention), logging the result of each one.
+    //   Files with checksums only have those checked; the others are read
+    //   in full. Returns the number of damaged files.
+    public static int verifySnapshots(File path) throws Exception {
+        TreeMap<String, File> files = new TreeMap();
+        if (path.isDirectory()) {
+            for (File dir : new File[] { path, new File(path, SnapshotRetention.ARCHIVE_DIRECTORY) }) {
+                File[] list = dir.listFiles();
+                if (list != null)
+                    for (File file : list)
+                        if (file.isFile() && file.getName().endsWith("snapshot"))
+                            files.put(file.getPath(), file);
+            }
+        } else {
+            files.put(path.getPath(), path);
+        }
+        if (files.isEmpty())
+            Main.log("No snapshot files found in " + path + ".");
+        int damaged = 0;
+        for (File file : files.values()) {
+            long startMillis = System.currentTimeMillis();
+            try {
+                String result = verifySnapshot(file);
+                Main.log("Snapshot " + file + ": OK (" + result + ", " 
+                        + (System.currentTimeMillis() - startMillis) + " ms).");
+            } catch (Exception e) {
+                Main.logError("Snapshot " + file + ": DAMAGED: " + e.getMessage());
+                ++damaged;
+            }
+        }
+        return damaged;
+    }
+
+    static String verifySnapshot(File file) throws Exception {
+        String name = file.getName();
+        String suffix = name.substring(name.lastIndexOf('.') + 1);
+        boolean binary = suffix.equals(SnapshotCodec.SNAPSHOT_SUFFIX) 
+                || suffix.equals(DeltaSnapshotCodec.SNAPSHOT_SUFFIX);
+        if (binary) {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                ByteBuffer header = ByteBuffer.allocate(6);
+                SnapshotCodec.readFully(channel, header, 0);
+                if (header.getInt(0) != SnapshotCodec.MAGIC)
+                    throw new IOException("Not a binary snapshot (bad magic number).");
+                if (header.getShort(4) >= SCHEMA_VERSION) {
+                    Verification verification = new Verification(channel);
+                    verification.start(Main.SNAPSHOT_VERIFY_THREADS);
+                    verification.finish();
+                    return verification.getSectionCount() + " sections checked";
+                }
+            }
+        }
+        // No checksums (or a compressed snapshot, with a CRC-32 per block):
+        //   see if the whole thing reads.
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir.getName().equals(SnapshotRetention.ARCHIVE_DIRECTORY))
+            dir = dir.getParentFile();
+        ArrayList<File> files = new ArrayList();
+        files.add(file);
+        PointInTimeRestore.readSnapshot(files, dir.getPath());
+        return "read in full";
+    }
+}
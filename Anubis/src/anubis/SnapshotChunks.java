@@ -0,0 +1,358 @@
+/*
+ * Copyright (C) 2017 The Anubis Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anubis;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Content-defined chunking of the public snapshots, so that mirrors only
+ *   download what changed since the day before.
+ *
+ * Most accounts don't change between two snapshots, but the ones that do
+ *   change size, and everything after them moves. Cutting the files where
+ *   their content says so (where a rolling hash of the last bytes hits a 
+ *   pattern), instead of at fixed offsets, cuts the bytes that only moved
+ *   into the same chunks as before.
+ * The tick does change every account (demurrage, and an entry in its log),
+ *   so the snapshot of a tick has little in common with the one of the day
+ *   before; what chunks well is a snapshot taken between ticks (see 
+ *   --make_chunks) against the one of the tick before it.
+ * The chunks are kept once each in a chunk store directory, by SHA-256 
+ *   (chunks/ab/abcd...), and every snapshot gets a manifest there 
+ *   (%019d.chunks) that lists its files and their chunks, as text:
+ *     anubis-chunks 1 <version>
+ *     file <name> <length> <sha-256 of the file>
+ *     <sha-256> <length>        (one line per chunk, in order)
+ *     ...
+ *   The chunks a mirror has to fetch for a day are the ones of its 
+ *   manifest that weren't in the day before's (see diff(), --chunk_diff),
+ *   and restore() puts the files back together (--chunk_restore).
+ * Cut points are FastCDC's: a gear hash h = (h << 1) + GEAR[byte], cut 
+ *   after a byte where the top bits of h are zero, with more of them 
+ *   before AVG_CHUNK_SIZE than after, never before MIN_CHUNK_SIZE and 
+ *   always at MAX_CHUNK_SIZE. GEAR is SplitMix64 from seed 0. Mirrors 
+ *   don't need any of this, only the manifests.
+ * Compressed snapshots don't chunk well (any change scrambles the rest of
+ *   its block), so publish the binary ones.
+ */
+public class SnapshotChunks {
+
+    public static final String FILE_SUFFIX = "chunks";
+    public static final String CHUNK_DIRECTORY = "chunks";
+
+    static final String HEADER = "anubis-chunks";
+    static final int FORMAT_VERSION = 1;
+
+    static final int MIN_CHUNK_SIZE = 16 * 1024;
+    static final int AVG_CHUNK_SIZE = 64 * 1024;
+    static final int MAX_CHUNK_SIZE = 256 * 1024;
+
+    // Top 18 bits before AVG_CHUNK_SIZE (2^16), top 14 after.
+    static final long MASK_SMALL = -1L << (64 - 18);
+    static final long MASK_LARGE = -1L << (64 - 14);
+
+    static final long[] GEAR = new long[256];
+
+    static {
+        long x = 0;
+        for (int i = 0; i < GEAR.length; i++) {
+            long z = (x += 0x9E3779B97F4A7C15L);
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            GEAR[i] = z ^ (z >>> 31);
+        }
+    }
+
+    // What chunking a snapshot did.
+    public static class Report {
+        public File file;         // the manifest
+        public long version;
+        public int files;
+        public long bytes;        // of the files
+        public int chunks;
+        public int newChunks;     // not in the store before
+        public long newBytes;
+        public long durationMillis;
+
+        @Override
+        public String toString() {
+            return file + ": version " + version + ", " + files + " files, " + bytes + " bytes, " 
+                    + chunks + " chunks, " + newChunks + " new (" + newBytes + " bytes), " 
+                    + durationMillis + " ms";
+        }
+    }
+
+    // What a mirror with the chunks of one manifest needs for another.
+    public static class Diff {
+        public long oldVersion;
+        public long newVersion;
+        public int chunks;        // in the new manifest
+        public long bytes;
+        public final LinkedHashMap<String, Integer> missing = new LinkedHashMap(); // hash to length
+        public long missingBytes;
+
+        @Override
+        public String toString() {
+            return "version " + oldVersion + " to " + newVersion + ": " + missing.size() + " of " + chunks 
+                    + " chunks to fetch, " + missingBytes + " of " + bytes + " bytes";
+        }
+    }
+
+    // A manifest: the files of a snapshot, in order, and their chunks.
+    public static class Manifest {
+        public long version;
+        public final ArrayList<FileEntry> files = new ArrayList();
+
+        public static Manifest read(File file) throws IOException {
+            Manifest manifest = new Manifest();
+            List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+            String[] header = lines.isEmpty() ? new String[0] : lines.get(0).split(" ");
+            if ((header.length != 3) || (! header[0].equals(HEADER)))
+                throw new IOException("Not a chunk manifest: " + file);
+            if (Integer.parseInt(header[1]) != FORMAT_VERSION)
+                throw new IOException("Unknown chunk manifest version " + header[1] + ": " + file);
+            manifest.version = Long.parseLong(header[2]);
+            FileEntry entry = null;
+            for (String line : lines.subList(1, lines.size())) {
+                String[] fields = line.split(" ");
+                if ((fields.length == 4) && fields[0].equals("file")) {
+                    entry = new FileEntry(fields[1], Long.parseLong(fields[2]), fields[3]);
+                    manifest.files.add(entry);
+                } else if ((fields.length == 2) && (entry != null)) {
+                    entry.hashes.add(fields[0]);
+                    entry.lengths.add(Integer.parseInt(fields[1]));
+                } else {
+                    throw new IOException("Chunk manifest is corrupted: " + file);
+                }
+            }
+            return manifest;
+        }
+
+        void write(File file) throws IOException {
+            StringBuilder sb = new StringBuilder();
+            sb.append(HEADER).append(' ').append(FORMAT_VERSION).append(' ').append(version).append('\n');
+            for (FileEntry entry : files) {
+                sb.append("file ").append(entry.name).append(' ').append(entry.length).append(' ')
+                        .append(entry.hash).append('\n');
+                for (int i = 0; i < entry.hashes.size(); i++)
+                    sb.append(entry.hashes.get(i)).append(' ').append(entry.lengths.get(i)).append('\n');
+            }
+            Utils.writeFileAtomically(file, sb.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    public static class FileEntry {
+        public final String name;
+        public final long length;
+        public final String hash;
+        public final ArrayList<String> hashes = new ArrayList();
+        public final ArrayList<Integer> lengths = new ArrayList();
+
+        FileEntry(String name, long length, String hash) {
+            this.name = name;
+            this.length = length;
+            this.hash = hash;
+        }
+    }
+
+    //===================================================================
+
+    // Chunk the latest DataModel snapshot of "prevalenceBase" (or of its 
+    //   archive) into the chunk store "dir".
+    public static Report writeLatest(String prevalenceBase, File dir) throws Exception {
+        Map.Entry<Long, ArrayList<File>> latest = PointInTimeRestore.listSnapshots(prevalenceBase).lastEntry();
+        if (latest == null)
+            throw new IOException("No snapshot found in " + prevalenceBase);
+        return write(SnapshotTorrent.snapshotFiles(latest.getValue(), prevalenceBase), latest.getKey(), dir);
+    }
+
+    public static Report write(List<File> files, long version, File dir) throws IOException {
+        long startMillis = System.currentTimeMillis();
+        Report report = new Report();
+        Manifest manifest = new Manifest();
+        manifest.version = version;
+        MessageDigest fileSha = Utils.sha256();
+        MessageDigest chunkSha = Utils.sha256();
+        for (File file : files) {
+            fileSha.reset();
+            ArrayList<String> hashes = new ArrayList();
+            ArrayList<Integer> lengths = new ArrayList();
+            chunk(file, (buf, off, len) -> {
+                fileSha.update(buf, off, len);
+                chunkSha.update(buf, off, len);
+                String hash = Utils.hex(chunkSha.digest());
+                File chunkFile = chunkFile(dir, hash);
+                if (! chunkFile.exists()) {
+                    chunkFile.getParentFile().mkdirs();
+                    Utils.writeFileAtomically(chunkFile, Arrays.copyOfRange(buf, off, off + len));
+                    report.newChunks++;
+                    report.newBytes += len;
+                }
+                hashes.add(hash);
+                lengths.add(len);
+            });
+            FileEntry entry = new FileEntry(file.getName(), file.length(), Utils.hex(fileSha.digest()));
+            entry.hashes.addAll(hashes);
+            entry.lengths.addAll(lengths);
+            manifest.files.add(entry);
+            report.bytes += entry.length;
+            report.chunks += hashes.size();
+        }
+        // (the chunks first: a manifest is only there once they all are)
+        File manifestFile = new File(dir, String.format("%019d.%s", version, FILE_SUFFIX));
+        manifest.write(manifestFile);
+
+        report.file = manifestFile;
+        report.version = version;
+        report.files = files.size();
+        report.durationMillis = System.currentTimeMillis() - startMillis;
+        return report;
+    }
+
+    // The chunks of the "newer" manifest that the "older" one doesn't have.
+    public static Diff diff(Manifest older, Manifest newer) {
+        HashSet<String> have = new HashSet();
+        for (FileEntry entry : older.files)
+            have.addAll(entry.hashes);
+        Diff diff = new Diff();
+        diff.oldVersion = older.version;
+        diff.newVersion = newer.version;
+        for (FileEntry entry : newer.files) {
+            for (int i = 0; i < entry.hashes.size(); i++) {
+                String hash = entry.hashes.get(i);
+                int length = entry.lengths.get(i);
+                diff.chunks++;
+                diff.bytes += length;
+                if ((! have.contains(hash)) && (diff.missing.put(hash, length) == null))
+                    diff.missingBytes += length;
+            }
+        }
+        return diff;
+    }
+
+    // Put the files of a manifest back together in "outDir" from the chunk
+    //   store the manifest is in, checking every chunk and every file, and
+    //   then the snapshots themselves (see SnapshotChecksums).
+    public static Manifest restore(File manifestFile, File outDir) throws Exception {
+        Manifest manifest = Manifest.read(manifestFile);
+        File dir = manifestFile.getAbsoluteFile().getParentFile();
+        outDir.mkdirs();
+        MessageDigest fileSha = Utils.sha256();
+        MessageDigest chunkSha = Utils.sha256();
+        for (FileEntry entry : manifest.files) {
+            if (entry.name.contains("/") || entry.name.contains(File.separator) || entry.name.startsWith("."))
+                throw new IOException("Bad file name in chunk manifest: " + entry.name);
+            File file = new File(outDir, entry.name);
+            fileSha.reset();
+            long length = 0;
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                for (int i = 0; i < entry.hashes.size(); i++) {
+                    String hash = entry.hashes.get(i);
+                    File chunkFile = chunkFile(dir, hash);
+                    if (! chunkFile.exists())
+                        throw new IOException("Chunk " + hash + " of " + entry.name + " is missing.");
+                    byte[] data = Files.readAllBytes(chunkFile.toPath());
+                    if ((data.length != entry.lengths.get(i)) || (! Utils.hex(chunkSha.digest(data)).equals(hash)))
+                        throw new IOException("Chunk " + hash + " of " + entry.name + " is damaged.");
+                    out.write(data);
+                    fileSha.update(data);
+                    length += data.length;
+                }
+                out.getFD().sync();
+            }
+            if ((length != entry.length) || (! Utils.hex(fileSha.digest()).equals(entry.hash)))
+                throw new IOException("File " + entry.name + " doesn't match its chunk manifest.");
+        }
+        if (SnapshotChecksums.verifySnapshots(outDir) > 0)
+            throw new IOException("Snapshots restored from " + manifestFile + " are damaged.");
+        return manifest;
+    }
+
+    //===================================================================
+
+    interface ChunkConsumer {
+        void accept(byte[] buf, int off, int len) throws IOException;
+    }
+
+    // Cut a file into chunks.
+    static void chunk(File file, ChunkConsumer consumer) throws IOException {
+        byte[] buf = new byte[4 * MAX_CHUNK_SIZE];
+        int start = 0;
+        int end = 0;
+        boolean eof = false;
+        try (InputStream in = new FileInputStream(file)) {
+            while (true) {
+                if ((! eof) && (end - start < MAX_CHUNK_SIZE)) {
+                    System.arraycopy(buf, start, buf, 0, end - start);
+                    end -= start;
+                    start = 0;
+                    while (end < buf.length) {
+                        int n = in.read(buf, end, buf.length - end);
+                        if (n < 0) {
+                            eof = true;
+                            break;
+                        }
+                        end += n;
+                    }
+                }
+                if (start == end)
+                    return;
+                int len = cut(buf, start, end - start);
+                consumer.accept(buf, start, len);
+                start += len;
+            }
+        }
+    }
+
+    // Length of the chunk at "off", with "len" bytes left.
+    static int cut(byte[] buf, int off, int len) {
+        if (len <= MIN_CHUNK_SIZE)
+            return len;
+        int n = Math.min(len, MAX_CHUNK_SIZE);
+        int normal = Math.min(n, AVG_CHUNK_SIZE);
+        long h = 0;
+        int i = MIN_CHUNK_SIZE;
+        for (; i < normal; i++) {
+            h = (h << 1) + GEAR[buf[off + i] & 0xFF];
+            if ((h & MASK_SMALL) == 0)
+                return i + 1;
+        }
+        for (; i < n; i++) {
+            h = (h << 1) + GEAR[buf[off + i] & 0xFF];
+            if ((h & MASK_LARGE) == 0)
+                return i + 1;
+        }
+        return n;
+    }
+
+    static File chunkFile(File dir, String hash) {
+        return new File(new File(new File(dir, CHUNK_DIRECTORY), hash.substring(0, 2)), hash);
+    }
+}
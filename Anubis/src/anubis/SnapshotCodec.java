@@ -0,0 +1,774 @@
+/*
+ * Copyright (C) 2017 The Anubis Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anubis;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Map;
+import org.prevayler.foundation.serialization.JavaSerializer;
+import org.prevayler.foundation.serialization.Serializer;
+import org.prevayler.implementation.PrevaylerDirectory;
+
+/**
+ * Binary snapshot format for DataModel and SecurityDataModel.
+ *
+ * Default Java serialization writes class descriptors, a boxed Integer for
+ *   every map key and set member and an object header for every LogEntry.
+ *   This writes the same data as plain primitives instead.
+ * A file is a header (magic, schema version, model kind) followed by the
+ *   model's fields. UserAccount and PrivateUserAccount are written as
+ *   (id, length, record) so a reader can step over them without parsing.
+ * Since version 2 the DataModel's account records are followed by an
+ *   offset table, which lets the reader memory-map the file and build the
+ *   account index without decoding any account (see AccountTable).
+ * Since version 4 the end marker is followed by the checksums of the file
+ *   (see SnapshotChecksums).
+ * Since version 5 the DataModel's request counters aren't written (they
+ *   are no longer part of the model, see RequestMetrics).
+ * Version 6 writes the same as version 5; it tells that the accounts were
+ *   iterated in ascending user ID order when the file was written (see
+ *   AccountTable.oldOrder).
+ * Any change to what is written here must bump SCHEMA_VERSION and keep
+ *   the reader able to read the older versions.
+ */
+public class SnapshotCodec implements Serializer {
+
+    // File suffix for snapshots written by this codec.
+    public static final String SNAPSHOT_SUFFIX = "binsnapshot";
+
+    // "ANBS"
+    public static final int MAGIC = 0x414E4253;
+
+    // 1: first version
+    // 2: DataModel account offset table
+    // 3: SecurityDataModel.lastCompositeVersion
+    // 4: section checksums
+    // 5: no DataModel request counters
+    // 6: accounts iterated in ascending user ID order
+    public static final short SCHEMA_VERSION = 6;
+
+    // Account records haven't changed since this version, so the records
+    //   of a mapped file of this version or later can be copied as-is.
+    static final short SAME_RECORDS_SINCE = 3;
+
+    // Files of an older version were written by a model that iterated its
+    //   accounts in another order.
+    static final short ASCENDING_ORDER_SINCE = 6;
+
+    // Model kinds
+    public static final byte KIND_DATA_MODEL = 1;
+    public static final byte KIND_SECURITY_DATA_MODEL = 2;
+    public static final byte KIND_DATA_MODEL_DELTA = 3; // see DeltaSnapshotCodec
+
+    // Written after the last field, to catch truncated files.
+    static final int END_MARKER = 0x454E4421; // "END!"
+
+    // Load DataModel accounts lazily from a memory-mapped file when reading
+    //   a snapshot file.
+    final boolean lazyAccounts;
+
+    //===================================================================
+
+    public SnapshotCodec() {
+        this(false);
+    }
+
+    public SnapshotCodec(boolean lazyAccounts) {
+        this.lazyAccounts = lazyAccounts;
+    }
+
+    @Override
+    public void writeObject(OutputStream stream, Object object) throws IOException {
+        SnapshotChecksums.Writer sums = new SnapshotChecksums.Writer(stream);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(sums, 65536));
+        out.writeInt(MAGIC);
+        out.writeShort(SCHEMA_VERSION);
+        if (object instanceof DataModel) {
+            out.writeByte(KIND_DATA_MODEL);
+            writeDataModel(out, (DataModel)object);
+        } else if (object instanceof SecurityDataModel) {
+            out.writeByte(KIND_SECURITY_DATA_MODEL);
+            writeSecurityDataModel(out, (SecurityDataModel)object);
+        } else {
+            throw new IOException("SnapshotCodec cannot write " + object.getClass().getName());
+        }
+        out.writeInt(END_MARKER);
+        out.flush();
+        sums.finish();
+    }
+
+    @Override
+    public Object readObject(InputStream stream) throws IOException, ClassNotFoundException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(stream, 65536));
+        if (in.readInt() != MAGIC)
+            throw new IOException("Not a binary snapshot (bad magic number).");
+        short version = in.readShort();
+        if ((version < 1) || (version > SCHEMA_VERSION))
+            throw new IOException("Unsupported binary snapshot schema version " + version + ".");
+        // Prevayler hands us the snapshot file itself, which we can map,
+        //   and check while we read it
+        FileChannel channel = null;
+        if (lazyAccounts && (version >= 2) && (stream instanceof FileInputStream))
+            channel = ((FileInputStream)stream).getChannel();
+        SnapshotChecksums.Verification verification = SnapshotChecksums.verify(stream, version);
+        Object object;
+        try {
+            byte kind = in.readByte();
+            switch (kind) {
+                case KIND_DATA_MODEL:
+                    object = readDataModel(in, version, channel);
+                    ((AccountTable)((DataModel)object).accounts).oldOrder = (version < ASCENDING_ORDER_SINCE);
+                    break;
+                case KIND_SECURITY_DATA_MODEL:
+                    object = readSecurityDataModel(in, version);
+                    readEnd(in, version);
+                    break;
+                default:
+                    throw new IOException("Unknown binary snapshot model kind " + kind + ".");
+            }
+        } catch (IOException | RuntimeException e) {
+            if (verification != null)
+                verification.failed(e);
+            throw e;
+        }
+        if (verification != null)
+            verification.finish();
+        return object;
+    }
+
+    static void readEndMarker(DataInput in) throws IOException {
+        if (in.readInt() != END_MARKER)
+            throw new IOException("Binary snapshot is corrupted (no end marker).");
+    }
+
+    // The end marker, and the checksums after it (checked separately).
+    static void readEnd(DataInput in, short version) throws IOException {
+        readEndMarker(in);
+        if (version >= SnapshotChecksums.SCHEMA_VERSION)
+            SnapshotChecksums.skipTrailer(in);
+    }
+
+    //===================================================================
+    // DataModel
+    //===================================================================
+
+    void writeDataModel(DataOutputStream out, DataModel dm) throws IOException {
+        writeDataModelCounters(out, dm);
+
+        out.writeInt(dm.internalAccounts.size());
+        for (Map.Entry<Integer, Balance> e : dm.internalAccounts.entrySet()) {
+            out.writeInt(e.getKey());
+            out.writeLong(e.getValue().get());
+        }
+
+        out.writeInt(dm.pendingAuthentications.size());
+        for (Map.Entry<Integer, PendingAuthentication> e : dm.pendingAuthentications.entrySet()) {
+            out.writeInt(e.getKey());
+            writePendingAuthentication(out, e.getValue());
+        }
+
+        // Accounts that were never decoded since they were loaded from a
+        //   mapped snapshot of this same version are copied as they are, 
+        //   and so are the ones paged out to a cold file or that a disk 
+        //   table doesn't have in memory.
+        AccountTable table = (dm.accounts instanceof AccountTable) ? (AccountTable)dm.accounts : null;
+        DiskAccountTable disk = (dm.accounts instanceof DiskAccountTable) ? (DiskAccountTable)dm.accounts : null;
+
+        RecordWriter rec = new RecordWriter();
+        int n = dm.accounts.size();
+        int[] ids = new int[n];
+        long[] offsets = new long[n];
+        byte[] copyBuf = new byte[1024];
+        out.writeInt(n);
+        long pos = out.size();
+        int i = 0;
+        for (int userId : dm.accounts.keySet()) {
+            ByteBuffer raw = (table != null) ? table.undecodedRecord(userId) 
+                    : (disk != null) ? disk.storedRecord(userId) : null;
+            out.writeInt(userId);
+            int len;
+            if (raw != null) {
+                len = raw.remaining();
+                if (len > copyBuf.length)
+                    copyBuf = new byte[Math.max(len, copyBuf.length * 2)];
+                raw.get(copyBuf, 0, len);
+                out.writeInt(len);
+                out.write(copyBuf, 0, len);
+            } else {
+                writeUserAccount(rec.begin(), dm.accounts.get(userId));
+                len = rec.size();
+                rec.writeTo(out);
+            }
+            ids[i] = userId;
+            offsets[i] = pos + 4;
+            pos += 8 + len;
+            ++i;
+        }
+
+        // Offset table: (user ID, offset of the record length)
+        out.writeInt(n);
+        for (i = 0; i < n; i++) {
+            out.writeInt(ids[i]);
+            out.writeLong(offsets[i]);
+        }
+        out.writeLong(pos);
+    }
+
+    DataModel readDataModel(DataInputStream in, short version, FileChannel channel) throws IOException {
+        DataModel dm = new DataModel();
+        readDataModelCounters(in, dm, version);
+
+        int n = readCount(in);
+        for (int i = 0; i < n; i++) {
+            int id = in.readInt();
+            dm.internalAccounts.put(id, new Balance(in.readLong()));
+        }
+
+        n = readCount(in);
+        for (int i = 0; i < n; i++) {
+            int userId = in.readInt();
+            dm.pendingAuthentications.put(userId, readPendingAuthentication(in));
+        }
+
+        n = readCount(in);
+        if (channel != null) {
+            dm.accounts = readAccountIndex(channel, n, version);
+            return dm;
+        }
+
+        RecordReader rec = new RecordReader();
+        for (int i = 0; i < n; i++) {
+            int userId = in.readInt();
+            dm.accounts.put(userId, readUserAccount(rec.begin(in)));
+            rec.end();
+        }
+        if (version >= 2) {
+            // Skip the offset table
+            n = readCount(in);
+            for (int i = 0; i < n; i++) {
+                in.readInt();
+                in.readLong();
+            }
+            in.readLong();
+        }
+        readEnd(in, version);
+        return dm;
+    }
+
+    // The DataModel's fields that aren't maps of accounts.
+    static void writeDataModelCounters(DataOutput out, DataModel dm) throws IOException {
+        out.writeInt(dm.epochDay);
+        out.writeInt(dm.userAccountIDGenerator);
+        out.writeInt(dm.internalAccountIDGenerator);
+        out.writeLong(dm.totalMoney);
+        out.writeInt(dm.totalTrusted);
+        out.writeInt(dm.totalDays);
+    }
+
+    static void readDataModelCounters(DataInput in, DataModel dm, short version) throws IOException {
+        dm.epochDay = in.readInt();
+        dm.userAccountIDGenerator = in.readInt();
+        dm.internalAccountIDGenerator = in.readInt();
+        dm.totalMoney = in.readLong();
+        if (version < 5)
+            in.readLong(); // totalTx
+        dm.totalTrusted = in.readInt();
+        dm.totalDays = in.readInt();
+        if (version < 5) {
+            // txCountLastHour, txCount
+            in.readInt();
+            int n = readCount(in);
+            for (int i = 0; i < n; i++) {
+                in.readInt();
+                in.readLong();
+            }
+        }
+    }
+
+    // Read the offset table at the end of the file and index the account
+    //   records without decoding them.
+    static AccountTable readAccountIndex(FileChannel channel, int n, short version) throws IOException {
+        long size = SnapshotChecksums.contentLength(channel, version);
+        ByteBuffer trailer = ByteBuffer.allocate(12);
+        readFully(channel, trailer, size - 12);
+        long tablePos = trailer.getLong(0);
+        if (trailer.getInt(8) != END_MARKER)
+            throw new IOException("Binary snapshot is corrupted (no end marker).");
+
+        ByteBuffer table = ByteBuffer.allocate(4 + n * 12);
+        readFully(channel, table, tablePos);
+        if (table.getInt(0) != n)
+            throw new IOException("Binary snapshot is corrupted (bad offset table).");
+        int[] ids = new int[n];
+        long[] offsets = new long[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = table.getInt(4 + i * 12);
+            offsets[i] = table.getLong(8 + i * 12);
+            if ((offsets[i] < 0) || (offsets[i] >= tablePos))
+                throw new IOException("Binary snapshot is corrupted (bad offset table).");
+        }
+        return new AccountTable(channel, ids, offsets, version);
+    }
+
+    static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int r = channel.read(buf, position + buf.position());
+            if (r < 0)
+                throw new IOException("Binary snapshot is truncated.");
+        }
+    }
+
+    static void writeUserAccount(DataOutput out, UserAccount acc) throws IOException {
+        writeString(out, acc.name);
+        out.writeInt(acc.profile.size());
+        for (String item : acc.profile)
+            writeString(out, item);
+        writeIntSet(out, acc.validationOut);
+        writeIntSet(out, acc.validationIn);
+        out.writeInt(acc.log.size());
+        for (LogEntry entry : acc.log) {
+            out.writeInt(entry.timestamp);
+            out.writeShort(entry.code);
+            out.writeLong(entry.amount);
+            out.writeInt(entry.userId);
+        }
+        out.writeInt(acc.authOtherUserId);
+        out.writeInt(acc.authSelfUserId);
+        out.writeInt(acc.creationTimestamp);
+        out.writeInt(acc.lastLoginTimestamp);
+        out.writeInt(acc.lastVerificationTimestamp);
+        out.writeLong(acc.balance);
+        out.writeInt(acc.minBalance);
+        out.writeShort(acc.flags);
+    }
+
+    static UserAccount readUserAccount(DataInput in) throws IOException {
+        UserAccount acc = new UserAccount();
+        acc.name = readString(in);
+        int n = readCount(in);
+        acc.profile = new ArrayList(n);
+        for (int i = 0; i < n; i++)
+            acc.profile.add(readString(in));
+        acc.validationOut = readIntSet(in);
+        acc.validationIn = readIntSet(in);
+        n = readCount(in);
+        acc.log = new ArrayList(n);
+        for (int i = 0; i < n; i++) {
+            int timestamp = in.readInt();
+            short code = in.readShort();
+            long amount = in.readLong();
+            int userId = in.readInt();
+            acc.log.add(new LogEntry(timestamp, code, amount, userId));
+        }
+        acc.authOtherUserId = in.readInt();
+        acc.authSelfUserId = in.readInt();
+        acc.creationTimestamp = in.readInt();
+        acc.lastLoginTimestamp = in.readInt();
+        acc.lastVerificationTimestamp = in.readInt();
+        acc.balance = in.readLong();
+        acc.minBalance = in.readInt();
+        acc.flags = in.readShort();
+        return acc;
+    }
+
+    // Votes are written as -1 (not cast yet), 0 (no) or 1 (yes).
+    static void writePendingAuthentication(DataOutput out, PendingAuthentication auth) throws IOException {
+        out.writeInt(auth.startTimestamp);
+        out.writeInt(auth.votes.size());
+        for (Map.Entry<Integer, Boolean> e : auth.votes.entrySet()) {
+            out.writeInt(e.getKey());
+            Boolean vote = e.getValue();
+            out.writeByte(vote == null ? -1 : (vote ? 1 : 0));
+        }
+    }
+
+    static PendingAuthentication readPendingAuthentication(DataInput in) throws IOException {
+        int startTimestamp = in.readInt();
+        PendingAuthentication auth = new PendingAuthentication(new HashSet(), startTimestamp);
+        int n = readCount(in);
+        for (int i = 0; i < n; i++) {
+            int userId = in.readInt();
+            byte vote = in.readByte();
+            auth.votes.put(userId, vote < 0 ? null : (vote != 0));
+        }
+        return auth;
+    }
+
+    //===================================================================
+    // SecurityDataModel
+    //===================================================================
+
+    void writeSecurityDataModel(DataOutputStream out, SecurityDataModel secdm) throws IOException {
+        out.writeInt(secdm.emailToUserId.size());
+        for (Map.Entry<String, Integer> e : secdm.emailToUserId.entrySet()) {
+            writeString(out, e.getKey());
+            out.writeInt(e.getValue());
+        }
+
+        out.writeInt(secdm.pendingInvites.size());
+        for (Map.Entry<Long, PendingInvite> e : secdm.pendingInvites.entrySet()) {
+            out.writeLong(e.getKey());
+            PendingInvite invite = e.getValue();
+            out.writeInt(invite.sponsorId);
+            out.writeLong(invite.amount);
+            out.writeInt(invite.expirationTimestamp);
+        }
+
+        out.writeInt(secdm.userSessions.size());
+        for (Map.Entry<Long, UserSession> e : secdm.userSessions.entrySet()) {
+            out.writeLong(e.getKey());
+            UserSession session = e.getValue();
+            out.writeInt(session.userId);
+            out.writeInt(session.lastHitTimestamp);
+            out.writeInt(session.timeoutMinutes);
+        }
+
+        RecordWriter rec = new RecordWriter();
+        out.writeInt(secdm.privateAccounts.size());
+        for (Map.Entry<Integer, PrivateUserAccount> e : secdm.privateAccounts.entrySet()) {
+            out.writeInt(e.getKey());
+            writePrivateUserAccount(rec.begin(), e.getValue());
+            rec.writeTo(out);
+        }
+
+        out.writeInt(secdm.passwordResetCodes.size());
+        for (Map.Entry<Long, Integer> e : secdm.passwordResetCodes.entrySet()) {
+            out.writeLong(e.getKey());
+            out.writeInt(e.getValue());
+        }
+
+        writeBytes(out, secdm.masterKeyPair == null ? null : secdm.masterKeyPair.getEncoded());
+        out.writeLong(secdm.burnReceiptUniqueIDGenerator);
+        out.writeLong(secdm.lastCompositeVersion);
+    }
+
+    SecurityDataModel readSecurityDataModel(DataInputStream in, short version) throws IOException {
+        SecurityDataModel secdm = new SecurityDataModel();
+
+        int n = readCount(in);
+        for (int i = 0; i < n; i++) {
+            String email = readString(in);
+            secdm.emailToUserId.put(email, in.readInt());
+        }
+
+        n = readCount(in);
+        for (int i = 0; i < n; i++) {
+            long code = in.readLong();
+            int sponsorId = in.readInt();
+            long amount = in.readLong();
+            PendingInvite invite = new PendingInvite(sponsorId, amount, 0);
+            invite.expirationTimestamp = in.readInt();
+            secdm.pendingInvites.put(code, invite);
+        }
+
+        n = readCount(in);
+        for (int i = 0; i < n; i++) {
+            long sessionId = in.readLong();
+            UserSession session = new UserSession(in.readInt());
+            session.lastHitTimestamp = in.readInt();
+            session.timeoutMinutes = in.readInt();
+            secdm.userSessions.put(sessionId, session);
+        }
+
+        RecordReader rec = new RecordReader();
+        n = readCount(in);
+        for (int i = 0; i < n; i++) {
+            int userId = in.readInt();
+            secdm.privateAccounts.put(userId, readPrivateUserAccount(rec.begin(in)));
+            rec.end();
+        }
+
+        n = readCount(in);
+        for (int i = 0; i < n; i++) {
+            long code = in.readLong();
+            secdm.passwordResetCodes.put(code, in.readInt());
+        }
+
+        byte[] prkEncoded = readBytes(in);
+        if (prkEncoded != null)
+            secdm.masterKeyPair = new EncodedKeyPair(prkEncoded);
+        secdm.burnReceiptUniqueIDGenerator = in.readLong();
+        if (version >= 3)
+            secdm.lastCompositeVersion = in.readLong();
+        return secdm;
+    }
+
+    static void writePrivateUserAccount(DataOutput out, PrivateUserAccount pvt) throws IOException {
+        writeString(out, pvt.emailAddress);
+        out.writeInt(pvt.pendingInvitationCodes.size());
+        for (long code : pvt.pendingInvitationCodes)
+            out.writeLong(code);
+        writeBytes(out, pvt.burnReceipt);
+        out.writeBoolean(pvt.password != null);
+        if (pvt.password != null) {
+            writeString(out, pvt.password.hashedPassword);
+            writeString(out, pvt.password.salt);
+        }
+        out.writeBoolean(pvt.sessionId != null);
+        if (pvt.sessionId != null)
+            out.writeLong(pvt.sessionId);
+        out.writeInt(pvt.rateLimiterTimestamp);
+        out.writeInt(pvt.rateLimiterCounter);
+    }
+
+    static PrivateUserAccount readPrivateUserAccount(DataInput in) throws IOException {
+        PrivateUserAccount pvt = new PrivateUserAccount();
+        pvt.emailAddress = readString(in);
+        int n = readCount(in);
+        pvt.pendingInvitationCodes = new HashSet();
+        for (int i = 0; i < n; i++)
+            pvt.pendingInvitationCodes.add(in.readLong());
+        pvt.burnReceipt = readBytes(in);
+        if (in.readBoolean()) {
+            String hashedPassword = readString(in);
+            String salt = readString(in);
+            pvt.password = new StoredPassword(hashedPassword, salt);
+        }
+        if (in.readBoolean())
+            pvt.sessionId = in.readLong();
+        pvt.rateLimiterTimestamp = in.readInt();
+        pvt.rateLimiterCounter = in.readInt();
+        return pvt;
+    }
+
+    //===================================================================
+    // Primitives
+    //===================================================================
+
+    // Strings are a UTF-8 byte count followed by the bytes; -1 is null.
+    // (DataOutput.writeUTF() can't do null or more than 64K.)
+    static void writeString(DataOutput out, String s) throws IOException {
+        writeBytes(out, s == null ? null : s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static String readString(DataInput in) throws IOException {
+        byte[] b = readBytes(in);
+        return b == null ? null : new String(b, StandardCharsets.UTF_8);
+    }
+
+    static void writeBytes(DataOutput out, byte[] b) throws IOException {
+        if (b == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(b.length);
+            out.write(b);
+        }
+    }
+
+    static byte[] readBytes(DataInput in) throws IOException {
+        int len = in.readInt();
+        if (len < 0)
+            return null;
+        byte[] b = new byte[len];
+        in.readFully(b);
+        return b;
+    }
+
+    static void writeIntSet(DataOutput out, IntSet set) throws IOException {
+        int n = set.size();
+        out.writeInt(n);
+        for (int i = 0; i < n; i++)
+            out.writeInt(set.get(i));
+    }
+
+    // Sets written before IntSet can be in any order.
+    static IntSet readIntSet(DataInput in) throws IOException {
+        int n = readCount(in);
+        IntSet set = new IntSet(n);
+        for (int i = 0; i < n; i++)
+            set.add(in.readInt());
+        return set;
+    }
+
+    static int readCount(DataInput in) throws IOException {
+        int n = in.readInt();
+        if (n < 0)
+            throw new IOException("Binary snapshot is corrupted (negative count).");
+        return n;
+    }
+
+    // Writes one length-prefixed record. Reused across records.
+    static class RecordWriter {
+        final RecordBuffer buf = new RecordBuffer();
+        final DataOutputStream out = new DataOutputStream(buf);
+
+        DataOutputStream begin() {
+            buf.reset();
+            return out;
+        }
+
+        int size() {
+            return buf.size();
+        }
+
+        void writeTo(DataOutputStream dest) throws IOException {
+            dest.writeInt(buf.size());
+            buf.writeTo(dest);
+        }
+
+        // The record written since begin(), without copying it.
+        ByteBuffer record() {
+            return ByteBuffer.wrap(buf.bytes(), 0, buf.size());
+        }
+    }
+
+    static class RecordBuffer extends ByteArrayOutputStream {
+        RecordBuffer() {
+            super(1024);
+        }
+
+        byte[] bytes() {
+            return buf;
+        }
+    }
+
+    // Reads one length-prefixed record and checks that the record parser
+    //   consumed exactly that many bytes.
+    static class RecordReader {
+        byte[] buf = new byte[1024];
+        ByteArrayInputStream bin;
+
+        DataInputStream begin(DataInputStream in) throws IOException {
+            int len = readCount(in);
+            if (len > buf.length)
+                buf = new byte[Math.max(len, buf.length * 2)];
+            in.readFully(buf, 0, len);
+            bin = new ByteArrayInputStream(buf, 0, len);
+            return new DataInputStream(bin);
+        }
+
+        void end() throws IOException {
+            if (bin.available() != 0)
+                throw new IOException("Binary snapshot is corrupted (record length mismatch).");
+        }
+    }
+
+    //===================================================================
+    // Tools
+    //===================================================================
+
+    // Convert every Java-serialized snapshot in a prevalence base directory
+    //   that doesn't have a binary counterpart yet. The old files are left
+    //   alone. Returns the number of files written.
+    public static int convertSnapshots(String prevalenceBase) throws Exception {
+        PrevaylerDirectory directory = new PrevaylerDirectory(prevalenceBase);
+        File[] files = new File(prevalenceBase).listFiles();
+        if (files == null)
+            return 0;
+        Serializer javaSerializer = new JavaSerializer();
+        SnapshotCodec codec = new SnapshotCodec();
+        int converted = 0;
+        for (File file : files) {
+            if (! file.getName().endsWith("." + BackgroundSnapshotter.SNAPSHOT_SUFFIX))
+                continue;
+            long version = PrevaylerDirectory.snapshotVersion(file);
+            File binFile = directory.snapshotFile(version, SNAPSHOT_SUFFIX);
+            if (binFile.exists())
+                continue;
+            Object system = readFile(javaSerializer, file);
+            File tempFile = directory.createTempFile("snapshot" + version + "temp", "generatingSnapshot");
+            try {
+                writeFile(codec, system, tempFile);
+                if (! tempFile.renameTo(binFile))
+                    throw new IOException("Unable to rename " + tempFile + " to " + binFile);
+            } finally {
+                tempFile.delete(); // no-op if renamed
+            }
+            Main.log("Converted " + file + " (" + file.length() + " bytes) to "
+                    + binFile + " (" + binFile.length() + " bytes).");
+            ++converted;
+        }
+        return converted;
+    }
+
+    // Compare the Java serialization format, this one and this one 
+    //   compressed on the latest snapshot of a prevalence base directory: 
+    //   file size and best-of-N write and read times.
+    public static void benchmark(String prevalenceBase, int runs) throws Exception {
+        File file = new PrevaylerDirectory(prevalenceBase).latestSnapshot();
+        if (file == null) {
+            Main.log("Snapshot benchmark: no snapshot found in " + prevalenceBase);
+            return;
+        }
+        Serializer fileSerializer;
+        if (file.getName().endsWith("." + SNAPSHOT_SUFFIX))
+            fileSerializer = new SnapshotCodec();
+        else if (file.getName().endsWith("." + DeltaSnapshotCodec.SNAPSHOT_SUFFIX))
+            fileSerializer = new DeltaSnapshotCodec(prevalenceBase, false);
+        else if (file.getName().endsWith("." + CompressedSnapshotCodec.SNAPSHOT_SUFFIX))
+            fileSerializer = new CompressedSnapshotCodec(new SnapshotCodec(), Main.SNAPSHOT_COMPRESSION_THREADS);
+        else
+            fileSerializer = new JavaSerializer();
+        Object system = readFile(fileSerializer, file);
+        Main.log("Snapshot benchmark: " + file + " (" + runs + " runs)");
+        benchmark("java", new JavaSerializer(), system, runs);
+        benchmark("binary", new SnapshotCodec(), system, runs);
+        benchmark("compressed", new CompressedSnapshotCodec(new SnapshotCodec(), 
+                Main.SNAPSHOT_COMPRESSION_THREADS), system, runs);
+        benchmark("compressed, 1 thread", new CompressedSnapshotCodec(new SnapshotCodec(), 1), system, runs);
+    }
+
+    static void benchmark(String name, Serializer serializer, Object system, int runs) throws Exception {
+        File temp = File.createTempFile("anubis-snapshot-benchmark", ".tmp");
+        try {
+            long bestWrite = Long.MAX_VALUE;
+            long bestRead = Long.MAX_VALUE;
+            for (int i = 0; i < runs; i++) {
+                long t0 = System.nanoTime();
+                writeFile(serializer, system, temp);
+                long t1 = System.nanoTime();
+                readFile(serializer, temp);
+                long t2 = System.nanoTime();
+                bestWrite = Math.min(bestWrite, t1 - t0);
+                bestRead = Math.min(bestRead, t2 - t1);
+            }
+            Main.log("  " + name + ": " + temp.length() + " bytes, write "
+                    + (bestWrite / 1000000) + " ms, read " + (bestRead / 1000000) + " ms");
+        } finally {
+            temp.delete();
+        }
+    }
+
+    static Object readFile(Serializer serializer, File file) throws Exception {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            return serializer.readObject(in);
+        }
+    }
+
+    static void writeFile(Serializer serializer, Object system, File file) throws Exception {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            serializer.writeObject(out, system);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2017 The Anubis Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anubis;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import org.prevayler.implementation.PrevaylerDirectory;
+
+/**
+ * Moves the snapshot and journal files that no restart can need anymore 
+ *   out of a prevalence directory.
+ *
+ * The latest "keep" snapshots stay, along with the full snapshots their 
+ *   deltas were written on, and the journal files with the transactions
+ *   that come after the oldest of them. Everything older than that is 
+ *   moved to the ARCHIVE_DIRECTORY subdirectory, which ends up with the 
+ *   full history (the first snapshot and every journal since), or deleted
+ *   if "prune" is set.
+ * Journal files only become superseded if the journal starts new files
+ *   every so often (see GroupCommitJournal.startNewFile()).
+ */
+public class SnapshotRetention {
+
+    public static final String ARCHIVE_DIRECTORY = "archive";
+
+    final File dir;
+    final PrevaylerDirectory directory;
+    final int keep;
+    final boolean prune;
+
+    //===================================================================
+
+    // "keep" <= 0 keeps everything.
+    public SnapshotRetention(String prevalenceBase, int keep, boolean prune) {
+        this.dir = new File(prevalenceBase);
+        this.directory = new PrevaylerDirectory(prevalenceBase);
+        this.keep = keep;
+        this.prune = prune;
+    }
+
+    public boolean isPruning() {
+        return prune;
+    }
+
+    // Archive (or delete) the superseded files. Returns them.
+    public synchronized List<File> apply() throws IOException {
+        List<File> superseded = findSuperseded();
+        if (superseded.isEmpty())
+            return superseded;
+        File archive = new File(dir, ARCHIVE_DIRECTORY);
+        if ((! prune) && (! archive.isDirectory()) && (! archive.mkdirs()))
+            throw new IOException("Unable to create directory " + archive);
+        for (File f : superseded) {
+            if (prune)
+                Files.delete(f.toPath());
+            else
+                Files.move(f.toPath(), new File(archive, f.getName()).toPath(), 
+                        StandardCopyOption.REPLACE_EXISTING);
+        }
+        return superseded;
+    }
+
+    List<File> findSuperseded() throws IOException {
+        List<File> superseded = new ArrayList();
+        if (keep <= 0)
+            return superseded;
+        File[] files = dir.listFiles();
+        if (files == null)
+            throw new IOException("Error reading file list from directory " + dir);
+
+        // Snapshots (there can be more than one format of the same 
+        //   version) and journal files, by version
+        TreeMap<Long, List<File>> snapshots = new TreeMap();
+        TreeMap<Long, File> journals = new TreeMap();
+        for (File f : files) {
+            long version = PrevaylerDirectory.snapshotVersion(f);
+            if (version >= 0) {
+                snapshots.computeIfAbsent(version, v -> new ArrayList()).add(f);
+            } else {
+                version = PrevaylerDirectory.journalVersion(f);
+                if (version >= 0)
+                    journals.put(version, f);
+            }
+        }
+        if (snapshots.size() <= keep)
+            return superseded;
+
+        // The snapshots we keep, and what their deltas need
+        Set<File> needed = new HashSet();
+        long oldestKept = 0;
+        int count = 0;
+        for (Map.Entry<Long, List<File>> e : snapshots.descendingMap().entrySet()) {
+            if (count++ == keep)
+                break;
+            oldestKept = e.getKey();
+            for (File f : e.getValue()) {
+                needed.add(f);
+                if (f.getName().endsWith("." + DeltaSnapshotCodec.SNAPSHOT_SUFFIX))
+                    needed.add(directory.snapshotFile(DeltaSnapshotCodec.baseVersion(f), 
+                            SnapshotCodec.SNAPSHOT_SUFFIX));
+            }
+        }
+        for (List<File> versionFiles : snapshots.values())
+            for (File f : versionFiles)
+                if (! needed.contains(f))
+                    superseded.add(f);
+
+        // Restoring the oldest snapshot kept replays the journal from the
+        //   file with the transaction right after it.
+        Long firstJournal = journals.floorKey(oldestKept + 1);
+        if (firstJournal != null)
+            superseded.addAll(journals.headMap(firstJournal).values());
+        return superseded;
+    }
+}
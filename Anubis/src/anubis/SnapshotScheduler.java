@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2017 The Anubis Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anubis;
+
+import java.io.File;
+import java.io.IOException;
+import org.prevayler.implementation.PrevaylerDirectory;
+
+/**
+ * Starts the Server's background snapshots between ticks, so that a 
+ *   restart never has more than so much journal to replay.
+ *
+ * A snapshot is due when, since the last one was started, either journal
+ *   got Main.SNAPSHOT_TRANSACTIONS more transactions or grew by 
+ *   Main.SNAPSHOT_JOURNAL_MB megabytes, or Main.SNAPSHOT_INTERVAL_MINUTES
+ *   went by (with something new to snapshot), whichever comes first. A 
+ *   setting of 0 turns that trigger off. Replaying takes about the same 
+ *   time per transaction and per byte, so the first two are what bound 
+ *   the recovery time.
+ * The triggers are checked by a thread of our own every few seconds: the
+ *   main loop only wakes up once a minute.
+ */
+public class SnapshotScheduler {
+
+    static final long CHECK_INTERVAL_MILLIS = 5000;
+
+    final Server server;
+
+    // When the last snapshot was started, and the last transaction of each
+    //   journal at the time.
+    volatile long lastSnapshotMillis = System.currentTimeMillis();
+    volatile long dmVersion;
+    volatile long secdmVersion;
+
+    Thread thread;
+
+    //===================================================================
+
+    public SnapshotScheduler(Server server) throws IOException {
+        this.server = server;
+        // Whatever was replayed at startup counts as well
+        dmVersion = latestSnapshotVersion(server.dmJournal.directory);
+        secdmVersion = latestSnapshotVersion(server.secdmJournal.directory);
+    }
+
+    static long latestSnapshotVersion(PrevaylerDirectory directory) throws IOException {
+        File latest = directory.latestSnapshot();
+        return (latest != null) ? PrevaylerDirectory.snapshotVersion(latest) : 0;
+    }
+
+    public synchronized void start() {
+        if (thread != null)
+            return;
+        thread = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(CHECK_INTERVAL_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                check();
+            }
+        }, "snapshot-scheduler");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // The Server calls this whenever it starts a snapshot, scheduled or not.
+    public void snapshotStarted() {
+        lastSnapshotMillis = System.currentTimeMillis();
+        dmVersion = server.dmJournal.nextTransaction() - 1;
+        secdmVersion = server.secdmJournal.nextTransaction() - 1;
+    }
+
+    // Start a background snapshot if one is due.
+    public void check() {
+        if (server.dmSnapshotter.isRunning() || server.secdmSnapshotter.isRunning())
+            return;
+        String reason = due();
+        if (reason == null)
+            return;
+        Main.log("Scheduled snapshot: " + reason + ".");
+        try {
+            server.takeBackgroundSnapshot();
+        } catch (Exception e) {
+            Main.logError("Scheduled snapshot failed.", e);
+        }
+    }
+
+    // Why a snapshot is due, or null if it isn't.
+    public String due() {
+        String reason = due("dm", server.dmJournal, dmVersion);
+        if (reason == null)
+            reason = due("secdm", server.secdmJournal, secdmVersion);
+        if (reason != null)
+            return reason;
+        
+        long minutes = (System.currentTimeMillis() - lastSnapshotMillis) / 60000;
+        if ((Main.SNAPSHOT_INTERVAL_MINUTES > 0) && (minutes >= Main.SNAPSHOT_INTERVAL_MINUTES)
+                && ((server.dmJournal.nextTransaction() - 1 > dmVersion) 
+                    || (server.secdmJournal.nextTransaction() - 1 > secdmVersion)))
+            return minutes + " minutes since the last one";
+        return null;
+    }
+
+    static String due(String name, GroupCommitJournal journal, long version) {
+        long transactions = journal.nextTransaction() - 1 - version;
+        if (transactions <= 0)
+            return null;
+        if ((Main.SNAPSHOT_TRANSACTIONS > 0) && (transactions >= Main.SNAPSHOT_TRANSACTIONS))
+            return name + " journal has " + transactions + " transactions since the last one";
+        // the journal starts a new file at each snapshot, so this is about 
+        //   what was journaled since (see GroupCommitJournal.startNewFile())
+        long bytes = journal.journalBytes(version + 1);
+        if ((Main.SNAPSHOT_JOURNAL_MB > 0) && (bytes >= Main.SNAPSHOT_JOURNAL_MB * 1048576L))
+            return name + " journal has " + (bytes / 1048576) + " MB since the last one";
+        return null;
+    }
+}
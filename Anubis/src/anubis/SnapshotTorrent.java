@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2017 The Anubis Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anubis;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.prevayler.implementation.PrevaylerDirectory;
+
+/**
+ * Writes the .torrent metainfo (BitTorrent BEP 3) of the public snapshots.
+ *
+ * The DataModel snapshots are published as torrent downloads (see 
+ *   Server.dm). The torrent of a snapshot is named "anubis-dm-<version>" 
+ *   and has the snapshot file, plus its base if it is a delta; to seed it,
+ *   put those files in a directory of that name.
+ * The SHA-1 of the pieces is what takes time, so the pieces are split in
+ *   one contiguous run per thread, and every thread hashes its run straight
+ *   out of the memory-mapped files.
+ */
+public class SnapshotTorrent {
+
+    public static final String FILE_SUFFIX = "torrent";
+
+    // Piece length: the smallest power of two between these that keeps the
+    //   torrent at about TARGET_PIECES pieces or less.
+    static final int MIN_PIECE_LENGTH = 256 * 1024;
+    static final int MAX_PIECE_LENGTH = 16 * 1024 * 1024;
+    static final int TARGET_PIECES = 1500;
+
+    // FileChannel.map() can't do more than 2GB at once.
+    static final long REGION_SIZE = 1L << 30;
+
+    // What writing a torrent did.
+    public static class Report {
+        public File file;
+        public long version;
+        public int files;
+        public long bytes;        // of the files in the torrent
+        public int pieceLength;
+        public int pieces;
+        public String infoHash;   // hex
+        public long durationMillis;
+
+        @Override
+        public String toString() {
+            return file + ": version " + version + ", " + files + " files, " + bytes + " bytes, " 
+                    + pieces + " pieces of " + pieceLength + ", info hash " + infoHash + ", " 
+                    + durationMillis + " ms";
+        }
+    }
+
+    final List<File> files;
+    final long[] starts;
+    final long length;
+    final ByteBuffer[][] regions;
+
+    //===================================================================
+
+    // Write the torrent of the latest DataModel snapshot of "prevalenceBase"
+    //   (or of its archive) to the directory "dir", hashing on "threads"
+    //   threads. "announce" is the tracker URL, if any.
+    public static Report writeLatest(String prevalenceBase, File dir, String announce, int threads) throws Exception {
+        Map.Entry<Long, ArrayList<File>> latest = PointInTimeRestore.listSnapshots(prevalenceBase).lastEntry();
+        if (latest == null)
+            throw new IOException("No snapshot found in " + prevalenceBase);
+        long version = latest.getKey();
+        return write(snapshotFiles(latest.getValue(), prevalenceBase), "anubis-dm-" + version, 
+                new File(dir, String.format("%019d.%s", version, FILE_SUFFIX)), version, announce, threads);
+    }
+
+    public static Report write(List<File> files, String name, File torrentFile, long version, String announce, 
+            int threads) throws IOException 
+    {
+        long startMillis = System.currentTimeMillis();
+        SnapshotTorrent torrent = new SnapshotTorrent(files);
+        int pieceLength = pieceLength(torrent.length);
+        byte[] pieces = torrent.hashPieces(pieceLength, threads);
+
+        TreeMap<String, Object> info = new TreeMap();
+        ArrayList<Object> fileList = new ArrayList();
+        for (File file : files) {
+            TreeMap<String, Object> entry = new TreeMap();
+            entry.put("length", file.length());
+            ArrayList<Object> path = new ArrayList();
+            path.add(file.getName());
+            entry.put("path", path);
+            fileList.add(entry);
+        }
+        info.put("files", fileList);
+        info.put("name", name);
+        info.put("piece length", (long)pieceLength);
+        info.put("pieces", pieces);
+
+        TreeMap<String, Object> metainfo = new TreeMap();
+        if (announce != null)
+            metainfo.put("announce", announce);
+        metainfo.put("created by", "Anubis");
+        metainfo.put("creation date", System.currentTimeMillis() / 1000);
+        metainfo.put("info", info);
+
+        Utils.writeFileAtomically(torrentFile, encode(metainfo));
+
+        Report report = new Report();
+        report.file = torrentFile;
+        report.version = version;
+        report.files = files.size();
+        report.bytes = torrent.length;
+        report.pieceLength = pieceLength;
+        report.pieces = pieces.length / 20;
+        report.infoHash = Utils.hex(Utils.sha1().digest(encode(info)));
+        report.durationMillis = System.currentTimeMillis() - startMillis;
+        return report;
+    }
+
+    // The files that make up a snapshot: one of its formats (the first of
+    //   Server.snapshotSerializers() there is), and the base of a delta.
+    static List<File> snapshotFiles(ArrayList<File> versionFiles, String prevalenceBase) throws IOException {
+        for (String suffix : Server.snapshotSerializers(prevalenceBase, false).keySet()) {
+            for (File file : versionFiles) {
+                if (! file.getName().endsWith("." + suffix))
+                    continue;
+                ArrayList<File> files = new ArrayList();
+                if (suffix.equals(DeltaSnapshotCodec.SNAPSHOT_SUFFIX))
+                    files.add(new PrevaylerDirectory(PointInTimeRestore.baseDirectory(file, prevalenceBase))
+                            .snapshotFile(DeltaSnapshotCodec.baseVersion(file), SnapshotCodec.SNAPSHOT_SUFFIX));
+                files.add(file);
+                return files;
+            }
+        }
+        throw new IOException("Don't know how to publish snapshot " + versionFiles.get(0));
+    }
+
+    static int pieceLength(long length) {
+        int pieceLength = MIN_PIECE_LENGTH;
+        while ((pieceLength < MAX_PIECE_LENGTH) && (length / pieceLength > TARGET_PIECES))
+            pieceLength *= 2;
+        return pieceLength;
+    }
+
+    //===================================================================
+
+    // Map the files, which are one stream of bytes as far as the pieces go.
+    SnapshotTorrent(List<File> files) throws IOException {
+        this.files = files;
+        starts = new long[files.size()];
+        regions = new ByteBuffer[files.size()][];
+        long pos = 0;
+        for (int i = 0; i < files.size(); i++) {
+            starts[i] = pos;
+            try (RandomAccessFile raf = new RandomAccessFile(files.get(i), "r")) {
+                FileChannel channel = raf.getChannel();
+                long size = channel.size();
+                int regionCount = (int)((size + REGION_SIZE - 1) / REGION_SIZE);
+                regions[i] = new ByteBuffer[regionCount];
+                for (int r = 0; r < regionCount; r++) {
+                    long start = r * REGION_SIZE;
+                    regions[i][r] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(size - start, REGION_SIZE));
+                }
+                pos += size;
+            }
+        }
+        length = pos;
+    }
+
+    // The SHA-1 of every piece, one after the other.
+    byte[] hashPieces(int pieceLength, int threads) throws IOException {
+        int count = (int)((length + pieceLength - 1) / pieceLength);
+        byte[] pieces = new byte[20 * count];
+        threads = Math.max(1, Math.min(threads, count));
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "torrent-hash");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            ArrayList<Future<Void>> tasks = new ArrayList();
+            for (int i = 0; i < threads; i++) {
+                final int first = (int)((long)count * i / threads);
+                final int end = (int)((long)count * (i + 1) / threads);
+                tasks.add(pool.submit(() -> {
+                    MessageDigest sha1 = Utils.sha1();
+                    for (int p = first; p < end; p++) {
+                        long pos = (long)p * pieceLength;
+                        update(sha1, pos, Math.min(pieceLength, length - pos));
+                        sha1.digest(pieces, 20 * p, 20);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> task : tasks)
+                task.get();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while hashing torrent pieces.", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Cannot hash torrent pieces.", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        return pieces;
+    }
+
+    // Hash "len" bytes from "pos", across files and regions.
+    void update(MessageDigest sha1, long pos, long len) {
+        int f = 0;
+        while ((f + 1 < starts.length) && (starts[f + 1] <= pos))
+            ++f;
+        while (len > 0) {
+            long inFile = pos - starts[f];
+            long fileSize = ((f + 1 < starts.length) ? starts[f + 1] : length) - starts[f];
+            if (inFile >= fileSize) {
+                ++f;
+                continue;
+            }
+            int r = (int)(inFile / REGION_SIZE);
+            int offset = (int)(inFile % REGION_SIZE);
+            int n = (int)Math.min(len, Math.min(fileSize - inFile, REGION_SIZE - offset));
+            ByteBuffer buf = regions[f][r].duplicate();
+            buf.position(offset);
+            buf.limit(offset + n);
+            sha1.update(buf);
+            pos += n;
+            len -= n;
+        }
+    }
+
+    //===================================================================
+
+    // Bencoding of strings, byte strings, numbers, lists and (sorted) 
+    //   dictionaries.
+    static byte[] encode(Object value) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encode(out, value);
+        return out.toByteArray();
+    }
+
+    static void encode(ByteArrayOutputStream out, Object value) {
+        if (value instanceof String) {
+            encode(out, ((String)value).getBytes(StandardCharsets.UTF_8));
+        } else if (value instanceof byte[]) {
+            byte[] b = (byte[])value;
+            byte[] prefix = (b.length + ":").getBytes(StandardCharsets.US_ASCII);
+            out.write(prefix, 0, prefix.length);
+            out.write(b, 0, b.length);
+        } else if (value instanceof Long) {
+            byte[] b = ("i" + value + "e").getBytes(StandardCharsets.US_ASCII);
+            out.write(b, 0, b.length);
+        } else if (value instanceof List) {
+            out.write('l');
+            for (Object item : (List<?>)value)
+                encode(out, item);
+            out.write('e');
+        } else if (value instanceof TreeMap) {
+            out.write('d');
+            for (Map.Entry<?, ?> e : ((TreeMap<?, ?>)value).entrySet()) {
+                encode(out, e.getKey());
+                encode(out, e.getValue());
+            }
+            out.write('e');
+        } else {
+            throw new IllegalArgumentException("Can't bencode " + value);
+        }
+    }
+}
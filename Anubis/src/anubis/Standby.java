@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2017 The Anubis Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anubis;
+
+import anubis.sectx.CompositePartTx;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Map;
+import org.prevayler.foundation.Chunk;
+import org.prevayler.foundation.Chunking;
+import org.prevayler.foundation.serialization.Serializer;
+import org.prevayler.implementation.PrevaylerDirectory;
+import org.prevayler.implementation.TransactionTimestamp;
+
+/**
+ * A hot standby: copies of the models of a primary server, kept up to date
+ *   from its journals, that can take its place in seconds.
+ *
+ * The standby runs on the primary's data directory (a shared disk), and 
+ *   writes nothing there while it follows: it loads the latest snapshots
+ *   the way a restart does, and then applies the entries the primary 
+ *   appends to the dm and secdm journals, reading them from where it left
+ *   off every Main.STANDBY_POLL_MILLIS. An entry the primary is still 
+ *   writing is read again at the next poll.
+ * It is promoted when the promote file shows up (see Main --standby): it
+ *   applies whatever is left, and if the journals have stopped growing 
+ *   (a primary that is still writing them has to be stopped first) it 
+ *   becomes a Server on the same directory, with the models it has. Only
+ *   the entries since the last poll are replayed then.
+ * The replication lag is how many entries the last poll found, and how 
+ *   long the oldest of them had been in the journal by then.
+ */
+public class Standby {
+
+    // How often the lag is logged.
+    static final long LAG_LOG_INTERVAL_MILLIS = 60 * 1000;
+
+    // What the standby is at.
+    public static class Lag {
+        public long version;          // last transaction applied
+        public long transactions;     // applied by the last poll
+        public long millis;           // age of the oldest of them
+        public long lastEntryTime;    // execution time of the last one applied (ms)
+
+        @Override
+        public String toString() {
+            return "at transaction " + version + ", lag " + transactions + " transactions, " 
+                    + String.format("%.1f", millis / 1000.0) + " s";
+        }
+    }
+
+    // One model and the journal it follows.
+    static class Follower<P> {
+        final String name;
+        final PrevaylerDirectory directory;
+        final ReadWriteGuard<P> guard;
+
+        // Journal file being read, and the bytes of it already applied.
+        File journal;
+        long position;
+
+        final Lag lag = new Lag();
+
+        Follower(String name, String prevalenceBase, P system) throws Exception {
+            this.name = name;
+            directory = new PrevaylerDirectory(prevalenceBase);
+            Map<String, Serializer> serializers = Server.snapshotSerializers(prevalenceBase, Main.LAZY_LOAD_ACCOUNTS);
+            guard = new ReadWriteGuard.SnapshotManager<P>(serializers, serializers.keySet().iterator().next(), 
+                    system, directory, new JournalCodec()).recoveredPrevalentSystem();
+            lag.version = guard.getVersion();
+        }
+
+        // Apply the complete entries appended since the last poll. Returns
+        //   how many there were.
+        long poll() throws Exception {
+            long now = System.currentTimeMillis();
+            long applied = 0;
+            long oldest = -1;
+            while (true) {
+                if (journal == null) {
+                    journal = directory.findInitialJournalFile(lag.version + 1);
+                    position = 0;
+                    if ((journal == null) || (! journal.exists())) {
+                        journal = null;
+                        break;
+                    }
+                }
+                try (FileInputStream fin = new FileInputStream(journal)) {
+                    fin.getChannel().position(position);
+                    JournalIndex.CountingInputStream in = new JournalIndex.CountingInputStream(new BufferedInputStream(fin));
+                    while (true) {
+                        Chunk chunk;
+                        try {
+                            chunk = Chunking.readChunk(in);
+                        } catch (IOException e) {
+                            chunk = null;
+                        }
+                        if (chunk == null)
+                            break; // the end, for now
+                        TransactionTimestamp ts = TransactionTimestamp.fromChunk(chunk);
+                        if (ts.systemVersion() > lag.version) {
+                            if (ts.systemVersion() != lag.version + 1)
+                                throw new IOException("Journal " + journal + ": expected transaction "
+                                        + (lag.version + 1) + " but found " + ts.systemVersion());
+                            GroupCommitJournal.executingVersion.set(ts.systemVersion());
+                            GroupCommitJournal.executingTime.set(ts.executionTime());
+                            try {
+                                guard.receive(ts);
+                            } catch (RuntimeException e) {
+                                // Prevayler ignores these while recovering, and so do we.
+                            }
+                            lag.version = ts.systemVersion();
+                            lag.lastEntryTime = ts.executionTime().getTime();
+                            if (oldest < 0)
+                                oldest = lag.lastEntryTime;
+                            ++applied;
+                        }
+                        position += in.count;
+                        in.count = 0;
+                    }
+                }
+                // the primary starts a new file with each snapshot
+                File next = directory.journalFile(lag.version + 1, BackgroundSnapshotter.JOURNAL_SUFFIX);
+                if (next.equals(journal) || (! next.exists()))
+                    break;
+                journal = next;
+                position = 0;
+            }
+            lag.transactions = applied;
+            lag.millis = (oldest < 0) ? 0 : Math.max(0, now - oldest);
+            return applied;
+        }
+    }
+
+    final String dataDir;
+    final Follower<DataModel> dm;
+    final Follower<SecurityDataModel> secdm;
+
+    // Composite parts of the dm transactions applied (see 
+    //   Server.keepCompositePart()) that the secdm doesn't have yet. 
+    final ArrayList<CompositePartTx> compositeParts = new ArrayList();
+
+    //===================================================================
+
+    // Load the latest snapshots of the primary's data directory.
+    public Standby(String dataDir) throws Exception {
+        this.dataDir = dataDir;
+        dm = new Follower<>("dm", Paths.get(dataDir, "dm").toString(), new DataModel());
+        secdm = new Follower<>("secdm", Paths.get(dataDir, "secdm").toString(), new SecurityDataModel());
+        dm.guard.prevalentSystem().securityLink = transactions -> {
+            compositeParts.add(new CompositePartTx(GroupCommitJournal.currentTransaction(), transactions, 
+                    GroupCommitJournal.currentTransactionTime()));
+            return null;
+        };
+        Main.log("Standby: loaded dm snapshot " + dm.lag.version + " and secdm snapshot " 
+                + secdm.lag.version + " from " + dataDir + ".");
+    }
+
+    // Apply what both journals have that we don't. Returns how many 
+    //   entries that was.
+    public synchronized long poll() throws Exception {
+        long applied = secdm.poll() + dm.poll();
+        long lastComposite = secdm.guard.prevalentSystem().getLastCompositeVersion();
+        compositeParts.removeIf(part -> part.getDmVersion() <= lastComposite);
+        return applied;
+    }
+
+    public synchronized Lag getLag(boolean dmLag) {
+        return dmLag ? dm.lag : secdm.lag;
+    }
+
+    // Follow the journals until "promoteFile" shows up and the journals 
+    //   stop growing. Deletes the promote file.
+    public void follow(File promoteFile) throws Exception {
+        long lastLogMillis = 0;
+        Main.log("Standby: following the journals; create " + promoteFile + " to promote.");
+        while (true) {
+            poll();
+            long now = System.currentTimeMillis();
+            if (now - lastLogMillis >= LAG_LOG_INTERVAL_MILLIS) {
+                lastLogMillis = now;
+                logLag();
+            }
+            if (promoteFile.exists()) {
+                // one more poll after a while: anything new means the 
+                //   primary is still alive
+                Thread.sleep(Main.STANDBY_POLL_MILLIS);
+                long applied = poll();
+                promoteFile.delete();
+                if (applied == 0)
+                    return;
+                Main.logError("Standby: not promoted, the primary is still writing its journals (" 
+                        + applied + " new entries). Stop it first.");
+            }
+            Thread.sleep(Main.STANDBY_POLL_MILLIS);
+        }
+    }
+
+    public void logLag() {
+        Main.log("Standby: dm " + getLag(true) + "; secdm " + getLag(false) + ".");
+    }
+
+    // Become the primary: a Server on the same data directory, with the 
+    //   models followed so far. The standby can't be used after this.
+    public Server promote() throws Exception {
+        long startMillis = System.currentTimeMillis();
+        poll();
+        logLag();
+        Server server = new Server(dataDir, this);
+        Main.log("Standby: promoted in " + (System.currentTimeMillis() - startMillis) + " ms.");
+        return server;
+    }
+}
@@ -17,14 +17,816 @@
 package anubis;
 
 import static anubis.Main.*;
+import anubis.sectx.BindUserIdToEmailTx;
+import anubis.sectx.CheckInviteTx;
+import anubis.sectx.CollectGarbageTx;
+import anubis.sectx.CompositePartTx;
+import anubis.sectx.CreateBurnReceiptTx;
+import anubis.sectx.CreatePendingInviteTx;
+import anubis.sectx.DeletePendingInviteTx;
+import anubis.sectx.GetPasswordResetCodeTx;
+import anubis.sectx.GetPasswordSalt;
+import anubis.sectx.LogoutTx;
+import anubis.sectx.RefreshSessionsTx;
+import anubis.sectx.ResetPasswordTx;
+import anubis.sectx.SecTxCodec;
+import anubis.sectx.SetMasterKeypairTx;
+import anubis.sectx.SetUserPasswordTx;
+import anubis.sectx.TouchSessionTx;
+import anubis.tx.AcceptInviteTx;
+import anubis.tx.AddValidationTx;
+import anubis.tx.BurnMoneyTx;
+import anubis.tx.BurnMoneyWithReceiptTx;
+import anubis.tx.ChallengeTrustTx;
+import anubis.tx.CreateInviteTx;
+import anubis.tx.DeleteAccountTx;
+import anubis.tx.EditPersonalInfoTx;
+import anubis.tx.ReleaseMinBalancesTx;
+import anubis.tx.RemoveValidationTx;
+import anubis.tx.RequestTrustTx;
+import anubis.tx.SendMoneyTx;
+import anubis.tx.SetAnchorStatusTx;
+import anubis.tx.TickTx;
+import anubis.tx.TouchLoginTimestampTx;
+import anubis.tx.TxCodec;
+import anubis.tx.UnburnMoneyTx;
+import anubis.tx.VoteTrustTx;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.ObjectStreamField;
+import java.io.OutputStream;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.ConcurrentModificationException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import org.prevayler.foundation.serialization.JavaSerializer;
+import org.prevayler.foundation.serialization.Serializer;
 
 /**
  * Unit tests.
  */
 public class Tests {
-    
+
     public static void run(Server server) throws Exception {
 
-        // TODO.
+        testJournalCodec();
+        testSnapshotCodec();
+        testCompressedSnapshotCodec();
+        testSnapshotChecksums();
+        testUserAccountSerialization();
+        testIntSet();
+    }
+
+    //===================================================================
+    // Journal codec (JournalCodec, TxCodec and SecTxCodec)
+    //===================================================================
+
+    // One transaction (or more) of every tag, with the fields set to
+    //   something other than their defaults.
+    static List<Object> sampleTransactions() {
+        ArrayList<PendingInvite> invites = new ArrayList();
+        invites.add(new PendingInvite(3, 20000, 1000));
+        invites.add(new PendingInvite(4, 30000, 2000));
+        HashMap<Long, Integer> lastHits = new HashMap();
+        lastHits.put(7L, 100);
+        lastHits.put(-8L, 200);
+        ArrayList<Object> part = new ArrayList();
+        part.add(new anubis.sectx.CreateUserTx(samplePrivateAccount(), 5));
+        part.add(new BindUserIdToEmailTx(5, "five@example.com"));
+        part.add(new DeletePendingInviteTx(12345L));
+        return Arrays.asList(
+            new SendMoneyTx(1, 2, 30000, true, false),
+            new AddValidationTx(1, 2),
+            new RemoveValidationTx(1, 2, true, false),
+            new BurnMoneyTx(1, 40000),
+            new UnburnMoneyTx(1, 40000),
+            new ChallengeTrustTx(1, 2),
+            new RequestTrustTx(3),
+            new VoteTrustTx(1, true),
+            new CreateInviteTx(1, 50000),
+            new anubis.tx.CreateUserTx(sampleAccount(5), 1),
+            new anubis.tx.CreateUserTx(null, 1),
+            new anubis.tx.DeleteUserTx(4),
+            new EditPersonalInfoTx(1, "Name", new ArrayList(Arrays.asList("line 1", "", "line é"))),
+            new EditPersonalInfoTx(1, null, null),
+            new ReleaseMinBalancesTx(invites),
+            new ReleaseMinBalancesTx(null),
+            new SetAnchorStatusTx(1, true),
+            new TickTx(),
+            new TouchLoginTimestampTx(1),
+            new AcceptInviteTx(sampleAccount(6), samplePrivateAccount(), 1, 12345L, 60000),
+            new anubis.tx.LoginTx(1, new StoredPassword("hash", "salt"), -99L, new UserSession(1)),
+            new anubis.tx.LoginTx(1, null, 0, null),
+            new DeleteAccountTx(4),
+            new BurnMoneyWithReceiptTx(1, 40000, new byte[] { 1, 2, 3 }),
+            new anubis.sectx.LoginTx(1, new StoredPassword("hash", "salt"), 99L, new UserSession(1)),
+            new LogoutTx(5),
+            new TouchSessionTx(5),
+            new RefreshSessionsTx(lastHits),
+            new anubis.sectx.CreateUserTx(samplePrivateAccount(), 3),
+            new anubis.sectx.DeleteUserTx(3),
+            new BindUserIdToEmailTx(1, "one@example.com"),
+            new CheckInviteTx(5),
+            new CreatePendingInviteTx(5, new PendingInvite(1, 20000, 3000)),
+            new DeletePendingInviteTx(5),
+            new CollectGarbageTx(new ArrayList(Arrays.asList(1, 2))),
+            new CreateBurnReceiptTx(1, 40000, new byte[] { 4, 5 }),
+            new GetPasswordResetCodeTx(1, "one@example.com", 777L),
+            new ResetPasswordTx(new StoredPassword("hash", "salt"), 777L),
+            new SetUserPasswordTx(1, new StoredPassword("hash", "salt")),
+            new SetMasterKeypairTx(new EncodedKeyPair(new byte[] { 9, 8, 7 })),
+            new SetMasterKeypairTx(null),
+            new CompositePartTx(42, part),
+            new CompositePartTx(43, new ArrayList(part), new Date(1500000000123L)));
+    }
+
+    static UserAccount sampleAccount(int userId) {
+        UserAccount acc = new UserAccount();
+        acc.name = "User " + userId;
+        acc.profile.add("http://example.com/" + userId);
+        acc.profile.add("Some ünicode text");
+        acc.validationOut.add(userId + 1);
+        acc.validationOut.add(userId + 2);
+        acc.validationIn.add(userId + 2);
+        acc.log(new LogEntry(1000, LogEntry.SEND_MONEY, 30000, userId + 1));
+        acc.log(new LogEntry(1001, LogEntry.UBI, 330000, -1));
+        acc.authOtherUserId = userId + 3;
+        acc.authSelfUserId = userId;
+        acc.creationTimestamp = 900;
+        acc.lastLoginTimestamp = 1002;
+        acc.lastVerificationTimestamp = 950;
+        acc.balance = 1234567;
+        acc.minBalance = 20000;
+        acc.flags = UserAccount.USER_FLAG_AUTHENTIC;
+        return acc;
+    }
+
+    static PrivateUserAccount samplePrivateAccount() {
+        PrivateUserAccount acc = new PrivateUserAccount();
+        acc.emailAddress = "someone@example.com";
+        acc.pendingInvitationCodes.add(12345L);
+        acc.pendingInvitationCodes.add(-6789L);
+        acc.burnReceipt = new byte[] { 1, 2, 3, 4 };
+        acc.password = new StoredPassword("hash", "salt");
+        acc.sessionId = 55L;
+        acc.rateLimiterTimestamp = 1003;
+        acc.rateLimiterCounter = 2;
+        return acc;
+    }
+
+    static void testJournalCodec() throws Exception {
+        JournalCodec codec = new JournalCodec();
+        JournalCodec oldOrderCodec = new JournalCodec(true);
+        JavaSerializer java = new JavaSerializer();
+        Set<Integer> tags = new TreeSet();
+        for (Object tx : sampleTransactions()) {
+            String name = tx.getClass().getName();
+            boolean dm = tx.getClass().getPackage() == TxCodec.class.getPackage();
+
+            // Encoded with a tag, and read back with the same fields
+            byte[] encoded = JournalCodec.encode(codec, tx);
+            check((encoded[0] & 0xFF) == JournalCodec.MARKER, name + " is written with the marker");
+            check(encoded[1] == JournalCodec.VERSION, name + " is written with the current version");
+            int tag = encoded[2] & 0xFF;
+            check(tag != JournalCodec.JAVA_TAG, name + " is written with a tag");
+            check((tag < JournalCodec.FIRST_SECTX_TAG) == dm, name + " has a tag of its journal");
+            tags.add(tag);
+            Object decoded = codec.readObject(new ByteArrayInputStream(encoded));
+            checkSameFields(tx, decoded, name + " read back");
+
+            // Same as Java serialization, written after the JAVA_TAG
+            byte[] serialized = JournalCodec.encode(java, tx);
+            Object viaJava = java.readObject(new ByteArrayInputStream(serialized));
+            checkSameFields(viaJava, decoded, name + " read back, against Java serialization");
+            byte[] fallback = new byte[3 + serialized.length];
+            fallback[0] = (byte)JournalCodec.MARKER;
+            fallback[1] = (byte)JournalCodec.VERSION;
+            fallback[2] = (byte)JournalCodec.JAVA_TAG;
+            System.arraycopy(serialized, 0, fallback, 3, serialized.length);
+            checkSameFields(tx, codec.readObject(new ByteArrayInputStream(fallback)), name + " after the JAVA_TAG");
+
+            // Old journals: Java serialization alone, and version 1 entries.
+            //   Those of the DataModel are only read in the old order.
+            check((serialized[0] & 0xFF) == 0xAC, name + " serialized starts with 0xAC");
+            byte[] version1 = encoded.clone();
+            version1[1] = 1;
+            for (byte[] old : new byte[][] { serialized, version1 }) {
+                String what = name + " from an old journal (first byte " + (old[0] & 0xFF) + ")";
+                checkSameFields(tx, oldOrderCodec.readObject(new ByteArrayInputStream(old)), what);
+                if (dm) {
+                    try {
+                        codec.readObject(new ByteArrayInputStream(old));
+                        check(false, what + " is refused");
+                    } catch (IOException e) {
+                        check(e.getMessage().contains("ascending user ID order"), what + " is refused: " + e);
+                    }
+                } else {
+                    checkSameFields(tx, codec.readObject(new ByteArrayInputStream(old)), what);
+                }
+            }
+
+            // A torn entry isn't read as something else
+            for (int n = 1; n < encoded.length; n++)
+                checkUnreadable(codec, Arrays.copyOf(encoded, n), name + " cut to " + n + " bytes");
+            checkUnreadable(codec, Arrays.copyOf(encoded, encoded.length + 1), name + " with a trailing byte");
+        }
+
+        // Every tag the codecs know has a sample above
+        Set<Integer> known = new TreeSet();
+        for (int tag = 0; tag < JournalCodec.JAVA_TAG; tag++) {
+            DataInputStream empty = new DataInputStream(new ByteArrayInputStream(new byte[0]));
+            try {
+                if (tag < JournalCodec.FIRST_SECTX_TAG)
+                    TxCodec.read(tag, empty);
+                else
+                    SecTxCodec.read(tag, empty);
+                known.add(tag);
+            } catch (EOFException e) {
+                known.add(tag);
+            } catch (IOException e) {
+                // Unknown tag
+            }
+        }
+        check(tags.equals(known), "Tags tested " + tags + " are the known tags " + known);
+
+        // Transactions the codecs can't write go after the JAVA_TAG
+        ArrayList<Object> untagged = new ArrayList();
+        untagged.add(new GetPasswordSalt(1));
+        Object[] fallbacks = {
+            new CompositePartTx(44, untagged), // no tag
+            new CollectGarbageTx(new ArrayList(Arrays.asList(1, null))) // unboxing throws
+        };
+        for (Object tx : fallbacks) {
+            String name = tx.getClass().getName();
+            byte[] encoded = JournalCodec.encode(codec, tx);
+            check((encoded[2] & 0xFF) == JournalCodec.JAVA_TAG, name + " is written after the JAVA_TAG");
+            checkSameFields(tx, codec.readObject(new ByteArrayInputStream(encoded)), name + " read back");
+        }
+
+        // Unknown versions and tags
+        checkUnreadable(codec, new byte[] { (byte)JournalCodec.MARKER, JournalCodec.VERSION + 1, 1 }, "A newer version");
+        checkUnreadable(codec, new byte[] { (byte)JournalCodec.MARKER, JournalCodec.VERSION, 63 }, "An unknown tag");
+
+        log("Journal codec: " + tags.size() + " tags OK.");
+    }
+
+    //===================================================================
+    // Snapshot codec (SnapshotCodec)
+    //===================================================================
+
+    static DataModel sampleDataModel() {
+        DataModel dm = new DataModel();
+        dm.epochDay = 17500;
+        dm.userAccountIDGenerator = 60;
+        dm.internalAccountIDGenerator = DataModel.MIN_INTERNAL_ACCOUNT_ID + 2;
+        dm.totalMoney = 987654321;
+        dm.totalTrusted = 12;
+        dm.totalDays = 345;
+        for (int userId = 0; userId <= dm.userAccountIDGenerator; userId++)
+            if (userId % 7 != 3) // and some deleted ones
+                dm.accounts.put(userId, sampleAccount(userId));
+        dm.accounts.get(12).profile.clear();
+        dm.accounts.get(13).validationIn.clear();
+        dm.internalAccounts.put(DataModel.MIN_INTERNAL_ACCOUNT_ID, new Balance(5000));
+        dm.internalAccounts.put(DataModel.MIN_INTERNAL_ACCOUNT_ID + 1, new Balance(-7));
+        PendingAuthentication auth = new PendingAuthentication(new HashSet(Arrays.asList(1, 2, 4)), 1500);
+        auth.vote(2, true);
+        auth.vote(4, false);
+        dm.pendingAuthentications.put(5, auth);
+        dm.pendingAuthentications.put(6, new PendingAuthentication(new HashSet(), 1600));
+        return dm;
+    }
+
+    static SecurityDataModel sampleSecurityDataModel() {
+        SecurityDataModel secdm = new SecurityDataModel();
+        for (int userId = 0; userId < 20; userId++) {
+            PrivateUserAccount acc = samplePrivateAccount();
+            acc.emailAddress = "user" + userId + "@example.com";
+            if (userId % 2 == 0) {
+                acc.burnReceipt = null;
+                acc.password = null;
+                acc.sessionId = null;
+            }
+            secdm.privateAccounts.put(userId, acc);
+            secdm.emailToUserId.put(acc.emailAddress, userId);
+        }
+        secdm.pendingInvites.put(12345L, new PendingInvite(1, 20000, 3000));
+        secdm.pendingInvites.put(-6789L, new PendingInvite(2, 30000, 4000));
+        UserSession session = new UserSession(3);
+        session.lastHitTimestamp = 1700;
+        session.timeoutMinutes = 30;
+        secdm.userSessions.put(55L, session);
+        secdm.userSessions.put(-56L, new UserSession(4));
+        secdm.passwordResetCodes.put(777L, 5);
+        secdm.masterKeyPair = new EncodedKeyPair(new byte[] { 9, 8, 7 });
+        secdm.burnReceiptUniqueIDGenerator = 99;
+        secdm.lastCompositeVersion = 4242;
+        return secdm;
+    }
+
+    static void testSnapshotCodec() throws Exception {
+        SnapshotCodec codec = new SnapshotCodec();
+        SnapshotCodec lazyCodec = new SnapshotCodec(true);
+        JavaSerializer java = new JavaSerializer();
+        File file = File.createTempFile("anubis-test", "." + SnapshotCodec.SNAPSHOT_SUFFIX);
+        try {
+            for (Object model : new Object[] { sampleDataModel(), sampleSecurityDataModel() }) {
+                String name = model.getClass().getSimpleName();
+                Object viaJava = java.readObject(new ByteArrayInputStream(JournalCodec.encode(java, model)));
+                ByteArrayOutputStream buf = new ByteArrayOutputStream();
+                codec.writeObject(buf, model);
+                byte[] written = buf.toByteArray();
+
+                // The current version and the older ones, from a stream, 
+                //   and from a file: with the checksums verified, and the
+                //   DataModel's accounts loaded lazily.
+                for (short version = 3; version <= SnapshotCodec.SCHEMA_VERSION; version++) {
+                    String what = name + " of schema version " + version;
+                    byte[] snapshot = (version == SnapshotCodec.SCHEMA_VERSION) ? written : oldSnapshot(model, version);
+                    Files.write(file.toPath(), snapshot);
+                    checkSameFields(viaJava, codec.readObject(new ByteArrayInputStream(snapshot)), what);
+                    try (FileInputStream in = new FileInputStream(file)) {
+                        checkSameFields(viaJava, codec.readObject(in), what + " from a file");
+                    }
+                    Object lazy;
+                    try (FileInputStream in = new FileInputStream(file)) {
+                        lazy = lazyCodec.readObject(in);
+                    }
+                    if (lazy instanceof DataModel) {
+                        AccountTable table = (AccountTable)((DataModel)lazy).accounts;
+                        check(table.oldOrder == (version < SnapshotCodec.ASCENDING_ORDER_SINCE), what + " order");
+                        check(table.getLazyCount() == table.size(), what + " has its accounts not decoded yet");
+                        if (version == SnapshotCodec.SCHEMA_VERSION) {
+                            buf.reset();
+                            codec.writeObject(buf, lazy);
+                            check(Arrays.equals(buf.toByteArray(), written), what + " is written back as it was read");
+                        }
+                    }
+                    checkSameFields(viaJava, lazy, what + " loaded lazily");
+                    if (lazy instanceof DataModel)
+                        check(((AccountTable)((DataModel)lazy).accounts).getLazyCount() == 0, what + " is all decoded");
+                }
+
+                // Newer versions and damaged files are refused
+                byte[] newer = written.clone();
+                newer[5] = SnapshotCodec.SCHEMA_VERSION + 1;
+                checkUnreadable(codec, newer, name + " of a newer schema version");
+                checkUnreadable(codec, Arrays.copyOf(written, written.length - 30), name + " truncated");
+                byte[] flipped = written.clone();
+                flipped[written.length / 2] ^= 1;
+                Files.write(file.toPath(), flipped);
+                try (FileInputStream in = new FileInputStream(file)) {
+                    codec.readObject(in);
+                    check(false, name + " with a flipped byte is refused");
+                } catch (IOException e) {
+                    check(e.getMessage().contains("checksum mismatch"), name + " with a flipped byte is refused: " + e);
+                }
+            }
+        } finally {
+            file.delete();
+        }
+        log("Snapshot codec: schema versions 3 to " + SnapshotCodec.SCHEMA_VERSION + " OK.");
+    }
+
+    // A snapshot of an older schema version (3 to 5), made from what this 
+    //   version writes: the DataModel had request counters before version
+    //   5, and there were no checksums before version 4.
+    static byte[] oldSnapshot(Object model, short version) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buf);
+        out.writeInt(SnapshotCodec.MAGIC);
+        out.writeShort(version);
+        SnapshotCodec codec = new SnapshotCodec();
+        boolean counters = (model instanceof DataModel) && (version < 5);
+        if (model instanceof DataModel) {
+            out.writeByte(SnapshotCodec.KIND_DATA_MODEL);
+            if (counters)
+                out.write(new byte[16]); // room for them, so the account offsets are right
+            codec.writeDataModel(out, (DataModel)model);
+        } else {
+            out.writeByte(SnapshotCodec.KIND_SECURITY_DATA_MODEL);
+            codec.writeSecurityDataModel(out, (SecurityDataModel)model);
+        }
+        out.writeInt(SnapshotCodec.END_MARKER);
+        out.flush();
+        byte[] content = buf.toByteArray();
+        if (counters) {
+            // epochDay to totalMoney, totalTx, totalTrusted and totalDays,
+            //   txCountLastHour and an empty txCount
+            byte[] current = Arrays.copyOfRange(content, 7 + 16, 7 + 16 + 28);
+            ByteBuffer.wrap(content, 7, 44).put(current, 0, 20).putLong(123456789)
+                    .put(current, 20, 8).putInt(42).putInt(0);
+        }
+        if (version < SnapshotChecksums.SCHEMA_VERSION)
+            return content;
+        buf.reset();
+        SnapshotChecksums.Writer sums = new SnapshotChecksums.Writer(buf);
+        sums.write(content);
+        sums.finish();
+        return buf.toByteArray();
+    }
+
+    //===================================================================
+    // Compressed snapshots (CompressedSnapshotCodec)
+    //===================================================================
+
+    // Writes a byte array as it is, and reads "length" bytes back, so 
+    //   whatever is after them is left in the stream.
+    static Serializer rawBytes(int length) {
+        return new Serializer() {
+            @Override
+            public void writeObject(OutputStream stream, Object object) throws Exception {
+                stream.write((byte[])object);
+            }
+
+            @Override
+            public Object readObject(InputStream stream) throws Exception {
+                byte[] b = new byte[length];
+                new DataInputStream(stream).readFully(b);
+                return b;
+            }
+        };
+    }
+
+    // Some bytes that deflate well, and some that don't.
+    static byte[] sampleBytes(int length) {
+        byte[] b = new byte[length];
+        Random random = new Random(length);
+        for (int i = 0; i < length; i++)
+            b[i] = (i % 3 == 0) ? (byte)random.nextInt() : (byte)(i / 100);
+        return b;
+    }
+
+    static void testCompressedSnapshotCodec() throws Exception {
+        int block = CompressedSnapshotCodec.BLOCK_SIZE;
+        for (int length : new int[] { 0, 3000, block, 2 * block + 7 }) {
+            String what = "Compressed " + length + " bytes";
+            byte[] raw = sampleBytes(length);
+            Serializer codec = new CompressedSnapshotCodec(rawBytes(length), 2);
+            byte[] compressed = JournalCodec.encode(codec, raw);
+            check(Arrays.equals((byte[])codec.readObject(new ByteArrayInputStream(compressed)), raw), what);
+
+            // Bytes the snapshot didn't read, in its last block or in 
+            //   another one after it
+            for (int extra : new int[] { 1, block }) {
+                byte[] longer = JournalCodec.encode(new CompressedSnapshotCodec(rawBytes(length + extra), 2), 
+                        sampleBytes(length + extra));
+                try {
+                    codec.readObject(new ByteArrayInputStream(longer));
+                    check(false, what + " followed by " + extra + " more is refused");
+                } catch (IOException e) {
+                    check(e.getMessage().contains("data after the snapshot"), what + " followed by " 
+                            + extra + " more is refused: " + e);
+                }
+            }
+
+            // Truncated anywhere
+            for (int n = 0; n < compressed.length; n += Math.max(1, compressed.length / 500))
+                checkUnreadable(codec, Arrays.copyOf(compressed, n), what + " cut to " + n + " bytes");
+
+            // A flipped bit anywhere after the header (any block size is
+            //   good enough to read with, as long as the blocks fit). The
+            //   low one: the high bits of a block's last byte can be 
+            //   deflate's padding.
+            if (length <= 3000)
+                for (int i = 10; i < compressed.length; i++) {
+                    byte[] flipped = compressed.clone();
+                    flipped[i] ^= 1;
+                    checkUnreadable(codec, flipped, what + " with byte " + i + " flipped");
+                }
+        }
+
+        // A real one
+        Serializer codec = new CompressedSnapshotCodec(new SnapshotCodec(), 2);
+        DataModel dm = sampleDataModel();
+        checkSameFields(dm, codec.readObject(new ByteArrayInputStream(JournalCodec.encode(codec, dm))), 
+                "Compressed DataModel");
+        log("Compressed snapshot codec: OK.");
+    }
+
+    //===================================================================
+    // Snapshot checksums (SnapshotChecksums)
+    //===================================================================
+
+    static void testSnapshotChecksums() throws Exception {
+        int section = SnapshotChecksums.SECTION_SIZE;
+        File file = File.createTempFile("anubis-test", "." + SnapshotCodec.SNAPSHOT_SUFFIX);
+        try {
+            for (int length : new int[] { 0, 100, 2 * section, 2 * section + 100 }) {
+                String what = "Checksums of " + length + " bytes";
+                byte[] content = sampleBytes(length);
+                ByteArrayOutputStream buf = new ByteArrayOutputStream();
+                SnapshotChecksums.Writer sums = new SnapshotChecksums.Writer(buf);
+                sums.write(content, 0, Math.min(length, 10)); // both ways of writing
+                for (int i = Math.min(length, 10); i < Math.min(length, 20); i++)
+                    sums.write(content[i]);
+                sums.write(content, Math.min(length, 20), length - Math.min(length, 20));
+                sums.finish();
+                byte[] written = buf.toByteArray();
+                int sections = (length + section - 1) / section;
+                check(written.length == length + 8 + 4 * sections + 12, what + " trailer length");
+
+                Files.write(file.toPath(), written);
+                SnapshotChecksums.Verification verification = verify(file, what);
+                check(verification.getSectionCount() == sections, what + " section count");
+                check(verification.getContentLength() == length, what + " content length");
+
+                // A flipped byte in the first, a middle and the last byte of
+                //   every section, and in every byte of the trailer after
+                //   the section size (any size the sums agree with will do)
+                ArrayList<Integer> positions = new ArrayList();
+                for (int i = 0; i < sections; i++) {
+                    int start = i * section;
+                    int end = Math.min(length, start + section);
+                    positions.addAll(Arrays.asList(start, (start + end) / 2, end - 1));
+                }
+                for (int i = length + 4; i < written.length; i++)
+                    positions.add(i);
+                for (int i : positions) {
+                    byte[] flipped = written.clone();
+                    flipped[i] ^= 1;
+                    Files.write(file.toPath(), flipped);
+                    checkDamaged(file, what + " with byte " + i + " flipped", 
+                            (i < length) ? "checksum mismatch in section " + (i / section) : null);
+                }
+
+                // Truncated, or with bytes after the trailer
+                for (int n : new int[] { 0, 11, length, length + 8, written.length - 12, written.length - 1 }) {
+                    Files.write(file.toPath(), Arrays.copyOf(written, Math.max(0, n)));
+                    checkDamaged(file, what + " cut to " + n + " bytes", null);
+                }
+                for (int extra : new int[] { 1, 12, section }) {
+                    Files.write(file.toPath(), Arrays.copyOf(written, written.length + extra));
+                    checkDamaged(file, what + " followed by " + extra + " bytes", null);
+                }
+            }
+        } finally {
+            file.delete();
+        }
+        log("Snapshot checksums: OK.");
+    }
+
+    static SnapshotChecksums.Verification verify(File file, String what) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            SnapshotChecksums.Verification verification = new SnapshotChecksums.Verification(channel);
+            verification.start(2);
+            verification.finish();
+            return verification;
+        }
+    }
+
+    // The file is reported as damaged, with "message" if it's not null.
+    static void checkDamaged(File file, String what, String message) throws Exception {
+        try {
+            verify(file, what);
+        } catch (IOException e) {
+            check((message == null) || e.getMessage().contains(message), what + " is damaged: " + e);
+            return;
+        }
+        check(false, what + " is damaged");
+    }
+
+    //===================================================================
+    // UserAccount serialization and IntSet
+    //===================================================================
+
+    // sampleAccount(5), Java-serialized by the UserAccount class of before
+    //   its validation links were IntSets (they were HashSet<Integer>).
+    static final String OLD_USER_ACCOUNT = 
+            "rO0ABXNyABJhbnViaXMuVXNlckFjY291bnQAAAAAAAAAAQIADUkAD2F1dGhPdGhlclVzZXJJZEkADmF1dGhTZWxm"
+            + "VXNlcklkSgAHYmFsYW5jZUkAEWNyZWF0aW9uVGltZXN0YW1wUwAFZmxhZ3NJABJsYXN0TG9naW5UaW1lc3RhbXBJ"
+            + "ABlsYXN0VmVyaWZpY2F0aW9uVGltZXN0YW1wSQAKbWluQmFsYW5jZUwAA2xvZ3QAFUxqYXZhL3V0aWwvQXJyYXlM"
+            + "aXN0O0wABG5hbWV0ABJMamF2YS9sYW5nL1N0cmluZztMAAdwcm9maWxlcQB+AAFMAAx2YWxpZGF0aW9uSW50ABNM"
+            + "amF2YS91dGlsL0hhc2hTZXQ7TAANdmFsaWRhdGlvbk91dHEAfgADeHAAAAAIAAAABQAAAAAAEtaHAAADhAABAAAD"
+            + "6gAAA7YAAE4gc3IAE2phdmEudXRpbC5BcnJheUxpc3R4gdIdmcdhnQMAAUkABHNpemV4cAAAAAJ3BAAAAAJzcgAP"
+            + "YW51YmlzLkxvZ0VudHJ5AAAAAAAAAAECAARKAAZhbW91bnRTAARjb2RlSQAJdGltZXN0YW1wSQAGdXNlcklkeHAA"
+            + "AAAAAAB1MAAgAAAD6AAAAAZzcQB+AAcAAAAAAAUJEAABAAAD6f////94dAAGVXNlciA1c3EAfgAFAAAAAncEAAAA"
+            + "AnQAFGh0dHA6Ly9leGFtcGxlLmNvbS81dAASU29tZSDDvG5pY29kZSB0ZXh0eHNyABFqYXZhLnV0aWwuSGFzaFNl"
+            + "dLpEhZWWuLc0AwAAeHB3DAAAABA/QAAAAAAAAXNyABFqYXZhLmxhbmcuSW50ZWdlchLioKT3gYc4AgABSQAFdmFs"
+            + "dWV4cgAQamF2YS5sYW5nLk51bWJlcoaslR0LlOCLAgAAeHAAAAAHeHNxAH4ADncMAAAAED9AAAAAAAACc3EAfgAQ"
+            + "AAAABnEAfgASeA==";
+
+    static void testUserAccountSerialization() throws Exception {
+        JavaSerializer java = new JavaSerializer();
+        UserAccount acc = sampleAccount(5);
+        byte[] old = Base64.getDecoder().decode(OLD_USER_ACCOUNT);
+        byte[] written = JournalCodec.encode(java, acc);
+
+        // Written by the old class, read by this one, and back
+        checkSameFields(acc, java.readObject(new ByteArrayInputStream(old)), "UserAccount of the old class");
+        checkSameFields(acc, java.readObject(new ByteArrayInputStream(written)), "UserAccount read back");
+
+        // Written by this class, for the old one: the same classes, with
+        //   the same serialVersionUIDs and fields (so HashSets, no IntSet)
+        List<String> oldClasses = classDescriptors(old);
+        List<String> classes = classDescriptors(written);
+        check(classes.equals(oldClasses), "UserAccount is written with the classes " + classes 
+                + " the old class wrote " + oldClasses);
+        log("UserAccount serialization: OK.");
+    }
+
+    // The class descriptors of a Java serialization stream, in the order 
+    //   they come: name, serialVersionUID and fields.
+    static List<String> classDescriptors(byte[] serialized) throws Exception {
+        ArrayList<String> descriptors = new ArrayList();
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized)) {
+            @Override
+            protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+                ObjectStreamClass descriptor = super.readClassDescriptor();
+                StringBuilder s = new StringBuilder(descriptor.getName() + " " + descriptor.getSerialVersionUID());
+                for (ObjectStreamField field : descriptor.getFields())
+                    s.append(" ").append(field.getTypeCode()).append(field.getName())
+                            .append((field.getTypeString() != null) ? field.getTypeString() : "");
+                descriptors.add(s.toString());
+                return descriptor;
+            }
+        };
+        in.readObject();
+        return descriptors;
+    }
+
+    static void testIntSet() throws Exception {
+        // Same as a TreeSet, through random adds and removes
+        Random random = new Random(25);
+        IntSet set = new IntSet();
+        TreeSet<Integer> reference = new TreeSet();
+        for (int i = 0; i < 5000; i++) {
+            int id = random.nextInt(100) - 10;
+            if (random.nextInt(3) > 0)
+                check(set.add(id) == reference.add(id), "IntSet.add(" + id + ")");
+            else
+                check(set.remove(id) == reference.remove(id), "IntSet.remove(" + id + ")");
+            check(set.contains(id) == reference.contains(id), "IntSet.contains(" + id + ")");
+            check(set.size() == reference.size(), "IntSet.size()");
+        }
+        check(new ArrayList(set).equals(new ArrayList(reference)), "IntSet in ascending order");
+        for (int i = 0; i < set.size(); i++)
+            check(set.get(i) == new ArrayList<>(reference).get(i), "IntSet.get(" + i + ")");
+        check(set.equals(new HashSet(reference)) && (set.hashCode() == new HashSet(reference).hashCode()), 
+                "IntSet equals a HashSet");
+        check(new IntSet(new HashSet(reference)).equals(set), "IntSet from a HashSet");
+        check(set.add(Integer.valueOf(1000)) && set.contains((Object)1000) && set.remove((Object)1000)
+                && (! set.remove((Object)"1000")), "IntSet as a Set<Integer>");
+        try {
+            set.get(set.size());
+            check(false, "IntSet.get() out of bounds");
+        } catch (IndexOutOfBoundsException e) {
+        }
+
+        // unionSize(), against a HashSet union
+        for (int i = 0; i < 500; i++) {
+            IntSet a = new IntSet(), b = new IntSet();
+            int range = 1 + random.nextInt(40);
+            for (int n = random.nextInt(20); n > 0; n--)
+                a.add(random.nextInt(range));
+            for (int n = random.nextInt(20); n > 0; n--)
+                b.add(random.nextInt(range) + random.nextInt(3) * range / 2);
+            HashSet<Integer> union = new HashSet(a);
+            union.addAll(b);
+            check((a.unionSize(b) == union.size()) && (b.unionSize(a) == union.size()), 
+                    "IntSet.unionSize() of " + a + " and " + b);
+        }
+        check(new IntSet().unionSize(new IntSet()) == 0, "IntSet.unionSize() of empty sets");
+
+        // Removing through the iterator
+        Iterator<Integer> it = set.iterator();
+        try {
+            it.remove();
+            check(false, "IntSet iterator remove() before next()");
+        } catch (IllegalStateException e) {
+        }
+        reference = new TreeSet(set);
+        int n = 0;
+        while (it.hasNext()) {
+            int id = it.next();
+            if (n++ % 2 == 0) {
+                it.remove();
+                reference.remove(id);
+                try {
+                    it.remove();
+                    check(false, "IntSet iterator remove() twice");
+                } catch (IllegalStateException e) {
+                }
+            }
+        }
+        check(new ArrayList(set).equals(new ArrayList(reference)), "IntSet after removing through the iterator");
+        it = set.iterator();
+        it.next();
+        set.add(-1000);
+        try {
+            it.next();
+            check(false, "IntSet iterator after a change");
+        } catch (ConcurrentModificationException e) {
+        }
+        set.removeIf(id -> id < 50);
+        check(set.equals(reference.tailSet(50)), "IntSet.removeIf()");
+        log("IntSet: OK.");
+    }
+
+    //===================================================================
+    // Tools
+    //===================================================================
+
+    static void check(boolean ok, String what) {
+        if (! ok)
+            throw new IllegalStateException("Test failed: " + what);
+    }
+
+    static void checkUnreadable(Serializer serializer, byte[] bytes, String what) throws Exception {
+        try {
+            serializer.readObject(new ByteArrayInputStream(bytes));
+        } catch (IOException e) {
+            return;
+        }
+        check(false, what + " is refused");
+    }
+
+    static void checkSameFields(Object expected, Object actual, String what) throws Exception {
+        String difference = difference(expected, actual, "");
+        check(difference == null, what + ": differs at " + difference);
+    }
+
+    // Where two objects differ, comparing their fields (those Java
+    //   serialization writes) all the way down, or null if they don't.
+    //   Sets are compared with equals(), as their layout may differ.
+    static String difference(Object a, Object b, String path) throws Exception {
+        if (a == b)
+            return null;
+        if ((a == null) || (b == null))
+            return path + " (" + a + " / " + b + ")";
+        if (a.getClass() != b.getClass())
+            return path + " (" + a.getClass().getName() + " / " + b.getClass().getName() + ")";
+        if ((a instanceof Number) || (a instanceof String) || (a instanceof Boolean)
+                || (a instanceof Character) || (a instanceof Date) || (a instanceof Set))
+            return a.equals(b) ? null : path + " (" + a + " / " + b + ")";
+        if (a instanceof List) {
+            List<?> la = (List)a, lb = (List)b;
+            if (la.size() != lb.size())
+                return path + ".size() (" + la.size() + " / " + lb.size() + ")";
+            for (int i = 0; i < la.size(); i++) {
+                String d = difference(la.get(i), lb.get(i), path + "[" + i + "]");
+                if (d != null)
+                    return d;
+            }
+            return null;
+        }
+        if (a instanceof Map) {
+            Map<?, ?> ma = (Map)a, mb = (Map)b;
+            if (! ma.keySet().equals(mb.keySet()))
+                return path + ".keySet() (" + ma.keySet() + " / " + mb.keySet() + ")";
+            for (Map.Entry<?, ?> e : ma.entrySet()) {
+                String d = difference(e.getValue(), mb.get(e.getKey()), path + "[" + e.getKey() + "]");
+                if (d != null)
+                    return d;
+            }
+            return null;
+        }
+        if (a.getClass().isArray()) {
+            int n = Array.getLength(a);
+            if (n != Array.getLength(b))
+                return path + ".length (" + n + " / " + Array.getLength(b) + ")";
+            for (int i = 0; i < n; i++) {
+                String d = difference(Array.get(a, i), Array.get(b, i), path + "[" + i + "]");
+                if (d != null)
+                    return d;
+            }
+            return null;
+        }
+        for (Class<?> c = a.getClass(); c != Object.class; c = c.getSuperclass()) {
+            for (Field f : c.getDeclaredFields()) {
+                if ((f.getModifiers() & (Modifier.STATIC | Modifier.TRANSIENT)) != 0)
+                    continue;
+                f.setAccessible(true);
+                String d = difference(f.get(a), f.get(b), path + "." + f.getName());
+                if (d != null)
+                    return d;
+            }
+        }
+        return null;
     }
 }
@@ -16,16 +16,43 @@
  */
 package anubis;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.HashSet;
 
 /**
  * The one and only account of one human player of the game.
+ *
+ * The validation links are IntSets, but Java serialization (RMI, and 
+ *   Java-serialized snapshots and journals) still has them as the 
+ *   HashSet<Integer> they used to be, so clients and files from before 
+ *   read the same (see writeObject()).
  */
 public class UserAccount implements Serializable {
     private static final long serialVersionUID = 1L;
 
+    // What Java serialization writes: the fields below, with the validation
+    //   links as HashSets.
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("name", String.class),
+        new ObjectStreamField("profile", ArrayList.class),
+        new ObjectStreamField("validationOut", HashSet.class),
+        new ObjectStreamField("validationIn", HashSet.class),
+        new ObjectStreamField("log", ArrayList.class),
+        new ObjectStreamField("authOtherUserId", Integer.TYPE),
+        new ObjectStreamField("authSelfUserId", Integer.TYPE),
+        new ObjectStreamField("creationTimestamp", Integer.TYPE),
+        new ObjectStreamField("lastLoginTimestamp", Integer.TYPE),
+        new ObjectStreamField("lastVerificationTimestamp", Integer.TYPE),
+        new ObjectStreamField("balance", Long.TYPE),
+        new ObjectStreamField("minBalance", Integer.TYPE),
+        new ObjectStreamField("flags", Short.TYPE)
+    };
+
     // Values for the flags field
     public static final short USER_FLAG_AUTHENTIC = 1;    
     public static final short USER_FLAG_ANCHOR = 2;
@@ -62,10 +89,10 @@ public class UserAccount implements Serializable {
     // Validation means "I know this person in real life and I can validate 
     //   in real life that this account represents them, as I can find and 
     //   contact them."
-    public HashSet<Integer> validationOut = new HashSet();
+    public IntSet validationOut = new IntSet();
     
     // Social graph: back-pointers (who validates me)
-    public HashSet<Integer> validationIn = new HashSet();
+    public IntSet validationIn = new IntSet();
 
     // A partial, recent transactions log
     public ArrayList<LogEntry> log = new ArrayList();
@@ -167,6 +194,11 @@ public class UserAccount implements Serializable {
     }
     
     // number of unique user IDs among validationIn and validationOut
+    public int getValidationLinkCount() {
+        return validationIn.unionSize(validationOut);
+    }
+    
+    // unique user IDs among validationIn and validationOut
     public HashSet<Integer> getAllValidationLinkUserIds() {
         HashSet<Integer> total = new HashSet();
         total.addAll(validationIn);
@@ -188,4 +220,43 @@ public class UserAccount implements Serializable {
             log.remove(0);
         log.add(entry);
     }
+
+    // ======================================================================
+    
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("name", name);
+        fields.put("profile", profile);
+        fields.put("validationOut", (validationOut != null) ? new HashSet(validationOut) : null);
+        fields.put("validationIn", (validationIn != null) ? new HashSet(validationIn) : null);
+        fields.put("log", log);
+        fields.put("authOtherUserId", authOtherUserId);
+        fields.put("authSelfUserId", authSelfUserId);
+        fields.put("creationTimestamp", creationTimestamp);
+        fields.put("lastLoginTimestamp", lastLoginTimestamp);
+        fields.put("lastVerificationTimestamp", lastVerificationTimestamp);
+        fields.put("balance", balance);
+        fields.put("minBalance", minBalance);
+        fields.put("flags", flags);
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        name = (String)fields.get("name", null);
+        profile = (ArrayList)fields.get("profile", null);
+        HashSet<Integer> links = (HashSet)fields.get("validationOut", null);
+        validationOut = (links != null) ? new IntSet(links) : null;
+        links = (HashSet)fields.get("validationIn", null);
+        validationIn = (links != null) ? new IntSet(links) : null;
+        log = (ArrayList)fields.get("log", null);
+        authOtherUserId = fields.get("authOtherUserId", -1);
+        authSelfUserId = fields.get("authSelfUserId", -1);
+        creationTimestamp = fields.get("creationTimestamp", 0);
+        lastLoginTimestamp = fields.get("lastLoginTimestamp", 0);
+        lastVerificationTimestamp = fields.get("lastVerificationTimestamp", 0);
+        balance = fields.get("balance", 0L);
+        minBalance = fields.get("minBalance", 0);
+        flags = fields.get("flags", (short)0);
+    }
 }
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2017 The Anubis Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anubis;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Helpers shared by the code that publishes things about the snapshots
+ *   (SnapshotTorrent, SnapshotChunks and MerkleTree): message digests, hex
+ *   strings, and writing a file so that readers only ever see all of it.
+ */
+public class Utils {
+
+    public static MessageDigest sha1() {
+        return digest("SHA-1");
+    }
+
+    public static MessageDigest sha256() {
+        return digest("SHA-256");
+    }
+
+    // Every JVM has SHA-1 and SHA-256.
+    static MessageDigest digest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static String hex(byte[] b) {
+        StringBuilder sb = new StringBuilder(b.length * 2);
+        for (byte x : b)
+            sb.append(String.format("%02x", x));
+        return sb.toString();
+    }
+
+    public static byte[] unhex(String s) {
+        byte[] b = new byte[s.length() / 2];
+        for (int i = 0; i < b.length; i++)
+            b[i] = (byte)Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+        return b;
+    }
+
+    // Write "data" to a temporary file next to "file", sync it to disk and
+    //   rename it over "file".
+    public static void writeFileAtomically(File file, byte[] data) throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        try {
+            try (FileOutputStream out = new FileOutputStream(tempFile)) {
+                out.write(data);
+                out.getFD().sync();
+            }
+            if (! tempFile.renameTo(file))
+                throw new IOException("Unable to rename " + tempFile + " to " + file);
+        } finally {
+            tempFile.delete(); // no-op if renamed
+        }
+    }
+}
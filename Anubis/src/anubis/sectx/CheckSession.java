@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2017 The Anubis Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anubis.sectx;
+
+import anubis.SecurityDataModel;
+import anubis.Timestamp;
+import java.util.Date;
+import org.prevayler.Query;
+
+/**
+ * Find the userId for a given session key, given the last time the 
+ *   session was hit (kept in memory by the Server). Returns a negative
+ *   userid if the session is expired or doesn't exist.
+ * Being a query, this doesn't touch the session nor delete it if it's 
+ *   expired; it's up to the caller to do that.
+ */
+public class CheckSession implements Query<SecurityDataModel, Integer> {
+    private static final long serialVersionUID = 1L;
+    long sessionId;
+    int lastHitTimestamp;
+    public CheckSession(long sessionId, int lastHitTimestamp) {
+        this.sessionId = sessionId;
+        this.lastHitTimestamp = lastHitTimestamp;
+    }
+    @Override
+    public Integer query(SecurityDataModel secdm, Date date) {
+        return secdm.checkSession(sessionId, lastHitTimestamp, Timestamp.fromDate(date));
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2017 The Anubis Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anubis.sectx;
+
+import anubis.SecurityDataModel;
+import java.util.ArrayList;
+import java.util.Date;
+import org.prevayler.Transaction;
+import org.prevayler.TransactionWithQuery;
+
+/**
+ * The SecurityDataModel part of a composite transaction (see
+ *   anubis.tx.CompositeTx), which is the DataModel transaction "dmVersion".
+ * Executes the given secdm transactions in order and returns their
+ *   results (null for a Transaction).
+ * A part redone after its dm journal entry was replayed (see 
+ *   Server.finishCompositeParts()) executes at the time of the dm 
+ *   transaction, not at the time it's redone.
+ */
+public class CompositePartTx implements TransactionWithQuery<SecurityDataModel, ArrayList<Object>> {
+    private static final long serialVersionUID = 1L;
+    long dmVersion;
+    ArrayList<Object> transactions;
+    Date dmDate; // null if executed along with the dm transaction
+    public CompositePartTx(long dmVersion, ArrayList<Object> transactions) {
+        this(dmVersion, transactions, null);
+    }
+    public CompositePartTx(long dmVersion, ArrayList<Object> transactions, Date dmDate) {
+        this.dmVersion = dmVersion;
+        this.transactions = transactions;
+        this.dmDate = dmDate;
+    }
+    public long getDmVersion() {
+        return dmVersion;
+    }
+    public Date getDmDate() {
+        return dmDate;
+    }
+    @Override
+    @SuppressWarnings("unchecked")
+    public ArrayList<Object> executeAndQuery(SecurityDataModel secdm, Date date) throws Exception {
+        if (dmDate != null)
+            date = dmDate;
+        ArrayList<Object> results = new ArrayList(transactions.size());
+        for (Object tx : transactions) {
+            if (tx instanceof Transaction) {
+                ((Transaction<SecurityDataModel>)tx).executeOn(secdm, date);
+                results.add(null);
+            } else {
+                results.add(((TransactionWithQuery<SecurityDataModel, ?>)tx).executeAndQuery(secdm, date));
+            }
+        }
+        secdm.setLastCompositeVersion(dmVersion);
+        return results;
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2017 The Anubis Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anubis.sectx;
+
+import anubis.SecurityDataModel;
+import java.util.Date;
+import java.util.HashMap;
+import org.prevayler.Transaction;
+
+/**
+ * Save the last hit timestamps of the sessions that the Server kept 
+ *   alive in memory (session ID to timestamp). 
+ */
+public class RefreshSessionsTx implements Transaction<SecurityDataModel> {
+    private static final long serialVersionUID = 1L;
+    HashMap<Long, Integer> lastHits;
+    public RefreshSessionsTx(HashMap<Long, Integer> lastHits) {
+        this.lastHits = lastHits;
+    }
+    @Override
+    public void executeOn(SecurityDataModel secdm, Date date) {
+        secdm.refreshSessions(lastHits);
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2017 The Anubis Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anubis.sectx;
+
+import anubis.JournalCodec;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Journal encoding of the SecurityDataModel transactions (see
+ *   anubis.JournalCodec).
+ * The tags are in the journal files: never renumber or reuse one, and
+ *   changing what a transaction writes needs a new JournalCodec.VERSION.
+ */
+public class SecTxCodec {
+
+    static final int LOGIN = 64;
+    static final int LOGOUT = 65;
+    static final int TOUCH_SESSION = 66;
+    static final int REFRESH_SESSIONS = 67;
+    static final int CREATE_USER = 68;
+    static final int DELETE_USER = 69;
+    static final int BIND_USER_ID_TO_EMAIL = 70;
+    static final int CHECK_INVITE = 71;
+    static final int CREATE_PENDING_INVITE = 72;
+    static final int DELETE_PENDING_INVITE = 73;
+    static final int COLLECT_GARBAGE = 74;
+    static final int CREATE_BURN_RECEIPT = 75;
+    static final int GET_PASSWORD_RESET_CODE = 76;
+    static final int RESET_PASSWORD = 77;
+    static final int SET_USER_PASSWORD = 78;
+    static final int SET_MASTER_KEYPAIR = 79;
+    static final int COMPOSITE_PART = 80;
+    static final int REDONE_COMPOSITE_PART = 81;
+
+    // Writes the tag and fields of a transaction of this package. Returns
+    //   false if it's not one we know.
+    public static boolean write(DataOutput out, Object tx) throws IOException {
+        Class<?> c = tx.getClass();
+        if (c == LoginTx.class) {
+            LoginTx t = (LoginTx)tx;
+            out.writeByte(LOGIN);
+            out.writeInt(t.userId);
+            JournalCodec.writeStoredPassword(out, t.password);
+            out.writeLong(t.sessionId);
+            JournalCodec.writeUserSession(out, t.session);
+        } else if (c == LogoutTx.class) {
+            out.writeByte(LOGOUT);
+            out.writeLong(((LogoutTx)tx).sessionId);
+        } else if (c == TouchSessionTx.class) {
+            out.writeByte(TOUCH_SESSION);
+            out.writeLong(((TouchSessionTx)tx).sessionId);
+        } else if (c == RefreshSessionsTx.class) {
+            HashMap<Long, Integer> lastHits = ((RefreshSessionsTx)tx).lastHits;
+            out.writeByte(REFRESH_SESSIONS);
+            out.writeInt((lastHits == null) ? -1 : lastHits.size());
+            if (lastHits != null) {
+                for (Map.Entry<Long, Integer> e : lastHits.entrySet()) {
+                    out.writeLong(e.getKey());
+                    out.writeInt(e.getValue());
+                }
+            }
+        } else if (c == CreateUserTx.class) {
+            CreateUserTx t = (CreateUserTx)tx;
+            out.writeByte(CREATE_USER);
+            JournalCodec.writePrivateUserAccount(out, t.acc);
+            out.writeInt(t.userId);
+        } else if (c == DeleteUserTx.class) {
+            out.writeByte(DELETE_USER);
+            out.writeInt(((DeleteUserTx)tx).userId);
+        } else if (c == BindUserIdToEmailTx.class) {
+            BindUserIdToEmailTx t = (BindUserIdToEmailTx)tx;
+            out.writeByte(BIND_USER_ID_TO_EMAIL);
+            out.writeInt(t.userID);
+            JournalCodec.writeString(out, t.emailAddress);
+        } else if (c == CheckInviteTx.class) {
+            out.writeByte(CHECK_INVITE);
+            out.writeLong(((CheckInviteTx)tx).invitationCode);
+        } else if (c == CreatePendingInviteTx.class) {
+            CreatePendingInviteTx t = (CreatePendingInviteTx)tx;
+            out.writeByte(CREATE_PENDING_INVITE);
+            out.writeLong(t.invitationCode);
+            JournalCodec.writePendingInvite(out, t.pendingInvite);
+        } else if (c == DeletePendingInviteTx.class) {
+            out.writeByte(DELETE_PENDING_INVITE);
+            out.writeLong(((DeletePendingInviteTx)tx).invitationCode);
+        } else if (c == CollectGarbageTx.class) {
+            ArrayList<Integer> userIds = ((CollectGarbageTx)tx).deletedUserIds;
+            out.writeByte(COLLECT_GARBAGE);
+            out.writeInt((userIds == null) ? -1 : userIds.size());
+            if (userIds != null)
+                for (int userId : userIds)
+                    out.writeInt(userId);
+        } else if (c == CreateBurnReceiptTx.class) {
+            CreateBurnReceiptTx t = (CreateBurnReceiptTx)tx;
+            out.writeByte(CREATE_BURN_RECEIPT);
+            out.writeInt(t.userId);
+            out.writeLong(t.amount);
+            JournalCodec.writeBytes(out, t.comment);
+        } else if (c == GetPasswordResetCodeTx.class) {
+            GetPasswordResetCodeTx t = (GetPasswordResetCodeTx)tx;
+            out.writeByte(GET_PASSWORD_RESET_CODE);
+            out.writeInt(t.userId);
+            JournalCodec.writeString(out, t.emailAddress);
+            out.writeLong(t.resetCode);
+        } else if (c == ResetPasswordTx.class) {
+            ResetPasswordTx t = (ResetPasswordTx)tx;
+            out.writeByte(RESET_PASSWORD);
+            JournalCodec.writeStoredPassword(out, t.password);
+            out.writeLong(t.resetCode);
+        } else if (c == SetUserPasswordTx.class) {
+            SetUserPasswordTx t = (SetUserPasswordTx)tx;
+            out.writeByte(SET_USER_PASSWORD);
+            out.writeInt(t.userId);
+            JournalCodec.writeStoredPassword(out, t.password);
+        } else if (c == SetMasterKeypairTx.class) {
+            out.writeByte(SET_MASTER_KEYPAIR);
+            JournalCodec.writeKeyPair(out, ((SetMasterKeypairTx)tx).keyPair);
+        } else if (c == CompositePartTx.class) {
+            CompositePartTx t = (CompositePartTx)tx;
+            out.writeByte((t.dmDate == null) ? COMPOSITE_PART : REDONE_COMPOSITE_PART);
+            out.writeLong(t.dmVersion);
+            if (t.dmDate != null)
+                out.writeLong(t.dmDate.getTime());
+            out.writeInt(t.transactions.size());
+            for (Object part : t.transactions)
+                if (! write(out, part))
+                    return false;
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    public static Object read(int tag, DataInput in) throws IOException {
+        switch (tag) {
+            case LOGIN:
+                return new LoginTx(in.readInt(), JournalCodec.readStoredPassword(in), in.readLong(),
+                        JournalCodec.readUserSession(in));
+            case LOGOUT:
+                return new LogoutTx(in.readLong());
+            case TOUCH_SESSION:
+                return new TouchSessionTx(in.readLong());
+            case REFRESH_SESSIONS: {
+                int n = JournalCodec.readNullableCount(in);
+                HashMap<Long, Integer> lastHits = null;
+                if (n >= 0) {
+                    lastHits = new HashMap();
+                    for (int i = 0; i < n; i++) {
+                        long sessionId = in.readLong();
+                        lastHits.put(sessionId, in.readInt());
+                    }
+                }
+                return new RefreshSessionsTx(lastHits);
+            }
+            case CREATE_USER:
+                return new CreateUserTx(JournalCodec.readPrivateUserAccount(in), in.readInt());
+            case DELETE_USER:
+                return new DeleteUserTx(in.readInt());
+            case BIND_USER_ID_TO_EMAIL:
+                return new BindUserIdToEmailTx(in.readInt(), JournalCodec.readString(in));
+            case CHECK_INVITE:
+                return new CheckInviteTx(in.readLong());
+            case CREATE_PENDING_INVITE:
+                return new CreatePendingInviteTx(in.readLong(), JournalCodec.readPendingInvite(in));
+            case DELETE_PENDING_INVITE:
+                return new DeletePendingInviteTx(in.readLong());
+            case COLLECT_GARBAGE: {
+                int n = JournalCodec.readNullableCount(in);
+                ArrayList<Integer> userIds = null;
+                if (n >= 0) {
+                    userIds = new ArrayList(n);
+                    for (int i = 0; i < n; i++)
+                        userIds.add(in.readInt());
+                }
+                return new CollectGarbageTx(userIds);
+            }
+            case CREATE_BURN_RECEIPT:
+                return new CreateBurnReceiptTx(in.readInt(), in.readLong(), JournalCodec.readBytes(in));
+            case GET_PASSWORD_RESET_CODE:
+                return new GetPasswordResetCodeTx(in.readInt(), JournalCodec.readString(in), in.readLong());
+            case RESET_PASSWORD:
+                return new ResetPasswordTx(JournalCodec.readStoredPassword(in), in.readLong());
+            case SET_USER_PASSWORD:
+                return new SetUserPasswordTx(in.readInt(), JournalCodec.readStoredPassword(in));
+            case SET_MASTER_KEYPAIR:
+                return new SetMasterKeypairTx(JournalCodec.readKeyPair(in));
+            case COMPOSITE_PART:
+            case REDONE_COMPOSITE_PART: {
+                long dmVersion = in.readLong();
+                Date dmDate = (tag == REDONE_COMPOSITE_PART) ? new Date(in.readLong()) : null;
+                int n = JournalCodec.readNullableCount(in);
+                ArrayList<Object> transactions = new ArrayList(Math.max(0, n));
+                for (int i = 0; i < n; i++) {
+                    int partTag = in.readUnsignedByte();
+                    if ((partTag == COMPOSITE_PART) || (partTag == REDONE_COMPOSITE_PART))
+                        throw new IOException("Journal entry is corrupted (nested composite part).");
+                    transactions.add(read(partTag, in));
+                }
+                return new CompositePartTx(dmVersion, transactions, dmDate);
+            }
+            default:
+                throw new IOException("Unknown journal entry tag " + tag + ".");
+        }
+    }
+}
@@ -22,12 +22,14 @@ import java.util.Date;
 import org.prevayler.TransactionWithQuery;
 
 /**
- * Any authenticated request to the Anubis server will generate this 
+ * Any authenticated request to the Anubis server used to generate this 
  *   transaction to the secdm first. This checks what is the userId for 
  *   a given session key, and touches the session so it stays alive,
  *   pushing its expiration timestamp further into the future (e.g. +1 hour).
  * If the session is expired, it is removed, and a negative userid is
  *   returned. If no session was found, a negative userid is returned.
+ * No longer issued: the Server keeps sessions alive in memory now (see
+ *   SessionTable). This stays so that old journals can be replayed.
  */
 public class TouchSessionTx implements TransactionWithQuery<SecurityDataModel, Integer> {
     private static final long serialVersionUID = 1L;
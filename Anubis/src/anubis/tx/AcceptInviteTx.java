@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2017 user
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anubis.tx;
+
+import anubis.DataModel;
+import anubis.PrivateUserAccount;
+import anubis.Timestamp;
+import anubis.UserAccount;
+import anubis.sectx.DeletePendingInviteTx;
+import java.util.Date;
+
+/**
+ * Create the account of an invited user in both models, destroy the 
+ *   invitation code and, if a user sponsored it, send the locked funds 
+ *   from the sponsor to the new user (see Server.acceptInvite()).
+ * Returns the userID assigned to the new account, or a negative value if 
+ *   we can't store any more accounts.
+ */
+public class AcceptInviteTx extends CompositeTx<Integer> {
+    private static final long serialVersionUID = 1L;
+    UserAccount acc;
+    PrivateUserAccount privateAcc;
+    int sponsorId;
+    long invitationCode;
+    long amount;
+    public AcceptInviteTx(UserAccount acc, PrivateUserAccount privateAcc, int sponsorId, 
+            long invitationCode, long amount) 
+    {
+        this.acc = acc;
+        this.privateAcc = privateAcc;
+        this.sponsorId = sponsorId;
+        this.invitationCode = invitationCode;
+        this.amount = amount;
+    }
+    @Override
+    public Integer executeAndQuery(DataModel dm, Date date) {
+        int now = Timestamp.fromDate(date);
+        int userId = dm.createUser(acc, sponsorId, now);
+        if (userId < 0)
+            return userId;
+        executeOnSecurityModel(dm, new anubis.sectx.CreateUserTx(privateAcc, userId), 
+                new DeletePendingInviteTx(invitationCode));
+        // The transfer is of at most "amount"; if by any chance there's 
+        //   not enough funds, then send everything.
+        if (sponsorId >= 0)
+            dm.sendMoney(sponsorId, userId, amount, false, true, now);
+        return userId;
+    }
+}
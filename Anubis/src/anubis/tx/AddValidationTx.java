@@ -19,12 +19,11 @@ package anubis.tx;
 import anubis.DataModel;
 import anubis.Timestamp;
 import java.util.Date;
-import org.prevayler.TransactionWithQuery;
 
 /**
  * Add outbound validation link to another user.
  */
-public class AddValidationTx implements TransactionWithQuery<DataModel, Integer> {
+public class AddValidationTx implements CheckedTx<Integer> {
     private static final long serialVersionUID = 1L;
     int thisUserId;
     int otherUserId;
@@ -36,4 +35,12 @@ public class AddValidationTx implements TransactionWithQuery<DataModel, Integer>
     public Integer executeAndQuery(DataModel dm, Date date) {
         return dm.addValidation(thisUserId, otherUserId, Timestamp.fromDate(date));
     }
+    @Override
+    public int check(DataModel dm) {
+        return dm.checkAddValidation(thisUserId, otherUserId);
+    }
+    @Override
+    public Integer failed(int error) {
+        return error;
+    }
 }
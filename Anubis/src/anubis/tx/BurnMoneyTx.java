@@ -19,12 +19,11 @@ package anubis.tx;
 import anubis.DataModel;
 import anubis.Timestamp;
 import java.util.Date;
-import org.prevayler.TransactionWithQuery;
 
 /**
  * Remove money from the user account to prepare for a burn receipt.
  */
-public class BurnMoneyTx implements TransactionWithQuery<DataModel, Integer> {
+public class BurnMoneyTx implements CheckedTx<Integer> {
     private static final long serialVersionUID = 1L;
     int userId;
     long amount;
@@ -36,4 +35,12 @@ public class BurnMoneyTx implements TransactionWithQuery<DataModel, Integer> {
     public Integer executeAndQuery(DataModel dm, Date date) {
         return dm.burnMoney(userId, amount, Timestamp.fromDate(date));
     }
+    @Override
+    public int check(DataModel dm) {
+        return dm.checkBurnMoney(userId, amount);
+    }
+    @Override
+    public Integer failed(int error) {
+        return error;
+    }
 }
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2017 user
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anubis.tx;
+
+import anubis.DataModel;
+import anubis.Error;
+import anubis.Timestamp;
+import anubis.sectx.CreateBurnReceiptTx;
+import java.util.Date;
+
+/**
+ * Burn money and have the SecurityDataModel sign a receipt for it (see
+ *   anubis.sectx.CreateBurnReceiptTx).
+ * Returns the receipt, or null if the money wasn't burned (or while the 
+ *   dm journal is being replayed).
+ */
+public class BurnMoneyWithReceiptTx extends CompositeTx<byte[]> implements CheckedTx<byte[]> {
+    private static final long serialVersionUID = 1L;
+    int userId;
+    long amount;
+    byte[] comment;
+    public BurnMoneyWithReceiptTx(int userId, long amount, byte[] comment) {
+        this.userId = userId;
+        this.amount = amount;
+        this.comment = comment.clone();
+    }
+    @Override
+    public byte[] executeAndQuery(DataModel dm, Date date) {
+        int err = dm.burnMoney(userId, amount, Timestamp.fromDate(date));
+        if (err != Error.OK)
+            return null;
+        return (byte[])result(executeOnSecurityModel(dm, 
+                new CreateBurnReceiptTx(userId, amount, comment)), 0);
+    }
+    @Override
+    public int check(DataModel dm) {
+        return dm.checkBurnMoney(userId, amount);
+    }
+    @Override
+    public byte[] failed(int error) {
+        return null;
+    }
+}
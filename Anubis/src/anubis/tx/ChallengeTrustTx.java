@@ -19,13 +19,12 @@ package anubis.tx;
 import anubis.DataModel;
 import anubis.Timestamp;
 import java.util.Date;
-import org.prevayler.TransactionWithQuery;
 
 /**
  * Source userId pays a fee to challenge the Trusted (verified) status of 
  *   a target userId.
  */
-public class ChallengeTrustTx implements TransactionWithQuery<DataModel, Integer> {
+public class ChallengeTrustTx implements CheckedTx<Integer> {
     private static final long serialVersionUID = 1L;
     int sourceUserId;
     int targetUserId;
@@ -37,4 +36,12 @@ public class ChallengeTrustTx implements TransactionWithQuery<DataModel, Integer
     public Integer executeAndQuery(DataModel dm, Date date) {
         return dm.challengeTrust(sourceUserId, targetUserId, Timestamp.fromDate(date));
     }
+    @Override
+    public int check(DataModel dm) {
+        return dm.checkTrustChallenge(sourceUserId, targetUserId);
+    }
+    @Override
+    public Integer failed(int error) {
+        return error;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2017 The Anubis Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anubis.tx;
+
+import anubis.DataModel;
+import java.util.Date;
+import org.prevayler.Query;
+
+/**
+ * Return Error.OK if a CheckedTx should be journaled and executed, or the
+ *   error code it would certainly fail with.
+ */
+public class CheckTx implements Query<DataModel, Integer> {
+    private static final long serialVersionUID = 1L;
+    CheckedTx<?> tx;
+    public CheckTx(CheckedTx<?> tx) {
+        this.tx = tx;
+    }
+    @Override
+    public Integer query(DataModel dm, Date date) {
+        return tx.check(dm);
+    }
+}
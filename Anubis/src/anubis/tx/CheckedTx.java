@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2017 The Anubis Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anubis.tx;
+
+import anubis.DataModel;
+import org.prevayler.TransactionWithQuery;
+
+/**
+ * A DataModel transaction that can tell beforehand, without changing 
+ *   anything, that it would fail. The Server checks it first (see 
+ *   CheckTx) and doesn't journal it if it would.
+ * check() only needs to catch the failures it can be sure of; anything 
+ *   that depends on the execution time is left to the transaction itself.
+ */
+public interface CheckedTx<R> extends TransactionWithQuery<DataModel, R> {
+
+    // Error.OK if the transaction has to be executed, or the error code it 
+    //   would fail with, leaving the DataModel as it is.
+    int check(DataModel dm);
+
+    // What the transaction returns when it fails with "error".
+    R failed(int error);
+}
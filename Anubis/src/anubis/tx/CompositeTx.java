@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2017 user
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anubis.tx;
+
+import anubis.DataModel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import org.prevayler.TransactionWithQuery;
+
+/**
+ * A DataModel transaction that changes the SecurityDataModel as well, with
+ *   a single journal entry (in the dm journal) for both.
+ * The secdm part is handed to DataModel.executeOnSecurityModel() while
+ *   the transaction executes, so parts are executed in DataModel order.
+ *   The Server journals each part in the secdm journal without waiting for
+ *   it to be on disk, and completes the parts a crash lost from the dm
+ *   journal when it restarts.
+ * The DataModel part must never depend on what the secdm part returns:
+ *   the dm journal is replayed without a SecurityDataModel.
+ */
+public abstract class CompositeTx<R> implements TransactionWithQuery<DataModel, R> {
+    private static final long serialVersionUID = 1L;
+
+    // Execute secdm transactions as this transaction's secdm part.
+    protected static ArrayList<Object> executeOnSecurityModel(DataModel dm, Object... transactions) {
+        return dm.executeOnSecurityModel(new ArrayList(Arrays.asList(transactions)));
+    }
+
+    // Result number "i" of a secdm part, if it was executed.
+    protected static Object result(ArrayList<Object> results, int i) {
+        return (results != null) ? results.get(i) : null;
+    }
+}
@@ -19,7 +19,6 @@ package anubis.tx;
 import anubis.DataModel;
 import anubis.Timestamp;
 import java.util.Date;
-import org.prevayler.TransactionWithQuery;
 
 /**
  * Attempts to lock a given amount of money (raise minBalance) for an user,
@@ -27,7 +26,7 @@ import org.prevayler.TransactionWithQuery;
  * This is used to invite other users.
  * Returns 0 on success, or a negative value on error.
  */
-public class CreateInviteTx implements TransactionWithQuery<DataModel, Integer> {
+public class CreateInviteTx implements CheckedTx<Integer> {
     private static final long serialVersionUID = 1L;
     int sponsorId;
     long amount;
@@ -39,4 +38,12 @@ public class CreateInviteTx implements TransactionWithQuery<DataModel, Integer>
     public Integer executeAndQuery(DataModel dm, Date date) {
         return dm.createInvite(sponsorId, amount, Timestamp.fromDate(date));
     }
+    @Override
+    public int check(DataModel dm) {
+        return dm.checkCreateInvite(sponsorId, amount);
+    }
+    @Override
+    public Integer failed(int error) {
+        return error;
+    }
 }
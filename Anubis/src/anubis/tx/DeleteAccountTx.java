@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2017 user
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anubis.tx;
+
+import anubis.DataModel;
+import anubis.Error;
+import anubis.Timestamp;
+import java.util.Date;
+
+/**
+ * Delete an user account from both models.
+ * Returns the DataModel's error code; the private part is only deleted if
+ *   the public one was.
+ */
+public class DeleteAccountTx extends CompositeTx<Integer> {
+    private static final long serialVersionUID = 1L;
+    int userId;
+    public DeleteAccountTx(int userId) {
+        this.userId = userId;
+    }
+    @Override
+    public Integer executeAndQuery(DataModel dm, Date date) {
+        int err = dm.deleteUser(userId, Timestamp.fromDate(date));
+        if (err == Error.OK)
+            executeOnSecurityModel(dm, new anubis.sectx.DeleteUserTx(userId));
+        return err;
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2017 user
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anubis.tx;
+
+import anubis.DataModel;
+import anubis.StoredPassword;
+import anubis.Timestamp;
+import anubis.UserSession;
+import java.util.Date;
+
+/**
+ * Log an user in: open the session in the SecurityDataModel (if the 
+ *   password is right; see anubis.sectx.LoginTx) and refresh the user's
+ *   login timestamp.
+ * The login timestamp is refreshed regardless of how the secdm part went
+ *   (see CompositeTx), so the caller must make sure the secdm part opens 
+ *   the session: Server.login() checks the password and the session ID 
+ *   under a lock that password changes can't take until the composite is
+ *   executed.
+ * Returns whether the session was opened (null while the dm journal is 
+ *   being replayed).
+ */
+public class LoginTx extends CompositeTx<Boolean> {
+    private static final long serialVersionUID = 1L;
+    int userId;
+    StoredPassword password;
+    long sessionId;
+    UserSession session;
+    public LoginTx(int userId, StoredPassword password, long sessionId, UserSession session) {
+        this.userId = userId;
+        this.password = password;
+        this.sessionId = sessionId;
+        this.session = session;
+    }
+    @Override
+    public Boolean executeAndQuery(DataModel dm, Date date) {
+        Boolean opened = (Boolean)result(executeOnSecurityModel(dm, 
+                new anubis.sectx.LoginTx(userId, password, sessionId, session)), 0);
+        dm.touchLoginTimestamp(userId, Timestamp.fromDate(date));
+        return opened;
+    }
+}
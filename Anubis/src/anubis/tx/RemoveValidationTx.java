@@ -18,12 +18,11 @@ package anubis.tx;
 
 import anubis.DataModel;
 import java.util.Date;
-import org.prevayler.TransactionWithQuery;
 
 /**
  * Remove inbound and/or outbound validation links to another user.
  */
-public class RemoveValidationTx implements TransactionWithQuery<DataModel, Integer> {
+public class RemoveValidationTx implements CheckedTx<Integer> {
     private static final long serialVersionUID = 1L;
     int thisUserId;
     int otherUserId;
@@ -39,4 +38,12 @@ public class RemoveValidationTx implements TransactionWithQuery<DataModel, Integ
     public Integer executeAndQuery(DataModel dm, Date date) {
         return dm.removeValidation(thisUserId, otherUserId, inbound, outbound);
     }
+    @Override
+    public int check(DataModel dm) {
+        return dm.checkRemoveValidation(thisUserId, otherUserId);
+    }
+    @Override
+    public Integer failed(int error) {
+        return error;
+    }
 }
@@ -19,13 +19,12 @@ package anubis.tx;
 import anubis.DataModel;
 import anubis.Timestamp;
 import java.util.Date;
-import org.prevayler.TransactionWithQuery;
 
 /**
  * User requests a random selection of their peers to judge whether the 
  *   user's profile looks legit and should receive direct UBI money creation.
  */
-public class RequestTrustTx implements TransactionWithQuery<DataModel, Integer> {
+public class RequestTrustTx implements CheckedTx<Integer> {
     private static final long serialVersionUID = 1L;
     int userId;
     public RequestTrustTx(int userId) {
@@ -35,4 +34,12 @@ public class RequestTrustTx implements TransactionWithQuery<DataModel, Integer>
     public Integer executeAndQuery(DataModel dm, Date date) {
         return dm.requestTrust(userId, Timestamp.fromDate(date));
     }
+    @Override
+    public int check(DataModel dm) {
+        return dm.checkTrustRequest(userId, userId);
+    }
+    @Override
+    public Integer failed(int error) {
+        return error;
+    }
 }
@@ -19,12 +19,11 @@ package anubis.tx;
 import anubis.DataModel;
 import anubis.Timestamp;
 import java.util.Date;
-import org.prevayler.TransactionWithQuery;
 
 /**
  * Logged-in user attempts to send an amount to another user.
  */
-public class SendMoneyTx implements TransactionWithQuery<DataModel, Long> {
+public class SendMoneyTx implements CheckedTx<Long> {
     private static final long serialVersionUID = 1L;
     int fromUserId;
     int toUserId;
@@ -42,4 +41,12 @@ public class SendMoneyTx implements TransactionWithQuery<DataModel, Long> {
     public Long executeAndQuery(DataModel dm, Date date) {
         return dm.sendMoney(fromUserId, toUserId, amount, exact, locked, Timestamp.fromDate(date));
     }
+    @Override
+    public int check(DataModel dm) {
+        return dm.checkSendMoney(fromUserId, toUserId, amount, exact, locked);
+    }
+    @Override
+    public Long failed(int error) {
+        return (long)error;
+    }
 }
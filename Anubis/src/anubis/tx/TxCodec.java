@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2017 The Anubis Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anubis.tx;
+
+import anubis.JournalCodec;
+import anubis.PendingInvite;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Journal encoding of the DataModel transactions (see anubis.JournalCodec).
+ * The tags are in the journal files: never renumber or reuse one, and
+ *   changing what a transaction writes needs a new JournalCodec.VERSION.
+ */
+public class TxCodec {
+
+    static final int SEND_MONEY = 1;
+    static final int ADD_VALIDATION = 2;
+    static final int REMOVE_VALIDATION = 3;
+    static final int BURN_MONEY = 4;
+    static final int UNBURN_MONEY = 5;
+    static final int CHALLENGE_TRUST = 6;
+    static final int REQUEST_TRUST = 7;
+    static final int VOTE_TRUST = 8;
+    static final int CREATE_INVITE = 9;
+    static final int CREATE_USER = 10;
+    static final int DELETE_USER = 11;
+    static final int EDIT_PERSONAL_INFO = 12;
+    static final int RELEASE_MIN_BALANCES = 13;
+    static final int SET_ANCHOR_STATUS = 14;
+    static final int TICK = 15;
+    static final int TOUCH_LOGIN_TIMESTAMP = 16;
+    static final int ACCEPT_INVITE = 17;
+    static final int LOGIN = 18;
+    static final int DELETE_ACCOUNT = 19;
+    static final int BURN_MONEY_WITH_RECEIPT = 20;
+
+    // Writes the tag and fields of a transaction of this package. Returns
+    //   false if it's not one we know.
+    public static boolean write(DataOutput out, Object tx) throws IOException {
+        Class<?> c = tx.getClass();
+        if (c == SendMoneyTx.class) {
+            SendMoneyTx t = (SendMoneyTx)tx;
+            out.writeByte(SEND_MONEY);
+            out.writeInt(t.fromUserId);
+            out.writeInt(t.toUserId);
+            out.writeLong(t.amount);
+            out.writeBoolean(t.exact);
+            out.writeBoolean(t.locked);
+        } else if (c == AddValidationTx.class) {
+            AddValidationTx t = (AddValidationTx)tx;
+            out.writeByte(ADD_VALIDATION);
+            out.writeInt(t.thisUserId);
+            out.writeInt(t.otherUserId);
+        } else if (c == RemoveValidationTx.class) {
+            RemoveValidationTx t = (RemoveValidationTx)tx;
+            out.writeByte(REMOVE_VALIDATION);
+            out.writeInt(t.thisUserId);
+            out.writeInt(t.otherUserId);
+            out.writeBoolean(t.inbound);
+            out.writeBoolean(t.outbound);
+        } else if (c == BurnMoneyTx.class) {
+            BurnMoneyTx t = (BurnMoneyTx)tx;
+            out.writeByte(BURN_MONEY);
+            out.writeInt(t.userId);
+            out.writeLong(t.amount);
+        } else if (c == UnburnMoneyTx.class) {
+            UnburnMoneyTx t = (UnburnMoneyTx)tx;
+            out.writeByte(UNBURN_MONEY);
+            out.writeInt(t.userId);
+            out.writeLong(t.amount);
+        } else if (c == ChallengeTrustTx.class) {
+            ChallengeTrustTx t = (ChallengeTrustTx)tx;
+            out.writeByte(CHALLENGE_TRUST);
+            out.writeInt(t.sourceUserId);
+            out.writeInt(t.targetUserId);
+        } else if (c == RequestTrustTx.class) {
+            out.writeByte(REQUEST_TRUST);
+            out.writeInt(((RequestTrustTx)tx).userId);
+        } else if (c == VoteTrustTx.class) {
+            VoteTrustTx t = (VoteTrustTx)tx;
+            out.writeByte(VOTE_TRUST);
+            out.writeInt(t.userId);
+            out.writeBoolean(t.vote);
+        } else if (c == CreateInviteTx.class) {
+            CreateInviteTx t = (CreateInviteTx)tx;
+            out.writeByte(CREATE_INVITE);
+            out.writeInt(t.sponsorId);
+            out.writeLong(t.amount);
+        } else if (c == CreateUserTx.class) {
+            CreateUserTx t = (CreateUserTx)tx;
+            out.writeByte(CREATE_USER);
+            JournalCodec.writeUserAccount(out, t.acc);
+            out.writeInt(t.sponsorId);
+        } else if (c == DeleteUserTx.class) {
+            out.writeByte(DELETE_USER);
+            out.writeInt(((DeleteUserTx)tx).userId);
+        } else if (c == EditPersonalInfoTx.class) {
+            EditPersonalInfoTx t = (EditPersonalInfoTx)tx;
+            out.writeByte(EDIT_PERSONAL_INFO);
+            out.writeInt(t.userId);
+            JournalCodec.writeString(out, t.name);
+            out.writeInt((t.profile == null) ? -1 : t.profile.size());
+            if (t.profile != null)
+                for (String line : t.profile)
+                    JournalCodec.writeString(out, line);
+        } else if (c == ReleaseMinBalancesTx.class) {
+            ArrayList<PendingInvite> invites = ((ReleaseMinBalancesTx)tx).deletedPendingInvites;
+            out.writeByte(RELEASE_MIN_BALANCES);
+            out.writeInt((invites == null) ? -1 : invites.size());
+            if (invites != null)
+                for (PendingInvite invite : invites)
+                    JournalCodec.writePendingInvite(out, invite);
+        } else if (c == SetAnchorStatusTx.class) {
+            SetAnchorStatusTx t = (SetAnchorStatusTx)tx;
+            out.writeByte(SET_ANCHOR_STATUS);
+            out.writeInt(t.userId);
+            out.writeBoolean(t.set);
+        } else if (c == TickTx.class) {
+            out.writeByte(TICK);
+        } else if (c == TouchLoginTimestampTx.class) {
+            out.writeByte(TOUCH_LOGIN_TIMESTAMP);
+            out.writeInt(((TouchLoginTimestampTx)tx).userId);
+        } else if (c == AcceptInviteTx.class) {
+            AcceptInviteTx t = (AcceptInviteTx)tx;
+            out.writeByte(ACCEPT_INVITE);
+            JournalCodec.writeUserAccount(out, t.acc);
+            JournalCodec.writePrivateUserAccount(out, t.privateAcc);
+            out.writeInt(t.sponsorId);
+            out.writeLong(t.invitationCode);
+            out.writeLong(t.amount);
+        } else if (c == LoginTx.class) {
+            LoginTx t = (LoginTx)tx;
+            out.writeByte(LOGIN);
+            out.writeInt(t.userId);
+            JournalCodec.writeStoredPassword(out, t.password);
+            out.writeLong(t.sessionId);
+            JournalCodec.writeUserSession(out, t.session);
+        } else if (c == DeleteAccountTx.class) {
+            out.writeByte(DELETE_ACCOUNT);
+            out.writeInt(((DeleteAccountTx)tx).userId);
+        } else if (c == BurnMoneyWithReceiptTx.class) {
+            BurnMoneyWithReceiptTx t = (BurnMoneyWithReceiptTx)tx;
+            out.writeByte(BURN_MONEY_WITH_RECEIPT);
+            out.writeInt(t.userId);
+            out.writeLong(t.amount);
+            JournalCodec.writeBytes(out, t.comment);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    public static Object read(int tag, DataInput in) throws IOException {
+        switch (tag) {
+            case SEND_MONEY:
+                return new SendMoneyTx(in.readInt(), in.readInt(), in.readLong(), in.readBoolean(), in.readBoolean());
+            case ADD_VALIDATION:
+                return new AddValidationTx(in.readInt(), in.readInt());
+            case REMOVE_VALIDATION:
+                return new RemoveValidationTx(in.readInt(), in.readInt(), in.readBoolean(), in.readBoolean());
+            case BURN_MONEY:
+                return new BurnMoneyTx(in.readInt(), in.readLong());
+            case UNBURN_MONEY:
+                return new UnburnMoneyTx(in.readInt(), in.readLong());
+            case CHALLENGE_TRUST:
+                return new ChallengeTrustTx(in.readInt(), in.readInt());
+            case REQUEST_TRUST:
+                return new RequestTrustTx(in.readInt());
+            case VOTE_TRUST:
+                return new VoteTrustTx(in.readInt(), in.readBoolean());
+            case CREATE_INVITE:
+                return new CreateInviteTx(in.readInt(), in.readLong());
+            case CREATE_USER:
+                return new CreateUserTx(JournalCodec.readUserAccount(in), in.readInt());
+            case DELETE_USER:
+                return new DeleteUserTx(in.readInt());
+            case EDIT_PERSONAL_INFO: {
+                int userId = in.readInt();
+                String name = JournalCodec.readString(in);
+                int n = JournalCodec.readNullableCount(in);
+                ArrayList<String> profile = null;
+                if (n >= 0) {
+                    profile = new ArrayList(n);
+                    for (int i = 0; i < n; i++)
+                        profile.add(JournalCodec.readString(in));
+                }
+                return new EditPersonalInfoTx(userId, name, profile);
+            }
+            case RELEASE_MIN_BALANCES: {
+                int n = JournalCodec.readNullableCount(in);
+                ArrayList<PendingInvite> invites = null;
+                if (n >= 0) {
+                    invites = new ArrayList(n);
+                    for (int i = 0; i < n; i++)
+                        invites.add(JournalCodec.readPendingInvite(in));
+                }
+                return new ReleaseMinBalancesTx(invites);
+            }
+            case SET_ANCHOR_STATUS:
+                return new SetAnchorStatusTx(in.readInt(), in.readBoolean());
+            case TICK:
+                return new TickTx();
+            case TOUCH_LOGIN_TIMESTAMP:
+                return new TouchLoginTimestampTx(in.readInt());
+            case ACCEPT_INVITE:
+                return new AcceptInviteTx(JournalCodec.readUserAccount(in), JournalCodec.readPrivateUserAccount(in),
+                        in.readInt(), in.readLong(), in.readLong());
+            case LOGIN:
+                return new LoginTx(in.readInt(), JournalCodec.readStoredPassword(in), in.readLong(),
+                        JournalCodec.readUserSession(in));
+            case DELETE_ACCOUNT:
+                return new DeleteAccountTx(in.readInt());
+            case BURN_MONEY_WITH_RECEIPT:
+                return new BurnMoneyWithReceiptTx(in.readInt(), in.readLong(), JournalCodec.readBytes(in));
+            default:
+                throw new IOException("Unknown journal entry tag " + tag + ".");
+        }
+    }
+}
@@ -19,14 +19,13 @@ package anubis.tx;
 import anubis.DataModel;
 import anubis.Timestamp;
 import java.util.Date;
-import org.prevayler.TransactionWithQuery;
 
 /**
  * Pre-selected user votes yes/no on the election they were summoned to,
  *   choosing whether the network should set another user's account status 
  *   to Trusted.
  */
-public class VoteTrustTx implements TransactionWithQuery<DataModel, Integer> {
+public class VoteTrustTx implements CheckedTx<Integer> {
     private static final long serialVersionUID = 1L;
     int userId;
     boolean vote;
@@ -38,4 +37,12 @@ public class VoteTrustTx implements TransactionWithQuery<DataModel, Integer> {
     public Integer executeAndQuery(DataModel dm, Date date) {
         return dm.voteTrust(userId, vote, Timestamp.fromDate(date));
     }
+    @Override
+    public int check(DataModel dm) {
+        return dm.checkVoteTrust(userId);
+    }
+    @Override
+    public Integer failed(int error) {
+        return error;
+    }
 }